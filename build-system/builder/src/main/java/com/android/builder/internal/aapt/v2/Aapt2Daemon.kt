@@ -65,6 +65,14 @@ abstract class Aapt2Daemon(
         }
     }
 
+    /**
+     * Starts the underlying AAPT2 daemon process if it is not already running, so that it is ready
+     * to receive commands.
+     *
+     * This is optional, the process is started before the first compile or link otherwise.
+     */
+    fun start() = checkStarted()
+
     /**
      * Implementors must start the underlying AAPT2 daemon process.
      *
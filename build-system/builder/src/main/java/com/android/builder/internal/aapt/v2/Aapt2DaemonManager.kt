@@ -25,6 +25,7 @@ import com.android.utils.ILogger
 import com.google.common.base.Preconditions
 import com.google.common.base.Ticker
 import java.io.Closeable
+import java.util.ArrayDeque
 import java.util.concurrent.TimeUnit
 import javax.annotation.concurrent.GuardedBy
 import javax.annotation.concurrent.NotThreadSafe
@@ -33,10 +34,11 @@ import javax.annotation.concurrent.ThreadSafe
 /**
  * Maintains a pool of AAPT2 daemon processes.
  *
- * The pool is expanded if all processes are busy when a request is received.
- * No attempt is made to limit the size of the pool.
- * Users of this class are expected to manage the desired concurrency level through the use of
- * gradle workers, a thread pool or similar.
+ * The pool is expanded if all processes are busy when a request is received, up to [maxDaemons]
+ * processes. Once the pool is full, requests wait for a process to be returned and are served in
+ * the order they were received. By default the size of the pool is not limited, and users of this
+ * class are expected to manage the desired concurrency level through the use of gradle workers, a
+ * thread pool or similar.
  *
  * Users of this class are expected to call leaseProcess on a worker thread in a
  * try-with-resources/use block. The operations on the [LeasedAaptDaemon] are then blocking on that
@@ -49,7 +51,12 @@ class Aapt2DaemonManager(
         expiryTime: Long,
         expiryTimeUnit: TimeUnit,
         private val listener: Listener = NoOpListener(),
-        private val timeSource: Ticker = Ticker.systemTicker()) {
+        private val timeSource: Ticker = Ticker.systemTicker(),
+        val maxDaemons: Int = Int.MAX_VALUE) {
+
+    init {
+        Preconditions.checkArgument(maxDaemons > 0, "maxDaemons must be positive: %s", maxDaemons)
+    }
 
     private val expiryTimeNanoSeconds = expiryTimeUnit.toNanos(expiryTime)
 
@@ -59,10 +66,29 @@ class Aapt2DaemonManager(
     @GuardedBy("this")
     private val pool: MutableList<LeasableAaptDaemon> = mutableListOf()
 
+    /** The lease requests waiting for a daemon, in the order they were received. */
+    @GuardedBy("this")
+    private val waitingLeases = ArrayDeque<Any>()
+
+    /** The statistics of the daemons which were removed from the pool. */
+    @GuardedBy("this")
+    private val retiredDaemonStats: MutableList<DaemonStats> = mutableListOf()
+
+    /** The number of daemons which were removed from the pool because they stopped unexpectedly. */
+    @GuardedBy("this")
+    private var restartCount: Int = 0
+
+    /** Whether [shutdown] was called, after which no more daemons are pre-warmed. */
+    @GuardedBy("this")
+    private var isShutDown: Boolean = false
+
     internal class LeasableAaptDaemon(
+            val displayId: Int,
             val daemon: Aapt2Daemon,
             var lastUsedNanoSeconds: Long,
-            var busy: Boolean = false) {
+            var busy: Boolean = false,
+            var warming: Boolean = false) {
+        val stats = DaemonStatsRecorder(displayId)
         fun shutdown() = daemon.shutDown()
     }
 
@@ -70,14 +96,79 @@ class Aapt2DaemonManager(
      * Returns a [LeasedAaptDaemon], either from a pool of started daemons,
      * Or starting a new process if all the existing daemons in the pool are in use
      *
+     * If the pool already has [maxDaemons] daemons and all of them are in use, blocks until one of
+     * them is returned to the pool. Waiting requests are served in the order they were received.
+     *
      * Blocks until the daemon is ready to receive commands.
      */
     @Synchronized
     fun leaseDaemon(): LeasedAaptDaemon {
-        val daemon =
-                pool.find { !it.busy } ?: newAaptDaemon()
-        daemon.busy = true
-        return LeasedAaptDaemon(daemon, this::returnProcess)
+        val lease = Any()
+        waitingLeases.add(lease)
+        try {
+            while (true) {
+                if (waitingLeases.peek() === lease) {
+                    // Prefer started daemons, an unstarted one is started on this thread.
+                    val daemon =
+                            pool.find { !it.busy && it.daemon.state == Aapt2Daemon.State.RUNNING }
+                            ?: pool.find { !it.busy }
+                            ?: if (pool.size < maxDaemons) newAaptDaemon() else null
+                    if (daemon != null) {
+                        daemon.busy = true
+                        return LeasedAaptDaemon(daemon, timeSource, this::returnProcess)
+                    }
+                }
+                lock.wait()
+            }
+        } finally {
+            waitingLeases.remove(lease)
+            // The next request in the queue might be able to lease a daemon now.
+            lock.notifyAll()
+        }
+    }
+
+    /**
+     * Adds daemons until there are at least [count] daemons in the pool (but no more than
+     * [maxDaemons]), and starts them so that the first requests don't have to wait for the
+     * processes to start.
+     *
+     * The daemons are added to the pool before being started one at a time, so a request received
+     * meanwhile leases an unstarted daemon and starts it itself rather than waiting for the
+     * warm-up. Blocks while the daemons start. Daemons which fail to start are logged and dropped.
+     */
+    fun preWarm(count: Int) {
+        addDaemonsToPreWarm(count)
+        while (true) {
+            val daemon = takeDaemonToPreWarm() ?: return
+            try {
+                daemon.daemon.start()
+            } catch (e: Aapt2InternalException) {
+                logger.warning("Failed to pre-start AAPT2 daemon: %1\$s", e.message)
+            } finally {
+                returnProcess(daemon)
+            }
+        }
+    }
+
+    @Synchronized
+    private fun addDaemonsToPreWarm(count: Int) {
+        while (!isShutDown && pool.size < minOf(count, maxDaemons)) {
+            newAaptDaemon()
+        }
+        // Requests waiting for the pool to have room can lease the new daemons.
+        lock.notifyAll()
+    }
+
+    /** Returns an idle unstarted daemon, marked as being warmed, or null if there is none. */
+    @Synchronized
+    private fun takeDaemonToPreWarm(): LeasableAaptDaemon? {
+        if (isShutDown) {
+            return null
+        }
+        return pool.find { !it.busy && it.daemon.state == Aapt2Daemon.State.NEW }?.also {
+            it.busy = true
+            it.warming = true
+        }
     }
 
     /**
@@ -89,24 +180,37 @@ class Aapt2DaemonManager(
         expiredDaemons.forEach { it.shutdown() }
     }
 
-    /** Shuts down this AAPT process manager. */
+    /**
+     * Shuts down this AAPT process manager.
+     *
+     * Daemons being pre-warmed are removed from the pool without waiting for them to start, and
+     * are shut down once started.
+     */
     @Synchronized
     fun shutdown() {
-        if (pool.any { it.busy }) {
+        if (pool.any { it.busy && !it.warming }) {
             error("AAPT Process manager cannot be shut down while daemons are in use")
         }
+        isShutDown = true
         if (!pool.isEmpty()) {
             listener.lastDaemonStopped()
         }
-        pool.forEach { it.shutdown() }
+        pool.forEach {
+            retiredDaemonStats.add(it.stats.snapshot())
+            // Daemons being warmed are owned by the warming thread until they are returned.
+            if (!it.warming) {
+                it.shutdown()
+            }
+        }
         pool.clear()
+        lock.notifyAll()
     }
 
     @GuardedBy("this")  // Only called from leaseDaemon, so already synchronized
     private fun newAaptDaemon(): LeasableAaptDaemon {
         val displayId = latestDisplayId++
         val process = daemonFactory.invoke(displayId)
-        val daemon = LeasableAaptDaemon(process, timeSource.read())
+        val daemon = LeasableAaptDaemon(displayId, process, timeSource.read())
         if (pool.isEmpty()) {
             listener.firstDaemonStarted(this)
         }
@@ -117,10 +221,26 @@ class Aapt2DaemonManager(
     /** Marks the process as returned, and updates when it was last used */
     @Synchronized
     private fun returnProcess(key: LeasableAaptDaemon) {
+        // Either the daemon becomes available or there is room for a new one.
+        lock.notifyAll()
+        key.warming = false
+        if (key !in pool) {
+            // The manager was shut down while the daemon was being warmed, and already removed it
+            // from the pool and recorded its statistics: only the process is left to stop.
+            key.busy = false
+            if (key.daemon.state == Aapt2Daemon.State.RUNNING) {
+                key.shutdown()
+            }
+            return
+        }
         if (key.daemon.state != Aapt2Daemon.State.RUNNING) {
             // If the daemon was not started or has stopped there's no point keeping it in the pool.
             // No need to shut it down either, that would have already happened if needed.
             pool.remove(key)
+            if (key.daemon.state == Aapt2Daemon.State.SHUTDOWN) {
+                retiredDaemonStats.add(key.stats.snapshot())
+                restartCount++
+            }
             if (pool.isEmpty()) {
                 listener.lastDaemonStopped()
             }
@@ -140,7 +260,10 @@ class Aapt2DaemonManager(
             when {
             // Daemons that are in use, or have been used recently are kept
                 daemon.busy || daemon.lastUsedNanoSeconds >= expireHorizon -> pool.add(daemon)
-                else -> expired.add(daemon)
+                else -> {
+                    expired.add(daemon)
+                    retiredDaemonStats.add(daemon.stats.snapshot())
+                }
             }
         }
         if (pool.isEmpty()) {
@@ -160,6 +283,7 @@ class Aapt2DaemonManager(
     @NotThreadSafe
     class LeasedAaptDaemon internal constructor(
             private val leasableDaemon: LeasableAaptDaemon,
+            private val timeSource: Ticker,
             private val closeAction: (LeasableAaptDaemon) -> Unit) : Aapt2, Closeable, CloseableBlockingResourceLinker {
 
         private var leaseValid = true
@@ -167,13 +291,23 @@ class Aapt2DaemonManager(
         @Throws(Aapt2Exception::class)
         override fun compile(request: CompileResourceRequest, logger: ILogger) {
             Preconditions.checkState(leaseValid, "Leased process is already closed")
-            leasableDaemon.daemon.compile(request, logger)
+            val start = timeSource.read()
+            try {
+                leasableDaemon.daemon.compile(request, logger)
+            } finally {
+                leasableDaemon.stats.recordCompile(timeSource.read() - start)
+            }
         }
 
         @Throws(Aapt2Exception::class)
         override fun link(request: AaptPackageConfig, logger: ILogger) {
             Preconditions.checkState(leaseValid, "Leased process is already closed")
-            leasableDaemon.daemon.link(request, logger)
+            val start = timeSource.read()
+            try {
+                leasableDaemon.daemon.link(request, logger)
+            } finally {
+                leasableDaemon.stats.recordLink(timeSource.read() - start)
+            }
         }
 
         override fun close() {
@@ -204,9 +338,94 @@ class Aapt2DaemonManager(
     }
 
     @Synchronized
-    fun stats(): Stats = Stats(poolSize = pool.size, busyCount = pool.count { it.busy })
+    fun stats(): Stats = Stats(
+            poolSize = pool.size,
+            busyCount = pool.count { it.busy },
+            waitingCount = waitingLeases.size,
+            restartCount = restartCount,
+            daemons = (retiredDaemonStats + pool.map { it.stats.snapshot() })
+                    .sortedBy { it.displayId })
+
+    /**
+     * The state of the pool.
+     *
+     * @property waitingCount the number of lease requests waiting for a daemon
+     * @property restartCount the number of daemons which stopped unexpectedly and were dropped
+     *     from the pool, to be replaced by new daemons if needed
+     * @property daemons the statistics of all the daemons started by this manager, including the
+     *     ones which are no longer in the pool
+     */
+    data class Stats(
+            val poolSize: Int,
+            val busyCount: Int,
+            val waitingCount: Int = 0,
+            val restartCount: Int = 0,
+            val daemons: List<DaemonStats> = listOf())
+
+    /** The requests served by a single daemon. */
+    data class DaemonStats(
+            val displayId: Int,
+            val compileLatency: LatencyHistogram,
+            val linkLatency: LatencyHistogram) {
+        val requestCount: Long get() = compileLatency.count + linkLatency.count
+    }
 
-    data class Stats(val poolSize: Int, val busyCount: Int)
+    /**
+     * A histogram of request latencies.
+     *
+     * @property counts the number of requests in each bucket. Each bucket holds the requests
+     *     which took less than the matching bound of [BUCKET_BOUNDS_MILLIS], and at least the
+     *     bound of the previous bucket. The last bucket holds the requests slower than all bounds.
+     */
+    data class LatencyHistogram(val counts: List<Long>) {
+        val count: Long get() = counts.sum()
+
+        override fun toString() =
+                counts.withIndex().joinToString(prefix = "[", postfix = "]") { (i, count) ->
+                    val bound = BUCKET_BOUNDS_MILLIS.getOrNull(i)
+                    (if (bound != null) "<${bound}ms" else ">=${BUCKET_BOUNDS_MILLIS.last()}ms") +
+                            ": $count"
+                }
+
+        companion object {
+            @JvmField
+            val BUCKET_BOUNDS_MILLIS = listOf(10L, 50L, 100L, 500L, 1000L, 5000L)
+        }
+    }
+
+    /** Collects the [DaemonStats] of a daemon, may be read while the daemon is in use. */
+    @ThreadSafe
+    internal class DaemonStatsRecorder(private val displayId: Int) {
+        @GuardedBy("this")
+        private val compileCounts = LongArray(LatencyHistogram.BUCKET_BOUNDS_MILLIS.size + 1)
+        @GuardedBy("this")
+        private val linkCounts = LongArray(LatencyHistogram.BUCKET_BOUNDS_MILLIS.size + 1)
+
+        @Synchronized
+        fun recordCompile(durationNanoSeconds: Long) {
+            compileCounts[bucket(durationNanoSeconds)]++
+        }
+
+        @Synchronized
+        fun recordLink(durationNanoSeconds: Long) {
+            linkCounts[bucket(durationNanoSeconds)]++
+        }
+
+        @Synchronized
+        fun snapshot() = DaemonStats(
+                displayId = displayId,
+                compileLatency = LatencyHistogram(compileCounts.toList()),
+                linkLatency = LatencyHistogram(linkCounts.toList()))
+
+        private fun bucket(durationNanoSeconds: Long): Int {
+            val millis = TimeUnit.NANOSECONDS.toMillis(durationNanoSeconds)
+            val index = LatencyHistogram.BUCKET_BOUNDS_MILLIS.indexOfFirst { millis < it }
+            return if (index >= 0) index else LatencyHistogram.BUCKET_BOUNDS_MILLIS.size
+        }
+    }
 
+    @Suppress("PLATFORM_CLASS_MAPPED_TO_KOTLIN")
+    private val lock: Object
+        get() = this as Object
 }
 
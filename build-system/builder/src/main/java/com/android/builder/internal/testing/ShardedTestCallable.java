@@ -25,6 +25,7 @@ import com.android.ddmlib.InstallException;
 import com.android.ddmlib.MultiLineReceiver;
 import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
 import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.ddmlib.testrunner.TestResult;
 import com.android.ddmlib.testrunner.TestRunResult;
 import com.android.utils.ILogger;
 import com.google.common.base.Joiner;
@@ -44,6 +45,12 @@ import java.util.concurrent.TimeUnit;
  * Basic Callable to distribute and run tests on a given {@link DeviceConnector} using {@link
  * RemoteAndroidTestRunner}.
  * The boolean return value is true if success.
+ *
+ * <p>The tests are either split by the instrumentation into the shards of a {@link
+ * ShardProvider}, or run as the batches of a {@link TestBatchScheduler}. In the latter case, the
+ * tests which failed on this device may be retried on another one, so the result of the run is
+ * given by {@link TestBatchScheduler#isSuccessful()} once all the devices are done, and the
+ * callable returns true unless the device couldn't be set up.
  */
 public class ShardedTestCallable implements Callable<Boolean> {
 
@@ -73,9 +80,12 @@ public class ShardedTestCallable implements Callable<Boolean> {
     @NonNull
     private final ILogger logger;
 
-    @NonNull
+    @Nullable
     private final ShardProvider shardProvider;
 
+    @Nullable
+    private final TestBatchScheduler batchScheduler;
+
     private final int timeoutInMs;
 
     private ProgressListener progressListener;
@@ -91,6 +101,37 @@ public class ShardedTestCallable implements Callable<Boolean> {
             int timeoutInMs,
             @NonNull ILogger logger,
             @NonNull ShardProvider shardProvider) {
+        this(device, projectName, flavorName, testedApks, testData, resultsDir, coverageDir,
+                timeoutInMs, logger, shardProvider, null);
+    }
+
+    public ShardedTestCallable(
+            @NonNull DeviceConnector device,
+            @NonNull String projectName,
+            @NonNull String flavorName,
+            @NonNull List<File> testedApks,
+            @NonNull TestData testData,
+            @NonNull File resultsDir,
+            @NonNull File coverageDir,
+            int timeoutInMs,
+            @NonNull ILogger logger,
+            @NonNull TestBatchScheduler batchScheduler) {
+        this(device, projectName, flavorName, testedApks, testData, resultsDir, coverageDir,
+                timeoutInMs, logger, null, batchScheduler);
+    }
+
+    private ShardedTestCallable(
+            @NonNull DeviceConnector device,
+            @NonNull String projectName,
+            @NonNull String flavorName,
+            @NonNull List<File> testedApks,
+            @NonNull TestData testData,
+            @NonNull File resultsDir,
+            @NonNull File coverageDir,
+            int timeoutInMs,
+            @NonNull ILogger logger,
+            @Nullable ShardProvider shardProvider,
+            @Nullable TestBatchScheduler batchScheduler) {
         this.projectName = projectName;
         this.device = device;
         this.flavorName = flavorName;
@@ -101,6 +142,7 @@ public class ShardedTestCallable implements Callable<Boolean> {
         this.timeoutInMs = timeoutInMs;
         this.logger = logger;
         this.shardProvider = shardProvider;
+        this.batchScheduler = batchScheduler;
     }
 
     public void setProgressListener(
@@ -112,6 +154,10 @@ public class ShardedTestCallable implements Callable<Boolean> {
         return "shard_" + shard + FILE_COVERAGE_EC_SUFFIX;
     }
 
+    private String createCoverageFileName(@NonNull TestBatchScheduler.Batch batch) {
+        return "batch_" + batch.getId() + "_" + batch.getAttempt() + FILE_COVERAGE_EC_SUFFIX;
+    }
+
     @Override
     public Boolean call() throws Exception {
         final String deviceName = device.getName();
@@ -163,19 +209,15 @@ public class ShardedTestCallable implements Callable<Boolean> {
                 logger.verbose("Installed test apk on %s", deviceName);
             }
             isInstalled = true;
+            if (batchScheduler != null) {
+                runBatches(batchScheduler, coverageFiles, coverageFileLocation);
+                return true;
+            }
             Integer shard;
 
             while ((shard = shardProvider.getNextShard()) != null) {
                 logger.verbose("Running shard %d on %s", shard, deviceName);
-                RemoteAndroidTestRunner runner = new RemoteAndroidTestRunner(
-                        testData.getApplicationId(),
-                        testData.getInstrumentationRunner(),
-                        device);
-
-                for (Map.Entry<String, String> argument :
-                        testData.getInstrumentationRunnerArguments().entrySet()) {
-                    runner.addInstrumentationArg(argument.getKey(), argument.getValue());
-                }
+                RemoteAndroidTestRunner runner = createRunner();
 
                 if (testData.isTestCoverageEnabled()) {
                     runner.addInstrumentationArg("coverage", "true");
@@ -188,10 +230,10 @@ public class ShardedTestCallable implements Callable<Boolean> {
                 runner.addInstrumentationArg("numShards",
                         String.valueOf(shardProvider.getTotalShards()));
 
-                runner.setRunName(deviceName);
-                runner.setMaxtimeToOutputResponse(timeoutInMs);
                 runListener = new ShardedTestListener(
-                        shard, deviceName, projectName, flavorName, logger);
+                        "TEST-" + deviceName + "-" + projectName + "-" + flavorName + "-shard-"
+                                + shard + ".xml",
+                        deviceName, projectName, flavorName, logger);
                 runListener.setReportDir(resultsDir);
                 ((ShardedTestListener) runListener).setProgressListener(progressListener);
                 runner.run(runListener);
@@ -225,6 +267,9 @@ public class ShardedTestCallable implements Callable<Boolean> {
             // and throw
             throw e;
         } finally {
+            if (batchScheduler != null) {
+                batchScheduler.deviceFinished(deviceName);
+            }
             if (isInstalled) {
                 // Get the coverage if needed.
                 if (testData.isTestCoverageEnabled()) {
@@ -279,6 +324,75 @@ public class ShardedTestCallable implements Callable<Boolean> {
         }
     }
 
+    /**
+     * Runs the batches of the scheduler given to this device, until there are none left or the
+     * device fails to run one.
+     */
+    private void runBatches(
+            @NonNull TestBatchScheduler batchScheduler,
+            @NonNull List<String> coverageFiles,
+            @NonNull String coverageFileLocation)
+            throws InterruptedException {
+        String deviceName = device.getName();
+        TestBatchScheduler.Batch batch;
+        while ((batch = batchScheduler.getNextBatch(deviceName)) != null) {
+            logger.verbose("Running %s on %s", batch, deviceName);
+            TestRunResult testRunResult = null;
+            try {
+                RemoteAndroidTestRunner runner = createRunner();
+                if (batch.isTestListing()) {
+                    runner.setLogOnly(true);
+                    TestRunResult listing = new TestRunResult();
+                    runner.run(listing);
+                    testRunResult = listing;
+                } else {
+                    if (testData.isTestCoverageEnabled()) {
+                        runner.addInstrumentationArg("coverage", "true");
+                        String coverageFileName = createCoverageFileName(batch);
+                        coverageFiles.add(coverageFileName);
+                        runner.addInstrumentationArg("coverageFile",
+                                coverageFileLocation + coverageFileName);
+                    }
+                    runner.setClassNames(batch.getTestFilters());
+
+                    // The report of each attempt replaces the one of the previous attempt, and
+                    // includes the tests which passed in the previous attempts.
+                    ShardedTestListener runListener = new ShardedTestListener(
+                            "TEST-" + projectName + "-" + flavorName + "-batch-" + batch.getId()
+                                    + ".xml",
+                            deviceName, projectName, flavorName, logger);
+                    runListener.setReportDir(resultsDir);
+                    runListener.setPreviousResults(batch.getPreviousResults());
+                    runner.run(runListener);
+                    testRunResult = runListener.getRunResult();
+                }
+            } catch (Exception e) {
+                // the tests of the batch are retried on another device.
+                logger.error(e, "Failed to run %s on %s", batch, deviceName);
+                return;
+            } finally {
+                batchScheduler.batchFinished(batch, deviceName, testRunResult);
+            }
+        }
+    }
+
+    @NonNull
+    private RemoteAndroidTestRunner createRunner() {
+        RemoteAndroidTestRunner runner = new RemoteAndroidTestRunner(
+                testData.getApplicationId(),
+                testData.getInstrumentationRunner(),
+                device);
+
+        for (Map.Entry<String, String> argument :
+                testData.getInstrumentationRunnerArguments().entrySet()) {
+            runner.addInstrumentationArg(argument.getKey(), argument.getValue());
+        }
+
+        runner.setRunName(device.getName());
+        runner.setMaxtimeToOutputResponse(timeoutInMs);
+        return runner;
+    }
+
     private void uninstall(@NonNull File apkFile, @Nullable String packageName,
             @NonNull String deviceName)
             throws DeviceException {
@@ -306,11 +420,13 @@ public class ShardedTestCallable implements Callable<Boolean> {
 
         private ProgressListener mProgressListener;
 
-        public ShardedTestListener(int shard, @NonNull String deviceName,
+        @NonNull
+        private Map<TestIdentifier, TestResult> mPreviousResults = Collections.emptyMap();
+
+        public ShardedTestListener(@NonNull String name, @NonNull String deviceName,
                 @NonNull String projectName, @NonNull String flavorName, @Nullable ILogger logger) {
             super(deviceName, projectName, flavorName, logger);
-            name = "TEST-" + deviceName + "-" + projectName + "-" + flavorName
-                    + "-shard-" + shard + ".xml";
+            this.name = name;
         }
 
         public void setProgressListener(
@@ -318,6 +434,11 @@ public class ShardedTestCallable implements Callable<Boolean> {
             mProgressListener = progressListener;
         }
 
+        /** Sets the results of tests which ran earlier, to be included in the report. */
+        public void setPreviousResults(@NonNull Map<TestIdentifier, TestResult> previousResults) {
+            mPreviousResults = previousResults;
+        }
+
         @Override
         protected File getResultFile(File reportDir) throws IOException {
             return new File(reportDir, name);
@@ -338,6 +459,34 @@ public class ShardedTestCallable implements Callable<Boolean> {
                 mProgressListener.onTestFinished();
             }
         }
+
+        @Override
+        public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+            TestRunResult runResult = getRunResult();
+            for (Map.Entry<TestIdentifier, TestResult> entry : mPreviousResults.entrySet()) {
+                TestIdentifier test = entry.getKey();
+                TestResult result = entry.getValue();
+                if (runResult.getTestResults().containsKey(test)) {
+                    continue;
+                }
+                runResult.testStarted(test, result.getStartTime());
+                switch (result.getStatus()) {
+                    case FAILURE:
+                        runResult.testFailed(test, result.getStackTrace());
+                        break;
+                    case ASSUMPTION_FAILURE:
+                        runResult.testAssumptionFailure(test, result.getStackTrace());
+                        break;
+                    case IGNORED:
+                        runResult.testIgnored(test);
+                        break;
+                    default:
+                        break;
+                }
+                runResult.testEnded(test, result.getEndTime(), result.getMetrics());
+            }
+            super.testRunEnded(elapsedTime, runMetrics);
+        }
     }
 
     public static class ProgressListener {
@@ -0,0 +1,542 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.testing;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.ddmlib.testrunner.TestResult;
+import com.android.ddmlib.testrunner.TestRunResult;
+import com.android.utils.ILogger;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Schedules the tests of a run over several devices, as batches of tests.
+ *
+ * <p>The tests are first listed by running the instrumentation in log only mode on one of the
+ * devices. They are then split into batches of about the same expected duration, based on the
+ * {@link TestDurationHistory}, several per device. Each device is assigned a queue of batches,
+ * and devices which are done with their own queue steal batches from the others, so that faster
+ * devices end up running more tests.
+ *
+ * <p>The tests of a batch which failed or didn't run, for instance because the instrumentation
+ * crashed, are run again as a new batch, on another device when possible.
+ *
+ * <p>This class is thread safe.
+ */
+public final class TestBatchScheduler {
+
+    /** Number of batches created per device, so that devices finishing early have work to steal. */
+    private static final int BATCHES_PER_DEVICE = 8;
+
+    /**
+     * Maximum length of the test filters of a batch, which are passed on the command line of the
+     * instrumentation.
+     */
+    private static final int MAX_FILTERS_LENGTH = 2000;
+
+    /** Number of times the tests of a batch are retried. */
+    private static final int DEFAULT_MAX_RETRIES = 1;
+
+    /** A set of tests run by one instrumentation. */
+    public static final class Batch {
+
+        private final int id;
+
+        private final int attempt;
+
+        /** The units of the batch, null if the batch lists the tests. */
+        @Nullable private final ImmutableList<TestUnit> units;
+
+        /** The devices the batch already ran on. */
+        @NonNull private final ImmutableSet<String> excludedDevices;
+
+        /** The results of the tests which ran in earlier attempts, and aren't run again. */
+        @NonNull private final ImmutableMap<TestIdentifier, TestResult> previousResults;
+
+        private final long expectedDuration;
+
+        private Batch(
+                int id,
+                int attempt,
+                @Nullable ImmutableList<TestUnit> units,
+                @NonNull ImmutableSet<String> excludedDevices) {
+            this(id, attempt, units, excludedDevices, ImmutableMap.of());
+        }
+
+        private Batch(
+                int id,
+                int attempt,
+                @Nullable ImmutableList<TestUnit> units,
+                @NonNull ImmutableSet<String> excludedDevices,
+                @NonNull ImmutableMap<TestIdentifier, TestResult> previousResults) {
+            this.id = id;
+            this.attempt = attempt;
+            this.units = units;
+            this.excludedDevices = excludedDevices;
+            this.previousResults = previousResults;
+            long duration = 0;
+            if (units != null) {
+                for (TestUnit unit : units) {
+                    duration += unit.expectedDuration;
+                }
+            }
+            this.expectedDuration = duration;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        /** Returns the attempt to run the tests of this batch, starting at 0. */
+        public int getAttempt() {
+            return attempt;
+        }
+
+        /**
+         * Returns the results of the tests of the batch which ran in earlier attempts and aren't
+         * run again, so that the report of this attempt can replace the earlier ones.
+         */
+        @NonNull
+        public ImmutableMap<TestIdentifier, TestResult> getPreviousResults() {
+            return previousResults;
+        }
+
+        /**
+         * Returns true if the batch lists the tests of the run, by running the instrumentation in
+         * log only mode, rather than running tests.
+         */
+        public boolean isTestListing() {
+            return units == null;
+        }
+
+        /**
+         * Returns the filters selecting the tests of the batch, as expected by the class argument
+         * of the instrumentation: {@code class#method} or {@code class}.
+         */
+        @NonNull
+        public String[] getTestFilters() {
+            if (units == null) {
+                return new String[0];
+            }
+            String[] filters = new String[units.size()];
+            for (int i = 0; i < filters.length; i++) {
+                filters[i] = units.get(i).filter;
+            }
+            return filters;
+        }
+
+        @Override
+        public String toString() {
+            return isTestListing() ? "test listing" : "batch " + id + " (attempt " + attempt + ")";
+        }
+    }
+
+    /** Tests which are selected and retried together: either a single method, or a class. */
+    private static final class TestUnit {
+
+        @NonNull private final String filter;
+
+        @NonNull private final String className;
+
+        /** The test method, null if the unit is the whole class. */
+        @Nullable private final String testName;
+
+        private final long expectedDuration;
+
+        private TestUnit(
+                @NonNull String className, @Nullable String testName, long expectedDuration) {
+            this.filter = testName == null ? className : className + "#" + testName;
+            this.className = className;
+            this.testName = testName;
+            this.expectedDuration = expectedDuration;
+        }
+
+        private boolean contains(@NonNull TestIdentifier test) {
+            return className.equals(test.getClassName())
+                    && (testName == null || testName.equals(test.getTestName()));
+        }
+    }
+
+    @NonNull private final TestDurationHistory history;
+
+    @NonNull private final ILogger logger;
+
+    private final int maxRetries;
+
+    /** The devices which can still run batches. */
+    private final Set<String> activeDevices = new HashSet<>();
+
+    /** The queue of batches of each device, ordered from the longest to the shortest. */
+    private final Map<String, Deque<Batch>> deviceBatches = new LinkedHashMap<>();
+
+    /** Batches which are run on the first eligible device, before any other. */
+    private final Deque<Batch> retriedBatches = new ArrayDeque<>();
+
+    private int nextBatchId;
+
+    private int runningBatches;
+
+    private int finishedBatches;
+
+    private boolean failed;
+
+    private boolean finished;
+
+    public TestBatchScheduler(
+            @NonNull Collection<String> deviceNames,
+            @NonNull TestDurationHistory history,
+            @NonNull ILogger logger) {
+        this(deviceNames, history, logger, DEFAULT_MAX_RETRIES);
+    }
+
+    public TestBatchScheduler(
+            @NonNull Collection<String> deviceNames,
+            @NonNull TestDurationHistory history,
+            @NonNull ILogger logger,
+            int maxRetries) {
+        this.history = history;
+        this.logger = logger;
+        this.maxRetries = maxRetries;
+        activeDevices.addAll(deviceNames);
+        for (String deviceName : deviceNames) {
+            deviceBatches.put(deviceName, new ArrayDeque<>());
+        }
+        retriedBatches.add(new Batch(-1, 0, null, ImmutableSet.of()));
+    }
+
+    /**
+     * Returns the next batch to run on a device, waiting for the running batches to finish if
+     * there is none left, as their tests may have to be retried.
+     *
+     * <p>Each batch returned must be reported with {@link #batchFinished}.
+     *
+     * @return the next batch, or null once all the tests ran.
+     */
+    @Nullable
+    public synchronized Batch getNextBatch(@NonNull String deviceName)
+            throws InterruptedException {
+        while (!finished && activeDevices.contains(deviceName)) {
+            Batch batch = pollBatch(deviceName);
+            if (batch != null) {
+                runningBatches++;
+                return batch;
+            }
+            wait();
+        }
+        return null;
+    }
+
+    /**
+     * Reports the result of a batch.
+     *
+     * @param result the result of the instrumentation, or null if it couldn't be run.
+     */
+    public synchronized void batchFinished(
+            @NonNull Batch batch, @NonNull String deviceName, @Nullable TestRunResult result) {
+        runningBatches--;
+        if (batch.isTestListing()) {
+            if (result == null || result.isRunFailure()) {
+                retry(batch, deviceName, null, null);
+            } else {
+                createBatches(result.getTestResults().keySet());
+            }
+        } else {
+            finishedBatches++;
+            List<TestUnit> failedUnits = new ArrayList<>();
+            for (TestUnit unit : batch.units) {
+                if (!recordResults(unit, result)) {
+                    failedUnits.add(unit);
+                }
+            }
+            logger.verbose(
+                    "Finished %1$s on %2$s, %3$d tests to retry. %4$d batches done.",
+                    batch, deviceName, failedUnits.size(), finishedBatches);
+            if (!failedUnits.isEmpty()) {
+                retry(batch, deviceName, ImmutableList.copyOf(failedUnits), result);
+            } else if (result != null && result.isRunFailure()) {
+                logger.warning(
+                        "Test run of %1$s failed on %2$s: %3$s",
+                        batch, deviceName, result.getRunFailureMessage());
+                failed = true;
+            }
+        }
+        checkFinished();
+        notifyAll();
+    }
+
+    /**
+     * Reports that a device won't run batches anymore. Its remaining batches are left to the
+     * other devices.
+     */
+    public synchronized void deviceFinished(@NonNull String deviceName) {
+        activeDevices.remove(deviceName);
+        checkFinished();
+        notifyAll();
+    }
+
+    /**
+     * Waits until all the tests ran, or there is no device left to run them, as reported by
+     * {@link #batchFinished} and {@link #deviceFinished}.
+     */
+    public synchronized void awaitFinished() throws InterruptedException {
+        while (!finished) {
+            wait();
+        }
+    }
+
+    /** Returns true if all the tests ran and passed, possibly after being retried. */
+    public synchronized boolean isSuccessful() {
+        return finished && !failed;
+    }
+
+    @Nullable
+    private Batch pollBatch(@NonNull String deviceName) {
+        // retried batches go first, to devices they didn't run on if any is still active.
+        for (Iterator<Batch> iterator = retriedBatches.iterator(); iterator.hasNext(); ) {
+            Batch batch = iterator.next();
+            if (!batch.excludedDevices.contains(deviceName)
+                    || batch.excludedDevices.containsAll(activeDevices)) {
+                iterator.remove();
+                return batch;
+            }
+        }
+
+        Deque<Batch> ownBatches = deviceBatches.get(deviceName);
+        if (ownBatches != null && !ownBatches.isEmpty()) {
+            return ownBatches.pollFirst();
+        }
+
+        // steal the shortest batch of the device with the most work left.
+        Deque<Batch> victim = null;
+        long victimDuration = 0;
+        for (Deque<Batch> batches : deviceBatches.values()) {
+            long duration = 0;
+            for (Batch batch : batches) {
+                duration += batch.expectedDuration;
+            }
+            if (!batches.isEmpty() && (victim == null || duration > victimDuration)) {
+                victim = batches;
+                victimDuration = duration;
+            }
+        }
+        return victim != null ? victim.pollLast() : null;
+    }
+
+    /** Splits the tests into batches, and assigns them to the active devices. */
+    private void createBatches(@NonNull Collection<TestIdentifier> tests) {
+        List<TestUnit> units = createUnits(tests);
+        long totalDuration = 0;
+        for (TestUnit unit : units) {
+            totalDuration += unit.expectedDuration;
+        }
+        long batchDuration =
+                Math.max(1, totalDuration / (BATCHES_PER_DEVICE * Math.max(1, activeDevices.size())));
+
+        List<Batch> batches = new ArrayList<>();
+        List<TestUnit> batchUnits = new ArrayList<>();
+        long duration = 0;
+        int filtersLength = 0;
+        for (TestUnit unit : units) {
+            if (!batchUnits.isEmpty()
+                    && (duration >= batchDuration
+                            || filtersLength + unit.filter.length() + 1 > MAX_FILTERS_LENGTH)) {
+                batches.add(new Batch(nextBatchId++, 0, ImmutableList.copyOf(batchUnits),
+                        ImmutableSet.of()));
+                batchUnits.clear();
+                duration = 0;
+                filtersLength = 0;
+            }
+            batchUnits.add(unit);
+            duration += unit.expectedDuration;
+            filtersLength += unit.filter.length() + 1;
+        }
+        if (!batchUnits.isEmpty()) {
+            batches.add(new Batch(nextBatchId++, 0, ImmutableList.copyOf(batchUnits),
+                    ImmutableSet.of()));
+        }
+        logger.lifecycle(
+                "Split %1$d tests into %2$d batches over %3$d devices",
+                tests.size(), batches.size(), activeDevices.size());
+
+        // assign the longest batches first, each to the device with the least work.
+        batches.sort((batch1, batch2) ->
+                Long.compare(batch2.expectedDuration, batch1.expectedDuration));
+        Map<String, Long> assignedDurations = new LinkedHashMap<>();
+        for (String deviceName : activeDevices) {
+            assignedDurations.put(deviceName, 0L);
+        }
+        for (Batch batch : batches) {
+            String device = null;
+            for (Map.Entry<String, Long> entry : assignedDurations.entrySet()) {
+                if (device == null || entry.getValue() < assignedDurations.get(device)) {
+                    device = entry.getKey();
+                }
+            }
+            if (device == null) {
+                // no device left, the batches are not run.
+                failed = true;
+                return;
+            }
+            assignedDurations.put(device, assignedDurations.get(device) + batch.expectedDuration);
+            deviceBatches.get(device).addLast(batch);
+        }
+    }
+
+    /**
+     * Groups tests into units. Classes with tests which can't be selected by method, like
+     * parameterized tests, are run as a whole.
+     */
+    @NonNull
+    private List<TestUnit> createUnits(@NonNull Collection<TestIdentifier> tests) {
+        Map<String, List<TestIdentifier>> testsByClass = new LinkedHashMap<>();
+        for (TestIdentifier test : tests) {
+            testsByClass.computeIfAbsent(test.getClassName(), name -> new ArrayList<>()).add(test);
+        }
+
+        List<TestUnit> units = new ArrayList<>();
+        for (Map.Entry<String, List<TestIdentifier>> entry : testsByClass.entrySet()) {
+            boolean selectableByMethod = true;
+            long classDuration = 0;
+            for (TestIdentifier test : entry.getValue()) {
+                selectableByMethod &= isMethodName(test.getTestName());
+                classDuration += history.getDuration(test);
+            }
+            if (selectableByMethod) {
+                for (TestIdentifier test : entry.getValue()) {
+                    units.add(new TestUnit(
+                            entry.getKey(), test.getTestName(), history.getDuration(test)));
+                }
+            } else {
+                units.add(new TestUnit(entry.getKey(), null, classDuration));
+            }
+        }
+        return units;
+    }
+
+    private static boolean isMethodName(@NonNull String testName) {
+        if (testName.isEmpty() || !Character.isJavaIdentifierStart(testName.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < testName.length(); i++) {
+            if (!Character.isJavaIdentifierPart(testName.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records the durations of the tests of a unit.
+     *
+     * @return true if the unit ran and passed.
+     */
+    private boolean recordResults(@NonNull TestUnit unit, @Nullable TestRunResult result) {
+        if (result == null) {
+            return false;
+        }
+        boolean ran = false;
+        boolean passed = true;
+        for (Map.Entry<TestIdentifier, TestResult> entry : result.getTestResults().entrySet()) {
+            if (!unit.contains(entry.getKey())) {
+                continue;
+            }
+            TestResult testResult = entry.getValue();
+            ran = true;
+            switch (testResult.getStatus()) {
+                case INCOMPLETE:
+                    passed = false;
+                    break;
+                case FAILURE:
+                    passed = false;
+                    // fall through
+                default:
+                    history.record(
+                            entry.getKey(), testResult.getEndTime() - testResult.getStartTime());
+            }
+        }
+        return ran && passed;
+    }
+
+    /**
+     * Queues the given units of a batch to be run again, or marks the run as failed if the batch
+     * can't be retried anymore.
+     */
+    private void retry(
+            @NonNull Batch batch,
+            @NonNull String deviceName,
+            @Nullable ImmutableList<TestUnit> units,
+            @Nullable TestRunResult result) {
+        if (batch.attempt >= maxRetries) {
+            logger.warning("Giving up on %1$s after it failed on %2$s", batch, deviceName);
+            failed = true;
+            return;
+        }
+        Map<TestIdentifier, TestResult> previousResults = new LinkedHashMap<>();
+        previousResults.putAll(batch.previousResults);
+        if (units != null && result != null) {
+            for (Map.Entry<TestIdentifier, TestResult> entry : result.getTestResults().entrySet()) {
+                if (units.stream().noneMatch(unit -> unit.contains(entry.getKey()))) {
+                    previousResults.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        Batch retry =
+                new Batch(
+                        batch.id,
+                        batch.attempt + 1,
+                        units,
+                        ImmutableSet.<String>builder()
+                                .addAll(batch.excludedDevices)
+                                .add(deviceName)
+                                .build(),
+                        ImmutableMap.copyOf(previousResults));
+        logger.verbose("Retrying %1$s, which failed on %2$s", batch, deviceName);
+        retriedBatches.addLast(retry);
+    }
+
+    private void checkFinished() {
+        if (finished || runningBatches > 0) {
+            return;
+        }
+        boolean batchesLeft = !retriedBatches.isEmpty();
+        for (Deque<Batch> batches : deviceBatches.values()) {
+            batchesLeft |= !batches.isEmpty();
+        }
+        if (batchesLeft && !activeDevices.isEmpty()) {
+            return;
+        }
+        if (batchesLeft) {
+            logger.warning("No device left to run the remaining tests");
+            failed = true;
+        }
+        finished = true;
+        history.save(logger);
+    }
+}
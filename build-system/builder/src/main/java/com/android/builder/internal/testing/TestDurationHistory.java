@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.testing;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.utils.ILogger;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Durations of the tests in previous runs, used to balance the batches of tests run on devices.
+ *
+ * <p>The durations are persisted in a properties file, keyed by {@code class#method}.
+ */
+public final class TestDurationHistory {
+
+    /** Duration assumed for tests without history, when no test has any. */
+    private static final long DEFAULT_DURATION_MS = 1000;
+
+    @Nullable private final File file;
+
+    private final Map<String, Long> durations = new HashMap<>();
+
+    private long totalDuration;
+
+    private TestDurationHistory(@Nullable File file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the durations stored in the given file.
+     *
+     * @param file the file the durations are stored to, or null to not persist them.
+     */
+    @NonNull
+    public static TestDurationHistory load(@Nullable File file, @NonNull ILogger logger) {
+        TestDurationHistory history = new TestDurationHistory(file);
+        if (file == null || !file.isFile()) {
+            return history;
+        }
+
+        Properties properties = new Properties();
+        try (InputStream stream = new FileInputStream(file)) {
+            properties.load(stream);
+        } catch (IOException e) {
+            logger.warning("Failed to read test durations from %1$s: %2$s", file, e.getMessage());
+            return history;
+        }
+        for (String test : properties.stringPropertyNames()) {
+            try {
+                history.put(test, Long.parseLong(properties.getProperty(test)));
+            } catch (NumberFormatException ignored) {
+                // skip corrupted entries.
+            }
+        }
+        return history;
+    }
+
+    /**
+     * Returns the expected duration of a test, in milliseconds. Tests without history are
+     * expected to last as long as the average test.
+     */
+    public synchronized long getDuration(@NonNull TestIdentifier test) {
+        Long duration = durations.get(getKey(test));
+        if (duration != null) {
+            return duration;
+        }
+        return durations.isEmpty() ? DEFAULT_DURATION_MS : totalDuration / durations.size();
+    }
+
+    /** Records the duration of a test run, in milliseconds. */
+    public synchronized void record(@NonNull TestIdentifier test, long durationMs) {
+        if (durationMs < 0) {
+            return;
+        }
+        String key = getKey(test);
+        Long previous = durations.get(key);
+        // smooth out the variations between runs.
+        put(key, previous == null ? durationMs : (previous + durationMs) / 2);
+    }
+
+    /** Writes the durations back to the file they were loaded from, if any. */
+    public synchronized void save(@NonNull ILogger logger) {
+        if (file == null) {
+            return;
+        }
+
+        Properties properties = new Properties();
+        for (Map.Entry<String, Long> entry : durations.entrySet()) {
+            properties.setProperty(entry.getKey(), Long.toString(entry.getValue()));
+        }
+        File parent = file.getParentFile();
+        if (parent != null) {
+            //noinspection ResultOfMethodCallIgnored
+            parent.mkdirs();
+        }
+        try (OutputStream stream = new FileOutputStream(file)) {
+            properties.store(stream, null);
+        } catch (IOException e) {
+            logger.warning("Failed to write test durations to %1$s: %2$s", file, e.getMessage());
+        }
+    }
+
+    private void put(@NonNull String key, long duration) {
+        Long previous = durations.put(key, duration);
+        totalDuration += duration - (previous == null ? 0 : previous);
+    }
+
+    @NonNull
+    private static String getKey(@NonNull TestIdentifier test) {
+        return test.getClassName() + "#" + test.getTestName();
+    }
+}
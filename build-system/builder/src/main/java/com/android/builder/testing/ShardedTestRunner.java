@@ -19,28 +19,68 @@ package com.android.builder.testing;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.builder.internal.testing.ShardedTestCallable;
+import com.android.builder.internal.testing.TestBatchScheduler;
+import com.android.builder.internal.testing.TestDurationHistory;
 import com.android.builder.testing.api.DeviceConnector;
 import com.android.ide.common.internal.WaitableExecutor;
 import com.android.ide.common.process.ProcessExecutor;
 import com.android.utils.ILogger;
 import com.google.common.collect.ImmutableList;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
-/** A {@link TestRunner} that uses all connected devices to execute tests in parallel. */
+/**
+ * A {@link TestRunner} that uses all connected devices to execute tests in parallel.
+ *
+ * <p>The tests are either split into a fixed number of shards by the instrumentation, or
+ * scheduled as batches balanced with the durations of previous runs, which idle devices steal
+ * from the others, see {@link TestBatchScheduler}.
+ */
 public class ShardedTestRunner extends BaseTestRunner {
 
     @Nullable private final Integer numShards;
 
+    private final boolean scheduleBatches;
+
+    @Nullable private final File testDurationsFile;
+
     public ShardedTestRunner(
             @Nullable File splitSelectExec,
             @NonNull ProcessExecutor processExecutor,
             @Nullable Integer numShards) {
+        this(splitSelectExec, processExecutor, numShards, false, null);
+    }
+
+    private ShardedTestRunner(
+            @Nullable File splitSelectExec,
+            @NonNull ProcessExecutor processExecutor,
+            @Nullable Integer numShards,
+            boolean scheduleBatches,
+            @Nullable File testDurationsFile) {
         super(splitSelectExec, processExecutor);
         this.numShards = numShards;
+        this.scheduleBatches = scheduleBatches;
+        this.testDurationsFile = testDurationsFile;
+    }
+
+    /**
+     * Creates a runner which schedules batches of tests over the devices.
+     *
+     * @param testDurationsFile the file the durations of the tests are stored to from run to
+     *     run, or null to not persist them.
+     */
+    @NonNull
+    public static ShardedTestRunner withBatchScheduling(
+            @Nullable File splitSelectExec,
+            @NonNull ProcessExecutor processExecutor,
+            @Nullable File testDurationsFile) {
+        return new ShardedTestRunner(
+                splitSelectExec, processExecutor, null, true, testDurationsFile);
     }
 
     @Override
@@ -56,6 +96,43 @@ public class ShardedTestRunner extends BaseTestRunner {
             @NonNull File resultsDir,
             @NonNull File coverageDir,
             @NonNull ILogger logger) {
+        if (scheduleBatches) {
+            // one more thread to wait for the scheduler, once the devices are done.
+            WaitableExecutor executor =
+                    WaitableExecutor.useNewFixedSizeThreadPool(apksForDevice.keySet().size() + 1);
+            List<String> deviceNames = new ArrayList<>();
+            for (DeviceConnector device : apksForDevice.keySet()) {
+                deviceNames.add(device.getName());
+            }
+            TestBatchScheduler batchScheduler =
+                    new TestBatchScheduler(
+                            deviceNames, TestDurationHistory.load(testDurationsFile, logger),
+                            logger);
+            for (Map.Entry<DeviceConnector, ImmutableList<File>> runners :
+                    apksForDevice.entrySet()) {
+                executor.execute(
+                        new ShardedTestCallable(
+                                runners.getKey(),
+                                projectName,
+                                variantName,
+                                runners.getValue(),
+                                testData,
+                                resultsDir,
+                                coverageDir,
+                                timeoutInMs,
+                                logger,
+                                batchScheduler));
+            }
+            // the tests which failed on a device may pass when retried on another one, the result
+            // of the whole run is only known once all the batches are done.
+            executor.execute(
+                    () -> {
+                        batchScheduler.awaitFinished();
+                        return batchScheduler.isSuccessful();
+                    });
+            return executor;
+        }
+
         WaitableExecutor executor =
                 WaitableExecutor.useNewFixedSizeThreadPool(apksForDevice.keySet().size());
 
@@ -26,20 +26,34 @@ import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.base.Verify;
+import com.google.common.collect.ConcurrentHashMultiset;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Stream;
 
 /**
@@ -79,6 +93,13 @@ import java.util.stream.Stream;
  * <p>If a cache entry exists but is found to be corrupted, the cache entry will be deleted and
  * recreated.
  *
+ * <p>A cache can be bounded with an {@link EvictionPolicy}, in which case the least recently used
+ * cache entries are deleted in the background whenever the cache grows over its budget (see {@link
+ * #evictLeastRecentlyUsedEntries()}).
+ *
+ * <p>A cache can also deduplicate the files of its cache entries with a content-addressed store
+ * (see {@link #withContentAddressedStorage()}).
+ *
  * <p>This class is thread-safe.
  */
 @Immutable
@@ -100,17 +121,69 @@ public class FileCache {
         SINGLE_PROCESS
     }
 
+    @NonNull private static final Logger LOGGER = Logger.getLogger(FileCache.class.getName());
+
+    /** The name of the access journal inside the cache directory (see {@link FileCacheJournal}). */
+    @NonNull private static final String JOURNAL_FILE_NAME = ".cache-access-journal";
+
+    /** The name of the content-addressed store inside the cache directory. */
+    @NonNull private static final String BLOB_DIRECTORY_NAME = ".blobs";
+
+    /** Runs the eviction passes of all the caches in the background, one at a time. */
+    @NonNull
+    private static final ExecutorService EVICTION_EXECUTOR =
+            Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("FileCache eviction")
+                            .build());
+
     @NonNull private final File cacheDirectory;
 
     @NonNull private final LockingScope lockingScope;
 
-    // Additional fields used for testing only
+    @Nullable private final EvictionPolicy evictionPolicy;
+
+    private final boolean contentAddressed;
+
+    @NonNull private final FileCacheBlobStore blobStore;
+
+    /** The access journal, also used as the lock guarding its in-memory index. */
+    @NonNull private final FileCacheJournal journal;
+
+    /**
+     * The keys of the entries evicted by this instance whose lock files haven't been deleted yet,
+     * guarded by {@link #journal}.
+     */
+    @NonNull private final Set<String> evictedKeys = new HashSet<>();
+
+    @NonNull private final AtomicBoolean evictionScheduled = new AtomicBoolean(false);
+
     @NonNull private final AtomicInteger missCount = new AtomicInteger(0);
     @NonNull private final AtomicInteger hitCount = new AtomicInteger(0);
+    @NonNull private final AtomicInteger evictionCount = new AtomicInteger(0);
+    @NonNull private final AtomicLong evictedBytes = new AtomicLong(0);
+    @NonNull private final AtomicLong servedBytes = new AtomicLong(0);
+
+    /**
+     * The number of hits on each cache entry which aren't counted in {@link #servedBytes} yet.
+     * Measuring a cached directory walks its whole tree, so it is only done on a hit when the size
+     * is needed for the access journal, or otherwise once the statistics are requested.
+     */
+    @NonNull
+    private final ConcurrentHashMultiset<String> unmeasuredHits = ConcurrentHashMultiset.create();
 
-    private FileCache(@NonNull File cacheDirectory, @NonNull LockingScope lockingScope) {
+    private FileCache(
+            @NonNull File cacheDirectory,
+            @NonNull LockingScope lockingScope,
+            @Nullable EvictionPolicy evictionPolicy,
+            boolean contentAddressed) {
         this.cacheDirectory = cacheDirectory;
         this.lockingScope = lockingScope;
+        this.evictionPolicy = evictionPolicy;
+        this.contentAddressed = contentAddressed;
+        this.journal = new FileCacheJournal(new File(cacheDirectory, JOURNAL_FILE_NAME).toPath());
+        this.blobStore = new FileCacheBlobStore(new File(cacheDirectory, BLOB_DIRECTORY_NAME));
     }
 
     /**
@@ -137,7 +210,7 @@ public class FileCache {
      */
     @NonNull
     public static FileCache getInstanceWithMultiProcessLocking(@NonNull File cacheDirectory) {
-        return new FileCache(cacheDirectory, LockingScope.MULTI_PROCESS);
+        return new FileCache(cacheDirectory, LockingScope.MULTI_PROCESS, null, false);
     }
 
     /**
@@ -156,7 +229,45 @@ public class FileCache {
      */
     @NonNull
     public static FileCache getInstanceWithSingleProcessLocking(@NonNull File cacheDirectory) {
-        return new FileCache(cacheDirectory, LockingScope.SINGLE_PROCESS);
+        return new FileCache(cacheDirectory, LockingScope.SINGLE_PROCESS, null, false);
+    }
+
+    /**
+     * Returns a {@code FileCache} instance for the same cache directory and with the same locking
+     * scope as this one, which keeps the cache within the budget of the given policy.
+     *
+     * <p>Caches with an eviction policy maintain an access journal inside the cache directory. Once
+     * the journal exists, all the instances using the cache directory record their accesses to it,
+     * whether they have an eviction policy or not.
+     *
+     * @param evictionPolicy the budget of the cache
+     * @see #evictLeastRecentlyUsedEntries()
+     */
+    @NonNull
+    public FileCache withEvictionPolicy(@NonNull EvictionPolicy evictionPolicy) {
+        return new FileCache(cacheDirectory, lockingScope, evictionPolicy, contentAddressed);
+    }
+
+    /**
+     * Returns a {@code FileCache} instance for the same cache directory, with the same locking
+     * scope and eviction policy as this one, which stores the contents of the cached files in a
+     * content-addressed store inside the cache directory.
+     *
+     * <p>The regular files of the cache entries are then hard links to the blobs of the store, so
+     * that identical files are only stored once across cache entries. The outputs created by
+     * {@link #createFile(File, Inputs, ExceptionRunnable)} from the cache are hard links too. If
+     * the file system doesn't support hard links, the files are copied as usual.
+     *
+     * <p>As an output created from the cache may share its contents with the cache, clients should
+     * replace rather than modify it in place. If it is modified in place anyway, the cache entry is
+     * reported as corrupted and recreated the next time it is queried.
+     *
+     * <p>Once the store exists, all the instances using the cache directory use it, whether they
+     * were created with this method or not.
+     */
+    @NonNull
+    public FileCache withContentAddressedStorage() {
+        return new FileCache(cacheDirectory, lockingScope, evictionPolicy, true);
     }
 
     @NonNull
@@ -164,6 +275,12 @@ public class FileCache {
         return cacheDirectory;
     }
 
+    /** Returns the eviction policy of this cache, or null if the cache is not bounded. */
+    @Nullable
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
     /**
      * Creates an output file/directory by either copying it from the cache, or creating it first
      * via the given file creator callback function and caching it if the cached file/directory does
@@ -247,7 +364,12 @@ public class FileCache {
                     // Only copy if the cached file exist as file creator may not have produced an
                     // output during the first time this cache is called on the given inputs
                     if (cachedFile.exists()) {
-                        copyFileOrDirectory(cachedFile, outputFile);
+                        // Cached files stored with the blob store can be shared with the output
+                        if (getManifestFile(cacheEntryDir).isFile()) {
+                            FileCacheBlobStore.materialize(cachedFile, outputFile);
+                        } else {
+                            copyFileOrDirectory(cachedFile, outputFile);
+                        }
                     }
                     return null;
                 };
@@ -271,7 +393,12 @@ public class FileCache {
                     // Only copy if the output file exists as file creator is not required to always
                     // produce an output
                     if (outputFile.exists()) {
-                        copyFileOrDirectory(outputFile, cachedFile);
+                        if (blobStore.exists()) {
+                            blobStore.store(
+                                    outputFile, cachedFile, getManifestFile(cacheEntryDir));
+                        } else {
+                            copyFileOrDirectory(outputFile, cachedFile);
+                        }
                     }
                     return null;
                 };
@@ -339,6 +466,10 @@ public class FileCache {
                     } catch (Exception exception) {
                         throw new FileCreatorException(exception);
                     }
+                    // Move the contents of the cached file to the blob store
+                    if (cachedFile.exists() && blobStore.exists()) {
+                        blobStore.store(cachedFile, cachedFile, getManifestFile(cacheEntryDir));
+                    }
                     return null;
                 };
 
@@ -398,6 +529,9 @@ public class FileCache {
                 // Create (or recreate) the cache directory since it may not exist or might have
                 // been deleted. The following method call is thread-safe and process-safe.
                 FileUtils.mkdirs(cacheDirectory);
+                if (contentAddressed) {
+                    blobStore.create();
+                }
 
                 // Guard the cache entry directory with a READ lock so that multiple
                 // threads/processes can read it at the same time
@@ -406,7 +540,7 @@ public class FileCache {
                             QueryResult result = checkCacheEntry(inputs, cacheEntryDir);
                             // If the cache entry is HIT, run the given action
                             if (result.getQueryEvent().equals(QueryEvent.HIT)) {
-                                hitCount.incrementAndGet();
+                                recordHit(inputs);
                                 actionIfCacheHit.call();
                             }
                             return result;
@@ -425,7 +559,7 @@ public class FileCache {
 
                     // If the cache entry is HIT, run the given action and return immediately
                     if (result.getQueryEvent().equals(QueryEvent.HIT)) {
-                        hitCount.incrementAndGet();
+                        recordHit(inputs);
                         actionIfCacheHit.call();
                         return result;
                     }
@@ -453,6 +587,12 @@ public class FileCache {
                     Files.asCharSink(getInputsFile(cacheEntryDir), StandardCharsets.UTF_8)
                             .write(inputs.toString());
 
+                    journal.append(
+                            inputs.getKey(),
+                            System.currentTimeMillis(),
+                            getSize(getCachedFile(cacheEntryDir)));
+                    // The cache has grown, so it may need to be trimmed
+                    scheduleEviction();
                     return result;
                 });
             });
@@ -475,6 +615,27 @@ public class FileCache {
         }
     }
 
+    /**
+     * Records a hit on a cache entry. This method must be called while holding a READ or WRITE
+     * lock on the cache entry directory.
+     */
+    private void recordHit(@NonNull Inputs inputs) throws IOException {
+        hitCount.incrementAndGet();
+        String key = inputs.getKey();
+        long size = journal.getSize(key);
+        if (size == FileCacheJournal.EVICTED) {
+            if (!journal.exists()) {
+                // There is nothing to record. If the journal is created in the meantime, it is
+                // created from the contents of the cache directory, this entry included.
+                unmeasuredHits.add(key);
+                return;
+            }
+            size = getSize(getCachedFile(getCacheEntryDir(inputs)));
+        }
+        servedBytes.addAndGet(size);
+        journal.append(key, System.currentTimeMillis(), size);
+    }
+
     /**
      * Returns {@code true} if the cache entry for the given list of inputs exists and is not
      * corrupted, and {@code false} otherwise. This method will block if the cache/cache entry is
@@ -562,6 +723,29 @@ public class FileCache {
                                     inputsFile.getAbsolutePath())));
         }
 
+        // The files of a cache entry stored with the blob store may have been modified in place
+        // through the outputs sharing their contents. We also report it as a corrupted cache
+        // entry.
+        File manifestFile = getManifestFile(cacheEntryDir);
+        if (manifestFile.exists()) {
+            String modifiedFile;
+            try {
+                modifiedFile =
+                        FileCacheBlobStore.findModifiedFile(
+                                getCachedFile(cacheEntryDir), manifestFile);
+            } catch (IOException e) {
+                return new QueryResult(QueryEvent.CORRUPTED, e);
+            }
+            if (modifiedFile != null) {
+                return new QueryResult(
+                        QueryEvent.CORRUPTED,
+                        new IllegalStateException(
+                                String.format(
+                                        "File '%s' was modified after it was cached",
+                                        modifiedFile)));
+            }
+        }
+
         // If the inputs file is valid, report a HIT
         return new QueryResult(QueryEvent.HIT);
     }
@@ -592,6 +776,15 @@ public class FileCache {
         return new File(cacheEntryDir, "inputs");
     }
 
+    /**
+     * Returns the path of the manifest file inside the cache entry directory, which lists the
+     * files of the cached output stored with the blob store (see {@link FileCacheBlobStore}).
+     */
+    @NonNull
+    private static File getManifestFile(@NonNull File cacheEntryDir) {
+        return new File(cacheEntryDir, "manifest");
+    }
+
     /**
      * Returns the path of the cached output file/directory that is unique to the given list of
      * inputs (different lists of inputs correspond to different cached files/directories).
@@ -634,6 +827,7 @@ public class FileCache {
                 if (!cacheDirectory.exists()) {
                     return null;
                 }
+                List<File> manifestFiles = new ArrayList<>();
                 for (File fileInDir : Verify.verifyNotNull(cacheDirectory.listFiles())) {
                     if (fileInDir.isDirectory() && getInputsFile(fileInDir).isFile()) {
                         //noinspection UnnecessaryLocalVariable - Use it for clarity
@@ -646,9 +840,19 @@ public class FileCache {
                                 FileUtils.deleteIfExists(
                                         SynchronizedFile.getLockFile(cacheEntryDir));
                             }
+                            if (FileCacheJournal.isKey(cacheEntryDir.getName())) {
+                                journal.append(
+                                        cacheEntryDir.getName(),
+                                        System.currentTimeMillis(),
+                                        FileCacheJournal.EVICTED);
+                            }
+                        } else {
+                            manifestFiles.add(getManifestFile(cacheEntryDir));
                         }
                     }
                 }
+                // Delete the blobs which are not used by the remaining cache entries
+                blobStore.deleteUnreferencedBlobs(manifestFiles);
                 return null;
             });
         } catch (ExecutionException exception) {
@@ -656,6 +860,153 @@ public class FileCache {
         }
     }
 
+    /**
+     * Deletes the least recently used cache entries until the cache is within the budget of its
+     * {@link EvictionPolicy}. Does nothing if the cache has no eviction policy.
+     *
+     * <p>This method is called in the background whenever a cache entry is created, clients only
+     * need to call it to trim the cache right away.
+     *
+     * <p>Unlike {@link #deleteOldCacheEntries(long)}, this method doesn't scan the cache directory
+     * nor lock the entire cache: the entries are found from the access journal, and each entry is
+     * deleted while holding a WRITE lock on that entry only. The cache directory is only locked
+     * for writing briefly, to create the journal the first time (from the contents of the cache
+     * directory) or to rewrite it once it has accumulated enough stale records.
+     *
+     * <p>Note that an entry returned by {@link #createFileInCacheIfAbsent(Inputs,
+     * ExceptionConsumer)} may be evicted once the cache entry is no longer locked. As the most
+     * recently used entries are evicted last, this only happens if the budget is too small for the
+     * entries used by a build.
+     */
+    public void evictLeastRecentlyUsedEntries() {
+        EvictionPolicy policy = evictionPolicy;
+        if (policy == null) {
+            return;
+        }
+        // Check the parent directory of the cache directory, similarly to FileCache.delete()
+        if (lockingScope == LockingScope.MULTI_PROCESS) {
+            if (!FileUtils.parentDirExists(cacheDirectory)) {
+                return;
+            }
+        }
+
+        synchronized (journal) {
+            try {
+                if (!evictEntries(policy)) {
+                    getSynchronizedFile(cacheDirectory).write(sameCacheDirectory -> {
+                        if (cacheDirectory.exists() && !journal.refresh()) {
+                            createJournal();
+                        }
+                        return null;
+                    });
+                    evictEntries(policy);
+                }
+
+                if (journal.needsCompaction()) {
+                    getSynchronizedFile(cacheDirectory).write(sameCacheDirectory -> {
+                        if (!journal.refresh()) {
+                            return null;
+                        }
+                        journal.rewrite(journal.getEntries());
+                        // No thread/process can be holding the lock of an entry at this point
+                        if (lockingScope == LockingScope.MULTI_PROCESS) {
+                            for (String key : evictedKeys) {
+                                File cacheEntryDir = new File(cacheDirectory, key);
+                                if (!cacheEntryDir.exists()) {
+                                    FileUtils.deleteIfExists(
+                                            SynchronizedFile.getLockFile(cacheEntryDir));
+                                }
+                            }
+                        }
+                        evictedKeys.clear();
+                        return null;
+                    });
+                }
+            } catch (ExecutionException exception) {
+                throw new RuntimeException(exception);
+            }
+        }
+    }
+
+    /**
+     * Reads the new records of the access journal and deletes the least recently used entries
+     * until the cache is within the budget of the given policy.
+     *
+     * @return false if the access journal needs to be created first
+     */
+    private boolean evictEntries(@NonNull EvictionPolicy policy) throws ExecutionException {
+        return getSynchronizedFile(cacheDirectory).read(sameCacheDirectory -> {
+            if (!cacheDirectory.exists()) {
+                return true;
+            }
+            if (!journal.refresh()) {
+                return false;
+            }
+            while (journal.getTotalBytes() > policy.getMaxBytes()
+                    || journal.getEntryCount() > policy.getMaxEntries()) {
+                FileCacheJournal.Entry entry = Verify.verifyNotNull(journal.getLeastRecentlyUsed());
+                boolean deleted =
+                        getSynchronizedFile(new File(cacheDirectory, entry.key)).write(
+                                cacheEntryDir -> {
+                                    if (!cacheEntryDir.exists()) {
+                                        return false;
+                                    }
+                                    Set<String> hashes =
+                                            FileCacheBlobStore.getHashes(
+                                                    getManifestFile(cacheEntryDir));
+                                    FileUtils.deletePath(cacheEntryDir);
+                                    blobStore.deleteUnusedBlobs(hashes);
+                                    return true;
+                                });
+                journal.remove(entry.key, System.currentTimeMillis());
+                if (deleted) {
+                    evictionCount.incrementAndGet();
+                    evictedBytes.addAndGet(entry.size);
+                    evictedKeys.add(entry.key);
+                }
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Creates the access journal from the cache entries in the cache directory, using their last
+     * modified timestamps as the time of their last access. This method must be called while
+     * holding a WRITE lock on the cache directory.
+     */
+    private void createJournal() throws IOException {
+        List<FileCacheJournal.Entry> entries = new ArrayList<>();
+        for (File fileInDir : Verify.verifyNotNull(cacheDirectory.listFiles())) {
+            if (fileInDir.isDirectory()
+                    && getInputsFile(fileInDir).isFile()
+                    && FileCacheJournal.isKey(fileInDir.getName())) {
+                entries.add(
+                        new FileCacheJournal.Entry(
+                                fileInDir.getName(),
+                                fileInDir.lastModified(),
+                                getSize(getCachedFile(fileInDir))));
+            }
+        }
+        entries.sort(Comparator.comparingLong(entry -> entry.lastAccess));
+        journal.rewrite(entries);
+    }
+
+    /** Schedules an eviction pass in the background, unless one is already pending. */
+    private void scheduleEviction() {
+        if (evictionPolicy == null || !evictionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        EVICTION_EXECUTOR.execute(
+                () -> {
+                    evictionScheduled.set(false);
+                    try {
+                        evictLeastRecentlyUsedEntries();
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Failed to evict entries from " + this, e);
+                    }
+                });
+    }
+
     /**
      * Deletes the cache directory and its contents.
      *
@@ -725,14 +1076,68 @@ public class FileCache {
         return hitCount.get();
     }
 
+    /**
+     * Returns the statistics of the queries and evictions performed through this instance (not
+     * through the other instances using the same cache directory).
+     *
+     * <p>Without an access journal, the cached outputs found by the queries are only measured when
+     * the statistics are requested.
+     */
+    @NonNull
+    public Stats getStats() {
+        for (Multiset.Entry<String> hits : unmeasuredHits.entrySet()) {
+            String key = hits.getElement();
+            int count = hits.getCount();
+            // Only count the hits once if the stats are requested from several threads.
+            if (unmeasuredHits.setCount(key, count, 0)) {
+                long size = journal.getSize(key);
+                if (size == FileCacheJournal.EVICTED) {
+                    try {
+                        size = getSize(getCachedFile(new File(cacheDirectory, key)));
+                    } catch (IOException | UncheckedIOException e) {
+                        // The cache entry is being deleted.
+                        size = 0;
+                    }
+                }
+                servedBytes.addAndGet(size * count);
+            }
+        }
+        return new Stats(
+                hitCount.get(),
+                missCount.get(),
+                evictionCount.get(),
+                servedBytes.get(),
+                evictedBytes.get());
+    }
+
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this)
                 .add("cacheDirectory", cacheDirectory)
                 .add("lockingScope", lockingScope)
+                .add("evictionPolicy", evictionPolicy)
+                .add("contentAddressed", contentAddressed)
                 .toString();
     }
 
+    /**
+     * Returns the total size of the regular files in the given file/directory, or 0 if it does not
+     * exist.
+     */
+    private static long getSize(@NonNull File fileOrDirectory) throws IOException {
+        if (fileOrDirectory.isFile()) {
+            return fileOrDirectory.length();
+        }
+        if (!fileOrDirectory.isDirectory()) {
+            return 0;
+        }
+        try (Stream<Path> entries = java.nio.file.Files.walk(fileOrDirectory.toPath())) {
+            return entries.filter(java.nio.file.Files::isRegularFile)
+                    .mapToLong(entry -> entry.toFile().length())
+                    .sum();
+        }
+    }
+
     /**
      * Copies a file or a directory's contents to another file or directory, which can have a
      * different name. The target file/directory is replaced if it already exists.
@@ -1212,6 +1617,108 @@ public class FileCache {
         }
     }
 
+    /**
+     * The budget of a cache, beyond which its least recently used entries are evicted (see {@link
+     * FileCache#withEvictionPolicy(EvictionPolicy)}).
+     */
+    @Immutable
+    public static final class EvictionPolicy {
+
+        private final long maxBytes;
+
+        private final int maxEntries;
+
+        /**
+         * Creates an {@code EvictionPolicy} instance.
+         *
+         * @param maxBytes the maximum total size of the cached outputs, or {@link Long#MAX_VALUE}
+         * @param maxEntries the maximum number of cache entries, or {@link Integer#MAX_VALUE}
+         */
+        public EvictionPolicy(long maxBytes, int maxEntries) {
+            Preconditions.checkArgument(maxBytes >= 0, "maxBytes must not be negative");
+            Preconditions.checkArgument(maxEntries >= 0, "maxEntries must not be negative");
+            this.maxBytes = maxBytes;
+            this.maxEntries = maxEntries;
+        }
+
+        /** Returns the maximum total size of the cached outputs. */
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        /** Returns the maximum number of cache entries. */
+        public int getMaxEntries() {
+            return maxEntries;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("maxBytes", maxBytes)
+                    .add("maxEntries", maxEntries)
+                    .toString();
+        }
+    }
+
+    /** Statistics of the use of a cache (see {@link FileCache#getStats()}). */
+    @Immutable
+    public static final class Stats {
+
+        private final int hits;
+
+        private final int misses;
+
+        private final int evictions;
+
+        private final long servedBytes;
+
+        private final long evictedBytes;
+
+        Stats(int hits, int misses, int evictions, long servedBytes, long evictedBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.servedBytes = servedBytes;
+            this.evictedBytes = evictedBytes;
+        }
+
+        /** Returns the number of queries which found their cache entry. */
+        public int getHits() {
+            return hits;
+        }
+
+        /** Returns the number of queries which created (or recreated) their cache entry. */
+        public int getMisses() {
+            return misses;
+        }
+
+        /** Returns the number of cache entries evicted by this instance. */
+        public int getEvictions() {
+            return evictions;
+        }
+
+        /** Returns the total size of the cached outputs found by the queries. */
+        public long getServedBytes() {
+            return servedBytes;
+        }
+
+        /** Returns the total size of the evicted cache entries. */
+        public long getEvictedBytes() {
+            return evictedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("hits", hits)
+                    .add("misses", misses)
+                    .add("evictions", evictions)
+                    .add("servedBytes", servedBytes)
+                    .add("evictedBytes", evictedBytes)
+                    .toString();
+        }
+    }
+
     /**
      * The event that happens when the client queries a cache entry: the cache entry may be hit,
      * missed, or corrupted.
@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.utils;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.utils.FileUtils;
+import com.google.common.base.Splitter;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A content-addressed store of the files cached by a {@link FileCache}, which lets cache entries
+ * with identical files share their contents.
+ *
+ * <p>Each blob is a file named after the SHA-256 hash of its contents. The regular files of a
+ * cached output are hard links to the blobs with the same contents, so a cache entry still
+ * contains a complete copy of its output (which {@link
+ * FileCache#createFileInCacheIfAbsent(FileCache.Inputs, ExceptionConsumer)} returns to its
+ * clients) but only takes space for the contents which are not already in the store. Outputs are
+ * also materialized from the cache with hard links. Where the file system doesn't support hard
+ * links, the files are copied instead.
+ *
+ * <p>As the files of an output can share their contents with other cache entries and with the
+ * outputs materialized from them, an output modified in place would modify all of them. The
+ * manifest of a cache entry records the hash, size and timestamp of each of its files, so that
+ * modified files are detected ({@link #findModifiedFile}) and the cache entry recreated. Blobs are
+ * also checked against their hash before new cache entries link to them.
+ *
+ * <p>Blobs are added while holding a READ lock on the cache directory and a WRITE lock on the
+ * cache entry being created. Blobs are deleted either once no cache entry links to them (which
+ * can only be checked on file systems reporting link counts) or while holding a WRITE lock on the
+ * cache directory.
+ */
+final class FileCacheBlobStore {
+
+    /** A file of a cached output, as recorded in the manifest of its cache entry. */
+    static final class ManifestEntry {
+
+        @NonNull final String hash;
+
+        final long size;
+
+        final long lastModified;
+
+        /** The path of the file relative to the cached output, with '/' separators. */
+        @NonNull final String path;
+
+        ManifestEntry(@NonNull String hash, long size, long lastModified, @NonNull String path) {
+            this.hash = hash;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.path = path;
+        }
+    }
+
+    @NonNull private final File blobDirectory;
+
+    FileCacheBlobStore(@NonNull File blobDirectory) {
+        this.blobDirectory = blobDirectory;
+    }
+
+    /** Returns whether the blob store exists, in which case all cache entries must use it. */
+    boolean exists() {
+        return blobDirectory.isDirectory();
+    }
+
+    /** Creates the blob store if it does not exist yet. */
+    void create() {
+        FileUtils.mkdirs(blobDirectory);
+    }
+
+    /**
+     * Stores the given output file/directory as a cached output, sharing the contents of its
+     * regular files with the blobs of the store, and writes the manifest of the cache entry.
+     *
+     * @param source the output file/directory, or the cached output itself if the cached output
+     *     was created in place
+     * @param cachedFile the cached output
+     * @param manifestFile the manifest of the cache entry
+     */
+    void store(@NonNull File source, @NonNull File cachedFile, @NonNull File manifestFile)
+            throws IOException {
+        Path sourcePath = source.toPath();
+        Path cachedPath = cachedFile.toPath();
+        // A temporary link, outside the cached output but in the same cache entry
+        Path link = cachedPath.resolveSibling(cachedPath.getFileName() + ".link");
+        List<ManifestEntry> manifest = new ArrayList<>();
+        if (source.isFile()) {
+            storeFile(sourcePath, cachedPath, link, "", manifest);
+        } else {
+            List<Path> files;
+            try (Stream<Path> entries = Files.walk(sourcePath)) {
+                files = entries.sorted().collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                Path relativePath = sourcePath.relativize(file);
+                Path target = cachedPath.resolve(relativePath);
+                if (Files.isDirectory(file)) {
+                    Files.createDirectories(target);
+                } else if (Files.isRegularFile(file)) {
+                    String path = relativePath.toString().replace(File.separatorChar, '/');
+                    storeFile(file, target, link, path, manifest);
+                }
+            }
+        }
+        writeManifest(manifest, manifestFile);
+    }
+
+    /**
+     * Stores a regular file of a cached output, as a hard link to the blob with the same contents
+     * if possible.
+     */
+    private void storeFile(
+            @NonNull Path source,
+            @NonNull Path target,
+            @NonNull Path link,
+            @NonNull String path,
+            @NonNull List<ManifestEntry> manifest)
+            throws IOException {
+        String hash = getHash(source);
+        Path blob = getBlob(hash).toPath();
+        boolean inPlace = source.equals(target);
+
+        // Blobs can be deleted or added concurrently by other threads/processes, so retry until
+        // the file is either linked to an existing blob or becomes the blob itself.
+        boolean stored = false;
+        while (!stored) {
+            if (Files.exists(blob)) {
+                try {
+                    // A blob may have been modified in place through an output sharing its
+                    // contents (which the cache entries already linking to it would detect)
+                    if (!hash.equals(getHash(blob))) {
+                        Files.deleteIfExists(blob);
+                        continue;
+                    }
+                    Files.deleteIfExists(link);
+                    Files.createLink(link, blob);
+                    Files.move(link, target, StandardCopyOption.REPLACE_EXISTING);
+                    stored = true;
+                } catch (NoSuchFileException e) {
+                    // The blob was deleted in the meantime
+                } catch (UnsupportedOperationException | FileSystemException e) {
+                    break;
+                }
+            } else {
+                if (!inPlace) {
+                    Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+                    inPlace = true;
+                }
+                try {
+                    Files.createDirectories(blob.getParent());
+                    Files.createLink(blob, target);
+                    stored = true;
+                } catch (FileAlreadyExistsException e) {
+                    // Another cache entry added the same contents in the meantime
+                } catch (UnsupportedOperationException | FileSystemException e) {
+                    break;
+                }
+            }
+        }
+        // If hard links are not supported, the cache entry keeps its own copy of the file
+        if (!inPlace && !stored) {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        manifest.add(
+                new ManifestEntry(
+                        hash,
+                        Files.size(target),
+                        Files.getLastModifiedTime(target).toMillis(),
+                        path));
+    }
+
+    /**
+     * Creates the given output file/directory from a cached output, using hard links to the files
+     * of the cached output where possible. The output file/directory must not exist.
+     */
+    static void materialize(@NonNull File cachedFile, @NonNull File outputFile) throws IOException {
+        Path cachedPath = cachedFile.toPath();
+        Path outputPath = outputFile.toPath();
+        List<Path> files;
+        try (Stream<Path> entries = Files.walk(cachedPath)) {
+            files = entries.sorted().collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            Path target = outputPath.resolve(cachedPath.relativize(file));
+            if (Files.isDirectory(file)) {
+                Files.createDirectories(target);
+            } else {
+                try {
+                    Files.createLink(target, file);
+                } catch (UnsupportedOperationException | FileSystemException e) {
+                    Files.copy(file, target);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the path of the first file of a cached output which doesn't match the manifest of
+     * its cache entry, or null if all the files match.
+     */
+    @Nullable
+    static String findModifiedFile(@NonNull File cachedFile, @NonNull File manifestFile)
+            throws IOException {
+        for (ManifestEntry entry : readManifest(manifestFile)) {
+            Path file = getFile(cachedFile, entry).toPath();
+            if (!Files.isRegularFile(file)
+                    || Files.size(file) != entry.size
+                    || Files.getLastModifiedTime(file).toMillis() != entry.lastModified) {
+                return file.toString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Deletes the given blobs if no cache entry links to them anymore. Does nothing if the file
+     * system doesn't report link counts, in which case the blobs are only deleted by {@link
+     * #deleteUnreferencedBlobs}.
+     */
+    void deleteUnusedBlobs(@NonNull Iterable<String> hashes) throws IOException {
+        for (String hash : hashes) {
+            Path blob = getBlob(hash).toPath();
+            int linkCount;
+            try {
+                linkCount = (Integer) Files.getAttribute(blob, "unix:nlink");
+            } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                return;
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+            if (linkCount == 1) {
+                Files.deleteIfExists(blob);
+            }
+        }
+    }
+
+    /**
+     * Deletes the blobs which are not referenced by the given manifests. This method must be
+     * called while holding a WRITE lock on the cache directory.
+     */
+    void deleteUnreferencedBlobs(@NonNull Iterable<File> manifestFiles) throws IOException {
+        if (!exists()) {
+            return;
+        }
+        Set<String> referencedHashes = new HashSet<>();
+        for (File manifestFile : manifestFiles) {
+            referencedHashes.addAll(getHashes(manifestFile));
+        }
+        List<Path> blobs;
+        try (Stream<Path> entries = Files.walk(blobDirectory.toPath(), 2)) {
+            blobs = entries.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        for (Path blob : blobs) {
+            if (!referencedHashes.contains(blob.getFileName().toString())) {
+                Files.deleteIfExists(blob);
+            }
+        }
+    }
+
+    /**
+     * Returns the hashes of the files listed in the given manifest, or an empty set if it does not
+     * exist or cannot be read.
+     *
+     * <p>Missing hashes are harmless: deleting a blob never affects the cache entries linking to
+     * it, it only stops new cache entries from sharing its contents.
+     */
+    @NonNull
+    static Set<String> getHashes(@NonNull File manifestFile) {
+        Set<String> hashes = new HashSet<>();
+        if (manifestFile.isFile()) {
+            try {
+                for (ManifestEntry entry : readManifest(manifestFile)) {
+                    hashes.add(entry.hash);
+                }
+            } catch (IOException e) {
+                hashes.clear();
+            }
+        }
+        return hashes;
+    }
+
+    @NonNull
+    private static String getHash(@NonNull Path file) throws IOException {
+        try {
+            return com.google.common.io.Files.asByteSource(file.toFile())
+                    .hash(Hashing.sha256())
+                    .toString();
+        } catch (FileNotFoundException e) {
+            throw new NoSuchFileException(file.toString());
+        }
+    }
+
+    @NonNull
+    private File getBlob(@NonNull String hash) {
+        return new File(new File(blobDirectory, hash.substring(0, 2)), hash);
+    }
+
+    @NonNull
+    private static File getFile(@NonNull File cachedFile, @NonNull ManifestEntry entry) {
+        return entry.path.isEmpty()
+                ? cachedFile
+                : new File(cachedFile, entry.path.replace('/', File.separatorChar));
+    }
+
+    /** Writes a manifest, one file per line: hash, size, timestamp and path. */
+    private static void writeManifest(
+            @NonNull List<ManifestEntry> manifest, @NonNull File manifestFile) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (ManifestEntry entry : manifest) {
+            builder.append(entry.hash)
+                    .append(' ')
+                    .append(entry.size)
+                    .append(' ')
+                    .append(entry.lastModified)
+                    .append(' ')
+                    .append(entry.path)
+                    .append('\n');
+        }
+        com.google.common.io.Files.asCharSink(manifestFile, StandardCharsets.UTF_8)
+                .write(builder);
+    }
+
+    @NonNull
+    private static List<ManifestEntry> readManifest(@NonNull File manifestFile)
+            throws IOException {
+        List<ManifestEntry> manifest = new ArrayList<>();
+        Splitter splitter = Splitter.on(' ').limit(4);
+        for (String line : Files.readAllLines(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            List<String> fields = splitter.splitToList(line);
+            if (fields.size() != 4
+                    || fields.get(0).length() != 64
+                    || !BaseEncoding.base16().lowerCase().canDecode(fields.get(0))) {
+                throw new IOException("Invalid manifest " + manifestFile.getAbsolutePath());
+            }
+            try {
+                manifest.add(
+                        new ManifestEntry(
+                                fields.get(0),
+                                Long.parseLong(fields.get(1)),
+                                Long.parseLong(fields.get(2)),
+                                fields.get(3)));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid manifest " + manifestFile.getAbsolutePath(), e);
+            }
+        }
+        return manifest;
+    }
+}
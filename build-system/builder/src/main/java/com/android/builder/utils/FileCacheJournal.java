@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.utils;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.hash.HashCode;
+import com.google.common.io.BaseEncoding;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An append-only journal of the accesses to the entries of a {@link FileCache}, used to find the
+ * least recently used entries without scanning the cache directory.
+ *
+ * <p>The journal is a header (a magic number and a generation number, which changes every time
+ * the journal is rewritten) followed by fixed-size records: the key of a cache entry (the 32 bytes
+ * of the SHA-256 hash returned by {@link FileCache.Inputs#getKey()}), the timestamp of the access
+ * and the size of the cached output, or {@link #EVICTED} if the entry was deleted.
+ *
+ * <p>Records are appended by all the threads/processes using the cache while they hold a READ
+ * lock on the cache directory. Appending a single small record is atomic, and readers only
+ * consume complete records. The journal is only created or rewritten while holding a WRITE lock
+ * on the cache directory. Records are never appended to a journal that doesn't exist yet, so that
+ * caches which don't evict entries never create one.
+ *
+ * <p>The in-memory index of the live entries is not thread-safe, the caller must synchronize its
+ * access, except for {@link #getSize(String)}.
+ */
+final class FileCacheJournal {
+
+    /** The size of an entry which was deleted from the cache. */
+    static final long EVICTED = -1;
+
+    private static final int MAGIC = 0x46434a31; // FCJ1
+
+    private static final int HEADER_SIZE = 12;
+
+    private static final int KEY_SIZE = 32;
+
+    private static final int RECORD_SIZE = KEY_SIZE + 16;
+
+    /** The number of stale records tolerated before the journal is rewritten. */
+    private static final int COMPACTION_SLACK = 1024;
+
+    /** An entry of the cache, as last recorded in the journal. */
+    static final class Entry {
+
+        @NonNull final String key;
+
+        final long lastAccess;
+
+        final long size;
+
+        Entry(@NonNull String key, long lastAccess, long size) {
+            this.key = key;
+            this.lastAccess = lastAccess;
+            this.size = size;
+        }
+    }
+
+    @NonNull private final Path file;
+
+    /** The live entries, from the least to the most recently used. */
+    @NonNull
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** The sizes of the live entries, which can be read without synchronizing on the index. */
+    @NonNull private final ConcurrentHashMap<String, Long> sizes = new ConcurrentHashMap<>();
+
+    private long generation;
+
+    /** The position of the first record which wasn't read yet. */
+    private long position;
+
+    private int recordCount;
+
+    private long totalBytes;
+
+    FileCacheJournal(@NonNull Path file) {
+        this.file = file;
+    }
+
+    /** Returns whether the given name is the key of a cache entry. */
+    static boolean isKey(@NonNull String name) {
+        return name.length() == KEY_SIZE * 2 && BaseEncoding.base16().lowerCase().canDecode(name);
+    }
+
+    /** Returns whether the journal exists. */
+    boolean exists() {
+        return Files.exists(file);
+    }
+
+    /**
+     * Appends a record to the journal, if it exists.
+     *
+     * @param key the key of the cache entry
+     * @param timestamp the time of the access
+     * @param size the size of the cached output, or {@link #EVICTED}
+     */
+    void append(@NonNull String key, long timestamp, long size) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        putRecord(record, key, timestamp, size);
+        record.flip();
+        try (FileChannel channel =
+                FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(record);
+        } catch (NoSuchFileException e) {
+            // The journal will be created from the contents of the cache directory.
+        }
+    }
+
+    /**
+     * Reads the records appended since the last call. The index is read again from the start if
+     * the journal was rewritten in the meantime.
+     *
+     * @return false if the journal doesn't exist or isn't valid, in which case it must be created
+     *     again with {@link #rewrite(Iterable)}
+     */
+    boolean refresh() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {}
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                return false;
+            }
+            long journalGeneration = header.getLong();
+            if (journalGeneration != generation) {
+                clear();
+                generation = journalGeneration;
+            }
+
+            long end = position + (channel.size() - position) / RECORD_SIZE * RECORD_SIZE;
+            ByteBuffer buffer = ByteBuffer.allocate(1024 * RECORD_SIZE);
+            byte[] key = new byte[KEY_SIZE];
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        return false;
+                    }
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    buffer.get(key);
+                    apply(HashCode.fromBytes(key).toString(), buffer.getLong(), buffer.getLong());
+                }
+                position += buffer.limit();
+            }
+            return true;
+        } catch (NoSuchFileException e) {
+            clear();
+            return false;
+        }
+    }
+
+    /**
+     * Creates or rewrites the journal with only the given entries, with a new generation so that
+     * the other readers of the journal read it again from the start.
+     *
+     * @param liveEntries the entries, from the least to the most recently used
+     */
+    void rewrite(@NonNull Iterable<Entry> liveEntries) throws IOException {
+        LinkedHashMap<String, Entry> newEntries = new LinkedHashMap<>();
+        for (Entry entry : liveEntries) {
+            newEntries.put(entry.key, entry);
+        }
+        long newGeneration;
+        do {
+            newGeneration = ThreadLocalRandom.current().nextLong();
+        } while (newGeneration == 0 || newGeneration == generation);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + newEntries.size() * RECORD_SIZE);
+        buffer.putInt(MAGIC).putLong(newGeneration);
+        for (Entry entry : newEntries.values()) {
+            putRecord(buffer, entry.key, entry.lastAccess, entry.size);
+        }
+        buffer.flip();
+
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel =
+                FileChannel.open(
+                        tempFile,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(
+                tempFile,
+                file,
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        clear();
+        generation = newGeneration;
+        position = HEADER_SIZE + (long) newEntries.size() * RECORD_SIZE;
+        for (Entry entry : newEntries.values()) {
+            apply(entry.key, entry.lastAccess, entry.size);
+        }
+    }
+
+    /** Returns whether the journal has enough stale records to be worth rewriting. */
+    boolean needsCompaction() {
+        return recordCount > 2 * entries.size() + COMPACTION_SLACK;
+    }
+
+    /**
+     * Records that an entry was deleted from the cache, and removes it from the index.
+     *
+     * @param key the key of the cache entry
+     * @param timestamp the time of the deletion
+     */
+    void remove(@NonNull String key, long timestamp) throws IOException {
+        append(key, timestamp, EVICTED);
+        Entry entry = entries.remove(key);
+        sizes.remove(key);
+        if (entry != null) {
+            totalBytes -= entry.size;
+        }
+    }
+
+    /**
+     * Returns the size of the given entry as last read from the journal, or {@link #EVICTED} if it
+     * isn't in the index. Unlike the rest of the index, this can be called from any thread.
+     */
+    long getSize(@NonNull String key) {
+        return sizes.getOrDefault(key, EVICTED);
+    }
+
+    /** Returns the least recently used entry, or null if the index is empty. */
+    @Nullable
+    Entry getLeastRecentlyUsed() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /** Returns the live entries, from the least to the most recently used. */
+    @NonNull
+    Iterable<Entry> getEntries() {
+        return entries.values();
+    }
+
+    /** Returns the number of live entries. */
+    int getEntryCount() {
+        return entries.size();
+    }
+
+    /** Returns the total size of the live entries. */
+    long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private void apply(@NonNull String key, long timestamp, long size) {
+        recordCount++;
+        Entry previous;
+        if (size == EVICTED) {
+            previous = entries.remove(key);
+            sizes.remove(key);
+        } else {
+            previous = entries.put(key, new Entry(key, timestamp, size));
+            sizes.put(key, size);
+        }
+        if (previous != null) {
+            totalBytes -= previous.size;
+        }
+        if (size != EVICTED) {
+            totalBytes += size;
+        }
+    }
+
+    private void clear() {
+        entries.clear();
+        sizes.clear();
+        generation = 0;
+        position = HEADER_SIZE;
+        recordCount = 0;
+        totalBytes = 0;
+    }
+
+    private static void putRecord(
+            @NonNull ByteBuffer buffer, @NonNull String key, long timestamp, long size) {
+        buffer.put(HashCode.fromString(key).asBytes()).putLong(timestamp).putLong(size);
+    }
+}
@@ -29,6 +29,7 @@ import org.junit.Rule
 import org.junit.Test
 import org.junit.rules.Timeout
 import java.io.File
+import java.util.Collections
 import java.util.concurrent.Semaphore
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicInteger
@@ -233,17 +234,176 @@ class Aapt2DaemonManagerTest {
 
         // Daemon should be removed from pool, as it is now stopped.
         assertThat(manager.stats().poolSize).isEqualTo(0)
+        assertThat(manager.stats().restartCount).isEqualTo(1)
         manager.shutdown()
         Listener.assertStartCountEquals(1)
         Listener.assertStopCountEquals(1)
     }
 
-    class TestAapt2Daemon(displayId: Int) : Aapt2Daemon("Test AAPT Daemon #$displayId",
+    @Test
+    fun testBoundedPool() {
+        val manager = createManager(maxDaemons = 1) { TestAapt2Daemon(it) }
+        val leaseOrder = Collections.synchronizedList(mutableListOf<Int>())
+        val firstLease = manager.leaseDaemon()
+        val threads = (1..3).map { id ->
+            Thread(Runnable {
+                manager.leaseDaemon().use { process ->
+                    process.compile(
+                            CompileResourceRequest(
+                                    inputFile = File("in$id"),
+                                    outputDirectory = File("out1"),
+                                    inputDirectoryName = "values"),
+                            NoErrorsOrWarningsLogger())
+                    leaseOrder.add(id)
+                }
+            })
+        }
+        // Queue the requests one at a time so that their order is known.
+        threads.forEachIndexed { index, thread ->
+            thread.start()
+            while (manager.stats().waitingCount <= index) {
+                Thread.yield()
+            }
+        }
+        assertThat(manager.stats().poolSize).isEqualTo(1)
+        assertThat(manager.stats().busyCount).isEqualTo(1)
+        assertThat(leaseOrder).isEmpty()
+
+        firstLease.close()
+        threads.forEach(Thread::join)
+        // The waiting requests were served in order, without expanding the pool.
+        assertThat(leaseOrder).containsExactly(1, 2, 3).inOrder()
+        assertThat(manager.stats().poolSize).isEqualTo(1)
+        assertThat(manager.stats().waitingCount).isEqualTo(0)
+        assertThat(manager.stats().daemons.map { it.requestCount }).containsExactly(3L)
+        manager.shutdown()
+    }
+
+    @Test
+    fun testPreWarmAndStats() {
+        val daemons = mutableListOf<TestAapt2Daemon>()
+        val manager = createManager(maxDaemons = 2) { TestAapt2Daemon(it).also { daemons.add(it) } }
+        manager.preWarm(3)
+        // The pool is not expanded past its maximum size.
+        assertThat(daemons).hasSize(2)
+        assertThat(daemons.map { it.state })
+                .containsExactly(Aapt2Daemon.State.RUNNING, Aapt2Daemon.State.RUNNING)
+        assertThat(manager.stats().busyCount).isEqualTo(0)
+        Listener.assertStartCountEquals(1)
+
+        manager.leaseDaemon().use { process ->
+            process.compile(
+                    CompileResourceRequest(
+                            inputFile = File("in1"),
+                            outputDirectory = File("out1"),
+                            inputDirectoryName = "values"),
+                    NoErrorsOrWarningsLogger())
+            process.compile(
+                    CompileResourceRequest(
+                            inputFile = File("in2"),
+                            outputDirectory = File("out1"),
+                            inputDirectoryName = "values"),
+                    NoErrorsOrWarningsLogger())
+        }
+
+        manager.shutdown()
+        val stats = manager.stats()
+        assertThat(stats.poolSize).isEqualTo(0)
+        assertThat(stats.daemons.map { it.displayId }).containsExactly(0, 1).inOrder()
+        assertThat(stats.daemons.map { it.requestCount }).containsExactly(2L, 0L).inOrder()
+        assertThat(stats.daemons[0].compileLatency.counts)
+                .containsExactly(2L, 0L, 0L, 0L, 0L, 0L, 0L)
+                .inOrder()
+        assertThat(stats.daemons[0].linkLatency.count).isEqualTo(0)
+        assertThat(stats.restartCount).isEqualTo(0)
+    }
+
+    @Test
+    fun testLeaseDuringPreWarm() {
+        val firstStarting = Semaphore(0)
+        val firstStart = Semaphore(0)
+        val daemons = Collections.synchronizedList(mutableListOf<TestAapt2Daemon>())
+        val manager = createManager(maxDaemons = 2) { displayId ->
+            TestAapt2Daemon(displayId) {
+                if (displayId == 0) {
+                    firstStarting.release()
+                    firstStart.acquire()
+                }
+            }.also { daemons.add(it) }
+        }
+        val warmUp = Thread(Runnable { manager.preWarm(2) })
+        warmUp.start()
+        firstStarting.acquire()
+
+        // The first daemon takes a while to start: a request received meanwhile doesn't wait for
+        // it, but leases the other daemon and starts it.
+        manager.leaseDaemon().use { process ->
+            process.compile(
+                    CompileResourceRequest(
+                            inputFile = File("in1"),
+                            outputDirectory = File("out1"),
+                            inputDirectoryName = "values"),
+                    NoErrorsOrWarningsLogger())
+        }
+        assertThat(daemons).hasSize(2)
+        assertThat(daemons[1].compileRequests).hasSize(1)
+        assertThat(daemons[1].startThread).isSameAs(Thread.currentThread())
+
+        firstStart.release()
+        warmUp.join()
+        assertThat(daemons.map { it.state })
+                .containsExactly(Aapt2Daemon.State.RUNNING, Aapt2Daemon.State.RUNNING)
+        assertThat(daemons[0].startThread).isSameAs(warmUp)
+        assertThat(manager.stats().busyCount).isEqualTo(0)
+        manager.shutdown()
+    }
+
+    @Test
+    fun testShutdownDuringPreWarm() {
+        val firstStarting = Semaphore(0)
+        val firstStart = Semaphore(0)
+        val daemons = Collections.synchronizedList(mutableListOf<TestAapt2Daemon>())
+        val manager = createManager(maxDaemons = 2) { displayId ->
+            TestAapt2Daemon(displayId) {
+                if (displayId == 0) {
+                    firstStarting.release()
+                    firstStart.acquire()
+                }
+            }.also { daemons.add(it) }
+        }
+        val warmUp = Thread(Runnable { manager.preWarm(2) })
+        warmUp.start()
+        firstStarting.acquire()
+
+        // The daemon being started is left to the warm-up, which stops it once it has started.
+        manager.shutdown()
+        assertThat(daemons[0].state).isEqualTo(Aapt2Daemon.State.NEW)
+        assertThat(daemons[1].state).isEqualTo(Aapt2Daemon.State.SHUTDOWN)
+        firstStart.release()
+        warmUp.join()
+        assertThat(daemons.map { it.state })
+                .containsExactly(Aapt2Daemon.State.SHUTDOWN, Aapt2Daemon.State.SHUTDOWN)
+
+        // The daemons are only counted once, and weren't restarted.
+        val stats = manager.stats()
+        assertThat(stats.poolSize).isEqualTo(0)
+        assertThat(stats.restartCount).isEqualTo(0)
+        assertThat(stats.daemons.map { it.displayId }).containsExactly(0, 1).inOrder()
+        Listener.assertStartCountEquals(1)
+        Listener.assertStopCountEquals(1)
+    }
+
+    class TestAapt2Daemon(
+            displayId: Int,
+            private val onStart: () -> Unit = {}) : Aapt2Daemon("Test AAPT Daemon #$displayId",
             NoErrorsOrWarningsLogger()) {
         val compileRequests = mutableListOf<CompileResourceRequest>()
         val linkRequests = mutableListOf<AaptPackageConfig>()
+        @Volatile var startThread: Thread? = null
 
         override fun startProcess() {
+            startThread = Thread.currentThread()
+            onStart()
         }
 
         override fun doCompile(request: CompileResourceRequest, logger: ILogger) {
@@ -258,14 +418,17 @@ class Aapt2DaemonManagerTest {
         }
     }
 
-    private fun createManager(daemonFactory: (Int) -> Aapt2Daemon) =
+    private fun createManager(
+            maxDaemons: Int = Int.MAX_VALUE,
+            daemonFactory: (Int) -> Aapt2Daemon) =
             Aapt2DaemonManager(
                     logger = NoErrorsOrWarningsLogger(),
                     daemonFactory = daemonFactory,
                     expiryTime = 1,
                     expiryTimeUnit = TimeUnit.MINUTES,
                     timeSource = ticker,
-                    listener = Listener)
+                    listener = Listener,
+                    maxDaemons = maxDaemons)
 
     private fun setTime(value: Long, timeUnit: TimeUnit) {
         nanoTime = timeUnit.toNanos(value)
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.testing;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.ddmlib.testrunner.TestRunResult;
+import com.android.testutils.MockLog;
+import com.android.utils.ILogger;
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestBatchSchedulerTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final ILogger logger = new MockLog();
+
+    @Test
+    public void runsAllTestsOnce() throws Exception {
+        List<TestIdentifier> tests = createTests("com.example.FooTest", 40);
+        TestBatchScheduler scheduler = createScheduler(null, "device1", "device2");
+
+        listTests(scheduler, "device1", tests);
+        List<String> filters = new ArrayList<>();
+        TestBatchScheduler.Batch batch;
+        // device2 is idle from the start, and steals the batches of device1.
+        while ((batch = scheduler.getNextBatch("device2")) != null) {
+            assertThat(batch.isTestListing()).isFalse();
+            filters.addAll(Arrays.asList(batch.getTestFilters()));
+            scheduler.batchFinished(batch, "device2", createResult(batch, tests, null));
+        }
+
+        assertThat(filters).hasSize(tests.size());
+        assertThat(filters).containsAllIn(getFilters(tests));
+        assertThat(scheduler.isSuccessful()).isTrue();
+    }
+
+    @Test
+    public void retriesFailedTestsOnOtherDevice() throws Exception {
+        List<TestIdentifier> tests = createTests("com.example.FooTest", 4);
+        TestBatchScheduler scheduler = createScheduler(null, "device1", "device2");
+        listTests(scheduler, "device1", tests);
+
+        TestBatchScheduler.Batch batch = scheduler.getNextBatch("device1");
+        String failing = batch.getTestFilters()[0];
+        scheduler.batchFinished(batch, "device1", createResult(batch, tests, failing));
+
+        TestBatchScheduler.Batch retry = scheduler.getNextBatch("device2");
+        assertThat(retry.getId()).isEqualTo(batch.getId());
+        assertThat(retry.getAttempt()).isEqualTo(1);
+        assertThat(retry.getTestFilters()).asList().containsExactly(failing);
+        scheduler.batchFinished(retry, "device2", createResult(retry, tests, null));
+
+        runRemainingBatches(scheduler, "device2", tests);
+        assertThat(scheduler.isSuccessful()).isTrue();
+    }
+
+    @Test
+    public void retriesCrashedBatches() throws Exception {
+        List<TestIdentifier> tests = createTests("com.example.FooTest", 4);
+        TestBatchScheduler scheduler = createScheduler(null, "device1", "device2");
+        listTests(scheduler, "device1", tests);
+
+        TestBatchScheduler.Batch batch = scheduler.getNextBatch("device1");
+        scheduler.batchFinished(batch, "device1", null);
+        scheduler.deviceFinished("device1");
+
+        TestBatchScheduler.Batch retry = scheduler.getNextBatch("device2");
+        assertThat(retry.getTestFilters()).isEqualTo(batch.getTestFilters());
+        // the retry fails as well.
+        scheduler.batchFinished(retry, "device2", null);
+
+        runRemainingBatches(scheduler, "device2", tests);
+        assertThat(scheduler.isSuccessful()).isFalse();
+    }
+
+    @Test
+    public void runsParameterizedClassesAsAWhole() throws Exception {
+        List<TestIdentifier> tests = new ArrayList<>(createTests("com.example.FooTest", 2));
+        tests.add(new TestIdentifier("com.example.BarTest", "testBar[0]"));
+        tests.add(new TestIdentifier("com.example.BarTest", "testBar[1]"));
+        TestBatchScheduler scheduler = createScheduler(null, "device1");
+        listTests(scheduler, "device1", tests);
+
+        List<String> filters = runRemainingBatches(scheduler, "device1", tests);
+        assertThat(filters)
+                .containsExactly(
+                        "com.example.FooTest#test0", "com.example.FooTest#test1",
+                        "com.example.BarTest");
+        assertThat(scheduler.isSuccessful()).isTrue();
+    }
+
+    @Test
+    public void persistsDurations() throws Exception {
+        File durations = new File(temporaryFolder.getRoot(), "durations.properties");
+        List<TestIdentifier> tests = createTests("com.example.FooTest", 3);
+        TestBatchScheduler scheduler = createScheduler(durations, "device1");
+        listTests(scheduler, "device1", tests);
+        runRemainingBatches(scheduler, "device1", tests);
+
+        TestDurationHistory history = TestDurationHistory.load(durations, logger);
+        assertThat(history.getDuration(tests.get(0))).isEqualTo(100L);
+        assertThat(history.getDuration(tests.get(2))).isEqualTo(300L);
+        // unknown tests are expected to last as long as the average test.
+        assertThat(history.getDuration(new TestIdentifier("com.example.NewTest", "test")))
+                .isEqualTo(200L);
+    }
+
+    private TestBatchScheduler createScheduler(File durations, String... devices) {
+        return new TestBatchScheduler(
+                Arrays.asList(devices), TestDurationHistory.load(durations, logger), logger);
+    }
+
+    private static void listTests(
+            TestBatchScheduler scheduler, String device, List<TestIdentifier> tests)
+            throws InterruptedException {
+        TestBatchScheduler.Batch batch = scheduler.getNextBatch(device);
+        assertThat(batch.isTestListing()).isTrue();
+        TestRunResult result = new TestRunResult();
+        result.testRunStarted("listing", tests.size());
+        for (TestIdentifier test : tests) {
+            result.testStarted(test);
+            result.testEnded(test, Collections.emptyMap());
+        }
+        result.testRunEnded(0, Collections.emptyMap());
+        scheduler.batchFinished(batch, device, result);
+    }
+
+    private static List<String> runRemainingBatches(
+            TestBatchScheduler scheduler, String device, List<TestIdentifier> tests)
+            throws InterruptedException {
+        List<String> filters = new ArrayList<>();
+        TestBatchScheduler.Batch batch;
+        while ((batch = scheduler.getNextBatch(device)) != null) {
+            filters.addAll(Arrays.asList(batch.getTestFilters()));
+            scheduler.batchFinished(batch, device, createResult(batch, tests, null));
+        }
+        return filters;
+    }
+
+    /**
+     * Creates the result of running a batch, where test N lasts (N + 1) * 100ms, and the test
+     * selected by the given filter fails.
+     */
+    private static TestRunResult createResult(
+            TestBatchScheduler.Batch batch, List<TestIdentifier> tests, String failingFilter) {
+        List<String> filters = Arrays.asList(batch.getTestFilters());
+        TestRunResult result = new TestRunResult();
+        result.testRunStarted("batch", filters.size());
+        for (int i = 0; i < tests.size(); i++) {
+            TestIdentifier test = tests.get(i);
+            String filter = getFilter(test);
+            if (!filters.contains(filter) && !filters.contains(test.getClassName())) {
+                continue;
+            }
+            result.testStarted(test, 0);
+            if (filter.equals(failingFilter)) {
+                result.testFailed(test, "failure");
+            }
+            result.testEnded(test, (i + 1) * 100, Collections.emptyMap());
+        }
+        result.testRunEnded(0, Collections.emptyMap());
+        return result;
+    }
+
+    private static List<TestIdentifier> createTests(String className, int count) {
+        ImmutableList.Builder<TestIdentifier> tests = ImmutableList.builder();
+        for (int i = 0; i < count; i++) {
+            tests.add(new TestIdentifier(className, "test" + i));
+        }
+        return tests.build();
+    }
+
+    private static Collection<String> getFilters(List<TestIdentifier> tests) {
+        List<String> filters = new ArrayList<>();
+        for (TestIdentifier test : tests) {
+            filters.add(getFilter(test));
+        }
+        return filters;
+    }
+
+    private static String getFilter(TestIdentifier test) {
+        return test.getClassName() + "#" + test.getTestName();
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.testing;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+import com.android.builder.testing.api.DeviceConnector;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.ide.common.internal.WaitableExecutor;
+import com.android.ide.common.process.ProcessExecutor;
+import com.android.testutils.MockLog;
+import com.android.utils.ILogger;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+public class ShardedTestRunnerTest {
+
+    private static final int TIMEOUT = 4000;
+
+    private static final Pattern CLASS_ARG = Pattern.compile(" -e class '([^']+)'");
+
+    private static final Pattern TEST_CASE = Pattern.compile("<testcase name=\"([^\"]+)\"");
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final ILogger logger = new MockLog();
+
+    private final List<TestIdentifier> tests = new ArrayList<>();
+
+    private StubTestData testData;
+
+    @Before
+    public void setUp() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            tests.add(new TestIdentifier("com.example.FooTest", "test" + i));
+        }
+        testData =
+                new StubTestData("com.example.app.test", "android.test.InstrumentationTestRunner");
+        testData.setTestedApplicationId("com.example.app");
+        testData.setTestApk(temporaryFolder.newFile("test.apk"));
+    }
+
+    @Test
+    public void batchesOfCrashedDeviceAreRetried() throws Exception {
+        CountDownLatch crashed = new CountDownLatch(1);
+        List<String> filtersRunOnDevice2 = Collections.synchronizedList(new ArrayList<>());
+        DeviceConnector device1 =
+                createDevice(
+                        "device1",
+                        filters -> {
+                            crashed.countDown();
+                            throw new IOException("Device went offline");
+                        });
+        DeviceConnector device2 =
+                createDevice(
+                        "device2",
+                        filters -> {
+                            // device1 must have run a batch before device2 runs all of them.
+                            assertThat(crashed.await(10, TimeUnit.SECONDS)).isTrue();
+                            filtersRunOnDevice2.addAll(filters);
+                        });
+
+        assertThat(runTests(device1, device2)).isTrue();
+        // all the tests ran on device2, including the batch which crashed on device1.
+        List<String> expected = new ArrayList<>();
+        for (TestIdentifier test : tests) {
+            expected.add(test.getClassName() + "#" + test.getTestName());
+        }
+        assertThat(filtersRunOnDevice2).containsExactlyElementsIn(expected);
+    }
+
+    @Test
+    public void runFailsWhenRetriesCrash() throws Exception {
+        DeviceConnector device1 =
+                createDevice(
+                        "device1",
+                        filters -> {
+                            throw new IOException("Device went offline");
+                        });
+        DeviceConnector device2 =
+                createDevice(
+                        "device2",
+                        filters -> {
+                            throw new IOException("Device went offline");
+                        });
+
+        assertThat(runTests(device1, device2)).isFalse();
+    }
+
+    @Test
+    public void reportOfRetriedBatchReplacesFailedAttempt() throws Exception {
+        // enough tests for the batches to have several, some of which pass in the failed attempt.
+        for (int i = 10; i < 40; i++) {
+            tests.add(new TestIdentifier("com.example.FooTest", "test" + i));
+        }
+        // test0 fails the first time it runs, and passes when it is retried.
+        AtomicBoolean failedOnce = new AtomicBoolean();
+        Predicate<String> failing =
+                filter ->
+                        filter.equals("com.example.FooTest#test0")
+                                && failedOnce.compareAndSet(false, true);
+        DeviceConnector device1 = createDevice("device1", filters -> {}, failing);
+        DeviceConnector device2 = createDevice("device2", filters -> {}, failing);
+        File resultsDir = temporaryFolder.newFolder();
+
+        assertThat(runTests(resultsDir, device1, device2)).isTrue();
+        assertThat(failedOnce.get()).isTrue();
+        // each test is reported once, as passing.
+        List<String> reportedTests = new ArrayList<>();
+        for (File report : resultsDir.listFiles()) {
+            String content = Files.toString(report, Charsets.UTF_8);
+            assertThat(content).doesNotContain("<failure");
+            Matcher matcher = TEST_CASE.matcher(content);
+            while (matcher.find()) {
+                reportedTests.add(matcher.group(1));
+            }
+        }
+        List<String> expected = new ArrayList<>();
+        for (TestIdentifier test : tests) {
+            expected.add(test.getTestName());
+        }
+        assertThat(reportedTests).containsExactlyElementsIn(expected);
+    }
+
+    /** Runs the tests on the given devices, and returns whether the run was successful. */
+    private boolean runTests(DeviceConnector... devices) throws Exception {
+        return runTests(temporaryFolder.newFolder(), devices);
+    }
+
+    /**
+     * Runs the tests on the given devices, reporting the results to the given directory, and
+     * returns whether the run was successful.
+     */
+    private boolean runTests(File resultsDir, DeviceConnector... devices) throws Exception {
+        ShardedTestRunner runner =
+                ShardedTestRunner.withBatchScheduling(
+                        null, Mockito.mock(ProcessExecutor.class), null);
+        ImmutableMap.Builder<DeviceConnector, ImmutableList<File>> apksForDevice =
+                ImmutableMap.builder();
+        for (DeviceConnector device : devices) {
+            apksForDevice.put(device, ImmutableList.of());
+        }
+        WaitableExecutor executor =
+                runner.scheduleTests(
+                        "project",
+                        "debug",
+                        testData,
+                        apksForDevice.build(),
+                        Collections.emptySet(),
+                        TIMEOUT,
+                        ImmutableList.of(),
+                        resultsDir,
+                        temporaryFolder.newFolder(),
+                        logger);
+
+        // same as BaseTestRunner#runTests.
+        boolean success = true;
+        for (WaitableExecutor.TaskResult<Boolean> result : executor.<Boolean>waitForAllTasks()) {
+            assertThat(result.getException()).isNull();
+            success &= result.getValue();
+        }
+        return success;
+    }
+
+    private interface BatchRunner {
+        void run(List<String> filters) throws Exception;
+    }
+
+    /**
+     * Creates a device which lists the tests, and runs batches by calling the given runner: the
+     * tests of a batch pass if the runner doesn't throw.
+     */
+    private DeviceConnector createDevice(String name, BatchRunner batchRunner) throws Exception {
+        return createDevice(name, batchRunner, filter -> false);
+    }
+
+    /**
+     * Creates a device which lists the tests, and runs batches by calling the given runner: the
+     * tests of a batch pass if the runner doesn't throw, except those the given predicate accepts
+     * the filter of, which fail.
+     */
+    private DeviceConnector createDevice(
+            String name, BatchRunner batchRunner, Predicate<String> failing) throws Exception {
+        DeviceConnector device = Mockito.mock(DeviceConnector.class);
+        when(device.getName()).thenReturn(name);
+        when(device.getApiLevel()).thenReturn(21);
+        doAnswer(
+                        invocation -> {
+                            String command = (String) invocation.getArguments()[0];
+                            IShellOutputReceiver receiver =
+                                    (IShellOutputReceiver) invocation.getArguments()[1];
+                            List<TestIdentifier> ranTests;
+                            Set<TestIdentifier> failedTests = new HashSet<>();
+                            if (command.contains(" -e log true")) {
+                                ranTests = tests;
+                            } else {
+                                Matcher matcher = CLASS_ARG.matcher(command);
+                                assertThat(matcher.find()).isTrue();
+                                List<String> filters = Arrays.asList(matcher.group(1).split(","));
+                                batchRunner.run(filters);
+                                ranTests = new ArrayList<>();
+                                for (TestIdentifier test : tests) {
+                                    String filter = test.getClassName() + "#" + test.getTestName();
+                                    if (filters.contains(filter)) {
+                                        ranTests.add(test);
+                                        if (failing.test(filter)) {
+                                            failedTests.add(test);
+                                        }
+                                    }
+                                }
+                            }
+                            byte[] output =
+                                    createOutput(ranTests, failedTests).getBytes(Charsets.UTF_8);
+                            receiver.addOutput(output, 0, output.length);
+                            receiver.flush();
+                            return null;
+                        })
+                .when(device)
+                .executeShellCommand(anyString(), any(), anyLong(), anyLong(), any());
+        return device;
+    }
+
+    /**
+     * Creates the output of the instrumentation, for the given tests passing unless they are in
+     * {@code failedTests}.
+     */
+    private static String createOutput(
+            List<TestIdentifier> tests, Set<TestIdentifier> failedTests) {
+        StringBuilder output = new StringBuilder();
+        for (int i = 0; i < tests.size(); i++) {
+            StringBuilder status = new StringBuilder();
+            Map<String, String> values =
+                    ImmutableMap.of(
+                            "id", "InstrumentationTestRunner",
+                            "class", tests.get(i).getClassName(),
+                            "test", tests.get(i).getTestName(),
+                            "numtests", String.valueOf(tests.size()),
+                            "current", String.valueOf(i + 1));
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                status.append("INSTRUMENTATION_STATUS: ")
+                        .append(entry.getKey())
+                        .append('=')
+                        .append(entry.getValue())
+                        .append('\n');
+            }
+            output.append(status).append("INSTRUMENTATION_STATUS_CODE: 1\n");
+            if (failedTests.contains(tests.get(i))) {
+                output.append(status)
+                        .append("INSTRUMENTATION_STATUS: stack=java.lang.AssertionError\n")
+                        .append("INSTRUMENTATION_STATUS_CODE: -2\n");
+            } else {
+                output.append(status).append("INSTRUMENTATION_STATUS_CODE: 0\n");
+            }
+        }
+        output.append("INSTRUMENTATION_RESULT: stream=\n");
+        output.append("Time: 0.1\n");
+        output.append("OK (").append(tests.size()).append(" tests)\n");
+        output.append("INSTRUMENTATION_CODE: -1\n");
+        return output.toString();
+    }
+}
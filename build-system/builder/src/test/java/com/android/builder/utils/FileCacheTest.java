@@ -894,6 +894,192 @@ public class FileCacheTest {
         assertThat(fileCache.getCacheDirectory()).doesNotExist();
     }
 
+    @Test
+    public void testEvictLeastRecentlyUsedEntries() throws Exception {
+        FileCache fileCache =
+                FileCache.getInstanceWithSingleProcessLocking(cacheDir)
+                        .withEvictionPolicy(new FileCache.EvictionPolicy(Long.MAX_VALUE, 2));
+        // Create the access journal so that all the accesses below are recorded
+        fileCache.evictLeastRecentlyUsedEntries();
+
+        FileCache.Inputs[] inputs = new FileCache.Inputs[3];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] =
+                    new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                            .putString("file", "input" + i)
+                            .build();
+        }
+        fileCache.createFileInCacheIfAbsent(
+                inputs[0], (outputFile) -> writeStringToFile("Some text", outputFile));
+        fileCache.createFileInCacheIfAbsent(
+                inputs[1], (outputFile) -> writeStringToFile("Some other text", outputFile));
+        // Use the first entry again, so that the second one is the least recently used
+        fileCache.createFileInCacheIfAbsent(
+                inputs[0], (outputFile) -> fail("This statement should not be executed"));
+        fileCache.createFileInCacheIfAbsent(
+                inputs[2], (outputFile) -> writeStringToFile("More text", outputFile));
+        fileCache.evictLeastRecentlyUsedEntries();
+
+        assertThat(fileCache.cacheEntryExists(inputs[0])).isTrue();
+        assertThat(fileCache.cacheEntryExists(inputs[1])).isFalse();
+        assertThat(fileCache.cacheEntryExists(inputs[2])).isTrue();
+
+        FileCache.Stats stats = fileCache.getStats();
+        assertThat(stats.getHits()).isEqualTo(1);
+        assertThat(stats.getMisses()).isEqualTo(3);
+        assertThat(stats.getEvictions()).isEqualTo(1);
+        assertThat(stats.getServedBytes()).isEqualTo("Some text".length());
+        assertThat(stats.getEvictedBytes()).isEqualTo("Some other text".length());
+    }
+
+    @Test
+    public void testStats_ServedBytes() throws Exception {
+        FileCache unboundedCache = FileCache.getInstanceWithSingleProcessLocking(cacheDir);
+        FileCache.Inputs inputs =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("file", "input")
+                        .build();
+        unboundedCache.createFileInCacheIfAbsent(
+                inputs, (outputFile) -> writeStringToFile("1234567890", outputFile));
+        unboundedCache.createFileInCacheIfAbsent(
+                inputs, (outputFile) -> fail("This statement should not be executed"));
+        unboundedCache.createFileInCacheIfAbsent(
+                inputs, (outputFile) -> fail("This statement should not be executed"));
+
+        // Without an access journal, the hits are measured when the stats are requested
+        assertThat(unboundedCache.getStats().getServedBytes()).isEqualTo(20);
+        assertThat(unboundedCache.getStats().getServedBytes()).isEqualTo(20);
+
+        // With an access journal, the size recorded in the journal is used
+        FileCache fileCache =
+                unboundedCache.withEvictionPolicy(
+                        new FileCache.EvictionPolicy(Long.MAX_VALUE, Integer.MAX_VALUE));
+        fileCache.evictLeastRecentlyUsedEntries();
+        writeStringToFile("12345678901234567890", fileCache.getFileInCache(inputs));
+        fileCache.createFileInCacheIfAbsent(
+                inputs, (outputFile) -> fail("This statement should not be executed"));
+        assertThat(fileCache.getStats().getHits()).isEqualTo(1);
+        assertThat(fileCache.getStats().getServedBytes()).isEqualTo(10);
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsedEntries_ExistingCache() throws Exception {
+        FileCache unboundedCache = FileCache.getInstanceWithSingleProcessLocking(cacheDir);
+        FileCache.Inputs[] inputs = new FileCache.Inputs[3];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] =
+                    new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                            .putString("file", "input" + i)
+                            .build();
+            unboundedCache.createFileInCacheIfAbsent(
+                    inputs[i], (outputFile) -> writeStringToFile("1234567890", outputFile));
+        }
+        // Without an access journal, the cache entries are ordered by their timestamps
+        long timestamp = System.currentTimeMillis() - Duration.ofDays(1).toMillis();
+        for (int i : new int[] {1, 0, 2}) {
+            File cacheEntryDir = unboundedCache.getFileInCache(inputs[i]).getParentFile();
+            assertThat(cacheEntryDir.setLastModified(timestamp)).isTrue();
+            timestamp += 1000;
+        }
+        unboundedCache.evictLeastRecentlyUsedEntries();
+        assertThat(cacheDir.list()).hasLength(3);
+
+        FileCache fileCache =
+                unboundedCache.withEvictionPolicy(
+                        new FileCache.EvictionPolicy(25, Integer.MAX_VALUE));
+        fileCache.evictLeastRecentlyUsedEntries();
+
+        assertThat(fileCache.cacheEntryExists(inputs[0])).isTrue();
+        assertThat(fileCache.cacheEntryExists(inputs[1])).isFalse();
+        assertThat(fileCache.cacheEntryExists(inputs[2])).isTrue();
+        assertThat(fileCache.getStats().getEvictedBytes()).isEqualTo(10);
+
+        // Accesses through the other instances are recorded too, once the journal exists
+        unboundedCache.createFileInCacheIfAbsent(
+                inputs[0], (outputFile) -> fail("This statement should not be executed"));
+        fileCache.createFileInCacheIfAbsent(
+                inputs[1], (outputFile) -> writeStringToFile("1234567890", outputFile));
+        fileCache.evictLeastRecentlyUsedEntries();
+
+        assertThat(fileCache.cacheEntryExists(inputs[0])).isTrue();
+        assertThat(fileCache.cacheEntryExists(inputs[1])).isTrue();
+        assertThat(fileCache.cacheEntryExists(inputs[2])).isFalse();
+        assertThat(fileCache.getStats().getEvictions()).isEqualTo(2);
+    }
+
+    @Test
+    public void testContentAddressedStorage() throws Exception {
+        FileCache fileCache =
+                FileCache.getInstanceWithSingleProcessLocking(cacheDir)
+                        .withContentAddressedStorage();
+        File outputDir1 = new File(outputDir, "output1");
+        File outputDir2 = new File(outputDir, "output2");
+        FileCache.Inputs inputs1 =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("file", "input1")
+                        .build();
+        FileCache.Inputs inputs2 =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("file", "input2")
+                        .build();
+
+        fileCache.createFile(
+                outputDir1,
+                inputs1,
+                () -> {
+                    FileUtils.mkdirs(outputDir1);
+                    writeStringToFile("Shared text", new File(outputDir1, "shared.txt"));
+                    writeStringToFile("Some text", new File(outputDir1, "file.txt"));
+                });
+        fileCache.createFile(
+                outputDir2,
+                inputs2,
+                () -> {
+                    FileUtils.mkdirs(outputDir2);
+                    writeStringToFile("Shared text", new File(outputDir2, "shared.txt"));
+                    writeStringToFile("Some other text", new File(outputDir2, "file.txt"));
+                });
+
+        // Identical files are only stored once
+        File cachedDir1 = fileCache.getFileInCache(inputs1);
+        File cachedDir2 = fileCache.getFileInCache(inputs2);
+        assertThat(
+                        java.nio.file.Files.isSameFile(
+                                new File(cachedDir1, "shared.txt").toPath(),
+                                new File(cachedDir2, "shared.txt").toPath()))
+                .isTrue();
+        assertThat(new File(cachedDir2, "file.txt")).hasContents("Some other text");
+
+        // The output created from the cache shares its contents with the cache
+        fileCache.createFile(
+                outputDir1, inputs1, () -> fail("This statement should not be executed"));
+        assertThat(fileCache.getHits()).isEqualTo(1);
+        assertThat(new File(outputDir1, "file.txt")).hasContents("Some text");
+        assertThat(
+                        java.nio.file.Files.isSameFile(
+                                new File(outputDir1, "file.txt").toPath(),
+                                new File(cachedDir1, "file.txt").toPath()))
+                .isTrue();
+
+        // Modifying the output in place corrupts the cache entries sharing its contents, which are
+        // then recreated
+        writeStringToFile("Modified text", new File(outputDir1, "shared.txt"));
+        FileCache.QueryResult result =
+                fileCache.createFileInCacheIfAbsent(
+                        inputs2,
+                        (outputFile) -> {
+                            FileUtils.mkdirs(outputFile);
+                            writeStringToFile("Shared text", new File(outputFile, "shared.txt"));
+                        });
+        assertThat(result.getQueryEvent()).isEqualTo(FileCache.QueryEvent.CORRUPTED);
+        assertThat(new File(cachedDir2, "shared.txt")).hasContents("Shared text");
+
+        // Unused blobs are deleted with the cache entries using them
+        fileCache.deleteOldCacheEntries(System.currentTimeMillis() + 1000);
+        assertThat(cacheDir.list()).asList().containsExactly(".blobs");
+        assertThat(FileUtils.getAllFiles(new File(cacheDir, ".blobs"))).isEmpty();
+    }
+
     @Test
     public void testCreateFile_MultiThreads_SingleProcessLocking_SameInputDifferentOutputs()
             throws IOException {
@@ -22,6 +22,8 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.build.gradle.options.BooleanOption;
+import com.android.build.gradle.options.IntegerOption;
+import com.android.build.gradle.options.LongOption;
 import com.android.build.gradle.options.ProjectOptions;
 import com.android.build.gradle.options.StringOption;
 import com.android.builder.model.Version;
@@ -92,7 +94,11 @@ public final class BuildCacheUtils {
      * user-defined directory, or a default directory if the user-defined directory is not provided.
      *
      * <p>Cache eviction may be performed in this method at regular intervals (see {@link
-     * BuildCacheUtils#DAYS_BETWEEN_CACHE_EVICTION_RUNS}}).
+     * BuildCacheUtils#DAYS_BETWEEN_CACHE_EVICTION_RUNS}}). If a maximum size or number of entries is
+     * set for the build cache, its least recently used entries are also evicted in the background
+     * as the cache grows (see {@link FileCache#withEvictionPolicy(FileCache.EvictionPolicy)}).
+     * Identical files of different cache entries can also be stored only once (see {@link
+     * FileCache#withContentAddressedStorage()}).
      */
     @SuppressWarnings("ResultOfMethodCallIgnored")
     @Nullable
@@ -117,6 +123,18 @@ public final class BuildCacheUtils {
                         project.getRootProject()::file,
                         defaultBuildCacheDirSupplier,
                         Version.ANDROID_GRADLE_PLUGIN_VERSION);
+        if (projectOptions.get(BooleanOption.ENABLE_BUILD_CACHE_DEDUPLICATION)) {
+            buildCache = buildCache.withContentAddressedStorage();
+        }
+        Long maxSize = projectOptions.get(LongOption.BUILD_CACHE_MAX_SIZE);
+        Integer maxEntries = projectOptions.get(IntegerOption.BUILD_CACHE_MAX_ENTRIES);
+        if (maxSize != null || maxEntries != null) {
+            buildCache =
+                    buildCache.withEvictionPolicy(
+                            new FileCache.EvictionPolicy(
+                                    maxSize != null ? maxSize : Long.MAX_VALUE,
+                                    maxEntries != null ? maxEntries : Integer.MAX_VALUE));
+        }
 
         // Get the shared directory containing the build caches for different plugin versions.
         File sharedBuildCacheDir = buildCache.getCacheDirectory().getParentFile();
@@ -21,6 +21,8 @@ package com.android.build.gradle.internal.res.namespaced
 import com.android.SdkConstants
 import com.android.annotations.concurrency.GuardedBy
 import com.android.build.gradle.internal.workeractions.WorkerActionServiceRegistry
+import com.android.build.gradle.options.IntegerOption
+import com.android.build.gradle.options.ProjectOptions
 import com.android.builder.internal.aapt.v2.Aapt2DaemonImpl
 import com.android.builder.internal.aapt.v2.Aapt2DaemonManager
 import com.android.builder.internal.aapt.v2.Aapt2DaemonTimeouts
@@ -35,6 +37,7 @@ import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.Paths
 import java.util.concurrent.Executors
+import java.util.concurrent.ForkJoinPool
 import java.util.concurrent.ScheduledExecutorService
 import java.util.concurrent.ScheduledFuture
 import java.util.concurrent.TimeUnit
@@ -47,6 +50,25 @@ private val daemonTimeouts = Aapt2DaemonTimeouts()
 private val daemonExpiryTimeSeconds = TimeUnit.MINUTES.toSeconds(3)
 private val maintenanceIntervalSeconds = TimeUnit.MINUTES.toSeconds(1)
 
+/** The maximum size of the daemon pools registered from now on, see [initFromProject]. */
+@Volatile
+private var maxDaemons = Int.MAX_VALUE
+
+/** The number of daemons started when a daemon pool is registered, see [initFromProject]. */
+@Volatile
+private var preWarmedDaemons = 0
+
+/**
+ * Configures the AAPT2 daemon pools from the project's options.
+ *
+ * Only affects the pools registered after this call, the pools are shut down at the end of each
+ * build.
+ */
+fun initFromProject(options: ProjectOptions) {
+    maxDaemons = options.get(IntegerOption.AAPT2_MAX_DAEMONS)?.takeIf { it > 0 } ?: Int.MAX_VALUE
+    preWarmedDaemons = options.get(IntegerOption.AAPT2_PRE_WARMED_DAEMONS) ?: 0
+}
+
 sealed class Aapt2ServiceKey : WorkerActionServiceRegistry.ServiceKey<Aapt2DaemonManager> {
     final override val type: Class<Aapt2DaemonManager> get() = Aapt2DaemonManager::class.java
 }
@@ -59,6 +81,22 @@ private class RegisteredAaptService(override val service: Aapt2DaemonManager)
     : WorkerActionServiceRegistry.RegisteredService<Aapt2DaemonManager> {
     override fun shutdown() {
         service.shutdown()
+        val stats = service.stats()
+        if (stats.daemons.isEmpty()) {
+            return
+        }
+        service.logger.info(
+                "AAPT2 daemon pool: %1\$d daemons, %2\$d restarts",
+                stats.daemons.size,
+                stats.restartCount)
+        for (daemon in stats.daemons) {
+            service.logger.info(
+                    "AAPT2 daemon #%1\$d: %2\$d requests, compile %3\$s, link %4\$s",
+                    daemon.displayId,
+                    daemon.requestCount,
+                    daemon.compileLatency,
+                    daemon.linkLatency)
+        }
     }
 }
 
@@ -124,7 +162,12 @@ fun registerAaptService(
                 },
                 expiryTime = daemonExpiryTimeSeconds,
                 expiryTimeUnit = TimeUnit.SECONDS,
-                listener = Aapt2DaemonManagerMaintainer())
+                listener = Aapt2DaemonManagerMaintainer(),
+                maxDaemons = maxDaemons)
+        val daemonsToStart = preWarmedDaemons
+        if (daemonsToStart > 0) {
+            ForkJoinPool.commonPool().execute { manager.preWarm(daemonsToStart) }
+        }
         RegisteredAaptService(manager)
     })
     return key
@@ -473,7 +473,21 @@ public class DeviceProviderInstrumentTestTask extends AndroidBuilderTask
                                             splitSelect, processExecutor, executionEnum);
                     break;
                 case HOST:
-                    if (shardBetweenDevices) {
+                    if (shardBetweenDevices
+                            && projectOptions.get(BooleanOption.ENABLE_TEST_BATCH_SCHEDULING)) {
+                        File testDurationsFile =
+                                new File(
+                                        scope.getGlobalScope().getIntermediatesDir(),
+                                        "/androidTest-durations/"
+                                                + scope.getDirName()
+                                                + "/"
+                                                + deviceProvider.getName()
+                                                + ".properties");
+                        task.testRunnerFactory =
+                                (splitSelect, processExecutor) ->
+                                        ShardedTestRunner.withBatchScheduling(
+                                                splitSelect, processExecutor, testDurationsFile);
+                    } else if (shardBetweenDevices) {
                         Integer numShards =
                                 projectOptions.get(IntegerOption.ANDROID_TEST_SHARD_COUNT);
                         task.testRunnerFactory =
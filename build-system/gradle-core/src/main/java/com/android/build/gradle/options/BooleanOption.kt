@@ -54,6 +54,9 @@ enum class BooleanOption(
     // ---------------
     // Lifecycle flags: Experimental stage, not yet enabled by default
     ENABLE_TEST_SHARDING("android.androidTest.shardBetweenDevices"),
+    ENABLE_TEST_BATCH_SCHEDULING("android.androidTest.scheduleBatches"),
+    ENABLE_BUILD_CACHE_DEDUPLICATION("android.enableBuildCacheDeduplication"),
+    ENABLE_BINARY_RESOURCE_MERGER_BLOB("android.enableBinaryResourceMergerBlob"),
     VERSION_CHECK_OVERRIDE_PROPERTY("android.overrideVersionCheck"),
     OVERRIDE_PATH_CHECK_PROPERTY("android.overridePathCheck"),
     ENABLE_GRADLE_WORKERS("android.enableGradleWorkers", false),
@@ -62,6 +62,15 @@ enum class IntegerOption(
      * Maximum number of dynamic features that can be allocated before Oreo platforms.
      */
     PRE_O_MAX_NUMBER_OF_FEATURES("android.maxNumberOfFeaturesBeforeOreo"),
+
+    /** Maximum number of entries kept in the build cache. */
+    BUILD_CACHE_MAX_ENTRIES("android.buildCacheMaxEntries"),
+
+    /** Maximum number of AAPT2 daemon processes kept for each AAPT2 version. */
+    AAPT2_MAX_DAEMONS("android.aapt2.maxDaemons"),
+
+    /** Number of AAPT2 daemon processes started ahead of the first resource processing task. */
+    AAPT2_PRE_WARMED_DAEMONS("android.aapt2.preWarmedDaemons"),
     ;
 
     override fun parse(value: Any): Int {
@@ -24,6 +24,9 @@ enum class LongOption(
     DEPRECATED_NDK_COMPILE_LEASE(
         "android.deprecatedNdkCompileLease",
         status = Option.Status.STABLE),
+
+    /** Maximum total size in bytes of the outputs kept in the build cache. */
+    BUILD_CACHE_MAX_SIZE("android.buildCacheMaxSize", status = Option.Status.EXPERIMENTAL),
     ;
 
     override fun parse(value: Any): Long {
@@ -120,6 +120,8 @@ public class MergeResources extends IncrementalTask {
 
     private boolean validateEnabled;
 
+    private boolean binaryBlobEnabled;
+
     private File blameLogFolder;
 
     // file inputs as raw files, lazy behind a memoized/bypassed supplier
@@ -224,6 +226,7 @@ public class MergeResources extends IncrementalTask {
 
         // create a new merger and populate it with the sets.
         ResourceMerger merger = new ResourceMerger(minSdk.get());
+        merger.setBinaryBlobEnabled(binaryBlobEnabled);
         MergingLog mergingLog = null;
         if (blameLogFolder != null) {
             FileUtils.cleanOutputDir(blameLogFolder);
@@ -281,6 +284,7 @@ public class MergeResources extends IncrementalTask {
 
         // create a merger and load the known state.
         ResourceMerger merger = new ResourceMerger(minSdk.get());
+        merger.setBinaryBlobEnabled(binaryBlobEnabled);
         try {
             if (!merger.loadFromBlob(getIncrementalFolder(), true /*incrementalState*/)) {
                 doFullTaskAction();
@@ -833,6 +837,11 @@ public class MergeResources extends IncrementalTask {
             task.validateEnabled =
                     !globalScope.getProjectOptions().get(BooleanOption.DISABLE_RESOURCE_VALIDATION);
 
+            task.binaryBlobEnabled =
+                    globalScope
+                            .getProjectOptions()
+                            .get(BooleanOption.ENABLE_BINARY_RESOURCE_MERGER_BLOB);
+
             if (includeDependencies) {
                 task.libraries =
                         variantScope.getArtifactCollection(RUNTIME_CLASSPATH, ALL, ANDROID_RES);
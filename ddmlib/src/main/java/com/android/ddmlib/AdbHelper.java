@@ -19,11 +19,13 @@ package com.android.ddmlib;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.ddmlib.log.LogReceiver;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
@@ -33,15 +35,18 @@ import java.util.concurrent.TimeUnit;
  * Helper class to handle requests and connections to adb.
  * <p>{@link AndroidDebugBridge} is the public API to connection to adb, while {@link AdbHelper}
  * does the low level stuff.
- * <p>This currently uses spin-wait non-blocking I/O. A Selector would be more efficient,
- * but seems like overkill for what we're doing here.
+ * <p>This uses non-blocking I/O. When a channel isn't ready, the calling thread waits on
+ * {@link AdbSelector} rather than polling, and
+ * {@link #executeRemoteCommandAsync(InetSocketAddress, AdbService, String, IDevice,
+ * IShellOutputReceiver, long, long, TimeUnit)} runs a command without blocking a thread at all.
  */
 final class AdbHelper {
 
     // public static final long kOkay = 0x59414b4fL;
     // public static final long kFail = 0x4c494146L;
 
-    static final int WAIT_TIME = 5; // spin-wait sleep, in ms
+    /** How often commands waiting for output check whether their receiver was cancelled, in ms. */
+    static final int CANCEL_CHECK_TIME = 100;
 
     static final Charset DEFAULT_CHARSET = StandardCharsets.UTF_8;
 
@@ -269,8 +274,30 @@ final class AdbHelper {
      */
     static RawImage getFrameBuffer(InetSocketAddress adbSockAddr, Device device, long timeout, TimeUnit unit)
             throws TimeoutException, AdbCommandRejectedException, IOException {
+        return getFrameBuffer(adbSockAddr, device, timeout, unit, null);
+    }
+
+    /**
+     * Retrieve the frame buffer from the device with the given timeout, reusing a previously
+     * captured image if possible.
+     *
+     * <p>The data of <var>reuse</var> is overwritten if its size matches the new frame, so that
+     * continuous captures don't allocate (and zero) a new array for every frame.
+     *
+     * @param reuse the image to fill, or null to create a new one.
+     * @throws TimeoutException in case of timeout on the connection.
+     * @throws AdbCommandRejectedException if adb rejects the command
+     * @throws IOException in case of I/O error on the connection.
+     */
+    static RawImage getFrameBuffer(
+            InetSocketAddress adbSockAddr,
+            Device device,
+            long timeout,
+            TimeUnit unit,
+            @Nullable RawImage reuse)
+            throws TimeoutException, AdbCommandRejectedException, IOException {
 
-        RawImage imageParams = new RawImage();
+        RawImage imageParams = reuse != null ? reuse : new RawImage();
         byte[] request = formAdbRequest("framebuffer:"); //$NON-NLS-1$
         byte[] nudge = {
             0
@@ -324,10 +351,10 @@ final class AdbHelper {
 
             write(adbChan, nudge);
 
-            reply = new byte[imageParams.size];
-            read(adbChan, reply, imageParams.size, unit.toMillis(timeout));
-
-            imageParams.data = reply;
+            if (imageParams.data == null || imageParams.data.length != imageParams.size) {
+                imageParams.data = new byte[imageParams.size];
+            }
+            read(adbChan, imageParams.data, imageParams.size, unit.toMillis(timeout));
         } finally {
             if (adbChan != null) {
                 adbChan.close();
@@ -518,22 +545,13 @@ final class AdbHelper {
             if (is != null) {
                 int read;
                 while ((read = is.read(data)) != -1) {
-                    ByteBuffer buf = ByteBuffer.wrap(data, 0, read);
-                    int written = 0;
-                    while (buf.hasRemaining()) {
-                        written += adbChan.write(buf);
-                    }
-                    if (written != read) {
-                        Log.e("ddms",
-                                "ADB write inconsistency, wrote " + written + "expected " + read);
-                        throw new AdbCommandRejectedException("write failed");
-                    }
+                    write(adbChan, data, read, DdmPreferences.getTimeOut());
                 }
             }
 
             ByteBuffer buf = ByteBuffer.wrap(data);
             buf.clear();
-            long timeToResponseCount = 0;
+            long lastOutputTime = System.currentTimeMillis();
             while (true) {
                 int count;
 
@@ -545,27 +563,36 @@ final class AdbHelper {
                 count = adbChan.read(buf);
                 if (count < 0) {
                     // we're at the end, we flush the output
-                    rcvr.flush();
+                    if (rcvr != null) {
+                        rcvr.flush();
+                    }
                     Log.v("ddms", "execute '" + command + "' on '" + device + "' : EOF hit. Read: "
                             + count);
                     break;
                 } else if (count == 0) {
-                    try {
-                        int wait = WAIT_TIME * 5;
-                        timeToResponseCount += wait;
-                        if (maxTimeToOutputMs > 0 && timeToResponseCount > maxTimeToOutputMs) {
+                    long now = System.currentTimeMillis();
+                    long wait = rcvr != null ? CANCEL_CHECK_TIME : 0;
+                    if (maxTimeToOutputMs > 0) {
+                        long left = lastOutputTime + maxTimeToOutputMs - now;
+                        if (left <= 0) {
                             throw new ShellCommandUnresponsiveException();
                         }
-                        Thread.sleep(wait);
+                        wait = wait > 0 ? Math.min(wait, left) : left;
                     }
-                    catch (InterruptedException e) {
+                    if (maxTimeoutMs > 0) {
+                        long left = Math.max(startTime + maxTimeoutMs - now, 1);
+                        wait = wait > 0 ? Math.min(wait, left) : left;
+                    }
+                    try {
+                        AdbSelector.getInstance().await(adbChan, SelectionKey.OP_READ, wait);
+                    } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
                         // Throw a timeout exception in place of interrupted exception to avoid API changes.
                         throw new TimeoutException("executeRemoteCommand interrupted with immediate timeout via interruption.");
                     }
                 } else {
                     // reset timeout
-                    timeToResponseCount = 0;
+                    lastOutputTime = System.currentTimeMillis();
 
                     // send data to receiver if present
                     if (rcvr != null) {
@@ -636,6 +663,54 @@ final class AdbHelper {
                 is);
     }
 
+    /**
+     * Executes a remote command on the device without blocking the calling thread. The output is
+     * handed to <var>rcvr</var> as it arrives, on an {@link AdbSelector} thread, so receivers
+     * shouldn't block.
+     *
+     * @param adbSockAddr the {@link InetSocketAddress} to adb.
+     * @param adbService the {@link com.android.ddmlib.AdbHelper.AdbService} to use to run the
+     *     command.
+     * @param command the shell command to execute
+     * @param device the {@link IDevice} on which to execute the command.
+     * @param rcvr the {@link IShellOutputReceiver} that will receives the output of the shell
+     *     command
+     * @param maxTimeout max timeout for the full command to execute. A value of 0 means no timeout.
+     * @param maxTimeToOutputResponse max time between command output. If more time passes between
+     *     command output, the future fails with {@link ShellCommandUnresponsiveException}. A value
+     *     of 0 means the command may wait forever for output.
+     * @param maxTimeUnits Units for non-zero {@code maxTimeout} and {@code maxTimeToOutputResponse}
+     *     values.
+     * @return a future completed once the command is done, or failed with the exception the
+     *     blocking version would throw. Cancelling it closes the connection to adb.
+     * @see #executeRemoteCommand(InetSocketAddress, AdbService, String, IDevice,
+     *     IShellOutputReceiver, long, long, TimeUnit, InputStream)
+     */
+    static ListenableFuture<Void> executeRemoteCommandAsync(
+            InetSocketAddress adbSockAddr,
+            AdbService adbService,
+            String command,
+            IDevice device,
+            IShellOutputReceiver rcvr,
+            long maxTimeout,
+            long maxTimeToOutputResponse,
+            TimeUnit maxTimeUnits) {
+        if ((maxTimeout > 0 || maxTimeToOutputResponse > 0) && maxTimeUnits == null) {
+            throw new NullPointerException("Time unit must not be null for non-zero max.");
+        }
+        Log.v("ddms", "execute: running " + command);
+        return new AsyncRemoteCommand(
+                        adbSockAddr,
+                        adbService.name().toLowerCase() + ":" + command, //$NON-NLS-1$
+                        device,
+                        rcvr,
+                        maxTimeout > 0 ? maxTimeUnits.toMillis(maxTimeout) : 0,
+                        maxTimeToOutputResponse > 0
+                                ? maxTimeUnits.toMillis(maxTimeToOutputResponse)
+                                : 0)
+                .start();
+    }
+
     /**
      * Runs the Event log service on the {@link Device}, and provides its output to the
      * {@link LogReceiver}.
@@ -697,9 +772,9 @@ final class AdbHelper {
                     break;
                 } else if (count == 0) {
                     try {
-                        Thread.sleep(WAIT_TIME * 5);
-                    }
-                    catch (InterruptedException e) {
+                        AdbSelector.getInstance().await(adbChan, SelectionKey.OP_READ,
+                                rcvr != null ? CANCEL_CHECK_TIME : 0);
+                    } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
                         // Throw a timeout exception in place of interrupted exception to avoid API changes.
                         throw new TimeoutException("runLogService interrupted with immediate timeout via interruption.");
@@ -850,9 +925,20 @@ final class AdbHelper {
      * @param timeout The timeout value in ms. A timeout of zero means "wait forever".
      */
     static void read(SocketChannel chan, byte[] data, int length, long timeout) throws TimeoutException, IOException {
-        ByteBuffer buf = ByteBuffer.wrap(data, 0, length != -1 ? length : data.length);
-        int numWaits = 0;
+        read(chan, ByteBuffer.wrap(data, 0, length != -1 ? length : data.length), timeout);
+    }
 
+    /**
+     * Reads from the socket until the buffer is filled up to its limit, or no more data is coming.
+     *
+     * @param chan the opened socket to read from. It must be in non-blocking
+     *      mode for timeouts to work
+     * @param buf the buffer to store the read data into, from its position to its limit.
+     * @param timeout The timeout value in ms. A timeout of zero means "wait forever".
+     * @see #read(SocketChannel, byte[], int, long)
+     */
+    static void read(SocketChannel chan, ByteBuffer buf, long timeout)
+            throws TimeoutException, IOException {
         while (buf.position() != buf.limit()) {
             int count;
 
@@ -861,23 +947,7 @@ final class AdbHelper {
                 Log.d("ddms", "read: channel EOF");
                 throw new IOException("EOF");
             } else if (count == 0) {
-                // TODO: need more accurate timeout?
-                if (timeout != 0 && numWaits * WAIT_TIME > timeout) {
-                    Log.d("ddms", "read: timeout");
-                    throw new TimeoutException();
-                }
-                try {
-                    // non-blocking spin
-                    Thread.sleep(WAIT_TIME);
-                }
-                catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    // Throw a timeout exception in place of interrupted exception to avoid API changes.
-                    throw new TimeoutException("Read interrupted with immediate timeout via interruption.");
-                }
-                numWaits++;
-            } else {
-                numWaits = 0;
+                waitFor(chan, SelectionKey.OP_READ, timeout, "Read");
             }
         }
     }
@@ -906,9 +976,20 @@ final class AdbHelper {
      * @throws IOException in case of I/O error on the connection.
      */
     static void write(SocketChannel chan, byte[] data, int length, int timeout) throws TimeoutException, IOException {
-        ByteBuffer buf = ByteBuffer.wrap(data, 0, length != -1 ? length : data.length);
-        int numWaits = 0;
+        write(chan, ByteBuffer.wrap(data, 0, length != -1 ? length : data.length), timeout);
+    }
 
+    /**
+     * Write until the buffer is written up to its limit, the timeout expires, or the connection
+     * fails.
+     *
+     * @param chan the opened socket to write to.
+     * @param buf the buffer to send, from its position to its limit.
+     * @param timeout The timeout value. A timeout of zero means "wait forever".
+     * @see #write(SocketChannel, byte[], int, int)
+     */
+    static void write(SocketChannel chan, ByteBuffer buf, long timeout)
+            throws TimeoutException, IOException {
         while (buf.position() != buf.limit()) {
             int count;
 
@@ -917,24 +998,33 @@ final class AdbHelper {
                 Log.d("ddms", "write: channel EOF");
                 throw new IOException("channel EOF");
             } else if (count == 0) {
-                // TODO: need more accurate timeout?
-                if (timeout != 0 && numWaits * WAIT_TIME > timeout) {
-                    Log.d("ddms", "write: timeout");
-                    throw new TimeoutException();
-                }
-                try {
-                    // non-blocking spin
-                    Thread.sleep(WAIT_TIME);
-                }
-                catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    // Throw a timeout exception in place of interrupted exception to avoid API changes.
-                    throw new TimeoutException("Write interrupted with immediate timeout via interruption.");
-                }
-                numWaits++;
-            } else {
-                numWaits = 0;
+                waitFor(chan, SelectionKey.OP_WRITE, timeout, "Write");
+            }
+        }
+    }
+
+    /**
+     * Waits until a channel in non-blocking mode is ready for some operations.
+     *
+     * @param chan the channel to wait on.
+     * @param ops the {@link SelectionKey} operations to wait for.
+     * @param timeout The timeout value in ms. A timeout of zero means "wait forever".
+     * @param operation the name of the operation waiting, for logs.
+     * @throws TimeoutException in case of timeout, or if the calling thread is interrupted.
+     * @throws IOException in case of I/O error on the connection.
+     */
+    private static void waitFor(SocketChannel chan, int ops, long timeout, String operation)
+            throws TimeoutException, IOException {
+        try {
+            if (!AdbSelector.getInstance().await(chan, ops, timeout)) {
+                Log.d("ddms", operation.toLowerCase() + ": timeout");
+                throw new TimeoutException();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // Throw a timeout exception in place of interrupted exception to avoid API changes.
+            throw new TimeoutException(
+                    operation + " interrupted with immediate timeout via interruption.");
         }
     }
 
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for adb socket channels to be ready for I/O on a small pool of selector threads, so that
+ * connections waiting on adb or on a device don't each need to poll on their own thread.
+ *
+ * <p>Channels must be in non-blocking mode. A channel is only registered with a selector while
+ * something waits on it, so it can go back to blocking mode once the wait is over. Only one wait
+ * per channel may be pending at any time.
+ */
+final class AdbSelector {
+
+    /** Number of selector threads. Each one can serve many channels. */
+    private static final int THREAD_COUNT = 2;
+
+    private static AdbSelector sInstance;
+
+    /** Notified on a selector thread once a wait is over. */
+    interface Listener {
+        /** Called once the channel is ready for the operations waited on. */
+        void onReady();
+
+        /** Called if the channel wasn't ready in time, or if the wait was cancelled. */
+        void onTimeout();
+
+        /** Called if the channel couldn't be waited on, for instance because it was closed. */
+        void onError(@NonNull IOException e);
+    }
+
+    @NonNull
+    private final SelectorThread[] mThreads;
+
+    private AdbSelector() throws IOException {
+        mThreads = new SelectorThread[THREAD_COUNT];
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            mThreads[i] = new SelectorThread("ADB I/O " + i);
+            mThreads[i].start();
+        }
+    }
+
+    /** Returns the shared instance, starting its threads the first time. */
+    @NonNull
+    static synchronized AdbSelector getInstance() throws IOException {
+        if (sInstance == null) {
+            sInstance = new AdbSelector();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Waits for a channel to be ready for some operations without blocking, notifying
+     * {@code listener} once the wait is over.
+     *
+     * @param chan the channel to wait on, in non-blocking mode.
+     * @param ops the {@link SelectionKey} operations to wait for.
+     * @param timeout the timeout in ms. A timeout of zero means "wait forever".
+     * @param listener the listener to notify on a selector thread.
+     * @return the wait, which can be passed to {@link #cancel(Wait)}.
+     */
+    @NonNull
+    Wait waitFor(@NonNull SocketChannel chan, int ops, long timeout,
+            @NonNull Listener listener) {
+        Wait wait = new Wait(chan, ops, timeout, listener);
+        // Keep each channel on the same thread, so that its successive waits are handled in order.
+        mThreads[(System.identityHashCode(chan) & Integer.MAX_VALUE) % THREAD_COUNT].add(wait);
+        return wait;
+    }
+
+    /**
+     * Cancels a wait, which is then reported as timed out, unless it is already over.
+     */
+    void cancel(@NonNull Wait wait) {
+        wait.mCancelled = true;
+        wait.mThread.mSelector.wakeup();
+    }
+
+    /**
+     * Blocks until a channel is ready for some operations.
+     *
+     * @param chan the channel to wait on, in non-blocking mode.
+     * @param ops the {@link SelectionKey} operations to wait for.
+     * @param timeout the timeout in ms. A timeout of zero means "wait forever".
+     * @return true if the channel is ready, false if the timeout expired first.
+     * @throws IOException if the channel can't be waited on.
+     * @throws InterruptedException if the calling thread is interrupted while waiting. The channel
+     *     is no longer waited on when this is thrown.
+     */
+    boolean await(@NonNull SocketChannel chan, int ops, long timeout)
+            throws IOException, InterruptedException {
+        BlockingListener listener = new BlockingListener();
+        Wait wait = waitFor(chan, ops, timeout, listener);
+        try {
+            listener.mDone.await();
+        } catch (InterruptedException e) {
+            cancel(wait);
+            // Callers may switch the channel back to blocking mode, which isn't possible while it
+            // is still registered.
+            Uninterruptibles.awaitUninterruptibly(listener.mDone);
+            throw e;
+        }
+        if (listener.mError != null) {
+            throw listener.mError;
+        }
+        return listener.mReady;
+    }
+
+    /** A pending wait on a channel. */
+    static final class Wait {
+        @NonNull
+        private final SocketChannel mChannel;
+
+        private final int mOps;
+
+        private final boolean mHasDeadline;
+
+        /** The {@link System#nanoTime()} at which the wait times out, if it has a deadline. */
+        private final long mDeadline;
+
+        @NonNull
+        private final Listener mListener;
+
+        private SelectorThread mThread;
+
+        @Nullable
+        private SelectionKey mKey;
+
+        private volatile boolean mCancelled;
+
+        private Wait(@NonNull SocketChannel chan, int ops, long timeout,
+                @NonNull Listener listener) {
+            mChannel = chan;
+            mOps = ops;
+            mHasDeadline = timeout > 0;
+            mDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(timeout, 0));
+            mListener = listener;
+        }
+    }
+
+    private static final class BlockingListener implements Listener {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
+        private boolean mReady;
+
+        @Nullable
+        private IOException mError;
+
+        @Override
+        public void onReady() {
+            mReady = true;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onTimeout() {
+            mDone.countDown();
+        }
+
+        @Override
+        public void onError(@NonNull IOException e) {
+            mError = e;
+            mDone.countDown();
+        }
+    }
+
+    private static final class SelectorThread extends Thread {
+        @NonNull
+        private final Selector mSelector;
+
+        @NonNull
+        private final Queue<Wait> mNewWaits = new ConcurrentLinkedQueue<>();
+
+        /** Waits registered with the selector. Only used on this thread. */
+        @NonNull
+        private final Set<Wait> mWaits = new HashSet<>();
+
+        private SelectorThread(@NonNull String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            mSelector = Selector.open();
+        }
+
+        private void add(@NonNull Wait wait) {
+            wait.mThread = this;
+            mNewWaits.add(wait);
+            mSelector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            List<Wait> timedOut = new ArrayList<>();
+            List<Wait> ready = new ArrayList<>();
+            List<Wait> failed = new ArrayList<>();
+            while (true) {
+                try {
+                    register(failed);
+                    long timeout = expire(timedOut, failed);
+                    if (timedOut.isEmpty() && failed.isEmpty()) {
+                        mSelector.select(timeout);
+                    } else {
+                        // Deregister the cancelled keys right away.
+                        mSelector.selectNow();
+                    }
+                    // Keys are cancelled as soon as they are selected, so that their channel can
+                    // go back to blocking mode once the listener is notified. Flushing them out
+                    // may select more keys, so keep going until none are.
+                    while (takeReadyWaits(ready)) {
+                        mSelector.selectNow();
+                    }
+                } catch (Exception e) {
+                    // we don't want to have our thread be killed because of any uncaught
+                    // exception, so we intercept all here.
+                    Log.e("ddms", "Exception in AdbSelector");
+                    Log.e("ddms", e);
+                }
+
+                for (Wait wait : ready) {
+                    notifyDone(wait, true);
+                }
+                for (Wait wait : timedOut) {
+                    notifyDone(wait, false);
+                }
+                for (Wait wait : failed) {
+                    notifyError(wait, new ClosedChannelException());
+                }
+                ready.clear();
+                timedOut.clear();
+                failed.clear();
+            }
+        }
+
+        private void register(@NonNull List<Wait> failed) {
+            Wait wait;
+            while ((wait = mNewWaits.poll()) != null) {
+                try {
+                    wait.mKey = wait.mChannel.register(mSelector, wait.mOps, wait);
+                    mWaits.add(wait);
+                } catch (ClosedChannelException | CancelledKeyException e) {
+                    failed.add(wait);
+                } catch (RuntimeException e) {
+                    // IllegalBlockingModeException, IllegalArgumentException for invalid ops.
+                    notifyError(wait, new IOException(e));
+                }
+            }
+        }
+
+        /**
+         * Takes out the waits which timed out or were cancelled, and those whose channel was
+         * closed, and returns how long the selector can block, in ms.
+         */
+        private long expire(@NonNull List<Wait> timedOut, @NonNull List<Wait> failed) {
+            long now = System.nanoTime();
+            long nextDeadline = Long.MAX_VALUE;
+            for (Iterator<Wait> it = mWaits.iterator(); it.hasNext(); ) {
+                Wait wait = it.next();
+                if (wait.mKey == null || !wait.mKey.isValid()) {
+                    it.remove();
+                    failed.add(wait);
+                } else if (wait.mCancelled || (wait.mHasDeadline && now - wait.mDeadline >= 0)) {
+                    it.remove();
+                    wait.mKey.cancel();
+                    timedOut.add(wait);
+                } else if (wait.mHasDeadline) {
+                    nextDeadline = Math.min(nextDeadline, wait.mDeadline - now);
+                }
+            }
+            if (nextDeadline == Long.MAX_VALUE) {
+                return 0;
+            }
+            // Round up, as a timeout of 0 would block forever.
+            return TimeUnit.NANOSECONDS.toMillis(nextDeadline) + 1;
+        }
+
+        private boolean takeReadyWaits(@NonNull List<Wait> ready) {
+            Set<SelectionKey> keys = mSelector.selectedKeys();
+            if (keys.isEmpty()) {
+                return false;
+            }
+            for (SelectionKey key : keys) {
+                Wait wait = (Wait) key.attachment();
+                key.cancel();
+                if (mWaits.remove(wait)) {
+                    ready.add(wait);
+                }
+            }
+            keys.clear();
+            return true;
+        }
+
+        private static void notifyDone(@NonNull Wait wait, boolean ready) {
+            try {
+                if (ready) {
+                    wait.mListener.onReady();
+                } else {
+                    wait.mListener.onTimeout();
+                }
+            } catch (Exception e) {
+                Log.e("ddms", "Exception in AdbSelector listener");
+                Log.e("ddms", e);
+            }
+        }
+
+        private static void notifyError(@NonNull Wait wait, @NonNull IOException error) {
+            try {
+                wait.mListener.onError(error);
+            } catch (Exception e) {
+                Log.e("ddms", "Exception in AdbSelector listener");
+                Log.e("ddms", e);
+            }
+        }
+    }
+}
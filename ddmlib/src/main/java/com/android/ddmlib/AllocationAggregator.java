@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregates the allocations tracked by a VM by allocated class and by stack trace, across
+ * successive fetches of the allocation tracking data.
+ *
+ * <p>The VM reports its most recent allocations (up to 65535) every time the allocation data is
+ * requested, so successive fetches overlap. {@link #update(ByteBuffer)} only counts the
+ * allocations that weren't part of the previous fetch, which allows tracking allocations over
+ * long periods by fetching the data regularly, without keeping the individual allocations.
+ *
+ * <p>The data is decoded straight into tables of interned class names and stack traces, without
+ * creating an {@link AllocationInfo} per allocation.
+ *
+ * <p>Allocations are told apart by their class, size, thread and stack trace. Identical
+ * allocations at the boundary between two fetches can't be told apart, so they are assumed to
+ * be the same allocations.
+ */
+public final class AllocationAggregator {
+
+    /** The total count and size of the allocations of a class or from a stack trace. */
+    public static final class Total {
+        @Nullable private final String mClassName;
+        @Nullable private final StackTraceElement[] mStackTrace;
+        private final long mCount;
+        private final long mSize;
+
+        private Total(
+                @Nullable String className,
+                @Nullable StackTraceElement[] stackTrace,
+                long count,
+                long size) {
+            mClassName = className;
+            mStackTrace = stackTrace;
+            mCount = count;
+            mSize = size;
+        }
+
+        /** Returns the allocated class, or null for the totals of a stack trace. */
+        @Nullable
+        public String getClassName() {
+            return mClassName;
+        }
+
+        /** Returns the stack trace of the allocations, or null for the totals of a class. */
+        @Nullable
+        public StackTraceElement[] getStackTrace() {
+            return mStackTrace;
+        }
+
+        /** Returns the number of allocations. */
+        public long getCount() {
+            return mCount;
+        }
+
+        /** Returns the total size of the allocations, in bytes. */
+        public long getSize() {
+            return mSize;
+        }
+    }
+
+    private static final Comparator<Total> BY_SIZE =
+            Comparator.comparingLong(Total::getSize).reversed();
+
+    /** Interned strings (class names, method names and file names), by id. */
+    private final List<String> mStrings = new ArrayList<>();
+    private final Map<String, Integer> mStringIds = new HashMap<>();
+
+    /** Interned stack traces, by id, as (class, method, file, line) tuples. */
+    private final List<int[]> mTraces = new ArrayList<>();
+    private final Map<TraceKey, Integer> mTraceIds = new HashMap<>();
+    private final TraceKey mProbe = new TraceKey(new int[64], 0);
+
+    /** Totals by class name id. */
+    private long[] mClassCounts = new long[64];
+    private long[] mClassSizes = new long[64];
+
+    /** Totals by stack trace id. */
+    private long[] mTraceCounts = new long[64];
+    private long[] mTraceSizes = new long[64];
+
+    /** Fingerprints of the allocations of the previous fetch, in the order they were sent. */
+    private long[] mPreviousRecords = new long[0];
+    private int mPreviousRecordCount;
+
+    /** The allocations of the current fetch. */
+    private long[] mRecords = new long[0];
+    private int[] mRecordClasses = new int[0];
+    private int[] mRecordTraces = new int[0];
+    private int[] mRecordSizes = new int[0];
+
+    private long mTotalCount;
+
+    /**
+     * Adds the allocations of a new fetch of the allocation tracking data that weren't part of the
+     * previous fetch.
+     *
+     * @param data the data, as returned by {@link ClientData#getAllocationsData()}.
+     * @return the number of new allocations.
+     */
+    public synchronized int update(@NonNull ByteBuffer data) {
+        int count = decode(data);
+
+        // The allocations are sent oldest first by some VMs, newest first by others.
+        int start = 0;
+        int end = count;
+        if (mPreviousRecordCount > 0 && count > 0) {
+            int oldestFirst = overlap(mPreviousRecords, mPreviousRecordCount, mRecords, count);
+            int newestFirst = overlap(mRecords, count, mPreviousRecords, mPreviousRecordCount);
+            if (oldestFirst >= newestFirst) {
+                start = oldestFirst;
+            } else {
+                end = count - newestFirst;
+            }
+        }
+
+        for (int i = start; i < end; i++) {
+            int classId = mRecordClasses[i];
+            int traceId = mRecordTraces[i];
+            int size = mRecordSizes[i];
+            mClassCounts = ensureCapacity(mClassCounts, classId);
+            mClassSizes = ensureCapacity(mClassSizes, classId);
+            mClassCounts[classId]++;
+            mClassSizes[classId] += size;
+            mTraceCounts = ensureCapacity(mTraceCounts, traceId);
+            mTraceSizes = ensureCapacity(mTraceSizes, traceId);
+            mTraceCounts[traceId]++;
+            mTraceSizes[traceId] += size;
+        }
+        mTotalCount += end - start;
+
+        long[] previous = mPreviousRecords;
+        mPreviousRecords = mRecords;
+        mPreviousRecordCount = count;
+        mRecords = previous;
+        return end - start;
+    }
+
+    /** Returns the number of allocations added so far. */
+    public synchronized long getTotalCount() {
+        return mTotalCount;
+    }
+
+    /** Returns the totals of each allocated class, largest total size first. */
+    @NonNull
+    public synchronized List<Total> getClassTotals() {
+        List<Total> totals = new ArrayList<>();
+        for (int i = 0; i < mStrings.size() && i < mClassCounts.length; i++) {
+            if (mClassCounts[i] > 0) {
+                totals.add(new Total(mStrings.get(i), null, mClassCounts[i], mClassSizes[i]));
+            }
+        }
+        totals.sort(BY_SIZE);
+        return totals;
+    }
+
+    /** Returns the totals of each allocation stack trace, largest total size first. */
+    @NonNull
+    public synchronized List<Total> getStackTraceTotals() {
+        List<Total> totals = new ArrayList<>();
+        for (int i = 0; i < mTraces.size() && i < mTraceCounts.length; i++) {
+            if (mTraceCounts[i] > 0) {
+                totals.add(
+                        new Total(null, getStackTrace(i), mTraceCounts[i], mTraceSizes[i]));
+            }
+        }
+        totals.sort(BY_SIZE);
+        return totals;
+    }
+
+    /** Clears the totals, and forgets about the previous fetch. */
+    public synchronized void reset() {
+        Arrays.fill(mClassCounts, 0);
+        Arrays.fill(mClassSizes, 0);
+        Arrays.fill(mTraceCounts, 0);
+        Arrays.fill(mTraceSizes, 0);
+        mPreviousRecordCount = 0;
+        mTotalCount = 0;
+    }
+
+    /**
+     * Decodes the allocations of a message into the record arrays.
+     *
+     * @return the number of allocations.
+     * @see AllocationsParser#parse(ByteBuffer)
+     */
+    private int decode(@NonNull ByteBuffer data) {
+        AllocationsParser.Header header = AllocationsParser.readHeader(data);
+
+        data.position(header.offsetToStrings);
+        int[] classIds = readStringIds(data, header.numClassNames);
+        int[] methodIds = readStringIds(data, header.numMethodNames);
+        int[] fileIds = readStringIds(data, header.numFileNames);
+
+        int count = header.numEntries;
+        if (mRecords.length < count) {
+            // the previous array is swapped with mPreviousRecords, grow it separately.
+            mRecords = new long[count];
+        }
+        if (mRecordClasses.length < count) {
+            mRecordClasses = new int[count];
+            mRecordTraces = new int[count];
+            mRecordSizes = new int[count];
+        }
+
+        data.position(header.messageHdrLen);
+        for (int i = 0; i < count; i++) {
+            int totalSize = data.getInt();
+            int threadId = (data.getShort() & 0xffff);
+            int classId = classIds[data.getShort() & 0xffff];
+            int stackDepth = (data.get() & 0xff);
+            AllocationsParser.skip(data, header.entryHdrLen - 9);
+
+            int[] frames = mProbe.ensureCapacity(stackDepth * 4);
+            for (int frame = 0, index = 0; frame < stackDepth; frame++) {
+                frames[index++] = classIds[data.getShort() & 0xffff];
+                frames[index++] = methodIds[data.getShort() & 0xffff];
+                frames[index++] = fileIds[data.getShort() & 0xffff];
+                frames[index++] = data.getShort();
+                AllocationsParser.skip(data, header.stackFrameLen - 8);
+            }
+            mProbe.setLength(stackDepth * 4);
+            int traceId = getTraceId();
+
+            mRecordClasses[i] = classId;
+            mRecordTraces[i] = traceId;
+            mRecordSizes[i] = totalSize;
+            mRecords[i] = fingerprint(classId, traceId, totalSize, threadId);
+        }
+        return count;
+    }
+
+    @NonNull
+    private int[] readStringIds(@NonNull ByteBuffer data, int count) {
+        String[] strings = new String[count];
+        AllocationsParser.readStringTable(data, strings);
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            Integer id = mStringIds.get(strings[i]);
+            if (id == null) {
+                id = mStrings.size();
+                mStrings.add(strings[i]);
+                mStringIds.put(strings[i], id);
+            }
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    /** Returns the id of the stack trace held by the probe, interning it if needed. */
+    private int getTraceId() {
+        mProbe.rehash();
+        Integer id = mTraceIds.get(mProbe);
+        if (id == null) {
+            id = mTraces.size();
+            int[] frames = Arrays.copyOf(mProbe.mFrames, mProbe.mLength);
+            mTraces.add(frames);
+            TraceKey key = new TraceKey(frames, frames.length);
+            key.rehash();
+            mTraceIds.put(key, id);
+        }
+        return id;
+    }
+
+    @NonNull
+    private StackTraceElement[] getStackTrace(int traceId) {
+        int[] frames = mTraces.get(traceId);
+        StackTraceElement[] stackTrace = new StackTraceElement[frames.length / 4];
+        for (int i = 0; i < stackTrace.length; i++) {
+            stackTrace[i] =
+                    new StackTraceElement(
+                            mStrings.get(frames[i * 4]),
+                            mStrings.get(frames[i * 4 + 1]),
+                            mStrings.get(frames[i * 4 + 2]),
+                            frames[i * 4 + 3]);
+        }
+        return stackTrace;
+    }
+
+    private static long fingerprint(int classId, int traceId, int size, int threadId) {
+        long hash = classId;
+        hash = hash * 0x9E3779B97F4A7C15L + traceId;
+        hash = hash * 0x9E3779B97F4A7C15L + size;
+        hash = hash * 0x9E3779B97F4A7C15L + threadId;
+        return hash ^ (hash >>> 29);
+    }
+
+    /**
+     * Returns the length of the longest suffix of <var>a</var> that is a prefix of <var>b</var>,
+     * using the Knuth-Morris-Pratt failure function of <var>b</var>.
+     */
+    static int overlap(@NonNull long[] a, int aLength, @NonNull long[] b, int bLength) {
+        if (aLength == 0 || bLength == 0) {
+            return 0;
+        }
+        int[] failure = new int[bLength];
+        for (int i = 1, k = 0; i < bLength; i++) {
+            while (k > 0 && b[i] != b[k]) {
+                k = failure[k - 1];
+            }
+            if (b[i] == b[k]) {
+                k++;
+            }
+            failure[i] = k;
+        }
+
+        int k = 0;
+        for (int i = Math.max(0, aLength - bLength); i < aLength; i++) {
+            while (k > 0 && (k == bLength || a[i] != b[k])) {
+                k = failure[k - 1];
+            }
+            if (a[i] == b[k]) {
+                k++;
+            }
+        }
+        return k;
+    }
+
+    @NonNull
+    private static long[] ensureCapacity(@NonNull long[] array, int index) {
+        if (index < array.length) {
+            return array;
+        }
+        return Arrays.copyOf(array, Math.max(index + 1, array.length * 2));
+    }
+
+    /** A stack trace as a key of {@link #mTraceIds}. */
+    private static final class TraceKey {
+        private int[] mFrames;
+        private int mLength;
+        private int mHash;
+
+        TraceKey(@NonNull int[] frames, int length) {
+            mFrames = frames;
+            mLength = length;
+        }
+
+        @NonNull
+        int[] ensureCapacity(int length) {
+            if (mFrames.length < length) {
+                mFrames = new int[Math.max(length, mFrames.length * 2)];
+            }
+            return mFrames;
+        }
+
+        void setLength(int length) {
+            mLength = length;
+        }
+
+        void rehash() {
+            int hash = 1;
+            for (int i = 0; i < mLength; i++) {
+                hash = 31 * hash + mFrames[i];
+            }
+            mHash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TraceKey)) {
+                return false;
+            }
+            TraceKey other = (TraceKey) obj;
+            if (mLength != other.mLength || mHash != other.mHash) {
+                return false;
+            }
+            for (int i = 0; i < mLength; i++) {
+                if (mFrames[i] != other.mFrames[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -73,7 +73,7 @@ public class AllocationsParser {
      * <p>This is just a serial collection of strings, each of which is a four-byte length followed
      * by UTF-16 data.
      */
-    private static void readStringTable(ByteBuffer data, String[] strings) {
+    static void readStringTable(ByteBuffer data, String[] strings) {
         int count = strings.length;
         int i;
 
@@ -114,32 +114,17 @@ public class AllocationsParser {
      */
     @NonNull
     public static AllocationInfo[] parse(@NonNull ByteBuffer data) {
-        data = fixAllocOverflow(data);
-
-        int messageHdrLen, entryHdrLen, stackFrameLen;
-        int numEntries, offsetToStrings;
-        int numClassNames, numMethodNames, numFileNames;
-
-        /*
-         * Read the header.
-         */
-        messageHdrLen = (data.get() & 0xff);
-        entryHdrLen = (data.get() & 0xff);
-        stackFrameLen = (data.get() & 0xff);
-        numEntries = (data.getShort() & 0xffff);
-        offsetToStrings = data.getInt();
-        numClassNames = (data.getShort() & 0xffff);
-        numMethodNames = (data.getShort() & 0xffff);
-        numFileNames = (data.getShort() & 0xffff);
+        Header header = readHeader(data);
+        int numEntries = header.numEntries;
 
         /*
          * Skip forward to the strings and read them.
          */
-        data.position(offsetToStrings);
+        data.position(header.offsetToStrings);
 
-        String[] classNames = new String[numClassNames];
-        String[] methodNames = new String[numMethodNames];
-        String[] fileNames = new String[numFileNames];
+        String[] classNames = new String[header.numClassNames];
+        String[] methodNames = new String[header.numMethodNames];
+        String[] fileNames = new String[header.numFileNames];
 
         readStringTable(data, classNames);
         readStringTable(data, methodNames);
@@ -149,7 +134,7 @@ public class AllocationsParser {
          * Skip back to a point just past the header and start reading
          * entries.
          */
-        data.position(messageHdrLen);
+        data.position(header.messageHdrLen);
 
         AllocationInfo[] allocations = new AllocationInfo[numEntries];
         for (int i = 0; i < numEntries; i++) {
@@ -161,9 +146,7 @@ public class AllocationsParser {
             classNameIndex = (data.getShort() & 0xffff);
             stackDepth = (data.get() & 0xff);
             /* we've consumed 9 bytes; gobble up any extra */
-            for (int skip = 9; skip < entryHdrLen; skip++) {
-                data.get();
-            }
+            skip(data, header.entryHdrLen - 9);
 
             StackTraceElement[] steArray = new StackTraceElement[stackDepth];
 
@@ -190,9 +173,7 @@ public class AllocationsParser {
                                 methodClassName, methodName, methodSourceFile, lineNumber);
 
                 /* we've consumed 8 bytes; gobble up any extra */
-                for (int skip = 8; skip < stackFrameLen; skip++) {
-                    data.get();
-                }
+                skip(data, header.stackFrameLen - 8);
             }
 
             allocations[i] =
@@ -206,94 +187,71 @@ public class AllocationsParser {
         return allocations;
     }
 
+    /** Skips the given number of bytes, if positive. */
+    static void skip(@NonNull ByteBuffer data, int count) {
+        if (count > 0) {
+            data.position(data.position() + count);
+        }
+    }
+
+    /** The header of an allocation tracking message. */
+    static final class Header {
+        final int messageHdrLen;
+        final int entryHdrLen;
+        final int stackFrameLen;
+        final int numEntries;
+        final int offsetToStrings;
+        final int numClassNames;
+        final int numMethodNames;
+        final int numFileNames;
+
+        private Header(
+                int messageHdrLen,
+                int entryHdrLen,
+                int stackFrameLen,
+                int numEntries,
+                int offsetToStrings,
+                int numClassNames,
+                int numMethodNames,
+                int numFileNames) {
+            this.messageHdrLen = messageHdrLen;
+            this.entryHdrLen = entryHdrLen;
+            this.stackFrameLen = stackFrameLen;
+            this.numEntries = numEntries;
+            this.offsetToStrings = offsetToStrings;
+            this.numClassNames = numClassNames;
+            this.numMethodNames = numMethodNames;
+            this.numFileNames = numFileNames;
+        }
+    }
+
     /**
-     * In older versions of Android, there is a bug where the .alloc file will allow the header
+     * Reads the header of a message, which starts at index 0 of the buffer.
+     *
+     * <p>In older versions of Android, there is a bug where the .alloc file will allow the header
      * field "number of entries" to overflow by 1. This results in the parser thinking there are 0
      * entries when there are actually 65536 entries in the file (the field is encoded in an
-     * unsigned short).
-     *
-     * <p>This method fixes the entries field if it has overflowed.
-     *
-     * @param original The original data buffer holding the contents of the .alloc file.
-     * @return the original buffer (rewound) if the contents are not affected by the bug, otherwise
-     *     a new buffer with the patched contents.
+     * unsigned short). In that case, the header returned reports 65535 entries, which are
+     * followed by an entry that is ignored, then by the string tables.
      */
     @NonNull
-    private static ByteBuffer fixAllocOverflow(@NonNull ByteBuffer original) {
-        ByteBuffer output = ByteBuffer.allocate(original.capacity());
-
-        int messageHdrLen = (original.get() & 0xff);
-        output.put((byte) messageHdrLen); // note &0xff upconverts the byte to an int
-        int entryHdrLen = (original.get() & 0xff);
-        output.put((byte) entryHdrLen);
-        int stackFrameLen = (original.get() & 0xff);
-        output.put((byte) stackFrameLen);
-
-        int numEntries = (original.getShort() & 0xffff);
-        if (numEntries != 0) {
-            original.rewind();
-            return original;
-        }
-
-        int offsetToStrings = original.getInt();
-        if (offsetToStrings - messageHdrLen < entryHdrLen + stackFrameLen) {
-            original.rewind();
-            return original;
-        } else {
+    static Header readHeader(@NonNull ByteBuffer data) {
+        int messageHdrLen = (data.get(0) & 0xff);
+        int entryHdrLen = (data.get(1) & 0xff);
+        int stackFrameLen = (data.get(2) & 0xff);
+        int numEntries = (data.getShort(3) & 0xffff);
+        int offsetToStrings = data.getInt(5);
+        if (numEntries == 0 && offsetToStrings - messageHdrLen >= entryHdrLen + stackFrameLen) {
             numEntries = 65535;
-            output.putShort((short) numEntries);
-            output.putInt(offsetToStrings);
         }
-
-        int numClassNames = (original.getShort() & 0xffff);
-        output.putShort((short) numClassNames);
-        int numMethodNames = (original.getShort() & 0xffff);
-        output.putShort((short) numMethodNames);
-        int numFileNames = (original.getShort() & 0xffff);
-        output.putShort((short) numFileNames);
-        for (int i = output.position(); i < messageHdrLen; ++i) {
-            output.put((byte) 0);
-        }
-
-        original.position(messageHdrLen);
-        for (int i = 0; i < numEntries; i++) {
-            int classNameIndex, stackDepth;
-
-            output.putInt(original.getInt());
-            output.putShort(original.getShort());
-            output.putShort(original.getShort());
-            stackDepth = (original.get() & 0xff);
-            output.put((byte) stackDepth);
-
-            // we've consumed 9 bytes; gobble up any extra
-            for (int skip = 9; skip < entryHdrLen; skip++) {
-                output.put(original.get());
-            }
-
-            for (int sti = 0; sti < stackDepth; sti++) {
-                output.putShort(original.getShort());
-                output.putShort(original.getShort());
-                output.putShort(original.getShort());
-                output.putShort(original.getShort());
-
-                // we've consumed 8 bytes; gobble up any extra
-                for (int skip = 8; skip < stackFrameLen; skip++) {
-                    output.put(original.get());
-                }
-            }
-        }
-
-        original.position(offsetToStrings);
-        int stringOffset = output.position();
-        while (original.hasRemaining()) {
-            output.put(original.get());
-        }
-        int end = output.position();
-        output.position(5);
-        output.putInt(stringOffset);
-        output.position(end);
-        output.flip();
-
-        return output;
+        return new Header(
+                messageHdrLen,
+                entryHdrLen,
+                stackFrameLen,
+                numEntries,
+                offsetToStrings,
+                (data.getShort(9) & 0xffff),
+                (data.getShort(11) & 0xffff),
+                (data.getShort(13) & 0xffff));
     }
 }
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A remote command run without blocking a thread: connecting to adb, sending the request and
+ * reading the output all happen as the channel becomes ready, on {@link AdbSelector} threads.
+ *
+ * <p>Only one step runs at a time: each step either completes the command or hands over to the
+ * selector by waiting on the channel, and the selector runs the next step.
+ */
+final class AsyncRemoteCommand implements AdbSelector.Listener {
+
+    /** What to do once the current buffer is read or written. */
+    private interface Step {
+        void run() throws IOException, AdbCommandRejectedException;
+    }
+
+    @NonNull
+    private final InetSocketAddress mAdbSockAddr;
+
+    @NonNull
+    private final String mRequest;
+
+    @Nullable
+    private final IDevice mDevice;
+
+    @Nullable
+    private final IShellOutputReceiver mReceiver;
+
+    private final long mMaxTimeoutMs;
+
+    private final long mMaxTimeToOutputMs;
+
+    @NonNull
+    private final SettableFuture<Void> mFuture = SettableFuture.create();
+
+    private SocketChannel mChannel;
+
+    private long mStartTime;
+
+    private long mLastOutputTime;
+
+    /** The buffer being read or written, and the operation it is waiting on. */
+    private ByteBuffer mBuffer;
+
+    private int mOps;
+
+    private Step mNext;
+
+    /** Whether the command was accepted, and its output is being read. */
+    private boolean mStreaming;
+
+    AsyncRemoteCommand(
+            @NonNull InetSocketAddress adbSockAddr,
+            @NonNull String request,
+            @Nullable IDevice device,
+            @Nullable IShellOutputReceiver receiver,
+            long maxTimeoutMs,
+            long maxTimeToOutputMs) {
+        mAdbSockAddr = adbSockAddr;
+        mRequest = request;
+        mDevice = device;
+        mReceiver = receiver;
+        mMaxTimeoutMs = maxTimeoutMs;
+        mMaxTimeToOutputMs = maxTimeToOutputMs;
+    }
+
+    /** Starts the command, and returns a future completed once it's done. */
+    @NonNull
+    ListenableFuture<Void> start() {
+        mFuture.addListener(
+                () -> {
+                    if (mFuture.isCancelled()) {
+                        closeChannel();
+                    }
+                },
+                MoreExecutors.directExecutor());
+        try {
+            mStartTime = System.currentTimeMillis();
+            mChannel = SocketChannel.open();
+            mChannel.configureBlocking(false);
+            if (mChannel.connect(mAdbSockAddr)) {
+                sendRequests();
+                resume();
+            } else {
+                mOps = SelectionKey.OP_CONNECT;
+                waitForChannel(DdmPreferences.getTimeOut());
+            }
+        } catch (IOException | AdbCommandRejectedException e) {
+            fail(e);
+        }
+        return mFuture;
+    }
+
+    @Override
+    public void onReady() {
+        if (mOps == SelectionKey.OP_CONNECT) {
+            try {
+                mChannel.finishConnect();
+                sendRequests();
+            } catch (IOException | AdbCommandRejectedException e) {
+                fail(e);
+                return;
+            }
+        }
+        resume();
+    }
+
+    @Override
+    public void onTimeout() {
+        if (mStreaming) {
+            // The output timeouts are checked while reading.
+            resume();
+        } else {
+            fail(new TimeoutException());
+        }
+    }
+
+    @Override
+    public void onError(@NonNull IOException e) {
+        fail(e);
+    }
+
+    /**
+     * Selects the device if there is one, then sends the command, the same way as
+     * {@link AdbHelper#setDevice(java.nio.channels.SocketChannel, IDevice)} and
+     * {@link AdbHelper#executeRemoteCommand}.
+     */
+    private void sendRequests() throws IOException, AdbCommandRejectedException {
+        Step sendCommand =
+                () -> write(AdbHelper.formAdbRequest(mRequest),
+                        () -> readResponse(false, () -> {
+                            mStreaming = true;
+                            mBuffer = ByteBuffer.wrap(new byte[16384]);
+                            mLastOutputTime = System.currentTimeMillis();
+                        }));
+        if (mDevice != null) {
+            String msg = "host:transport:" + mDevice.getSerialNumber(); //$NON-NLS-1$
+            write(AdbHelper.formAdbRequest(msg), () -> readResponse(true, sendCommand));
+        } else {
+            sendCommand.run();
+        }
+    }
+
+    /**
+     * Reads the response from adb, going on with {@code next} if it's OKAY, or failing with the
+     * diagnostic string following a FAIL.
+     */
+    private void readResponse(boolean errorDuringDeviceSelection, @NonNull Step next) {
+        read(4, () -> {
+            if (AdbHelper.isOkay(mBuffer.array())) {
+                next.run();
+                return;
+            }
+            read(4, () -> {
+                String lenStr = AdbHelper.replyToString(mBuffer.array());
+                int len;
+                try {
+                    len = Integer.parseInt(lenStr, 16);
+                } catch (NumberFormatException nfe) {
+                    Log.w("ddms", "Expected digits, got '" + lenStr + "'");
+                    throw new AdbCommandRejectedException("", errorDuringDeviceSelection);
+                }
+                read(len, () -> {
+                    String message = AdbHelper.replyToString(mBuffer.array());
+                    if (!errorDuringDeviceSelection) {
+                        Log.e("ddms", "ADB rejected shell command (" + mRequest + "): " + message);
+                    }
+                    throw new AdbCommandRejectedException(message, errorDuringDeviceSelection);
+                });
+            });
+        });
+    }
+
+    private void write(@NonNull byte[] data, @NonNull Step next) {
+        mBuffer = ByteBuffer.wrap(data);
+        mOps = SelectionKey.OP_WRITE;
+        mNext = next;
+    }
+
+    private void read(int length, @NonNull Step next) {
+        mBuffer = ByteBuffer.wrap(new byte[length]);
+        mOps = SelectionKey.OP_READ;
+        mNext = next;
+    }
+
+    /** Runs as many steps as possible without blocking. */
+    private void resume() {
+        try {
+            while (!mFuture.isDone()) {
+                if (mStreaming) {
+                    readOutput();
+                    return;
+                }
+                int count = mOps == SelectionKey.OP_WRITE
+                        ? mChannel.write(mBuffer)
+                        : mChannel.read(mBuffer);
+                if (count < 0) {
+                    throw new IOException("EOF");
+                }
+                if (!mBuffer.hasRemaining()) {
+                    Step next = mNext;
+                    mNext = null;
+                    next.run();
+                } else if (count == 0) {
+                    waitForChannel(DdmPreferences.getTimeOut());
+                    return;
+                }
+            }
+        } catch (IOException | AdbCommandRejectedException e) {
+            fail(e);
+        }
+    }
+
+    /** Hands the output over to the receiver until the command is done or has to wait. */
+    private void readOutput() throws IOException {
+        while (true) {
+            if (mReceiver != null && mReceiver.isCancelled()) {
+                Log.v("ddms", "execute: cancelled");
+                succeed();
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (mMaxTimeoutMs > 0 && now - mStartTime > mMaxTimeoutMs) {
+                fail(new TimeoutException(String.format(
+                        "executeRemoteCommand timed out after %sms", mMaxTimeoutMs)));
+                return;
+            }
+
+            int count = mChannel.read(mBuffer);
+            if (count < 0) {
+                if (mReceiver != null) {
+                    mReceiver.flush();
+                }
+                Log.v("ddms", "execute '" + mRequest + "' on '" + mDevice + "' : EOF hit.");
+                succeed();
+                return;
+            } else if (count == 0) {
+                long wait = mReceiver != null ? AdbHelper.CANCEL_CHECK_TIME : 0;
+                if (mMaxTimeToOutputMs > 0) {
+                    long left = mLastOutputTime + mMaxTimeToOutputMs - now;
+                    if (left <= 0) {
+                        fail(new ShellCommandUnresponsiveException());
+                        return;
+                    }
+                    wait = wait > 0 ? Math.min(wait, left) : left;
+                }
+                if (mMaxTimeoutMs > 0) {
+                    long left = Math.max(mStartTime + mMaxTimeoutMs - now, 1);
+                    wait = wait > 0 ? Math.min(wait, left) : left;
+                }
+                mOps = SelectionKey.OP_READ;
+                waitForChannel(wait);
+                return;
+            } else {
+                mLastOutputTime = now;
+                if (mReceiver != null) {
+                    mReceiver.addOutput(mBuffer.array(), mBuffer.arrayOffset(),
+                            mBuffer.position());
+                }
+                mBuffer.rewind();
+            }
+        }
+    }
+
+    private void waitForChannel(long timeout) throws IOException {
+        AdbSelector.getInstance().waitFor(mChannel, mOps, timeout, this);
+    }
+
+    private void succeed() {
+        closeChannel();
+        mFuture.set(null);
+    }
+
+    private void fail(@NonNull Throwable t) {
+        closeChannel();
+        mFuture.setException(t);
+    }
+
+    private void closeChannel() {
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
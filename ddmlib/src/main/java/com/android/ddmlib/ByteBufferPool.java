@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pool of heap {@link ByteBuffer}s for JDWP traffic.
+ *
+ * <p>Large packets (heap segments, allocation tracking data, hprof dumps...) otherwise allocate,
+ * zero and then drop a new array every time the read buffers grow or a packet is handed off to
+ * a chunk handler.
+ *
+ * <p>Capacities are rounded up to a power of two, so that buffers can be shared between
+ * packets of similar sizes. Buffers are not cleared when released, their content must be
+ * tracked by the user.
+ */
+final class ByteBufferPool {
+
+    private static final int MIN_CAPACITY = 1024;
+    private static final int MAX_BUFFERS_PER_CAPACITY = 4;
+    private static final long DEFAULT_MAX_POOLED_BYTES = 64 * 1024 * 1024;
+
+    private static final ByteBufferPool sInstance = new ByteBufferPool(DEFAULT_MAX_POOLED_BYTES);
+
+    /** Released buffers, keyed by capacity. */
+    private final Map<Integer, ArrayDeque<ByteBuffer>> mBuffers = new HashMap<>();
+
+    private final long mMaxPooledBytes;
+
+    private long mPooledBytes;
+
+    ByteBufferPool(long maxPooledBytes) {
+        mMaxPooledBytes = maxPooledBytes;
+    }
+
+    @NonNull
+    static ByteBufferPool getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns a buffer that can hold at least {@code minCapacity} bytes, with position 0, limit
+     * set to the capacity and {@link ChunkHandler#CHUNK_ORDER} byte order.
+     */
+    @NonNull
+    synchronized ByteBuffer acquire(int minCapacity) {
+        int capacity = getCapacity(minCapacity);
+        ArrayDeque<ByteBuffer> buffers = mBuffers.get(capacity);
+        ByteBuffer buffer = buffers != null ? buffers.pollLast() : null;
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(capacity);
+        } else {
+            mPooledBytes -= capacity;
+            buffer.clear();
+        }
+        return buffer.order(ChunkHandler.CHUNK_ORDER);
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used by the caller anymore.
+     *
+     * <p>Buffers not created by {@link #acquire(int)} are ignored.
+     */
+    synchronized void release(@NonNull ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (!buffer.hasArray()
+                || capacity != getCapacity(capacity)
+                || mPooledBytes + capacity > mMaxPooledBytes) {
+            return;
+        }
+        ArrayDeque<ByteBuffer> buffers = mBuffers.computeIfAbsent(capacity, c -> new ArrayDeque<>());
+        if (buffers.size() < MAX_BUFFERS_PER_CAPACITY) {
+            buffers.addLast(buffer);
+            mPooledBytes += capacity;
+        }
+    }
+
+    /** Returns the number of bytes held by the released buffers. */
+    synchronized long getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    private static int getCapacity(int minCapacity) {
+        if (minCapacity <= MIN_CAPACITY) {
+            return MIN_CAPACITY;
+        }
+        int capacity = Integer.highestOneBit(minCapacity);
+        if (capacity == minCapacity) {
+            return capacity;
+        }
+        // don't overflow for buffers larger than 1GB, they are never pooled anyway.
+        return capacity < (1 << 30) ? capacity << 1 : minCapacity;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+
+/**
+ * Base implementation of {@link IShellOutputReceiver} which splits the raw data coming from the
+ * socket into lines, without decoding it.
+ *
+ * <p>Lines are handed to {@link #processLine(byte[], int, int)} as ranges of bytes, without their
+ * line terminator. Lines which are complete within a packet are passed in place, and only the
+ * unfinished line at the end of a packet is copied, into a buffer reused from line to line.
+ */
+public abstract class ByteLineReceiver implements IShellOutputReceiver {
+
+    /** unfinished line, stored for next packet */
+    @NonNull
+    private byte[] mUnfinishedLine = new byte[256];
+
+    private int mUnfinishedLineLength;
+
+    @Override
+    public final void addOutput(byte[] data, int offset, int length) {
+        if (isCancelled()) {
+            return;
+        }
+
+        int start = offset;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            if (mUnfinishedLineLength > 0) {
+                appendUnfinishedLine(data, start, i - start);
+                processTerminatedLine(mUnfinishedLine, 0, mUnfinishedLineLength);
+                mUnfinishedLineLength = 0;
+            } else {
+                processTerminatedLine(data, start, i - start);
+            }
+            start = i + 1;
+        }
+        appendUnfinishedLine(data, start, end - start);
+
+        processBatchEnd();
+    }
+
+    @Override
+    public void flush() {
+        processLastLine(mUnfinishedLine, 0, mUnfinishedLineLength);
+        mUnfinishedLineLength = 0;
+
+        done();
+    }
+
+    /**
+     * Terminates the process. This is called after the last lines have been through {@link
+     * #processLine(byte[], int, int)}.
+     */
+    public void done() {
+        // do nothing.
+    }
+
+    /**
+     * Called for each new line received from the remote process. The bytes are only valid during
+     * the call: they may be overwritten afterwards.
+     *
+     * @param data the buffer holding the line.
+     * @param offset the offset of the line in the buffer.
+     * @param length the length of the line, not including its terminator.
+     */
+    protected abstract void processLine(@NonNull byte[] data, int offset, int length);
+
+    /**
+     * Called after the lines of each packet of output have been through {@link
+     * #processLine(byte[], int, int)}, so that they can be handled as a batch.
+     */
+    protected void processBatchEnd() {
+        // do nothing.
+    }
+
+    /**
+     * Called by {@link #flush()} with the last line of output if it wasn't terminated. The line
+     * may be empty. Non-empty lines are processed like the others by default.
+     */
+    protected void processLastLine(@NonNull byte[] data, int offset, int length) {
+        if (length > 0) {
+            processLine(data, offset, length);
+            processBatchEnd();
+        }
+    }
+
+    private void processTerminatedLine(@NonNull byte[] data, int offset, int length) {
+        // in older devices, \n is preceded by a \r
+        if (length > 0 && data[offset + length - 1] == '\r') {
+            length--;
+        }
+        processLine(data, offset, length);
+    }
+
+    private void appendUnfinishedLine(@NonNull byte[] data, int offset, int length) {
+        if (length == 0) {
+            return;
+        }
+        int newLength = mUnfinishedLineLength + length;
+        if (newLength > mUnfinishedLine.length) {
+            byte[] buffer = new byte[Math.max(newLength, mUnfinishedLine.length * 2)];
+            System.arraycopy(mUnfinishedLine, 0, buffer, 0, mUnfinishedLineLength);
+            mUnfinishedLine = buffer;
+        }
+        System.arraycopy(data, offset, mUnfinishedLine, mUnfinishedLineLength, length);
+        mUnfinishedLineLength = newLength;
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands off the DDM chunks received from a {@link Client} to their {@link ChunkHandler}, away
+ * from the {@link MonitorThread}.
+ *
+ * <p>The chunks of a client are handled one at a time, in the order they were received, on a
+ * pool of threads shared by all the clients. A slow handler (e.g. parsing a large heap dump or
+ * allocation tracking payload) only delays the chunks of its own client.
+ *
+ * <p>Since the packets are read in the buffer of the client, which is reused as soon as the
+ * packet is dispatched, each packet is copied into a pooled buffer until it's handled.
+ */
+public final class ChunkDispatcher {
+
+    /** Maximum number of threads handling chunks, for all the clients. */
+    private static final int MAX_THREADS = 4;
+
+    /**
+     * Maximum number of chunks handled in a row for a client, before giving the other clients
+     * a chance to run.
+     */
+    private static final int MAX_CHUNKS_PER_RUN = 16;
+
+    /**
+     * Size of the pending packets of a client above which the monitor thread stops reading
+     * from the client until its handlers catch up.
+     */
+    private static final long MAX_PENDING_BYTES = 64 * 1024 * 1024;
+
+    /** Handlers running longer than this are logged. */
+    private static final long SLOW_HANDLER_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final Executor sExecutor = createExecutor();
+
+    @NonNull private final Client mClient;
+
+    @NonNull private final Executor mExecutor;
+
+    @NonNull private final ByteBufferPool mBufferPool;
+
+    // The following fields are guarded by "this".
+
+    @NonNull private final ArrayDeque<PendingChunk> mQueue = new ArrayDeque<>();
+
+    private long mPendingBytes;
+
+    private boolean mScheduled;
+
+    private boolean mClosed;
+
+    private int mMaxQueueDepth;
+
+    private long mHandledCount;
+
+    private long mTotalHandlerNanos;
+
+    private long mMaxHandlerNanos;
+
+    private long mMaxQueueNanos;
+
+    ChunkDispatcher(@NonNull Client client) {
+        this(client, sExecutor, ByteBufferPool.getInstance());
+    }
+
+    ChunkDispatcher(
+            @NonNull Client client, @NonNull Executor executor, @NonNull ByteBufferPool pool) {
+        mClient = client;
+        mExecutor = executor;
+        mBufferPool = pool;
+    }
+
+    /**
+     * Queues a packet to be handled by the given handler.
+     *
+     * <p>The packet is copied, so the caller is free to consume it once this returns.
+     */
+    void dispatch(@NonNull ChunkHandler handler, @NonNull JdwpPacket packet) {
+        int length = packet.getLength();
+        ByteBuffer buffer = mBufferPool.acquire(length);
+        packet.move(buffer);
+        PendingChunk chunk =
+                new PendingChunk(handler, JdwpPacket.findPacket(buffer), buffer, System.nanoTime());
+
+        boolean schedule;
+        synchronized (this) {
+            waitForPendingBytes(length);
+            if (mClosed) {
+                mBufferPool.release(buffer);
+                return;
+            }
+            mQueue.addLast(chunk);
+            mPendingBytes += length;
+            mMaxQueueDepth = Math.max(mMaxQueueDepth, mQueue.size());
+            schedule = !mScheduled;
+            mScheduled = true;
+        }
+        if (schedule) {
+            schedule();
+        }
+    }
+
+    /** Discards the chunks not handled yet. */
+    void close() {
+        synchronized (this) {
+            mClosed = true;
+            for (PendingChunk chunk : mQueue) {
+                mBufferPool.release(chunk.mBuffer);
+            }
+            mQueue.clear();
+            mPendingBytes = 0;
+            notifyAll();
+        }
+    }
+
+    /** Returns the number of chunks waiting to be handled. */
+    public synchronized int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /** Returns the largest number of chunks that were waiting to be handled at once. */
+    public synchronized int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /** Returns the number of chunks handled so far. */
+    public synchronized long getHandledCount() {
+        return mHandledCount;
+    }
+
+    /** Returns the average time spent in the handlers, in the given unit. */
+    public synchronized long getAverageHandlerTime(@NonNull TimeUnit unit) {
+        return mHandledCount == 0
+                ? 0
+                : unit.convert(mTotalHandlerNanos / mHandledCount, TimeUnit.NANOSECONDS);
+    }
+
+    /** Returns the longest time spent in a handler, in the given unit. */
+    public synchronized long getMaxHandlerTime(@NonNull TimeUnit unit) {
+        return unit.convert(mMaxHandlerNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Returns the longest time a chunk waited before being handled, in the given unit. */
+    public synchronized long getMaxQueueTime(@NonNull TimeUnit unit) {
+        return unit.convert(mMaxQueueNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Blocks the monitor thread while the pending chunks of the client take too much memory,
+     * which stops reading more from it.
+     */
+    private void waitForPendingBytes(int length) {
+        boolean interrupted = false;
+        while (!mClosed && !mQueue.isEmpty() && mPendingBytes + length > MAX_PENDING_BYTES) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void schedule() {
+        try {
+            mExecutor.execute(this::handleChunks);
+        } catch (RejectedExecutionException e) {
+            // the executor is shared and never shut down, but don't lose the chunks regardless.
+            handleChunks();
+        }
+    }
+
+    private void handleChunks() {
+        for (int i = 0; i < MAX_CHUNKS_PER_RUN; i++) {
+            PendingChunk chunk;
+            synchronized (this) {
+                chunk = mQueue.pollFirst();
+                if (chunk == null) {
+                    mScheduled = false;
+                    return;
+                }
+            }
+
+            long start = System.nanoTime();
+            try {
+                chunk.mHandler.handlePacket(mClient, chunk.mPacket);
+            } catch (Exception e) {
+                // a bad chunk shouldn't prevent handling the next ones.
+                Log.e("ddms", "Exception while handling chunk from " + mClient);
+                Log.e("ddms", e);
+            }
+            long end = System.nanoTime();
+            long handlerNanos = end - start;
+            if (handlerNanos > SLOW_HANDLER_NANOS) {
+                Log.d(
+                        "ddms",
+                        String.format(
+                                "Handler %s took %d ms for %s",
+                                chunk.mHandler,
+                                TimeUnit.NANOSECONDS.toMillis(handlerNanos),
+                                mClient));
+            }
+
+            synchronized (this) {
+                if (!mClosed) {
+                    mPendingBytes -= chunk.mPacket.getLength();
+                }
+                mHandledCount++;
+                mTotalHandlerNanos += handlerNanos;
+                mMaxHandlerNanos = Math.max(mMaxHandlerNanos, handlerNanos);
+                mMaxQueueNanos = Math.max(mMaxQueueNanos, start - chunk.mQueuedNanos);
+                notifyAll();
+            }
+            mBufferPool.release(chunk.mBuffer);
+        }
+
+        // let the other clients run before handling the remaining chunks.
+        schedule();
+    }
+
+    @NonNull
+    private static Executor createExecutor() {
+        ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(
+                        MAX_THREADS,
+                        MAX_THREADS,
+                        10,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(),
+                        new ThreadFactoryBuilder()
+                                .setNameFormat("Chunk Handler %d") //$NON-NLS-1$
+                                .setDaemon(true)
+                                .build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static final class PendingChunk {
+        @NonNull final ChunkHandler mHandler;
+        @NonNull final JdwpPacket mPacket;
+        @NonNull final ByteBuffer mBuffer;
+        final long mQueuedNanos;
+
+        PendingChunk(
+                @NonNull ChunkHandler handler,
+                @NonNull JdwpPacket packet,
+                @NonNull ByteBuffer buffer,
+                long queuedNanos) {
+            mHandler = handler;
+            mPacket = packet;
+            mBuffer = buffer;
+            mQueuedNanos = queuedNanos;
+        }
+    }
+}
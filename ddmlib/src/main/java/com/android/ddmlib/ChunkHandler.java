@@ -206,6 +206,10 @@ public abstract class ChunkHandler extends JdwpInterceptor {
         return client;
     }
 
+    /**
+     * Handles a packet holding a chunk for this handler. This is called by the {@link
+     * ChunkDispatcher} of the client, one packet at a time for a given client.
+     */
     void handlePacket(Client client, JdwpPacket packet) {
         ByteBuffer buf = packet.getPayload();
         int type = buf.getInt();
@@ -236,7 +240,7 @@ public abstract class ChunkHandler extends JdwpInterceptor {
         } else if (packet.isEmpty()) {
           Log.d("ddms", "Got empty reply for 0x" + Integer.toHexString(packet.getId()));
         } else {
-          handlePacket(client, packet);
+          client.getChunkDispatcher().dispatch(this, packet);
         }
         return null;
       }
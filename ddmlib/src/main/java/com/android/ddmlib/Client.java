@@ -101,6 +101,9 @@ public class Client extends JdwpAgent {
     private static final int MAX_BUF_SIZE = 800*1024*1024;
     private ByteBuffer mReadBuffer;
 
+    // chunks received from the client are handled off the monitor thread
+    private final ChunkDispatcher mChunkDispatcher;
+
     private Device mDevice;
 
     private int mConnState;
@@ -127,7 +130,8 @@ public class Client extends JdwpAgent {
         mDevice = device;
         mChan = chan;
 
-        mReadBuffer = ByteBuffer.allocate(INITIAL_BUF_SIZE);
+        mReadBuffer = ByteBufferPool.getInstance().acquire(INITIAL_BUF_SIZE);
+        mChunkDispatcher = new ChunkDispatcher(this);
 
         mConnState = ST_INIT;
 
@@ -548,6 +552,15 @@ public class Client extends JdwpAgent {
         }
     }
 
+    /**
+     * Returns the dispatcher handling the DDM chunks received from this client, e.g. to monitor
+     * how far behind the handlers are.
+     */
+    @NonNull
+    public ChunkDispatcher getChunkDispatcher() {
+        return mChunkDispatcher;
+    }
+
     /**
      * Registers the client with a Selector.
      */
@@ -671,6 +684,13 @@ public class Client extends JdwpAgent {
         throws IOException, BufferOverflowException {
 
         int count;
+        ByteBufferPool pool = ByteBufferPool.getInstance();
+
+        // Shrink buffer back to initial capacity if last packet required a large buffer
+        if (mReadBuffer.position() == 0 && mReadBuffer.capacity() > INITIAL_BUF_SIZE) {
+            pool.release(mReadBuffer);
+            mReadBuffer = pool.acquire(INITIAL_BUF_SIZE);
+        }
 
         if (mReadBuffer.position() == mReadBuffer.capacity()) {
             if (mReadBuffer.capacity() * 2 > MAX_BUF_SIZE) {
@@ -680,12 +700,13 @@ public class Client extends JdwpAgent {
             Log.d("ddms", "Expanding read buffer to "
                 + mReadBuffer.capacity() * 2);
 
-            ByteBuffer newBuffer = ByteBuffer.allocate(mReadBuffer.capacity() * 2);
+            ByteBuffer newBuffer = pool.acquire(mReadBuffer.capacity() * 2);
 
             // copy entire buffer to new buffer
             mReadBuffer.position(0);
             newBuffer.put(mReadBuffer);  // leaves "position" at end of copied
 
+            pool.release(mReadBuffer);
             mReadBuffer = newBuffer;
         }
 
@@ -822,6 +843,7 @@ public class Client extends JdwpAgent {
         Log.d("ddms", "Closing " + this.toString());
 
         clear();
+        mChunkDispatcher.close();
         try {
             if (mChan != null) {
                 mChan.close();
@@ -124,7 +124,7 @@ public class DdmJdwpExtension extends JdwpExtension {
                 if (handler == null) {
                     Log.w("ddms", "Received unsupported chunk type " + "ChunkHandler.name(type)");
                 } else {
-                    handler.handlePacket(mClient, packet);
+                    mClient.getChunkDispatcher().dispatch(handler, packet);
                 }
                 return null;
             }
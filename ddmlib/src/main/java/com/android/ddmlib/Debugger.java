@@ -90,7 +90,7 @@ public class Debugger extends JdwpAgent {
         mListenChannel.socket().bind(addr);
         mListenPort = mListenChannel.socket().getLocalPort();
 
-        mReadBuffer = ByteBuffer.allocate(INITIAL_BUF_SIZE);
+        mReadBuffer = ByteBufferPool.getInstance().acquire(INITIAL_BUF_SIZE);
         mPreDataBuffer = ByteBuffer.allocate(PRE_DATA_BUF_SIZE);
         mConnState = ST_NOT_CONNECTED;
 
@@ -291,6 +291,7 @@ public class Debugger extends JdwpAgent {
      */
     void read() throws IOException {
         int count;
+        ByteBufferPool pool = ByteBufferPool.getInstance();
 
         // Shrink buffer back to initial capacity if last request required a large buffer
         if (mReadBuffer.position() == 0 && mReadBuffer.capacity() > INITIAL_BUF_SIZE) {
@@ -299,7 +300,8 @@ public class Debugger extends JdwpAgent {
                     String.format(
                             "Shrinking buffer from %d bytes to %d bytes",
                             mReadBuffer.capacity(), INITIAL_BUF_SIZE));
-            mReadBuffer = ByteBuffer.allocate(INITIAL_BUF_SIZE);
+            pool.release(mReadBuffer);
+            mReadBuffer = pool.acquire(INITIAL_BUF_SIZE);
         }
 
         // Expand buffer if we reached maximum capacity
@@ -311,10 +313,11 @@ public class Debugger extends JdwpAgent {
             }
             Log.d("ddms", "Expanding read buffer to " + newCapacity);
 
-            ByteBuffer newBuffer = ByteBuffer.allocate(newCapacity);
+            ByteBuffer newBuffer = pool.acquire(newCapacity);
             mReadBuffer.position(0);
             newBuffer.put(mReadBuffer);     // leaves "position" at end
 
+            pool.release(mReadBuffer);
             mReadBuffer = newBuffer;
         }
 
@@ -27,6 +27,7 @@ import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Atomics;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -611,6 +612,25 @@ final class Device implements IDevice {
                 maxTimeUnits);
     }
 
+    @NonNull
+    @Override
+    public ListenableFuture<Void> executeShellCommandAsync(
+            String command,
+            IShellOutputReceiver receiver,
+            long maxTimeout,
+            long maxTimeToOutputResponse,
+            TimeUnit maxTimeUnits) {
+        return AdbHelper.executeRemoteCommandAsync(
+                AndroidDebugBridge.getSocketAddress(),
+                AdbHelper.AdbService.SHELL,
+                command,
+                this,
+                receiver,
+                maxTimeout,
+                maxTimeToOutputResponse,
+                maxTimeUnits);
+    }
+
     @Override
     public void runEventLogService(LogReceiver receiver)
             throws TimeoutException, AdbCommandRejectedException, IOException {
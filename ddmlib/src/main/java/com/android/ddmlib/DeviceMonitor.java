@@ -28,6 +28,7 @@ import com.android.utils.Pair;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Queues;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.common.util.concurrent.Uninterruptibles;
 import java.io.IOException;
 import java.net.UnknownHostException;
@@ -38,6 +39,10 @@ import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -52,11 +57,21 @@ import java.util.concurrent.TimeUnit;
  * and issues a "track-jdwp" command to that device. On this connection, it monitors active clients
  * on the device. Note: a single thread monitors jdwp connections from all devices. The different
  * socket connections to adb (one per device) are multiplexed over a single selector.
+ *
+ * <p>Client lists received in quick succession are coalesced, and only the latest one is
+ * processed. New clients are connected to and handshaken with on a small thread pool shared by
+ * all devices, which bounds the number of such connections opened at the same time.
  */
 final class DeviceMonitor implements ClientTracker {
     private static final String ADB_TRACK_DEVICES_COMMAND = "host:track-devices";
     private static final String ADB_TRACK_JDWP_COMMAND = "track-jdwp";
 
+    /** Delay during which successive client lists of a device are coalesced. */
+    private static final long CLIENT_LIST_DELAY_MS = 100;
+
+    /** Maximum number of clients being opened at the same time, across all devices. */
+    private static final int MAX_CONCURRENT_CLIENT_OPENS = 4;
+
     private final byte[] mLengthBuffer2 = new byte[4];
 
     private volatile boolean mQuit = false;
@@ -73,13 +88,47 @@ final class DeviceMonitor implements ClientTracker {
     private final BlockingQueue<Pair<SocketChannel,Device>> mChannelsToRegister =
             Queues.newLinkedBlockingQueue();
 
+    /**
+     * Latest client lists received, waiting to be processed once {@link #mClientListsDeadline}
+     * (a {@link System#nanoTime()}) is reached. Only used on the client monitor thread.
+     */
+    private final Map<Device, Set<Integer>> mPendingClientLists = new LinkedHashMap<>();
+    private long mClientListsDeadline;
+
+    /** Pids of the clients being opened, by device. */
+    private final Map<Device, Set<Integer>> mOpeningClients = new HashMap<>();
+
+    private final ClientOpener mClientOpener;
+    private final ExecutorService mClientOpenExecutor;
+
+    /** Opens and creates a new client, returning whether it was added to the device. */
+    @VisibleForTesting
+    interface ClientOpener {
+        boolean openClient(@NonNull Device device, int pid);
+    }
+
     /**
      * Creates a new {@link DeviceMonitor} object and links it to the running
      * {@link AndroidDebugBridge} object.
      * @param server the running {@link AndroidDebugBridge}.
      */
     DeviceMonitor(@NonNull AndroidDebugBridge server) {
+        this(server, null, createClientOpenExecutor());
+    }
+
+    /**
+     * Creates a new {@link DeviceMonitor} which opens new clients with the given opener (or
+     * connects to them through adb if it is null) on the given executor.
+     */
+    @VisibleForTesting
+    DeviceMonitor(@Nullable AndroidDebugBridge server, @Nullable ClientOpener clientOpener,
+            @NonNull ExecutorService clientOpenExecutor) {
         mServer = server;
+        mClientOpener = clientOpener != null
+                ? clientOpener
+                : (device, pid) -> openClient(device, pid, getNextDebuggerPort(),
+                        MonitorThread.getInstance());
+        mClientOpenExecutor = clientOpenExecutor;
     }
 
     /**
@@ -104,6 +153,8 @@ final class DeviceMonitor implements ClientTracker {
         if (mSelector != null) {
             mSelector.wakeup();
         }
+
+        mClientOpenExecutor.shutdownNow();
     }
 
     /**
@@ -137,6 +188,12 @@ final class DeviceMonitor implements ClientTracker {
         return mDevices.toArray(new Device[0]);
     }
 
+    /** Adds a device without monitoring it, nor notifying the listeners. */
+    @VisibleForTesting
+    void addDevice(@NonNull Device device) {
+        mDevices.add(device);
+    }
+
     @NonNull
     AndroidDebugBridge getServer() {
         return mServer;
@@ -329,7 +386,14 @@ final class DeviceMonitor implements ClientTracker {
     private void deviceClientMonitorLoop() {
         do {
             try {
-                int count = mSelector.select();
+                int count;
+                if (mPendingClientLists.isEmpty()) {
+                    count = mSelector.select();
+                } else {
+                    long delay = TimeUnit.NANOSECONDS.toMillis(
+                            mClientListsDeadline - System.nanoTime());
+                    count = delay > 0 ? mSelector.select(delay) : mSelector.selectNow();
+                }
 
                 if (mQuit) {
                     return;
@@ -375,6 +439,11 @@ final class DeviceMonitor implements ClientTracker {
                     }
                 }
 
+                if (!mPendingClientLists.isEmpty()
+                        && System.nanoTime() - mClientListsDeadline >= 0) {
+                    processPendingClientLists();
+                }
+
                 if (count == 0) {
                     continue;
                 }
@@ -451,9 +520,7 @@ final class DeviceMonitor implements ClientTracker {
 
         // This methods reads @length bytes from the @monitorSocket channel.
         // These bytes correspond to the pids of the current set of processes on the device.
-        // It takes this set of pids and compares them with the existing set of clients
-        // for the device. Clients that correspond to pids that are not alive anymore are
-        // dropped, and new clients are created for pids that don't have a corresponding Client.
+        // The set of pids is processed by processClientList once no newer one came for a while.
 
         if (length >= 0) {
             // array for the current pids.
@@ -477,42 +544,121 @@ final class DeviceMonitor implements ClientTracker {
                 }
             }
 
-            MonitorThread monitorThread = MonitorThread.getInstance();
+            queueClientList(device, newPids);
+        }
+    }
 
-            List<Client> clients = device.getClientList();
-            Map<Integer, Client> existingClients = new HashMap<Integer, Client>();
+    /**
+     * Queues the latest client list of a device, replacing any list of the device which is not
+     * processed yet.
+     */
+    @VisibleForTesting
+    void queueClientList(@NonNull Device device, @NonNull Set<Integer> pids) {
+        if (mPendingClientLists.isEmpty()) {
+            mClientListsDeadline = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(CLIENT_LIST_DELAY_MS);
+        }
+        mPendingClientLists.put(device, pids);
+    }
 
-            synchronized (clients) {
-                for (Client c : clients) {
-                    existingClients.put(c.getClientData().getPid(), c);
-                }
+    @VisibleForTesting
+    void processPendingClientLists() {
+        for (Map.Entry<Device, Set<Integer>> entry : mPendingClientLists.entrySet()) {
+            if (mDevices.contains(entry.getKey())) {
+                processClientList(entry.getKey(), entry.getValue());
             }
+        }
+        mPendingClientLists.clear();
+    }
 
-            Set<Client> clientsToRemove = new HashSet<Client>();
-            for (Integer pid : existingClients.keySet()) {
-                if (!newPids.contains(pid)) {
-                    clientsToRemove.add(existingClients.get(pid));
-                }
+    /**
+     * Compares the pids of the current set of processes on a device with its existing set of
+     * clients. Clients that correspond to pids that are not alive anymore are dropped, and new
+     * clients are created for pids that don't have a corresponding Client.
+     */
+    private void processClientList(@NonNull Device device, @NonNull Set<Integer> newPids) {
+        List<Client> clients = device.getClientList();
+        Map<Integer, Client> existingClients = new HashMap<Integer, Client>();
+
+        synchronized (clients) {
+            for (Client c : clients) {
+                existingClients.put(c.getClientData().getPid(), c);
             }
+        }
 
-            Set<Integer> pidsToAdd = new HashSet<Integer>(newPids);
-            pidsToAdd.removeAll(existingClients.keySet());
+        Set<Client> clientsToRemove = new HashSet<Client>();
+        for (Integer pid : existingClients.keySet()) {
+            if (!newPids.contains(pid)) {
+                clientsToRemove.add(existingClients.get(pid));
+            }
+        }
 
-            monitorThread.dropClients(clientsToRemove, false);
+        Set<Integer> pidsToAdd = new HashSet<Integer>(newPids);
+        pidsToAdd.removeAll(existingClients.keySet());
 
-            // at this point whatever pid is left in the list needs to be converted into Clients.
-            for (int newPid : pidsToAdd) {
-                openClient(device, newPid, getNextDebuggerPort(), monitorThread);
+        // at this point whatever pid is left in the list needs to be converted into Clients.
+        for (int newPid : pidsToAdd) {
+            openClientAsync(device, newPid);
+        }
+
+        if (!clientsToRemove.isEmpty()) {
+            MonitorThread.getInstance().dropClients(clientsToRemove, false);
+            AndroidDebugBridge.deviceChanged(device, Device.CHANGE_CLIENT_LIST);
+        }
+    }
+
+    /** Opens and creates a new client on the client open executor, unless it is being opened. */
+    private void openClientAsync(@NonNull Device device, int pid) {
+        synchronized (mOpeningClients) {
+            if (!mOpeningClients.computeIfAbsent(device, d -> new HashSet<>()).add(pid)) {
+                return;
             }
+        }
+        try {
+            mClientOpenExecutor.execute(() -> {
+                try {
+                    if (mDevices.contains(device) && mClientOpener.openClient(device, pid)) {
+                        AndroidDebugBridge.deviceChanged(device, Device.CHANGE_CLIENT_LIST);
+                    }
+                } finally {
+                    clientOpened(device, pid);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the monitor is stopping.
+            clientOpened(device, pid);
+        }
+    }
 
-            if (!pidsToAdd.isEmpty() || !clientsToRemove.isEmpty()) {
-                AndroidDebugBridge.deviceChanged(device, Device.CHANGE_CLIENT_LIST);
+    private void clientOpened(@NonNull Device device, int pid) {
+        synchronized (mOpeningClients) {
+            Set<Integer> pids = mOpeningClients.get(device);
+            pids.remove(pid);
+            if (pids.isEmpty()) {
+                mOpeningClients.remove(device);
             }
         }
     }
 
-    /** Opens and creates a new client. */
-    private static void openClient(@NonNull Device device, int pid, int port,
+    @NonNull
+    private static ExecutorService createClientOpenExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                MAX_CONCURRENT_CLIENT_OPENS, MAX_CONCURRENT_CLIENT_OPENS, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("Device Client Open %d") //$NON-NLS-1$
+                        .setDaemon(true)
+                        .build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Opens and creates a new client.
+     *
+     * @return whether the client was added to the device.
+     */
+    private static boolean openClient(@NonNull Device device, int pid, int port,
             @NonNull MonitorThread monitorThread) {
 
         SocketChannel clientSocket;
@@ -524,27 +670,31 @@ final class DeviceMonitor implements ClientTracker {
             clientSocket.configureBlocking(false);
         } catch (UnknownHostException uhe) {
             Log.d("DeviceMonitor", "Unknown Jdwp pid: " + pid);
-            return;
+            return false;
         } catch (TimeoutException e) {
             Log.w("DeviceMonitor",
                     "Failed to connect to client '" + pid + "': timeout");
-            return;
+            return false;
         } catch (AdbCommandRejectedException e) {
             Log.w("DeviceMonitor",
                     "Adb rejected connection to client '" + pid + "': " + e.getMessage());
-            return;
+            return false;
 
         } catch (IOException ioe) {
             Log.w("DeviceMonitor",
                     "Failed to connect to client '" + pid + "': " + ioe.getMessage());
-            return ;
+            return false;
         }
 
-        createClient(device, pid, clientSocket, port, monitorThread);
+        return createClient(device, pid, clientSocket, port, monitorThread);
     }
 
-    /** Creates a client and register it to the monitor thread */
-    private static void createClient(@NonNull Device device, int pid, @NonNull SocketChannel socket,
+    /**
+     * Creates a client and register it to the monitor thread
+     *
+     * @return whether the client was added to the device.
+     */
+    private static boolean createClient(@NonNull Device device, int pid, @NonNull SocketChannel socket,
             int debuggerPort, @NonNull MonitorThread monitorThread) {
 
         /*
@@ -582,7 +732,9 @@ final class DeviceMonitor implements ClientTracker {
         if (client.isValid()) {
             device.addClient(client);
             monitorThread.addClient(client);
+            return true;
         }
+        return false;
     }
 
     private int getNextDebuggerPort() {
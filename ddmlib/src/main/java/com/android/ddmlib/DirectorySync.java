@@ -0,0 +1,469 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.SyncService.FileStat;
+import com.android.ddmlib.SyncService.ISyncProgressMonitor;
+import com.android.ddmlib.SyncException.SyncError;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Pulls or pushes whole directory trees over several sync connections at once.
+ *
+ * <p>Files which are already up to date on the destination are skipped: a file is up to date if
+ * its size and modification time match those recorded in a manifest when it was last transferred,
+ * and optionally its content hash. Files are pulled to a temporary file which only replaces the
+ * destination once complete, and the manifest is saved as files complete, so an interrupted sync
+ * can be run again to resume where it stopped.
+ */
+public class DirectorySync {
+    private static final String LOG_TAG = "DirectorySync";
+
+    /** Name of the manifest kept in the local directories files are pulled to. */
+    public static final String MANIFEST_NAME = ".ddmlib-sync";
+
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    /** Number of transferred files after which the manifest is saved. */
+    private static final int MANIFEST_SAVE_INTERVAL = 64;
+
+    @NonNull private final IDevice mDevice;
+
+    private int mMaxConnections = 4;
+    private boolean mVerifyHashes;
+
+    public DirectorySync(@NonNull IDevice device) {
+        mDevice = device;
+    }
+
+    /** Sets how many sync connections are used at the same time. */
+    @NonNull
+    public DirectorySync setMaxConnections(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Invalid number of connections: " + maxConnections);
+        }
+        mMaxConnections = maxConnections;
+        return this;
+    }
+
+    /**
+     * Sets whether the content hash of local files is checked against the manifest as well as
+     * their size and modification time before skipping them. This reads every local file.
+     */
+    @NonNull
+    public DirectorySync setVerifyHashes(boolean verifyHashes) {
+        mVerifyHashes = verifyHashes;
+        return this;
+    }
+
+    /** The number of files and bytes moved by a sync. */
+    public static final class Result {
+        private final AtomicInteger mTransferredCount = new AtomicInteger();
+        private final AtomicInteger mSkippedCount = new AtomicInteger();
+        private final AtomicLong mTransferredBytes = new AtomicLong();
+
+        public int getTransferredCount() {
+            return mTransferredCount.get();
+        }
+
+        public int getSkippedCount() {
+            return mSkippedCount.get();
+        }
+
+        public long getTransferredBytes() {
+            return mTransferredBytes.get();
+        }
+    }
+
+    /**
+     * Pulls the regular files found under a remote directory into a local directory, keeping the
+     * manifest in {@link #MANIFEST_NAME} in the local directory.
+     *
+     * @param remoteDir the remote directory.
+     * @param localDir the local directory, which is created if needed.
+     * @param monitor The progress monitor, used from several threads. Cannot be null.
+     * @return the numbers of files and bytes pulled.
+     */
+    @NonNull
+    public Result pull(@NonNull String remoteDir, @NonNull File localDir,
+            @NonNull ISyncProgressMonitor monitor)
+            throws SyncException, IOException, TimeoutException, AdbCommandRejectedException,
+                    ShellCommandUnresponsiveException {
+        if (localDir.isFile()) {
+            throw new SyncException(SyncError.TARGET_IS_FILE);
+        }
+        if (!localDir.isDirectory() && !localDir.mkdirs()) {
+            throw new SyncException(SyncError.NO_DIR_TARGET);
+        }
+
+        List<String> files = listRemoteFiles(remoteDir);
+        Manifest manifest = new Manifest(new File(localDir, MANIFEST_NAME));
+        Result result = new Result();
+        ISyncProgressMonitor syncMonitor = new SynchronizedMonitor(monitor);
+        syncMonitor.start(0);
+        try {
+            run(files, syncMonitor, (sync, path) -> {
+                String remotePath = remoteDir + "/" + path;
+                FileStat stat = sync.statFile(remotePath);
+                if (stat == null || stat.getMode() == 0) {
+                    // The file was removed since the directory was listed.
+                    return;
+                }
+                long lastModified = stat.getLastModified().getTime() / 1000;
+                File local = new File(localDir, path.replace('/', File.separatorChar));
+                if (local.isFile() && local.length() == stat.getSize()
+                        && manifest.isUpToDate(path, local, stat.getSize(), lastModified)) {
+                    result.mSkippedCount.incrementAndGet();
+                    return;
+                }
+
+                syncMonitor.startSubTask(remotePath);
+                File parent = local.getParentFile();
+                if (!parent.isDirectory() && !parent.mkdirs()) {
+                    throw new SyncException(SyncError.FILE_WRITE_ERROR);
+                }
+                File partial = new File(local.getPath() + PARTIAL_SUFFIX);
+                sync.doPullFile(remotePath, partial.getPath(), syncMonitor);
+                Files.move(partial.toPath(), local.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+                local.setLastModified(lastModified * 1000);
+
+                manifest.put(path, stat.getSize(), lastModified,
+                        mVerifyHashes ? hash(local) : null);
+                result.mTransferredCount.incrementAndGet();
+                result.mTransferredBytes.addAndGet(stat.getSize());
+            });
+        } finally {
+            manifest.save();
+            syncMonitor.stop();
+        }
+        return result;
+    }
+
+    /**
+     * Pushes the regular files found under a local directory into a remote directory.
+     *
+     * <p>Files are skipped if the remote file has the same size and modification time as the
+     * local one. If a manifest is given, the local file must also match the size and
+     * modification time recorded when it was last pushed, and its hash when hashes are verified.
+     * A manifest is specific to a device and remote directory, and shouldn't be in the pushed
+     * directory.
+     *
+     * @param localDir the local directory.
+     * @param remoteDir the remote directory.
+     * @param manifestFile the manifest file, or null to only compare local and remote files.
+     * @param monitor The progress monitor, used from several threads. Cannot be null.
+     * @return the numbers of files and bytes pushed.
+     */
+    @NonNull
+    public Result push(@NonNull File localDir, @NonNull String remoteDir,
+            @Nullable File manifestFile, @NonNull ISyncProgressMonitor monitor)
+            throws SyncException, IOException, TimeoutException, AdbCommandRejectedException {
+        if (!localDir.isDirectory()) {
+            throw new SyncException(SyncError.NO_LOCAL_FILE);
+        }
+
+        List<String> files = new ArrayList<>();
+        long total = 0;
+        Path root = localDir.toPath();
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (Files.isRegularFile(path)) {
+                    files.add(root.relativize(path).toString().replace(File.separatorChar, '/'));
+                    total += path.toFile().length();
+                }
+            }
+        }
+
+        Manifest manifest = manifestFile != null ? new Manifest(manifestFile) : null;
+        Result result = new Result();
+        ISyncProgressMonitor syncMonitor = new SynchronizedMonitor(monitor);
+        syncMonitor.start((int) Math.min(total, Integer.MAX_VALUE));
+        try {
+            run(files, syncMonitor, (sync, path) -> {
+                File local = new File(localDir, path.replace('/', File.separatorChar));
+                String remotePath = remoteDir + "/" + path;
+                long size = local.length();
+                long lastModified = local.lastModified() / 1000;
+                FileStat stat = sync.statFile(remotePath);
+                if (stat != null && stat.getMode() != 0 && stat.getSize() == (int) size
+                        && stat.getLastModified().getTime() / 1000 == lastModified
+                        && (manifest == null
+                                || manifest.isUpToDate(path, local, size, lastModified))) {
+                    result.mSkippedCount.incrementAndGet();
+                    syncMonitor.advance((int) size);
+                    return;
+                }
+
+                syncMonitor.startSubTask(remotePath);
+                sync.doPushFile(local.getPath(), remotePath, syncMonitor);
+
+                if (manifest != null) {
+                    manifest.put(path, size, lastModified, mVerifyHashes ? hash(local) : null);
+                }
+                result.mTransferredCount.incrementAndGet();
+                result.mTransferredBytes.addAndGet(size);
+            });
+        } finally {
+            if (manifest != null) {
+                manifest.save();
+            }
+            syncMonitor.stop();
+        }
+        return result;
+    }
+
+    /** Transfers a single file over a sync connection. */
+    private interface Transfer {
+        void run(@NonNull SyncService sync, @NonNull String path)
+                throws SyncException, IOException, TimeoutException;
+    }
+
+    /**
+     * Runs a transfer for each file, each connection taking the next file once done with the
+     * previous one.
+     */
+    private void run(@NonNull List<String> files, @NonNull ISyncProgressMonitor monitor,
+            @NonNull Transfer transfer)
+            throws SyncException, IOException, TimeoutException, AdbCommandRejectedException {
+        Queue<String> pending = new ConcurrentLinkedQueue<>(files);
+        AtomicBoolean failed = new AtomicBoolean();
+        Callable<Void> worker = () -> {
+            SyncService sync = mDevice.getSyncService();
+            if (sync == null) {
+                throw new IOException("Unable to open sync connection!");
+            }
+            try {
+                String path;
+                while (!failed.get() && (path = pending.poll()) != null) {
+                    if (monitor.isCanceled()) {
+                        throw new SyncException(SyncError.CANCELED);
+                    }
+                    transfer.run(sync, path);
+                }
+            } catch (Exception e) {
+                failed.set(true);
+                throw e;
+            } finally {
+                sync.close();
+            }
+            return null;
+        };
+
+        int threadCount = Math.min(mMaxConnections, files.size());
+        if (threadCount == 0) {
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("DirectorySync-%d")
+                        .setDaemon(true)
+                        .build());
+        try {
+            List<Future<Void>> workers = new ArrayList<>(threadCount);
+            for (int i = 0; i < threadCount; i++) {
+                workers.add(executor.submit(worker));
+            }
+            for (Future<Void> future : workers) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    Log.e(LOG_TAG, String.format("Sync failed: %1$s", cause));
+                    if (cause instanceof SyncException) {
+                        throw (SyncException) cause;
+                    } else if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof TimeoutException) {
+                        throw (TimeoutException) cause;
+                    } else if (cause instanceof AdbCommandRejectedException) {
+                        throw (AdbCommandRejectedException) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SyncException(SyncError.CANCELED);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Returns the paths of the regular files under a remote directory, relative to it. */
+    @NonNull
+    private List<String> listRemoteFiles(@NonNull String remoteDir)
+            throws TimeoutException, AdbCommandRejectedException,
+                    ShellCommandUnresponsiveException, IOException {
+        String prefix = remoteDir + "/";
+        List<String> files = new ArrayList<>();
+        MultiLineReceiver receiver = new MultiLineReceiver() {
+            @Override
+            public void processNewLines(@NonNull String[] lines) {
+                for (String line : lines) {
+                    // Other lines are errors, for instance on unreadable directories.
+                    if (line.startsWith(prefix)) {
+                        files.add(line.substring(prefix.length()));
+                    }
+                }
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+        };
+        // File names may start or end with spaces: only the line terminators are removed.
+        receiver.setTrimLine(false);
+        mDevice.executeShellCommand(
+                "find " + quote(remoteDir) + " -type f", receiver, 0, TimeUnit.MILLISECONDS);
+        return files;
+    }
+
+    @NonNull
+    private static String quote(@NonNull String path) {
+        return "'" + path.replace("'", "'\\''") + "'";
+    }
+
+    @NonNull
+    private static String hash(@NonNull File file) throws IOException {
+        return com.google.common.io.Files.asByteSource(file).hash(Hashing.sha256()).toString();
+    }
+
+    /**
+     * The size, modification time in seconds and optional hash of the files last transferred,
+     * by path relative to the synced directory.
+     */
+    private final class Manifest {
+        @NonNull private final File mFile;
+        @NonNull private final Properties mEntries = new Properties();
+        private int mUnsavedCount;
+
+        Manifest(@NonNull File file) throws IOException {
+            mFile = file;
+            if (file.isFile()) {
+                try (InputStream in = new FileInputStream(file)) {
+                    mEntries.load(in);
+                }
+            }
+        }
+
+        boolean isUpToDate(@NonNull String path, @NonNull File local, long size,
+                long lastModified) throws IOException {
+            String entry;
+            synchronized (this) {
+                entry = mEntries.getProperty(path);
+            }
+            if (entry == null) {
+                return false;
+            }
+            String[] fields = entry.split(" ");
+            if (fields.length < 2
+                    || Long.parseLong(fields[0]) != size
+                    || Long.parseLong(fields[1]) != lastModified) {
+                return false;
+            }
+            return !mVerifyHashes || (fields.length > 2 && fields[2].equals(hash(local)));
+        }
+
+        void put(@NonNull String path, long size, long lastModified, @Nullable String hash)
+                throws IOException {
+            String entry = size + " " + lastModified + (hash != null ? " " + hash : "");
+            synchronized (this) {
+                mEntries.setProperty(path, entry);
+                if (++mUnsavedCount >= MANIFEST_SAVE_INTERVAL) {
+                    save();
+                }
+            }
+        }
+
+        /** Saves the manifest, replacing the previous one only once it is fully written. */
+        synchronized void save() throws IOException {
+            if (mUnsavedCount == 0) {
+                return;
+            }
+            File temp = new File(mFile.getPath() + PARTIAL_SUFFIX);
+            try (OutputStream out = new FileOutputStream(temp)) {
+                mEntries.store(out, null);
+            }
+            Files.move(temp.toPath(), mFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            mUnsavedCount = 0;
+        }
+    }
+
+    /** Serializes the calls to a monitor made from the transfer threads. */
+    private static final class SynchronizedMonitor implements ISyncProgressMonitor {
+        @NonNull private final ISyncProgressMonitor mMonitor;
+
+        SynchronizedMonitor(@NonNull ISyncProgressMonitor monitor) {
+            mMonitor = monitor;
+        }
+
+        @Override
+        public synchronized void start(int totalWork) {
+            mMonitor.start(totalWork);
+        }
+
+        @Override
+        public synchronized void stop() {
+            mMonitor.stop();
+        }
+
+        @Override
+        public synchronized boolean isCanceled() {
+            return mMonitor.isCanceled();
+        }
+
+        @Override
+        public synchronized void startSubTask(String name) {
+            mMonitor.startSubTask(name);
+        }
+
+        @Override
+        public synchronized void advance(int work) {
+            mMonitor.advance(work);
+        }
+    }
+}
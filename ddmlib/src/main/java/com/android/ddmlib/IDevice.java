@@ -20,6 +20,7 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.ddmlib.log.LogReceiver;
 import com.android.sdklib.AndroidVersion;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -386,6 +387,33 @@ public interface IDevice extends IShellEnabledDevice {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Executes a shell command on the device without blocking the calling thread, and sends the
+     * result to a <var>receiver</var>. The output is handed to the receiver on a shared I/O
+     * thread, so it shouldn't block.
+     *
+     * @param command the shell command to execute
+     * @param receiver the {@link IShellOutputReceiver} that will receives the output of the shell
+     *     command
+     * @param maxTimeout max timeout for the full command to execute. A value of 0 means no timeout.
+     * @param maxTimeToOutputResponse the maximum amount of time during which the command is
+     *     allowed to not output any response. A value of 0 means the command may wait forever.
+     * @param maxTimeUnits Units for non-zero {@code maxTimeout} and {@code maxTimeToOutputResponse}
+     *     values.
+     * @return a future completed once the command is done, or failed with the exception
+     *     {@link #executeShellCommand(String, IShellOutputReceiver, long, long, TimeUnit)} would
+     *     throw. Cancelling it stops the command.
+     */
+    @NonNull
+    default ListenableFuture<Void> executeShellCommandAsync(
+            String command,
+            IShellOutputReceiver receiver,
+            long maxTimeout,
+            long maxTimeToOutputResponse,
+            TimeUnit maxTimeUnits) {
+        throw new UnsupportedOperationException();
+    }
+
     /**
      * Runs the event log service and outputs the event log to the {@link LogReceiver}.
      * <p>This call is blocking until {@link LogReceiver#isCancelled()} returns true.
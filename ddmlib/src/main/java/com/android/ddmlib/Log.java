@@ -250,7 +250,8 @@ public final class Log {
         sLevel = logLevel;
     }
 
-    static boolean isAtLeast(@NonNull LogLevel logLevel) {
+    /** Returns whether messages of the given level are currently logged. */
+    public static boolean isAtLeast(@NonNull LogLevel logLevel) {
         return logLevel.getPriority() >= sLevel.getPriority();
     }
 
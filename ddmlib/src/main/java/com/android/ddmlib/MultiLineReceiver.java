@@ -29,13 +29,16 @@ import java.util.Collection;
  *
  * <p>Classes extending it must implement {@link #processNewLines(String[])} which receives new
  * parsed lines as they become available.
+ *
+ * <p>Lines are split before being decoded, see {@link ByteLineReceiver}, so a character split
+ * across packets is decoded correctly.
  */
-public abstract class MultiLineReceiver implements IShellOutputReceiver {
+public abstract class MultiLineReceiver extends ByteLineReceiver {
 
     private boolean mTrimLines = true;
 
-    /** unfinished message line, stored for next packet */
-    private String mUnfinishedLine = null;
+    /** whether some output was received, in which case the last line is flushed even if empty */
+    private boolean mReceivedOutput;
 
     private final Collection<String> mArray = new ArrayList<>();
 
@@ -48,80 +51,48 @@ public abstract class MultiLineReceiver implements IShellOutputReceiver {
         mTrimLines = trim;
     }
 
-    /* (non-Javadoc)
-     * @see com.android.ddmlib.adb.IShellOutputReceiver#addOutput(
-     *      byte[], int, int)
-     */
     @Override
-    public final void addOutput(byte[] data, int offset, int length) {
-        if (!isCancelled()) {
-            String s = new String(data, offset, length, Charsets.UTF_8);
-
-            // ok we've got a string
-            // if we had an unfinished line we add it.
-            if (mUnfinishedLine != null) {
-                s = mUnfinishedLine + s;
-                mUnfinishedLine = null;
+    protected final void processLine(@NonNull byte[] data, int offset, int length) {
+        if (mTrimLines) {
+            // same as String#trim(): no multi-byte UTF-8 sequence contains bytes <= ' '
+            while (length > 0 && (data[offset] & 0xff) <= ' ') {
+                offset++;
+                length--;
+            }
+            while (length > 0 && (data[offset + length - 1] & 0xff) <= ' ') {
+                length--;
             }
+        }
+        mArray.add(new String(data, offset, length, Charsets.UTF_8));
+    }
 
-            // now we split the lines
+    @Override
+    protected final void processBatchEnd() {
+        mReceivedOutput = true;
+        if (!mArray.isEmpty()) {
+            // at this point we've split all the lines.
+            // make the array
+            String[] lines = mArray.toArray(new String[0]);
             mArray.clear();
-            int start = 0;
-            do {
-                int index = s.indexOf('\n', start); // $NON-NLS-1$
-
-                // if \n was not found, this is an unfinished line
-                // and we store it to be processed for the next packet
-                if (index == -1) {
-                    mUnfinishedLine = s.substring(start);
-                    break;
-                }
 
-                // we found a \n, in older devices, this is preceded by a \r
-                int newlineLength = 1;
-                if (index > 0 && s.charAt(index - 1) == '\r') {
-                    index--;
-                    newlineLength = 2;
-                }
-
-                // extract the line
-                String line = s.substring(start, index);
-                if (mTrimLines) {
-                    line = line.trim();
-                }
-                mArray.add(line);
-
-                // move start to after the \r\n we found
-                start = index + newlineLength;
-            } while (true);
-
-            if (!mArray.isEmpty()) {
-                // at this point we've split all the lines.
-                // make the array
-                String[] lines = mArray.toArray(new String[0]);
-
-                // send it for final processing
-                processNewLines(lines);
-            }
+            // send it for final processing
+            processNewLines(lines);
         }
     }
 
-    /* (non-Javadoc)
-     * @see com.android.ddmlib.adb.IShellOutputReceiver#flush()
-     */
     @Override
-    public void flush() {
-        if (mUnfinishedLine != null) {
-            processNewLines(new String[] {mUnfinishedLine});
+    protected final void processLastLine(@NonNull byte[] data, int offset, int length) {
+        // the unfinished line is not trimmed.
+        if (mReceivedOutput) {
+            processNewLines(new String[] {new String(data, offset, length, Charsets.UTF_8)});
         }
-
-        done();
     }
 
     /**
      * Terminates the process. This is called after the last lines have been through {@link
      * #processNewLines(String[])}.
      */
+    @Override
     public void done() {
         // do nothing.
     }
@@ -16,8 +16,10 @@
 
 package com.android.ddmlib;
 
+import com.google.common.primitives.Longs;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -60,7 +62,8 @@ public class NativeAllocationInfo {
     private final boolean mIsZygoteChild;
 
     private int mAllocations;
-    private final ArrayList<Long> mStackCallAddresses = new ArrayList<Long>();
+    private long[] mStackCallAddresses = new long[8];
+    private int mStackCallAddressCount;
 
     private ArrayList<NativeStackCallInfo> mResolvedStackCall = null;
 
@@ -82,7 +85,10 @@ public class NativeAllocationInfo {
      * @param address The address to add.
      */
     public void addStackCallAddress(long address) {
-        mStackCallAddresses.add(address);
+        if (mStackCallAddressCount == mStackCallAddresses.length) {
+            mStackCallAddresses = Arrays.copyOf(mStackCallAddresses, mStackCallAddressCount * 2);
+        }
+        mStackCallAddresses[mStackCallAddressCount++] = address;
     }
 
     /**
@@ -117,10 +123,14 @@ public class NativeAllocationInfo {
 
     /**
      * Returns the stack call of this allocation as raw addresses.
-     * @return the list of addresses where the allocation happened.
+     * <p>The addresses are stored unboxed, and the returned list is a read-only view of them:
+     * it can't be modified (it used to be the mutable list backing this object), and addresses
+     * added with {@link #addStackCallAddress(long)} afterwards may not be visible through it.
+     * @return a read-only list of the addresses where the allocation happened.
      */
     public List<Long> getStackCallAddresses() {
-        return mStackCallAddresses;
+        return Collections.unmodifiableList(
+                Longs.asList(mStackCallAddresses).subList(0, mStackCallAddressCount));
     }
 
     /**
@@ -180,14 +190,14 @@ public class NativeAllocationInfo {
     }
 
     public boolean stackEquals(NativeAllocationInfo mi) {
-        if (mStackCallAddresses.size() != mi.mStackCallAddresses.size()) {
+        if (mStackCallAddressCount != mi.mStackCallAddressCount) {
             return false;
         }
 
-        int count = mStackCallAddresses.size();
+        int count = mStackCallAddressCount;
         for (int i = 0 ; i < count ; i++) {
-            long a = mStackCallAddresses.get(i);
-            long b = mi.mStackCallAddresses.get(i);
+            long a = mStackCallAddresses[i];
+            long b = mi.mStackCallAddresses[i];
             if (a != b) {
                 return false;
             }
@@ -206,9 +216,10 @@ public class NativeAllocationInfo {
 
         result = 31 * result + mSize;
         result = 31 * result + mAllocations;
-        result = 31 * result + mStackCallAddresses.size();
+        result = 31 * result + mStackCallAddressCount;
 
-        for (long addr : mStackCallAddresses) {
+        for (int i = 0; i < mStackCallAddressCount; i++) {
+            long addr = mStackCallAddresses[i];
             result = 31 * result + (int) (addr ^ (addr >>> 32));
         }
 
@@ -19,8 +19,13 @@ import com.android.annotations.NonNull;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -35,6 +40,14 @@ class PropertyFetcher {
     private static final int GETPROP_TIMEOUT_SEC = 2;
     private static final int EXPECTED_PROP_COUNT = 150;
 
+    /**
+     * Maximum number of 'getprop' queries run at the same time, across all devices, so that
+     * attaching to many devices at once doesn't flood adb with connections.
+     */
+    private static final int MAX_CONCURRENT_QUERIES = 4;
+
+    private static final ExecutorService sQueryExecutor = createQueryExecutor();
+
     private enum CacheState {
         UNPOPULATED, FETCHING, POPULATED
     }
@@ -89,6 +102,10 @@ class PropertyFetcher {
     private final Map<String, SettableFuture<String>> mPendingRequests =
             Maps.newHashMapWithExpectedSize(4);
 
+    /** The properties of the last successful fetch, and its {@link System#nanoTime()}. */
+    private Map<String, String> mFetchedProperties = Collections.emptyMap();
+    private long mFetchTime;
+
     public PropertyFetcher(IDevice device) {
         mDevice = device;
     }
@@ -110,6 +127,16 @@ class PropertyFetcher {
         sEnableCachingMutableProps = enabled;
     }
 
+    /**
+     * How long the mutable properties of a 'getprop' dump are served before querying them again,
+     * so that bursts of requests for them share a single query.
+     */
+    private static volatile long sMutablePropsTtlNs = TimeUnit.SECONDS.toNanos(1);
+
+    public static void setMutablePropsTtl(long ttl, @NonNull TimeUnit unit) {
+        sMutablePropsTtlNs = unit.toNanos(ttl);
+    }
+
     /**
      * Make a possibly asynchronous request for a system property value.
      *
@@ -122,15 +149,19 @@ class PropertyFetcher {
         if (mCacheState.equals(CacheState.FETCHING)) {
             result = addPendingRequest(name);
         } else if (mDevice.isOnline() && mCacheState.equals(CacheState.UNPOPULATED)
-                || !isImmutableProperty(name)) {
+                || !isImmutableProperty(name) && !isFetchRecent()) {
             // cache is empty, or this is a volatile prop that requires a query
             result = addPendingRequest(name);
             mCacheState = CacheState.FETCHING;
             initiatePropertiesQuery();
-        } else {
+        } else if (isImmutableProperty(name)) {
             result = SettableFuture.create();
             // cache is populated and this is a ro prop
             result.set(mProperties.get(name));
+        } else {
+            result = SettableFuture.create();
+            // this is a volatile prop, which was queried recently enough
+            result.set(mFetchedProperties.get(name));
         }
         return result;
     }
@@ -144,28 +175,39 @@ class PropertyFetcher {
         return future;
     }
 
+    private boolean isFetchRecent() {
+        return mCacheState.equals(CacheState.POPULATED)
+                && System.nanoTime() - mFetchTime < sMutablePropsTtlNs;
+    }
+
     private void initiatePropertiesQuery() {
-        String threadName = String.format("query-prop-%s", mDevice.getSerialNumber());
-        Thread propThread = new Thread(threadName) {
-            @Override
-            public void run() {
-                try {
-                    GetPropReceiver propReceiver = new GetPropReceiver();
-                    mDevice.executeShellCommand(GETPROP_COMMAND, propReceiver, GETPROP_TIMEOUT_SEC,
-                            TimeUnit.SECONDS);
-                    populateCache(propReceiver.getCollectedProperties());
-                } catch (Throwable e) {
-                    handleException(e);
-                }
+        sQueryExecutor.execute(() -> {
+            try {
+                GetPropReceiver propReceiver = new GetPropReceiver();
+                mDevice.executeShellCommand(GETPROP_COMMAND, propReceiver, GETPROP_TIMEOUT_SEC,
+                        TimeUnit.SECONDS);
+                populateCache(propReceiver.getCollectedProperties());
+            } catch (Throwable e) {
+                handleException(e);
             }
-        };
-        propThread.setDaemon(true);
-        propThread.start();
+        });
+    }
+
+    @NonNull
+    private static ExecutorService createQueryExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                MAX_CONCURRENT_QUERIES, MAX_CONCURRENT_QUERIES, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("query-prop-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     private synchronized void populateCache(@NonNull Map<String, String> props) {
         mCacheState = props.isEmpty() ? CacheState.UNPOPULATED : CacheState.POPULATED;
         if (!props.isEmpty()) {
+            mFetchedProperties = props;
+            mFetchTime = System.nanoTime();
             if (sEnableCachingMutableProps) {
                 mProperties.putAll(props);
             } else {
@@ -16,6 +16,7 @@
 
 package com.android.ddmlib;
 
+import com.android.annotations.NonNull;
 import java.nio.ByteBuffer;
 
 /**
@@ -209,6 +210,62 @@ public final class RawImage {
         return a << 24 | r << 16 | g << 8 | b;
     }
 
+    /**
+     * Converts the pixels in [<var>from</var>, <var>to</var>) of {@link #data} to ARGB integer
+     * values, stored at the same indices in <var>argb</var>.
+     *
+     * <p>This gives the same values as {@link #getARGB(int)}, without decoding the pixel format
+     * for every pixel. Disjoint ranges can be converted concurrently.
+     *
+     * @param from the index of the first pixel to convert.
+     * @param to the index after the last pixel to convert.
+     * @param argb the array receiving the values.
+     */
+    public void getARGB(int from, int to, @NonNull int[] argb) {
+        if (bpp == 16) {
+            for (int i = from, index = from * 2; i < to; i++, index += 2) {
+                int value = (data[index] & 0x00FF) | ((data[index + 1] << 8) & 0x0FF00);
+                int r = ((value >>> 11) & 0x1f) * 255 / 31;
+                int g = ((value >>> 5) & 0x3f) * 255 / 63;
+                int b = (value & 0x1f) * 255 / 31;
+                argb[i] = 0xFF000000 | r << 16 | g << 8 | b;
+            }
+        } else if (bpp == 32) {
+            if (red_offset == 0 && red_length == 8
+                    && green_offset == 8 && green_length == 8
+                    && blue_offset == 16 && blue_length == 8
+                    && alpha_offset == 24 && alpha_length == 8) {
+                // RGBA_8888, the most common format: the components are bytes.
+                for (int i = from, index = from * 4; i < to; i++, index += 4) {
+                    argb[i] = (data[index + 3] & 0xFF) << 24
+                            | (data[index] & 0xFF) << 16
+                            | (data[index + 1] & 0xFF) << 8
+                            | (data[index + 2] & 0xFF);
+                }
+                return;
+            }
+
+            int redMask = getMask(red_length);
+            int greenMask = getMask(green_length);
+            int blueMask = getMask(blue_length);
+            int alphaMask = getMask(alpha_length);
+            for (int i = from, index = from * 4; i < to; i++, index += 4) {
+                int value = (data[index] & 0x00FF)
+                        | (data[index + 1] & 0x00FF) << 8
+                        | (data[index + 2] & 0x00FF) << 16
+                        | (data[index + 3] & 0x00FF) << 24;
+                int r = ((value >>> red_offset) & redMask) << (8 - red_length);
+                int g = ((value >>> green_offset) & greenMask) << (8 - green_length);
+                int b = ((value >>> blue_offset) & blueMask) << (8 - blue_length);
+                int a = ((value >>> alpha_offset) & alphaMask) << (8 - alpha_length);
+                argb[i] = a << 24 | r << 16 | g << 8 | b;
+            }
+        } else {
+            throw new UnsupportedOperationException(
+                    "RawImage.getARGB(int, int, int[]) only works in 16 and 32 bit mode.");
+        }
+    }
+
     /**
      * creates a mask value based on a length and offset.
      * <p>This value is compatible with org.eclipse.swt.graphics.PaletteData
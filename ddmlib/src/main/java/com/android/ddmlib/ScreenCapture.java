@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.base.Preconditions;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import javax.imageio.ImageIO;
+
+/**
+ * Captures the screen of a device repeatedly, reusing the buffers of the previous captures.
+ *
+ * <p>Unlike {@link IDevice#getScreenshot(long, TimeUnit)}, the {@link RawImage} returned by
+ * {@link #capture(long, TimeUnit)} is only valid until the next capture. Callers that need to
+ * keep a frame must convert or copy it first.
+ *
+ * <p>The conversion methods split the image in stripes, converted in parallel.
+ *
+ * <p>This class is not thread safe, use one instance per capturing thread.
+ */
+public final class ScreenCapture {
+
+    /** Listener for the frames of {@link #captureContinuously}. */
+    public interface FrameListener {
+        /**
+         * Called for each captured frame. The image is reused for the next frame once this
+         * returns.
+         *
+         * @param image the captured frame.
+         * @param captureTimeNanos the {@link System#nanoTime()} at which the capture started.
+         * @return whether to keep capturing.
+         */
+        boolean onFrame(@NonNull RawImage image, long captureTimeNanos);
+    }
+
+    /** Images smaller than this many pixels per stripe are not worth converting in parallel. */
+    private static final int MIN_PIXELS_PER_STRIPE = 128 * 1024;
+
+    @NonNull private final IDevice mDevice;
+
+    @Nullable private RawImage mImage;
+
+    public ScreenCapture(@NonNull IDevice device) {
+        mDevice = device;
+    }
+
+    /**
+     * Captures the screen of the device.
+     *
+     * @param timeout the maximum time to wait for the frame, 0 to wait forever.
+     * @param unit the unit of <var>timeout</var>.
+     * @return the frame, which is only valid until the next capture, or null if the frame buffer
+     *     format isn't supported.
+     * @throws TimeoutException in case of timeout on the connection.
+     * @throws AdbCommandRejectedException if adb rejects the command
+     * @throws IOException in case of I/O error on the connection.
+     */
+    @Nullable
+    public RawImage capture(long timeout, @NonNull TimeUnit unit)
+            throws TimeoutException, AdbCommandRejectedException, IOException {
+        RawImage image;
+        if (mDevice instanceof Device) {
+            image =
+                    AdbHelper.getFrameBuffer(
+                            AndroidDebugBridge.getSocketAddress(),
+                            (Device) mDevice,
+                            timeout,
+                            unit,
+                            mImage);
+        } else {
+            image = mDevice.getScreenshot(timeout, unit);
+        }
+        if (image != null) {
+            mImage = image;
+        }
+        return image;
+    }
+
+    /**
+     * Captures the screen of the device at a given frame rate, until the listener returns false,
+     * the device doesn't return a frame, or the thread is interrupted.
+     *
+     * <p>Frames are skipped rather than captured in bursts when the capture or the listener
+     * can't keep up with the frame rate.
+     *
+     * @param framesPerSecond the target frame rate.
+     * @param timeout the maximum time to wait for each frame, 0 to wait forever.
+     * @param unit the unit of <var>timeout</var>.
+     * @param listener the listener receiving the frames.
+     */
+    public void captureContinuously(
+            double framesPerSecond,
+            long timeout,
+            @NonNull TimeUnit unit,
+            @NonNull FrameListener listener)
+            throws TimeoutException, AdbCommandRejectedException, IOException,
+                    InterruptedException {
+        Preconditions.checkArgument(framesPerSecond > 0, "framesPerSecond must be positive");
+        long period = (long) (TimeUnit.SECONDS.toNanos(1) / framesPerSecond);
+
+        long next = System.nanoTime();
+        while (true) {
+            long now = System.nanoTime();
+            if (next > now) {
+                TimeUnit.NANOSECONDS.sleep(next - now);
+            } else if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            long captureTime = System.nanoTime();
+            RawImage image = capture(timeout, unit);
+            if (image == null || !listener.onFrame(image, captureTime)) {
+                return;
+            }
+
+            next = Math.max(next + period, System.nanoTime());
+        }
+    }
+
+    /**
+     * Converts an image to ARGB integer values, like {@link RawImage#getARGB(int)} does for each
+     * pixel.
+     *
+     * @param image the image to convert.
+     * @param argb the array receiving the values, of at least width * height elements.
+     */
+    public static void getARGB(@NonNull RawImage image, @NonNull int[] argb) {
+        int pixels = image.width * image.height;
+        Preconditions.checkArgument(argb.length >= pixels, "argb is too small for the image");
+
+        int stripes =
+                Math.min(
+                        Runtime.getRuntime().availableProcessors(),
+                        pixels / MIN_PIXELS_PER_STRIPE);
+        if (stripes <= 1) {
+            image.getARGB(0, pixels, argb);
+            return;
+        }
+        int stripePixels = (pixels + stripes - 1) / stripes;
+        IntStream.range(0, stripes)
+                .parallel()
+                .forEach(
+                        stripe -> {
+                            int from = stripe * stripePixels;
+                            image.getARGB(from, Math.min(pixels, from + stripePixels), argb);
+                        });
+    }
+
+    /**
+     * Converts an image to a {@link BufferedImage#TYPE_INT_ARGB} image. The pixels are written
+     * straight into the backing array of the image.
+     *
+     * @param image the image to convert.
+     * @param reuse an image to fill if it has the right type and size, or null.
+     * @return <var>reuse</var> if it could be filled, or a new image.
+     */
+    @NonNull
+    public static BufferedImage toImage(@NonNull RawImage image, @Nullable BufferedImage reuse) {
+        BufferedImage result = reuse;
+        if (result == null
+                || result.getType() != BufferedImage.TYPE_INT_ARGB
+                || result.getWidth() != image.width
+                || result.getHeight() != image.height) {
+            result = new BufferedImage(image.width, image.height, BufferedImage.TYPE_INT_ARGB);
+        }
+        getARGB(image, ((DataBufferInt) result.getRaster().getDataBuffer()).getData());
+        return result;
+    }
+
+    /**
+     * Writes an image as a PNG.
+     *
+     * @param image the image to write.
+     * @param stream the stream to write to, which is not closed.
+     */
+    public static void writePng(@NonNull RawImage image, @NonNull OutputStream stream)
+            throws IOException {
+        if (!ImageIO.write(toImage(image, null), "png", stream)) {
+            throw new IOException("Failed to find png writer");
+        }
+    }
+}
@@ -20,13 +20,27 @@ import com.android.annotations.Nullable;
 import com.android.sdklib.AndroidVersion;
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -36,20 +50,50 @@ public class SplitApkInstaller {
     @NonNull private final IDevice mDevice;
     @NonNull private final List<File> mApks;
     @NonNull private final String mOptions;
+    @Nullable private final String mApplicationId;
 
     private final String mPrefix;
 
+    private int mMaxConcurrentUploads = 1;
+    private boolean mSkipInstalledApks;
+
     private SplitApkInstaller(@NonNull IDevice device, @NonNull List<File> apks,
-            @NonNull String options) {
+            @NonNull String options, @Nullable String applicationId) {
         mDevice = device;
         mApks = apks;
         mOptions = options;
+        mApplicationId = applicationId;
 
         // Use "cmd package" when possible to avoid starting up a new VM
         mPrefix = mDevice.getVersion().isGreaterOrEqualThan(
                 AndroidVersion.BINDER_CMD_AVAILABLE.getApiLevel()) ? "cmd package" : "pm";
     }
 
+    /**
+     * Sets how many APKs are uploaded at the same time, each over its own connection to adb.
+     * Uploads are done one after the other by default.
+     */
+    @NonNull
+    public SplitApkInstaller setMaxConcurrentUploads(int maxConcurrentUploads) {
+        if (maxConcurrentUploads < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid number of concurrent uploads: " + maxConcurrentUploads);
+        }
+        mMaxConcurrentUploads = maxConcurrentUploads;
+        return this;
+    }
+
+    /**
+     * Sets whether APKs identical to one already installed on the device are left out of the
+     * install session, which then keeps the installed one. This only applies to partial installs,
+     * created with an application id.
+     */
+    @NonNull
+    public SplitApkInstaller setSkipInstalledApks(boolean skipInstalledApks) {
+        mSkipInstalledApks = skipInstalledApks;
+        return this;
+    }
+
     public void install(long timeout, @NonNull TimeUnit unit) throws InstallException {
         // Installing multiple APK's is perfomed as follows:
         //  # First we create a install session passing in the total size of all APKs
@@ -58,25 +102,32 @@ public class SplitApkInstaller {
         //  # Then for each APK, we perform the following. A unique id per APK is generated
         //  # as <index>_<name>, the - at the end means that the APK is streamed via stdin
         //      $ [pm|cmd package] install-write -S <session-id> <per_apk_unique_id> -
+        //  # APKs may be uploaded concurrently, over separate connections to adb, and APKs
+        //  # already installed may be left out of a partial install session.
         //  # Finally, we close the session
         //      $ [pm|cmd package] install-commit <session-id>  (or)
         //      $ [pm|cmd package] install-abandon <session-id>
 
         try {
+            // APKs are identified by their index in mApks.
+            List<Integer> apksToUpload = getApksToUpload(timeout, unit);
+            if (apksToUpload.isEmpty()) {
+                Log.d(LOG_TAG, "All APKs are already installed");
+                return;
+            }
+            List<File> apkFiles = new ArrayList<>(apksToUpload.size());
+            for (int index : apksToUpload) {
+                apkFiles.add(mApks.get(index));
+            }
+
             // create a installation session.
-            String sessionId = createMultiInstallSession(mApks, mOptions, timeout, unit);
+            String sessionId = createMultiInstallSession(apkFiles, mOptions, timeout, unit);
             if (sessionId == null) {
                 Log.d(LOG_TAG, "Failed to establish session, quit installation");
                 throw new InstallException("Failed to establish session");
             }
 
-            // now upload each APK in turn.
-            int index = 0;
-            boolean allUploadSucceeded = true;
-            while (allUploadSucceeded && index < mApks.size()) {
-                allUploadSucceeded = uploadApk(sessionId, mApks.get(index), index++, timeout,
-                        unit);
-            }
+            boolean allUploadSucceeded = uploadApks(sessionId, apksToUpload, timeout, unit);
 
             // if all files were upload successfully, commit otherwise abandon the installation.
             String command = mPrefix + " install-" +
@@ -101,6 +152,118 @@ public class SplitApkInstaller {
         }
     }
 
+    /**
+     * Returns the indices of the APKs to upload: all of them, unless APKs already installed are
+     * skipped. The APKs on the device are listed with {@code pm path}, and compared by their
+     * SHA-256 digest.
+     */
+    @NonNull
+    private List<Integer> getApksToUpload(long timeout, @NonNull TimeUnit unit) {
+        List<Integer> apks = new ArrayList<>(mApks.size());
+        Set<String> installedDigests = mSkipInstalledApks && mApplicationId != null
+                ? getInstalledApkDigests(timeout, unit)
+                : Collections.emptySet();
+        for (int i = 0; i < mApks.size(); i++) {
+            File apk = mApks.get(i);
+            if (!installedDigests.isEmpty()) {
+                try {
+                    String digest = Files.asByteSource(apk).hash(Hashing.sha256()).toString();
+                    if (installedDigests.contains(digest)) {
+                        Log.d(LOG_TAG, String.format("Skipping installed APK %1$s", apk.getPath()));
+                        continue;
+                    }
+                } catch (IOException e) {
+                    // let the upload report it.
+                }
+            }
+            apks.add(i);
+        }
+        return apks;
+    }
+
+    /**
+     * Returns the SHA-256 digests of the installed APKs of the application, or an empty set if
+     * they can't be computed, in which case nothing is skipped.
+     */
+    @NonNull
+    private Set<String> getInstalledApkDigests(long timeout, @NonNull TimeUnit unit) {
+        try {
+            CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+            mDevice.executeShellCommand("pm path " + mApplicationId, receiver, timeout, unit);
+            List<String> paths = new ArrayList<>();
+            for (String line : Splitter.on('\n').trimResults().split(receiver.getOutput())) {
+                if (line.startsWith("package:")) {
+                    paths.add(line.substring("package:".length()));
+                }
+            }
+            if (paths.isEmpty()) {
+                return Collections.emptySet();
+            }
+
+            receiver = new CollectingOutputReceiver();
+            mDevice.executeShellCommand("sha256sum " + Joiner.on(' ').join(paths), receiver,
+                    timeout, unit);
+            Set<String> digests = new HashSet<>();
+            for (String line : Splitter.on('\n').trimResults().split(receiver.getOutput())) {
+                Matcher matcher = SHA256SUM_PATTERN.matcher(line);
+                if (matcher.matches()) {
+                    digests.add(matcher.group(1).toLowerCase(Locale.US));
+                }
+            }
+            return digests;
+        } catch (Exception e) {
+            Log.w(LOG_TAG, "Failed to get installed APKs: " + e.getMessage());
+            return Collections.emptySet();
+        }
+    }
+
+    /**
+     * Uploads the APKs with the given indices into the session, up to
+     * {@link #mMaxConcurrentUploads} at a time. Once an upload fails, the ones which haven't
+     * started yet are skipped.
+     *
+     * @return whether all the APKs were uploaded.
+     */
+    private boolean uploadApks(@NonNull String sessionId, @NonNull List<Integer> apks,
+            long timeout, @NonNull TimeUnit unit)
+            throws InterruptedException, ExecutionException {
+        int threadCount = Math.min(mMaxConcurrentUploads, apks.size());
+        if (threadCount <= 1) {
+            for (int index : apks) {
+                if (!uploadApk(sessionId, mApks.get(index), index, timeout, unit)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // The executor's queue only holds the indices of the APKs waiting to be uploaded, and
+        // each thread streams a single APK at a time.
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("SplitApkInstaller-%d")
+                        .setDaemon(true)
+                        .build());
+        try {
+            AtomicBoolean failed = new AtomicBoolean();
+            List<Future<?>> uploads = new ArrayList<>(apks.size());
+            for (int index : apks) {
+                uploads.add(executor.submit(() -> {
+                    if (!failed.get()
+                            && !uploadApk(sessionId, mApks.get(index), index, timeout, unit)) {
+                        failed.set(true);
+                    }
+                }));
+            }
+            for (Future<?> upload : uploads) {
+                upload.get();
+            }
+            return !failed.get();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     @Nullable
     private String createMultiInstallSession(@NonNull List<File> apkFiles,
             @NonNull String pmOptions, long timeout, @NonNull TimeUnit unit)
@@ -118,6 +281,8 @@ public class SplitApkInstaller {
         return receiver.getSessionId();
     }
 
+    private static final Pattern SHA256SUM_PATTERN = Pattern.compile("([0-9a-fA-F]{64})\\s+.*");
+
     private static final CharMatcher UNSAFE_PM_INSTALL_SESSION_SPLIT_NAME_CHARS =
             CharMatcher.inRange('a','z').or(CharMatcher.inRange('A','Z'))
                     .or(CharMatcher.anyOf("_-")).negate();
@@ -235,14 +400,14 @@ public class SplitApkInstaller {
     public static SplitApkInstaller create(@NonNull IDevice device, @NonNull List<File> apks,
             boolean reInstall, @NonNull List<String> pmOptions) {
         validateArguments(device, apks);
-        return new SplitApkInstaller(device, apks, getOptions(reInstall, pmOptions));
+        return new SplitApkInstaller(device, apks, getOptions(reInstall, pmOptions), null);
     }
 
     public static SplitApkInstaller create(@NonNull IDevice device, @NonNull String applicationId,
       @NonNull List<File> apks, boolean reInstall, @NonNull List<String> pmOptions) {
         validateArguments(device, apks);
         return new SplitApkInstaller(device, apks,
-          getOptions(reInstall, true, applicationId, pmOptions));
+          getOptions(reInstall, true, applicationId, pmOptions), applicationId);
     }
 
     /**
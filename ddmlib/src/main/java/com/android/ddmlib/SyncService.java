@@ -24,11 +24,13 @@ import com.android.ddmlib.SyncException.SyncError;
 import com.android.ddmlib.utils.ArrayHelper;
 import com.android.ddmlib.utils.FilePermissionUtil;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Date;
 
@@ -78,6 +80,8 @@ public class SyncService {
 */
 
     private static final int SYNC_DATA_MAX = 64*1024;
+    /** Number of DATA packets sent with each write when pushing a file. */
+    private static final int TRANSFER_PACKETS = 8;
     private static final int REMOTE_PATH_MAX_LENGTH = 1024;
 
     /**
@@ -167,6 +171,12 @@ public class SyncService {
      */
     private byte[] mBuffer;
 
+    /**
+     * Direct buffer used to move file contents from/to {@link FileChannel}s. Allocated when needed
+     * and reused afterward.
+     */
+    private ByteBuffer mTransferBuffer;
+
     /**
      * Creates a Sync service object.
      * @param address The address to connect to
@@ -507,7 +517,7 @@ public class SyncService {
      * @throws IOException in case of I/O error on the connection.
      * @throws TimeoutException in case of a timeout reading responses from the device.
      */
-    private void doPullFile(String remotePath, String localPath,
+    void doPullFile(String remotePath, String localPath,
             ISyncProgressMonitor monitor) throws IOException, SyncException, TimeoutException {
         byte[] msg = null;
         byte[] pullResult = new byte[8];
@@ -537,14 +547,15 @@ public class SyncService {
         // access the destination file
         File f = new File(localPath);
 
-        // create the stream to write in the file. We use a new try/catch block to differentiate
+        // create the channel to write in the file. We use a new try/catch block to differentiate
         // between file and network io exceptions.
-        FileOutputStream fos = null;
+        FileChannel fc = null;
         try {
-            fos = new FileOutputStream(f);
+            fc = FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
 
-            // the buffer to read the data
-            byte[] data = new byte[SYNC_DATA_MAX];
+            // the buffer to read the data, and the header of the next packet
+            ByteBuffer data = getTransferBuffer();
 
             // loop to get data until we're done.
             while (true) {
@@ -569,26 +580,29 @@ public class SyncService {
                     throw new SyncException(SyncError.BUFFER_OVERRUN);
                 }
 
-                // now read the length we received
-                AdbHelper.read(mChannel, data, length, timeOut);
-
-                // get the header for the next packet.
-                AdbHelper.read(mChannel, pullResult, -1, timeOut);
+                // now read the length we received, and the header for the next packet.
+                data.clear();
+                data.limit(length + pullResult.length);
+                AdbHelper.read(mChannel, data, timeOut);
+                data.position(length);
+                data.get(pullResult);
 
                 // write the content in the file
-                fos.write(data, 0, length);
+                data.position(0);
+                data.limit(length);
+                while (data.hasRemaining()) {
+                    fc.write(data);
+                }
 
                 monitor.advance(length);
             }
-
-            fos.flush();
         } catch (IOException e) {
             Log.e("ddms", String.format("Failed to open local file %s for writing, Reason: %s",
                     f.getAbsolutePath(), e.toString()));
             throw new SyncException(SyncError.FILE_WRITE_ERROR);
         } finally {
-            if (fos != null) {
-                fos.close();
+            if (fc != null) {
+                fc.close();
             }
         }
     }
@@ -639,9 +653,9 @@ public class SyncService {
      * @throws IOException in case of I/O error on the connection.
      * @throws TimeoutException in case of a timeout reading responses from the device.
      */
-    private void doPushFile(String localPath, String remotePath,
+    void doPushFile(String localPath, String remotePath,
             ISyncProgressMonitor monitor) throws SyncException, IOException, TimeoutException {
-        FileInputStream fis = null;
+        FileChannel fc = null;
         byte[] msg;
 
         final int timeOut = DdmPreferences.getTimeOut();
@@ -654,8 +668,8 @@ public class SyncService {
                 throw new SyncException(SyncError.REMOTE_PATH_LENGTH);
             }
 
-            // create the stream to read the file
-            fis = new FileInputStream(f);
+            // create the channel to read the file
+            fc = FileChannel.open(f.toPath(), StandardOpenOption.READ);
 
             int permissions = FilePermissionUtil.getFilePosixPermission(f);
             // create the header for the action
@@ -665,37 +679,51 @@ public class SyncService {
             // file and network IO exceptions.
             AdbHelper.write(mChannel, msg, -1, timeOut);
 
-            System.arraycopy(ID_DATA, 0, getBuffer(), 0, ID_DATA.length);
-
-            // look while there is something to read
-            while (true) {
+            // Fill the buffer with as many DATA packets as fit, and send them at once.
+            ByteBuffer data = getTransferBuffer();
+            boolean eof = false;
+            while (!eof) {
                 // check if we're canceled
                 if (monitor.isCanceled()) {
                     throw new SyncException(SyncError.CANCELED);
                 }
 
-                // read up to SYNC_DATA_MAX
-                int readCount = fis.read(getBuffer(), 8, SYNC_DATA_MAX);
-
-                if (readCount == -1) {
-                    // we reached the end of the file
-                    break;
+                data.clear();
+                int total = 0;
+                while (data.remaining() >= SYNC_DATA_MAX + 8) {
+                    int header = data.position();
+                    data.put(ID_DATA);
+                    data.position(header + 8);
+
+                    // read up to SYNC_DATA_MAX
+                    data.limit(header + 8 + SYNC_DATA_MAX);
+                    int readCount = fc.read(data);
+                    data.limit(data.capacity());
+                    if (readCount <= 0) {
+                        // we reached the end of the file
+                        data.position(header);
+                        eof = true;
+                        break;
+                    }
+
+                    // write the amount read in the header
+                    data.putInt(header + 4, readCount);
+                    total += readCount;
                 }
 
                 // now send the data to the device
-                // first write the amount read
-                ArrayHelper.swap32bitsToArray(readCount, getBuffer(), 4);
-
-                // now write it
-                AdbHelper.write(mChannel, getBuffer(), readCount+8, timeOut);
+                data.flip();
+                AdbHelper.write(mChannel, data, timeOut);
 
                 // and advance the monitor
-                monitor.advance(readCount);
+                if (total > 0) {
+                    monitor.advance(total);
+                }
             }
         } finally {
             // close the local file
-            if (fis != null) {
-                fis.close();
+            if (fc != null) {
+                fc.close();
             }
         }
 
@@ -879,6 +907,18 @@ public class SyncService {
         return FileListingService.TYPE_OTHER;
     }
 
+    /**
+     * Retrieve the buffer used for file contents, allocating if necessary. It holds
+     * {@link #TRANSFER_PACKETS} packets of data with their headers, in little endian order.
+     */
+    private ByteBuffer getTransferBuffer() {
+        if (mTransferBuffer == null) {
+            mTransferBuffer = ByteBuffer.allocateDirect(TRANSFER_PACKETS * (SYNC_DATA_MAX + 8))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return mTransferBuffer;
+    }
+
     /**
      * Retrieve the buffer, allocating if necessary
      * @return
@@ -192,40 +192,53 @@ public final class LogCatFilter {
      * @return true if the message matches the filter's conditions.
      */
     public boolean matches(LogCatMessage m) {
-        /* filter out messages of a lower priority */
-        if (m.getLogLevel().getPriority() < mLogLevel.getPriority()) {
-            return false;
-        }
-
-        /* if pid filter is enabled, filter out messages whose pid does not match
-         * the filter's pid */
-        if (mCheckPid && !Integer.toString(m.getPid()).equals(mPid)) {
-            return false;
-        }
+        return matchesHeader(m.getHeader()) && matchesText(m.getMessage());
+    }
 
-        /* if app name filter is enabled, filter out messages not matching the app name */
-        if (mCheckAppName) {
-            Matcher matcher = mAppNamePattern.matcher(m.getAppName());
+    /**
+     * Check whether a given message text will make it through this filter's text condition.
+     * @param message text to check
+     * @return true if the text matches the filter's text condition, or if there is none.
+     */
+    public boolean matchesText(@NonNull String message) {
+        if (mCheckText) {
+            Matcher matcher = mTextPattern.matcher(message);
             if (!matcher.find()) {
                 return false;
             }
         }
 
-        /* if tag filter is enabled, filter out messages not matching the tag */
-        if (mCheckTag) {
-            Matcher matcher = mTagPattern.matcher(m.getTag());
-            if (!matcher.find()) {
-                return false;
-            }
-        }
+        return true;
+    }
 
-        if (mCheckText) {
-            Matcher matcher = mTextPattern.matcher(m.getMessage());
-            if (!matcher.find()) {
-                return false;
-            }
+    /**
+     * Check whether the messages with a given header may make it through this filter, that is
+     * whether they match all the filter's conditions except on the message text.
+     * @param h header to check
+     * @return true if the header matches the filter's conditions.
+     */
+    public boolean matchesHeader(@NonNull LogCatHeader h) {
+        /* filter out messages of a lower priority */
+        if (h.getLogLevel().getPriority() < mLogLevel.getPriority()) {
+            return false;
         }
 
-        return true;
+        return matchesPid(h.getPid()) && matchesAppName(h.getAppName())
+                && matchesTag(h.getTag());
+    }
+
+    /** Returns false if the pid filter is enabled and the pid doesn't match it. */
+    boolean matchesPid(int pid) {
+        return !mCheckPid || Integer.toString(pid).equals(mPid);
+    }
+
+    /** Returns false if the app name filter is enabled and the app name doesn't match it. */
+    boolean matchesAppName(@NonNull String appName) {
+        return !mCheckAppName || mAppNamePattern.matcher(appName).find();
+    }
+
+    /** Returns false if the tag filter is enabled and the tag doesn't match it. */
+    boolean matchesTag(@NonNull String tag) {
+        return !mCheckTag || mTagPattern.matcher(tag).find();
     }
 }
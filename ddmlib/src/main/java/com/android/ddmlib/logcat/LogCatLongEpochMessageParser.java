@@ -77,4 +77,43 @@ public final class LogCatLongEpochMessageParser extends LogCatMessageParser {
 
         return mPrevHeader;
     }
+
+    @Nullable
+    @Override
+    public LogCatHeader processLogHeader(
+            @NonNull byte[] data, int offset, int length, @Nullable IDevice device) {
+        int end = offset + length;
+        if (length < 2 || data[offset] != '[') {
+            return null;
+        }
+        int i = skipSpaces(data, offset + 1, end);
+        if (i == offset + 1) {
+            return null;
+        }
+
+        // Seconds, as parsed by EPOCH_TIME_FORMATTER, which can't overflow a long.
+        int secondsStart = i;
+        long seconds = 0;
+        for (; i < end && isDigit(data[i]) && i - secondsStart < 18; i++) {
+            seconds = seconds * 10 + data[i] - '0';
+        }
+        if (i == secondsStart || i + 4 > end || data[i] != '.') {
+            return null;
+        }
+        int millis = parseDigits(data, i + 1, 3);
+        if (millis < 0 || !parseHeaderFields(data, i + 4, end)) {
+            return null;
+        }
+
+        mPrevHeader =
+                new LogCatHeader(
+                        mParsedLogLevel,
+                        mParsedPid,
+                        mParsedTid,
+                        getPackageName(device, mParsedPid),
+                        mParsedTag,
+                        Instant.ofEpochSecond(seconds, millis * 1_000_000L));
+
+        return mPrevHeader;
+    }
 }
@@ -20,6 +20,7 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.Log.LogLevel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -63,6 +64,17 @@ public class LogCatMessageParser {
     @Nullable
     LogCatHeader mPrevHeader;
 
+    /** The header and filters {@link #mPrevHeaderMatches} was computed for. */
+    @Nullable private LogCatHeader mFilteredHeader;
+    @Nullable private List<LogCatFilter> mHeaderFilters;
+    private boolean mPrevHeaderMatches;
+
+    /** Fields of the last header parsed by {@link #parseHeaderFields(byte[], int, int)}. */
+    int mParsedPid;
+    int mParsedTid;
+    LogLevel mParsedLogLevel;
+    String mParsedTag;
+
     /**
      * Parse a header line into a {@link LogCatHeader} object, or {@code null} if the input line
      * doesn't match the expected format.
@@ -97,6 +109,153 @@ public class LogCatMessageParser {
         return mPrevHeader;
     }
 
+    /**
+     * Parse a header line from its UTF-8 bytes into a {@link LogCatHeader} object, or {@code null}
+     * if the input line doesn't match the expected format. This is the same as {@link
+     * #processLogHeader(String, IDevice)}, without decoding the line.
+     *
+     * @param data buffer holding the line
+     * @param offset offset of the line in the buffer
+     * @param length length of the line, without its terminator
+     * @param device device from which these log messages have been received
+     * @return a {@link LogCatHeader} which represents the passed in text
+     */
+    @Nullable
+    public LogCatHeader processLogHeader(
+            @NonNull byte[] data, int offset, int length, @Nullable IDevice device) {
+        // [ MM-DD HH:MM:SS.mmm
+        if (length < 20 || data[offset] != '[' || data[offset + 1] != ' ') {
+            return null;
+        }
+        int i = offset + 2;
+        if (data[i + 2] != '-' || data[i + 5] != ' ' || data[i + 8] != ':'
+                || data[i + 11] != ':' || data[i + 14] != '.') {
+            return null;
+        }
+        int month = parseDigits(data, i, 2);
+        int day = parseDigits(data, i + 3, 2);
+        int hour = parseDigits(data, i + 6, 2);
+        int minute = parseDigits(data, i + 9, 2);
+        int second = parseDigits(data, i + 12, 2);
+        int milli = parseDigits(data, i + 15, 3);
+        if (month < 0 || day < 0 || hour < 0 || minute < 0 || second < 0 || milli < 0) {
+            return null;
+        }
+
+        if (!parseHeaderFields(data, i + 18, offset + length)) {
+            return null;
+        }
+
+        mPrevHeader =
+                new LogCatHeader(
+                        mParsedLogLevel,
+                        mParsedPid,
+                        mParsedTid,
+                        getPackageName(device, mParsedPid),
+                        mParsedTag,
+                        new LogCatTimestamp(month, day, hour, minute, second, milli));
+
+        return mPrevHeader;
+    }
+
+    /**
+     * Parses the part of a header line following the timestamp, from {@code start} to {@code end}:
+     * {@code " +(PID): *(TID) (LEVEL)/(TAG) +]"}. The fields are stored in {@link #mParsedPid},
+     * {@link #mParsedTid}, {@link #mParsedLogLevel} and {@link #mParsedTag}.
+     *
+     * @return whether the bytes match the expected format.
+     */
+    final boolean parseHeaderFields(@NonNull byte[] data, int start, int end) {
+        int i = skipSpaces(data, start, end);
+        if (i == start) {
+            return false;
+        }
+
+        int pidStart = i;
+        long pid = 0;
+        for (; i < end && isDigit(data[i]); i++) {
+            if (pid <= Integer.MAX_VALUE) {
+                pid = pid * 10 + data[i] - '0';
+            }
+        }
+        if (i == pidStart || i == end || data[i] != ':') {
+            return false;
+        }
+
+        i = skipSpaces(data, i + 1, end);
+        int tidStart = i;
+        while (i < end && isWordCharacter(data[i])) {
+            i++;
+        }
+        int tidEnd = i;
+        if (tidEnd == tidStart || i + 3 > end || data[i] != ' ' || data[i + 2] != '/') {
+            return false;
+        }
+        char priority = (char) data[i + 1];
+        if ("VDIWEAF".indexOf(priority) < 0) {
+            return false;
+        }
+
+        // The tag is followed by at least one space, and by the closing bracket ending the line.
+        int tagStart = i + 3;
+        int tagEnd = end - 1;
+        if (tagEnd <= tagStart || data[tagEnd] != ']' || data[tagEnd - 1] != ' ') {
+            return false;
+        }
+        while (tagEnd > tagStart && data[tagEnd - 1] == ' ') {
+            tagEnd--;
+        }
+
+        mParsedPid = pid <= Integer.MAX_VALUE ? (int) pid : -1;
+        mParsedTid = parseThreadId(data, tidStart, tidEnd);
+        mParsedLogLevel = parsePriority(priority);
+        mParsedTag = new String(data, tagStart, tagEnd - tagStart, StandardCharsets.UTF_8);
+        return true;
+    }
+
+    /** Returns the value of {@code count} decimal digits from {@code start}, or -1. */
+    static int parseDigits(@NonNull byte[] data, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            if (!isDigit(data[i])) {
+                return -1;
+            }
+            value = value * 10 + data[i] - '0';
+        }
+        return value;
+    }
+
+    static int skipSpaces(@NonNull byte[] data, int start, int end) {
+        int i = start;
+        while (i < end && data[i] == ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isWordCharacter(byte b) {
+        return isDigit(b) || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || b == '_';
+    }
+
+    private static int parseThreadId(@NonNull byte[] data, int start, int end) {
+        if (data[start] != '0' || end - start == 1) {
+            long tid = 0;
+            int i = start;
+            for (; i < end && isDigit(data[i]) && tid <= Integer.MAX_VALUE; i++) {
+                tid = tid * 10 + data[i] - '0';
+            }
+            if (i == end) {
+                return tid <= Integer.MAX_VALUE ? (int) tid : -1;
+            }
+        }
+        // Hexadecimal, octal or invalid.
+        return parseThreadId(new String(data, start, end - start, StandardCharsets.US_ASCII));
+    }
+
     static int parseProcessId(@NonNull String string) {
         try {
             return Integer.parseInt(string);
@@ -138,6 +297,21 @@ public class LogCatMessageParser {
         return priority;
     }
 
+    @NonNull
+    private static LogLevel parsePriority(char letter) {
+        LogLevel priority = LogLevel.getByLetter(letter);
+
+        if (priority == null) {
+            if (letter != 'F') {
+                return LogLevel.WARN;
+            }
+
+            return LogLevel.ASSERT;
+        }
+
+        return priority;
+    }
+
     @NonNull
     static String getPackageName(@Nullable IDevice device, int processId) {
         if (device == null || processId == -1) {
@@ -188,4 +362,63 @@ public class LogCatMessageParser {
 
         return messages;
     }
+
+    /**
+     * Parse a line of {@code logcat -v long} output from its UTF-8 bytes into a {@link
+     * LogCatMessage} object. Like {@link #processLogLines(String[], IDevice)}, this method maintains
+     * state from previous calls regarding the last seen header of logcat messages.
+     *
+     * <p>Messages are only returned if they match all the given filters. Lines are only decoded if
+     * their header matches the filters, so lines dropped because of their level, pid, app or tag
+     * cost no allocation.
+     *
+     * @param data buffer holding the line
+     * @param offset offset of the line in the buffer
+     * @param length length of the line, without its terminator
+     * @param device device from which these log messages have been received
+     * @param filters filters the message must match
+     * @return the message, or null if the line is empty, is a header line, has no header before it,
+     *     or doesn't match the filters
+     */
+    @Nullable
+    public LogCatMessage processLogLine(
+            @NonNull byte[] data,
+            int offset,
+            int length,
+            @Nullable IDevice device,
+            @NonNull List<LogCatFilter> filters) {
+        if (length == 0) {
+            return null;
+        }
+        if (data[offset] == '[' && processLogHeader(data, offset, length, device) != null) {
+            return null;
+        }
+        if (mPrevHeader == null) {
+            // See processLogLines: there's nothing we can do with a line without a header.
+            return null;
+        }
+
+        if (mPrevHeader != mFilteredHeader || filters != mHeaderFilters) {
+            mFilteredHeader = mPrevHeader;
+            mHeaderFilters = filters;
+            mPrevHeaderMatches = true;
+            for (LogCatFilter filter : filters) {
+                if (!filter.matchesHeader(mPrevHeader)) {
+                    mPrevHeaderMatches = false;
+                    break;
+                }
+            }
+        }
+        if (!mPrevHeaderMatches) {
+            return null;
+        }
+
+        String message = new String(data, offset, length, StandardCharsets.UTF_8);
+        for (LogCatFilter filter : filters) {
+            if (!filter.matchesText(message)) {
+                return null;
+            }
+        }
+        return new LogCatMessage(mPrevHeader, message);
+    }
 }
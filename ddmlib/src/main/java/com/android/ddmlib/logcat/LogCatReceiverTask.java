@@ -17,15 +17,17 @@
 package com.android.ddmlib.logcat;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.annotations.concurrency.GuardedBy;
 import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.ByteLineReceiver;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log.LogLevel;
-import com.android.ddmlib.MultiLineReceiver;
 import com.android.ddmlib.ShellCommandUnresponsiveException;
 import com.android.ddmlib.TimeoutException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -47,12 +49,23 @@ public class LogCatReceiverTask implements Runnable {
     private final LogCatOutputReceiver mReceiver;
     private final LogCatMessageParser mParser;
     private final AtomicBoolean mCancelled;
+    private volatile List<LogCatFilter> mFilters = Collections.emptyList();
+    @Nullable private final LogCatRingBuffer mRingBuffer;
 
     @GuardedBy("this")
     private final Set<LogCatListener> mListeners = new HashSet<LogCatListener>();
 
     public LogCatReceiverTask(@NonNull IDevice device) {
+        this(device, null);
+    }
+
+    /**
+     * Creates a task which also keeps the messages it receives in a ring buffer, so that its
+     * consumers can query them instead of keeping their own copies.
+     */
+    public LogCatReceiverTask(@NonNull IDevice device, @Nullable LogCatRingBuffer ringBuffer) {
         mDevice = device;
+        mRingBuffer = ringBuffer;
 
         mReceiver = new LogCatOutputReceiver();
         mParser = new LogCatMessageParser();
@@ -89,10 +102,17 @@ public class LogCatReceiverTask implements Runnable {
         mCancelled.set(true);
     }
 
-    private class LogCatOutputReceiver extends MultiLineReceiver {
-        public LogCatOutputReceiver() {
-            setTrimLine(false);
-        }
+    /**
+     * Sets the filters messages must all match to be passed to the listeners. Lines of messages
+     * dropped because of their header are not decoded.
+     */
+    public void setLogCatFilters(@NonNull List<LogCatFilter> filters) {
+        mFilters = Collections.unmodifiableList(new ArrayList<>(filters));
+    }
+
+    /** Parses the output straight from its bytes, and notifies listeners once per packet. */
+    private class LogCatOutputReceiver extends ByteLineReceiver {
+        @NonNull private List<LogCatMessage> mNewMessages = new ArrayList<>();
 
         /** Implements {@link IShellOutputReceiver#isCancelled() }. */
         @Override
@@ -101,29 +121,59 @@ public class LogCatReceiverTask implements Runnable {
         }
 
         @Override
-        public void processNewLines(@NonNull String[] lines) {
+        protected void processLine(@NonNull byte[] data, int offset, int length) {
             if (!mCancelled.get()) {
-                processLogLines(lines);
+                LogCatMessage message =
+                        mParser.processLogLine(data, offset, length, mDevice, mFilters);
+                if (message != null) {
+                    mNewMessages.add(message);
+                }
             }
         }
 
-        private void processLogLines(String[] lines) {
-            List<LogCatMessage> newMessages = mParser.processLogLines(lines, mDevice);
-            if (!newMessages.isEmpty()) {
+        @Override
+        protected void processBatchEnd() {
+            if (!mNewMessages.isEmpty()) {
+                // Listeners may hold on to the list.
+                List<LogCatMessage> newMessages = mNewMessages;
+                mNewMessages = new ArrayList<>();
                 notifyListeners(newMessages);
             }
         }
     }
 
+    @Nullable
+    public LogCatRingBuffer getRingBuffer() {
+        return mRingBuffer;
+    }
+
     public synchronized void addLogCatListener(LogCatListener l) {
         mListeners.add(l);
     }
 
+    /**
+     * Adds a listener, first passing it the messages of the ring buffer matching the given
+     * filters, so that it gets the history without gap or duplicate.
+     */
+    public synchronized void addLogCatListener(
+            @NonNull LogCatListener l, @NonNull List<LogCatFilter> replayFilters) {
+        if (mRingBuffer != null) {
+            List<LogCatMessage> history = mRingBuffer.getMessages(replayFilters);
+            if (!history.isEmpty()) {
+                l.log(history);
+            }
+        }
+        mListeners.add(l);
+    }
+
     public synchronized void removeLogCatListener(LogCatListener l) {
         mListeners.remove(l);
     }
 
     private synchronized void notifyListeners(List<LogCatMessage> messages) {
+        if (mRingBuffer != null) {
+            mRingBuffer.add(messages);
+        }
         for (LogCatListener l: mListeners) {
             l.log(messages);
         }
@@ -0,0 +1,493 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.ddmlib.Log.LogLevel;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded store of the logcat messages of a device, which its consumers can share instead of
+ * each keeping their own copies.
+ *
+ * <p>Messages are encoded into a fixed size ring of direct memory. Once it is full, the oldest
+ * messages are dropped to make room for new ones, so a long running log costs a bounded amount of
+ * memory, most of it outside the Java heap. Messages are indexed by pid, tag and level, so that
+ * {@link #getMessages(List)} only decodes the messages which may match the filters.
+ */
+public final class LogCatRingBuffer implements LogCatListener {
+
+    /** Layout of an entry: the header fields, followed by the UTF-8 message text. */
+    private static final int ENTRY_SIZE = 0;
+    private static final int ENTRY_LEVEL = 4;
+    private static final int ENTRY_TIMESTAMP_KIND = 5;
+    private static final int ENTRY_PID = 6;
+    private static final int ENTRY_TID = 10;
+    private static final int ENTRY_TAG = 14;
+    private static final int ENTRY_APP_NAME = 18;
+    private static final int ENTRY_SECONDS = 22;
+    private static final int ENTRY_NANOS = 30;
+    private static final int ENTRY_HEADER_SIZE = 34;
+
+    /** Values of the timestamp kind, for {@link Instant} or {@link LogCatTimestamp} timestamps. */
+    private static final byte TIMESTAMP_INSTANT = 0;
+    private static final byte TIMESTAMP_LEGACY = 1;
+
+    private static final LogLevel[] LEVELS = LogLevel.values();
+
+    @NonNull
+    private final ByteBuffer mBuffer;
+
+    /** A view of {@link #mBuffer} used to write message texts. */
+    @NonNull
+    private final ByteBuffer mWriter;
+
+    /** Offsets of the entries in the buffer, from the oldest one. */
+    @NonNull
+    private final LongQueue mOffsets = new LongQueue();
+
+    /** Sequence number of the oldest entry. Sequence numbers are never reused. */
+    private long mFirstSequence;
+
+    /** Offset at which the next entry is written. */
+    private int mWritePosition;
+
+    private long mEvictedCount;
+
+    /** Sequence numbers of the entries, indexed by pid, tag and level. */
+    @NonNull
+    private final Map<Integer, LongQueue> mPidIndex = new HashMap<>();
+    @NonNull
+    private final Map<Integer, LongQueue> mTagIndex = new HashMap<>();
+    @NonNull
+    private final LongQueue[] mLevelIndex = new LongQueue[LEVELS.length];
+
+    /** Tags and app names, stored in the entries by id. */
+    @NonNull
+    private final List<String> mStrings = new ArrayList<>();
+    @NonNull
+    private final Map<String, Integer> mStringIds = new HashMap<>();
+    @NonNull
+    private int[] mStringReferences = new int[64];
+    @NonNull
+    private final Deque<Integer> mFreeStringIds = new ArrayDeque<>();
+
+    /**
+     * Creates a ring buffer.
+     *
+     * @param capacity the size of the buffer in bytes. Each message takes its UTF-8 length plus
+     *     a few dozen bytes.
+     */
+    public LogCatRingBuffer(int capacity) {
+        mBuffer = ByteBuffer.allocateDirect(capacity);
+        mWriter = mBuffer.duplicate();
+        for (int i = 0; i < mLevelIndex.length; i++) {
+            mLevelIndex[i] = new LongQueue();
+        }
+    }
+
+    @Override
+    public void log(List<LogCatMessage> msgList) {
+        add(msgList);
+    }
+
+    /** Adds messages to the buffer, dropping the oldest ones as needed. */
+    public synchronized void add(@NonNull List<LogCatMessage> messages) {
+        for (LogCatMessage message : messages) {
+            add(message);
+        }
+    }
+
+    /**
+     * Adds a message to the buffer, dropping the oldest ones as needed. Messages larger than the
+     * buffer itself are dropped.
+     */
+    @SuppressWarnings("deprecation")
+    public synchronized void add(@NonNull LogCatMessage message) {
+        byte[] text = message.getMessage().getBytes(StandardCharsets.UTF_8);
+        int size = ENTRY_HEADER_SIZE + text.length;
+        if (size > mBuffer.capacity()) {
+            mEvictedCount++;
+            return;
+        }
+        int offset = makeRoom(size);
+
+        LogCatHeader header = message.getHeader();
+        int tag = acquireString(header.getTag());
+        int appName = acquireString(header.getAppName());
+        mBuffer.putInt(offset + ENTRY_SIZE, size);
+        mBuffer.put(offset + ENTRY_LEVEL, (byte) header.getLogLevel().ordinal());
+        mBuffer.putInt(offset + ENTRY_PID, header.getPid());
+        mBuffer.putInt(offset + ENTRY_TID, header.getTid());
+        mBuffer.putInt(offset + ENTRY_TAG, tag);
+        mBuffer.putInt(offset + ENTRY_APP_NAME, appName);
+        Instant instant = header.getTimestampInstant();
+        if (instant != null) {
+            mBuffer.put(offset + ENTRY_TIMESTAMP_KIND, TIMESTAMP_INSTANT);
+            mBuffer.putLong(offset + ENTRY_SECONDS, instant.getEpochSecond());
+            mBuffer.putInt(offset + ENTRY_NANOS, instant.getNano());
+        } else {
+            LogCatTimestamp timestamp = header.getTimestamp();
+            mBuffer.put(offset + ENTRY_TIMESTAMP_KIND, TIMESTAMP_LEGACY);
+            mBuffer.putLong(offset + ENTRY_SECONDS,
+                    (timestamp != null ? timestamp : LogCatTimestamp.ZERO).toPackedValue());
+            mBuffer.putInt(offset + ENTRY_NANOS, 0);
+        }
+        mWriter.position(offset + ENTRY_HEADER_SIZE);
+        mWriter.put(text);
+
+        long sequence = mFirstSequence + mOffsets.size();
+        mOffsets.add(offset);
+        mPidIndex.computeIfAbsent(header.getPid(), k -> new LongQueue()).add(sequence);
+        mTagIndex.computeIfAbsent(tag, k -> new LongQueue()).add(sequence);
+        mLevelIndex[header.getLogLevel().ordinal()].add(sequence);
+    }
+
+    /**
+     * Returns the messages in the buffer which match all the given filters, from the oldest one.
+     * An empty list of filters returns all the messages.
+     */
+    @NonNull
+    public synchronized List<LogCatMessage> getMessages(@NonNull List<LogCatFilter> filters) {
+        LogLevel minLevel = LogLevel.VERBOSE;
+        for (LogCatFilter filter : filters) {
+            if (filter.getLogLevel().getPriority() > minLevel.getPriority()) {
+                minLevel = filter.getLogLevel();
+            }
+        }
+        // Whether each tag and app name matches all the filters, by string id.
+        byte[] tagMatches = new byte[mStrings.size()];
+        byte[] appNameMatches = new byte[mStrings.size()];
+
+        long[] sequences = getCandidates(filters, minLevel, tagMatches);
+        List<LogCatMessage> messages = new ArrayList<>();
+        LogCatHeader header = null;
+        int headerOffset = -1;
+        for (long sequence : sequences) {
+            int offset = (int) mOffsets.get((int) (sequence - mFirstSequence));
+            LogLevel level = LEVELS[mBuffer.get(offset + ENTRY_LEVEL)];
+            int pid = mBuffer.getInt(offset + ENTRY_PID);
+            if (level.getPriority() < minLevel.getPriority()
+                    || !matchesPid(filters, pid)
+                    || !matchesString(filters, mBuffer.getInt(offset + ENTRY_TAG), tagMatches,
+                            true)
+                    || !matchesString(filters, mBuffer.getInt(offset + ENTRY_APP_NAME),
+                            appNameMatches, false)) {
+                continue;
+            }
+
+            int size = mBuffer.getInt(offset + ENTRY_SIZE);
+            byte[] text = new byte[size - ENTRY_HEADER_SIZE];
+            ByteBuffer reader = mBuffer.duplicate();
+            reader.position(offset + ENTRY_HEADER_SIZE);
+            reader.get(text);
+            String message = new String(text, StandardCharsets.UTF_8);
+            if (!matchesText(filters, message)) {
+                continue;
+            }
+
+            // Messages logged at once have the same header, which can be shared again.
+            if (header == null || !hasSameHeader(offset, headerOffset)) {
+                header = readHeader(offset);
+            }
+            headerOffset = offset;
+            messages.add(new LogCatMessage(header, message));
+        }
+        return messages;
+    }
+
+    /** Returns the number of messages in the buffer. */
+    public synchronized int getMessageCount() {
+        return mOffsets.size();
+    }
+
+    /**
+     * Returns the number of messages dropped so far, to make room for new ones or because they
+     * were larger than the buffer.
+     */
+    public synchronized long getEvictedCount() {
+        return mEvictedCount;
+    }
+
+    /** Returns the capacity of the buffer in bytes. */
+    public int getCapacity() {
+        return mBuffer.capacity();
+    }
+
+    /**
+     * Returns the sequence numbers of the messages which may match the filters, in order, from
+     * the smallest index which the filters allow.
+     */
+    @NonNull
+    private long[] getCandidates(@NonNull List<LogCatFilter> filters, @NonNull LogLevel minLevel,
+            @NonNull byte[] tagMatches) {
+        List<LongQueue> candidates = null;
+        long candidateCount = mOffsets.size();
+
+        List<LongQueue> levelQueues = new ArrayList<>();
+        long levelCount = 0;
+        for (LogLevel level : LEVELS) {
+            if (level.getPriority() >= minLevel.getPriority()) {
+                levelQueues.add(mLevelIndex[level.ordinal()]);
+                levelCount += mLevelIndex[level.ordinal()].size();
+            }
+        }
+        if (levelCount < candidateCount) {
+            candidates = levelQueues;
+            candidateCount = levelCount;
+        }
+
+        for (LogCatFilter filter : filters) {
+            if (filter.getPid().isEmpty()) {
+                continue;
+            }
+            List<LongQueue> pidQueues = new ArrayList<>();
+            long pidCount = 0;
+            for (Map.Entry<Integer, LongQueue> entry : mPidIndex.entrySet()) {
+                if (filter.matchesPid(entry.getKey())) {
+                    pidQueues.add(entry.getValue());
+                    pidCount += entry.getValue().size();
+                }
+            }
+            if (pidCount < candidateCount) {
+                candidates = pidQueues;
+                candidateCount = pidCount;
+            }
+        }
+
+        boolean checksTag = false;
+        for (LogCatFilter filter : filters) {
+            checksTag |= !filter.getTag().isEmpty();
+        }
+        if (checksTag) {
+            List<LongQueue> tagQueues = new ArrayList<>();
+            long tagCount = 0;
+            for (Map.Entry<Integer, LongQueue> entry : mTagIndex.entrySet()) {
+                if (matchesString(filters, entry.getKey(), tagMatches, true)) {
+                    tagQueues.add(entry.getValue());
+                    tagCount += entry.getValue().size();
+                }
+            }
+            if (tagCount < candidateCount) {
+                candidates = tagQueues;
+                candidateCount = tagCount;
+            }
+        }
+
+        long[] sequences = new long[(int) candidateCount];
+        if (candidates == null) {
+            for (int i = 0; i < sequences.length; i++) {
+                sequences[i] = mFirstSequence + i;
+            }
+            return sequences;
+        }
+        int count = 0;
+        for (LongQueue queue : candidates) {
+            for (int i = 0; i < queue.size(); i++) {
+                sequences[count++] = queue.get(i);
+            }
+        }
+        if (candidates.size() > 1) {
+            Arrays.sort(sequences);
+        }
+        return sequences;
+    }
+
+    private static boolean matchesPid(@NonNull List<LogCatFilter> filters, int pid) {
+        for (LogCatFilter filter : filters) {
+            if (!filter.matchesPid(pid)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether a tag or app name matches all the filters, caching the result by string id
+     * in {@code matches}: 0 if unknown, 1 if it matches, 2 if it doesn't.
+     */
+    private boolean matchesString(@NonNull List<LogCatFilter> filters, int id,
+            @NonNull byte[] matches, boolean tag) {
+        if (matches[id] == 0) {
+            String string = mStrings.get(id);
+            boolean match = true;
+            for (LogCatFilter filter : filters) {
+                if (tag ? !filter.matchesTag(string) : !filter.matchesAppName(string)) {
+                    match = false;
+                    break;
+                }
+            }
+            matches[id] = (byte) (match ? 1 : 2);
+        }
+        return matches[id] == 1;
+    }
+
+    private static boolean matchesText(@NonNull List<LogCatFilter> filters,
+            @NonNull String message) {
+        for (LogCatFilter filter : filters) {
+            if (!filter.matchesText(message)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean hasSameHeader(int offset, int otherOffset) {
+        for (int i = ENTRY_LEVEL; i < ENTRY_HEADER_SIZE; i++) {
+            if (mBuffer.get(offset + i) != mBuffer.get(otherOffset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @NonNull
+    @SuppressWarnings("deprecation")
+    private LogCatHeader readHeader(int offset) {
+        LogLevel level = LEVELS[mBuffer.get(offset + ENTRY_LEVEL)];
+        int pid = mBuffer.getInt(offset + ENTRY_PID);
+        int tid = mBuffer.getInt(offset + ENTRY_TID);
+        String tag = mStrings.get(mBuffer.getInt(offset + ENTRY_TAG));
+        String appName = mStrings.get(mBuffer.getInt(offset + ENTRY_APP_NAME));
+        long seconds = mBuffer.getLong(offset + ENTRY_SECONDS);
+        if (mBuffer.get(offset + ENTRY_TIMESTAMP_KIND) == TIMESTAMP_INSTANT) {
+            Instant instant = Instant.ofEpochSecond(seconds, mBuffer.getInt(offset + ENTRY_NANOS));
+            return new LogCatHeader(level, pid, tid, appName, tag, instant);
+        }
+        return new LogCatHeader(level, pid, tid, appName, tag,
+                LogCatTimestamp.fromPackedValue(seconds));
+    }
+
+    /**
+     * Drops the oldest entries until there is room for {@code size} bytes at the write position,
+     * and returns the offset at which to write them.
+     */
+    private int makeRoom(int size) {
+        if (mWritePosition + size > mBuffer.capacity()) {
+            // Wrap around: the entries between the write position and the end of the buffer are
+            // the oldest ones, as they were written before the previous wrap.
+            while (mOffsets.size() > 0 && mOffsets.get(0) >= mWritePosition) {
+                evictOldest();
+            }
+            mWritePosition = 0;
+        }
+        while (mOffsets.size() > 0 && mOffsets.get(0) >= mWritePosition
+                && mOffsets.get(0) < mWritePosition + size) {
+            evictOldest();
+        }
+        int offset = mWritePosition;
+        mWritePosition += size;
+        return offset;
+    }
+
+    private void evictOldest() {
+        int offset = (int) mOffsets.removeFirst();
+        mFirstSequence++;
+        mEvictedCount++;
+
+        int pid = mBuffer.getInt(offset + ENTRY_PID);
+        LongQueue pidQueue = mPidIndex.get(pid);
+        pidQueue.removeFirst();
+        if (pidQueue.size() == 0) {
+            mPidIndex.remove(pid);
+        }
+        int tag = mBuffer.getInt(offset + ENTRY_TAG);
+        LongQueue tagQueue = mTagIndex.get(tag);
+        tagQueue.removeFirst();
+        if (tagQueue.size() == 0) {
+            mTagIndex.remove(tag);
+        }
+        mLevelIndex[mBuffer.get(offset + ENTRY_LEVEL)].removeFirst();
+
+        releaseString(tag);
+        releaseString(mBuffer.getInt(offset + ENTRY_APP_NAME));
+    }
+
+    private int acquireString(@NonNull String string) {
+        Integer id = mStringIds.get(string);
+        if (id == null) {
+            if (!mFreeStringIds.isEmpty()) {
+                id = mFreeStringIds.pop();
+                mStrings.set(id, string);
+            } else {
+                id = mStrings.size();
+                mStrings.add(string);
+                if (id == mStringReferences.length) {
+                    mStringReferences = Arrays.copyOf(mStringReferences, id * 2);
+                }
+            }
+            mStringIds.put(string, id);
+        }
+        mStringReferences[id]++;
+        return id;
+    }
+
+    private void releaseString(int id) {
+        if (--mStringReferences[id] == 0) {
+            mStringIds.remove(mStrings.get(id));
+            mStrings.set(id, null);
+            mFreeStringIds.push(id);
+        }
+    }
+
+    /** A growable queue of longs, read by index from the oldest one. */
+    private static final class LongQueue {
+        @NonNull
+        private long[] mValues = new long[16];
+
+        private int mHead;
+
+        private int mSize;
+
+        int size() {
+            return mSize;
+        }
+
+        long get(int index) {
+            return mValues[(mHead + index) & (mValues.length - 1)];
+        }
+
+        void add(long value) {
+            if (mSize == mValues.length) {
+                long[] values = new long[mValues.length * 2];
+                for (int i = 0; i < mSize; i++) {
+                    values[i] = get(i);
+                }
+                mValues = values;
+                mHead = 0;
+            }
+            mValues[(mHead + mSize) & (mValues.length - 1)] = value;
+            mSize++;
+        }
+
+        long removeFirst() {
+            long value = mValues[mHead];
+            mHead = (mHead + 1) & (mValues.length - 1);
+            mSize--;
+            return value;
+        }
+    }
+}
@@ -17,12 +17,16 @@
 package com.android.ddmlib.testrunner;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.ByteLineReceiver;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log;
-import com.android.ddmlib.MultiLineReceiver;
+import com.android.ddmlib.Log.LogLevel;
+import com.google.common.base.Charsets;
 import java.text.NumberFormat;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -66,8 +70,11 @@ import java.util.regex.Pattern;
  * Time: X
  * </pre>
  * <p>Note that the "value" portion of the key-value pair may wrap over several text lines
+ *
+ * <p>The output is parsed as it is received, without decoding the lines: status keys and codes
+ * are matched against bytes, and values are only decoded once complete, if they are used.
  */
-public class InstrumentationResultParser extends MultiLineReceiver {
+public class InstrumentationResultParser extends ByteLineReceiver {
 
     /** Relevant test status keys. */
     private static class StatusKeys {
@@ -110,17 +117,37 @@ public class InstrumentationResultParser extends MultiLineReceiver {
         private static final int OK = 0;
     }
 
+    /**
+     * The status keys matched without being decoded, which are all the known keys. The matching
+     * constant is used as the key.
+     */
+    private static final String[] MATCHED_KEYS = KNOWN_KEYS.toArray(new String[0]);
+    private static final byte[][] MATCHED_KEY_BYTES = new byte[MATCHED_KEYS.length][];
+    static {
+        for (int i = 0; i < MATCHED_KEYS.length; i++) {
+            MATCHED_KEY_BYTES[i] = MATCHED_KEYS[i].getBytes(Charsets.US_ASCII);
+        }
+    }
+
     /** Prefixes used to identify output. */
     private static class Prefixes {
-        private static final String STATUS = "INSTRUMENTATION_STATUS: ";
-        private static final String STATUS_CODE = "INSTRUMENTATION_STATUS_CODE: ";
-        private static final String STATUS_FAILED = "INSTRUMENTATION_FAILED: ";
-        private static final String ON_ERROR = "onError:";
-        private static final String CODE = "INSTRUMENTATION_CODE: ";
-        private static final String RESULT = "INSTRUMENTATION_RESULT: ";
-        private static final String TIME_REPORT = "Time: ";
+        private static final byte[] STATUS = ascii("INSTRUMENTATION_STATUS: ");
+        private static final byte[] STATUS_CODE = ascii("INSTRUMENTATION_STATUS_CODE: ");
+        private static final byte[] STATUS_FAILED = ascii("INSTRUMENTATION_FAILED: ");
+        private static final byte[] ON_ERROR = ascii("onError:");
+        private static final byte[] CODE = ascii("INSTRUMENTATION_CODE: ");
+        private static final byte[] RESULT = ascii("INSTRUMENTATION_RESULT: ");
+        private static final byte[] TIME_REPORT = ascii("Time: ");
+
+        private static byte[] ascii(String prefix) {
+            return prefix.getBytes(Charsets.US_ASCII);
+        }
     }
 
+    private static final Pattern TIME_PATTERN = Pattern.compile(String.format(
+            "%s\\s*([\\d\\,]*[\\d\\.]+)",
+            new String(Prefixes.TIME_REPORT, Charsets.US_ASCII)));
+
     private final Collection<ITestRunListener> mTestListeners;
 
     /**
@@ -168,8 +195,12 @@ public class InstrumentationResultParser extends MultiLineReceiver {
     /** Stores the current "key" portion of the status key-value being parsed. */
     private String mCurrentKey = null;
 
-    /** Stores the current "value" portion of the status key-value being parsed. */
-    private StringBuilder mCurrentValue = null;
+    /**
+     * Stores the current "value" portion of the status key-value being parsed, if {@link
+     * #mCurrentKey} is set. The buffer is reused from value to value.
+     */
+    private byte[] mCurrentValue = new byte[256];
+    private int mCurrentValueLength = 0;
 
     /** True if start of test has already been reported to listener. */
     private boolean mTestStartReported = false;
@@ -215,9 +246,10 @@ public class InstrumentationResultParser extends MultiLineReceiver {
 
     /**
      * Stores key-value pairs of metrics emitted during the execution of each test case.  Note that
-     * standard keys that are stored in the TestResults class are filtered out of this Map.
+     * standard keys that are stored in the TestResults class are filtered out of this Map. Only
+     * created once a test emits metrics.
      */
-    private Map<String, String> mTestMetrics = new HashMap<String, String>();
+    @Nullable private Map<String, String> mTestMetrics = null;
 
     private static final String LOG_TAG = "InstrumentationResultParser";
 
@@ -264,14 +296,31 @@ public class InstrumentationResultParser extends MultiLineReceiver {
     /**
      * Processes the instrumentation test output from shell.
      *
-     * @see MultiLineReceiver#processNewLines
+     * @deprecated the output is parsed from bytes, use {@link #addOutput(byte[], int, int)}.
      */
-    @Override
+    @Deprecated
     public void processNewLines(@NonNull String[] lines) {
         for (String line : lines) {
-            parse(line);
-            // in verbose mode, dump all adb output to log
-            Log.v(LOG_TAG, line);
+            byte[] data = line.getBytes(Charsets.UTF_8);
+            processLine(data, 0, data.length);
+        }
+    }
+
+    @Override
+    protected void processLine(@NonNull byte[] data, int offset, int length) {
+        // lines are trimmed like String#trim(): no multi-byte UTF-8 sequence contains bytes <= ' '
+        int start = offset;
+        int end = offset + length;
+        while (start < end && (data[start] & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (data[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        parse(data, start, end);
+        // in verbose mode, dump all adb output to log
+        if (Log.isAtLeast(LogLevel.VERBOSE)) {
+            Log.v(LOG_TAG, new String(data, start, end - start, Charsets.UTF_8));
         }
     }
 
@@ -291,62 +340,77 @@ public class InstrumentationResultParser extends MultiLineReceiver {
      * <li> A line reporting the total elapsed time of the test run. (Prefixes.TIME_REPORT) </li>
      * </ul>
      *
-     * @param line  Text output line
+     * @param data the buffer holding the trimmed output line
+     * @param start the offset of the line in the buffer
+     * @param end the offset of the end of the line in the buffer
      */
-    private void parse(String line) {
-        if (line.startsWith(Prefixes.STATUS_CODE)) {
+    private void parse(@NonNull byte[] data, int start, int end) {
+        if (startsWith(data, start, end, Prefixes.STATUS_CODE)) {
             // Previous status key-value has been collected. Store it.
             submitCurrentKeyValue();
             mInInstrumentationResultKey = false;
-            parseStatusCode(line);
-        } else if (line.startsWith(Prefixes.STATUS)) {
+            parseStatusCode(data, start + Prefixes.STATUS_CODE.length, end);
+        } else if (startsWith(data, start, end, Prefixes.STATUS)) {
             // Previous status key-value has been collected. Store it.
             submitCurrentKeyValue();
             mInInstrumentationResultKey = false;
-            parseKey(line, Prefixes.STATUS.length());
-        } else if (line.startsWith(Prefixes.RESULT)) {
+            parseKey(data, start + Prefixes.STATUS.length, end);
+        } else if (startsWith(data, start, end, Prefixes.RESULT)) {
             // Previous status key-value has been collected. Store it.
             submitCurrentKeyValue();
             mInInstrumentationResultKey = true;
-            parseKey(line, Prefixes.RESULT.length());
-        } else if (line.startsWith(Prefixes.STATUS_FAILED) ||
-                   line.startsWith(Prefixes.CODE)) {
+            parseKey(data, start + Prefixes.RESULT.length, end);
+        } else if (startsWith(data, start, end, Prefixes.STATUS_FAILED) ||
+                   startsWith(data, start, end, Prefixes.CODE)) {
             // Previous status key-value has been collected. Store it.
             submitCurrentKeyValue();
             mInInstrumentationResultKey = false;
             // these codes signal the end of the instrumentation run
             mTestRunFinished = true;
             // just ignore the remaining data on this line
-        } else if (line.startsWith(Prefixes.TIME_REPORT)) {
-            parseTime(line);
-        } else if (line.startsWith(Prefixes.ON_ERROR)) {
-            mOnError = line;
+        } else if (startsWith(data, start, end, Prefixes.TIME_REPORT)) {
+            parseTime(new String(data, start, end - start, Charsets.UTF_8));
+        } else if (startsWith(data, start, end, Prefixes.ON_ERROR)) {
+            mOnError = new String(data, start, end - start, Charsets.UTF_8);
         } else {
-            if (mCurrentValue != null) {
+            if (mCurrentKey != null) {
                 // this is a value that has wrapped to next line.
-                mCurrentValue.append("\r\n");
-                mCurrentValue.append(line);
-            } else if (!line.trim().isEmpty()) {
-                Log.d(LOG_TAG, "unrecognized line " + line);
+                appendValue(data, start, end, true);
+            } else if (end > start) {
+                Log.d(LOG_TAG, "unrecognized line "
+                        + new String(data, start, end - start, Charsets.UTF_8));
+            }
+        }
+    }
+
+    private static boolean startsWith(@NonNull byte[] data, int start, int end,
+            @NonNull byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[start + i] != prefix[i]) {
+                return false;
             }
         }
+        return true;
     }
 
     /**
      * Stores the currently parsed key-value pair in the appropriate place.
      */
     private void submitCurrentKeyValue() {
-        if (mCurrentKey != null && mCurrentValue != null) {
-            String statusValue = mCurrentValue.toString();
+        if (mCurrentKey != null) {
             if (mInInstrumentationResultKey) {
                 if (!KNOWN_KEYS.contains(mCurrentKey)) {
-                    mInstrumentationResultBundle.put(mCurrentKey, statusValue);
+                    mInstrumentationResultBundle.put(mCurrentKey, getCurrentValue());
                 } else if (mCurrentKey.equals(StatusKeys.SHORTMSG)) {
                     // test run must have failed
                     handleTestRunFailed(String.format("Instrumentation run failed due to '%1$s'",
-                            statusValue));
+                            getCurrentValue()));
                 } else if (STREAM.equals(mCurrentKey)) {
-                    if (statusValue != null && statusValue.contains(FATAL_EXCEPTION_MSG)) {
+                    String statusValue = getCurrentValue();
+                    if (statusValue.contains(FATAL_EXCEPTION_MSG)) {
                         mStreamError = statusValue;
                     }
                 }
@@ -354,40 +418,76 @@ public class InstrumentationResultParser extends MultiLineReceiver {
                 TestResult testInfo = getCurrentTestInfo();
 
                 if (mCurrentKey.equals(StatusKeys.CLASS)) {
-                    testInfo.mTestClass = statusValue.trim();
+                    testInfo.mTestClass = getCurrentValue().trim();
                 } else if (mCurrentKey.equals(StatusKeys.TEST)) {
-                    testInfo.mTestName = statusValue.trim();
+                    testInfo.mTestName = getCurrentValue().trim();
                 } else if (mCurrentKey.equals(StatusKeys.NUMTESTS)) {
-                    try {
-                        testInfo.mNumTests = Integer.parseInt(statusValue);
-                    } catch (NumberFormatException e) {
+                    testInfo.mNumTests = parseInteger(mCurrentValue, 0, mCurrentValueLength);
+                    if (testInfo.mNumTests == null) {
                         Log.w(LOG_TAG, "Unexpected integer number of tests, received "
-                                + statusValue);
+                                + getCurrentValue());
                     }
                 } else if (mCurrentKey.equals(StatusKeys.ERROR)) {
                     // test run must have failed
-                    handleTestRunFailed(statusValue);
+                    handleTestRunFailed(getCurrentValue());
                 } else if (mCurrentKey.equals(StatusKeys.STACK)) {
-                    testInfo.mStackTrace = statusValue;
+                    testInfo.mStackTrace = getCurrentValue();
                 } else if (!KNOWN_KEYS.contains(mCurrentKey)) {
                     // Not one of the recognized key/value pairs, so dump it in mTestMetrics
-                    mTestMetrics.put(mCurrentKey, statusValue);
+                    if (mTestMetrics == null) {
+                        mTestMetrics = new HashMap<String, String>();
+                    }
+                    mTestMetrics.put(mCurrentKey, getCurrentValue());
                 }
             }
 
             mCurrentKey = null;
-            mCurrentValue = null;
+            mCurrentValueLength = 0;
         }
     }
 
+    @NonNull
+    private String getCurrentValue() {
+        return new String(mCurrentValue, 0, mCurrentValueLength, Charsets.UTF_8);
+    }
+
+    /**
+     * Parses a decimal integer, like {@link Integer#parseInt(String)}.
+     *
+     * @return the integer, or null if the bytes don't hold one.
+     */
+    @Nullable
+    private static Integer parseInteger(@NonNull byte[] data, int start, int end) {
+        boolean negative = start < end && data[start] == '-';
+        if (start < end && (data[start] == '-' || data[start] == '+')) {
+            start++;
+        }
+        if (start == end || end - start > 10) {
+            return null;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            if (data[i] < '0' || data[i] > '9') {
+                return null;
+            }
+            value = value * 10 + data[i] - '0';
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            return null;
+        }
+        return (int) value;
+    }
+
     /**
      * A utility method to return the test metrics from the current test case execution and get
      * ready for the next one.
      */
+    @NonNull
     private Map<String, String> getAndResetTestMetrics() {
         Map<String, String> retVal = mTestMetrics;
-        mTestMetrics = new HashMap<String, String>();
-        return retVal;
+        mTestMetrics = null;
+        return retVal != null ? retVal : Collections.<String, String>emptyMap();
     }
 
     private TestResult getCurrentTestInfo() {
@@ -406,39 +506,71 @@ public class InstrumentationResultParser extends MultiLineReceiver {
      * Parses the key from the current line.
      * Expects format of "key=value".
      *
-     * @param line full line of text to parse
-     * @param keyStartPos the starting position of the key in the given line
+     * @param data the buffer holding the line
+     * @param keyStartPos the starting position of the key in the buffer
+     * @param end the offset of the end of the line in the buffer
      */
-    private void parseKey(String line, int keyStartPos) {
-        int endKeyPos = line.indexOf('=', keyStartPos);
-        if (endKeyPos != -1) {
-            mCurrentKey = line.substring(keyStartPos, endKeyPos).trim();
-            parseValue(line, endKeyPos + 1);
+    private void parseKey(@NonNull byte[] data, int keyStartPos, int end) {
+        int endKeyPos = keyStartPos;
+        while (endKeyPos < end && data[endKeyPos] != '=') {
+            endKeyPos++;
+        }
+        if (endKeyPos < end) {
+            mCurrentKey = getKey(data, keyStartPos, endKeyPos);
+            mCurrentValueLength = 0;
+            appendValue(data, endKeyPos + 1, end, false);
         }
     }
 
+    /** Returns the trimmed key held by the given bytes, without decoding known keys. */
+    @NonNull
+    private static String getKey(@NonNull byte[] data, int start, int end) {
+        while (start < end && (data[start] & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (data[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        for (int i = 0; i < MATCHED_KEY_BYTES.length; i++) {
+            byte[] key = MATCHED_KEY_BYTES[i];
+            if (key.length == end - start && startsWith(data, start, end, key)) {
+                return MATCHED_KEYS[i];
+            }
+        }
+        return new String(data, start, end - start, Charsets.UTF_8);
+    }
+
     /**
-     * Parses the start of a key=value pair.
+     * Appends to the current value.
      *
-     * @param line - full line of text to parse
-     * @param valueStartPos - the starting position of the value in the given line
+     * @param continuation whether the value has wrapped to the next line.
      */
-    private void parseValue(String line, int valueStartPos) {
-        mCurrentValue = new StringBuilder();
-        mCurrentValue.append(line.substring(valueStartPos));
+    private void appendValue(@NonNull byte[] data, int start, int end, boolean continuation) {
+        int newLength = mCurrentValueLength + (continuation ? 2 : 0) + end - start;
+        if (newLength > mCurrentValue.length) {
+            mCurrentValue = Arrays.copyOf(mCurrentValue,
+                    Math.max(newLength, mCurrentValue.length * 2));
+        }
+        if (continuation) {
+            mCurrentValue[mCurrentValueLength++] = '\r';
+            mCurrentValue[mCurrentValueLength++] = '\n';
+        }
+        System.arraycopy(data, start, mCurrentValue, mCurrentValueLength, end - start);
+        mCurrentValueLength = newLength;
     }
 
     /**
      * Parses out a status code result.
      */
-    private void parseStatusCode(String line) {
-        String value = line.substring(Prefixes.STATUS_CODE.length()).trim();
+    private void parseStatusCode(@NonNull byte[] data, int start, int end) {
+        while (start < end && (data[start] & 0xff) <= ' ') {
+            start++;
+        }
         TestResult testInfo = getCurrentTestInfo();
-        testInfo.mCode = StatusCodes.ERROR;
-        try {
-            testInfo.mCode = Integer.parseInt(value);
-        } catch (NumberFormatException e) {
-            Log.w(LOG_TAG, "Expected integer status code, received: " + value);
+        testInfo.mCode = parseInteger(data, start, end);
+        if (testInfo.mCode == null) {
+            Log.w(LOG_TAG, "Expected integer status code, received: "
+                    + new String(data, start, end - start, Charsets.UTF_8));
             testInfo.mCode = StatusCodes.ERROR;
         }
         if (testInfo.mCode != StatusCodes.IN_PROGRESS) {
@@ -573,9 +705,7 @@ public class InstrumentationResultParser extends MultiLineReceiver {
      * For example: "Time: 1,745.755" which should be handled.
      */
     private void parseTime(String line) {
-        final Pattern timePattern =
-                Pattern.compile(String.format("%s\\s*([\\d\\,]*[\\d\\.]+)", Prefixes.TIME_REPORT));
-        Matcher timeMatcher = timePattern.matcher(line);
+        Matcher timeMatcher = TIME_PATTERN.matcher(line);
         if (timeMatcher.find()) {
             String timeString = timeMatcher.group(1);
             try {
@@ -22,6 +22,7 @@ import com.android.ddmlib.Log;
 import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.testrunner.TestResult.TestStatus;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
 
 import org.kxml2.io.KXmlSerializer;
 
@@ -31,7 +32,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
@@ -41,6 +44,9 @@ import java.util.TimeZone;
  * Ant's XMLJUnitResultFormatter.
  * <p>
  * Creates a separate XML file per test run.
+ * <p>
+ * By default the results are kept in memory until the end of the run, see
+ * {@link #setStreamResults(boolean)} to write them out as tests end instead.
  *
  * @see <a href="https://svn.jenkins-ci.org/trunk/hudson/dtkit/dtkit-format/dtkit-junit-model/src/main/resources/com/thalesgroup/dtkit/junit/model/xsd/junit-4.xsd">https://svn.jenkins-ci.org/trunk/hudson/dtkit/dtkit-format/dtkit-junit-model/src/main/resources/com/thalesgroup/dtkit/junit/model/xsd/junit-4.xsd</a> */
 public class XmlTestRunListener implements ITestRunListener {
@@ -49,6 +55,7 @@ public class XmlTestRunListener implements ITestRunListener {
 
     private static final String TEST_RESULT_FILE_SUFFIX = ".xml";
     private static final String TEST_RESULT_FILE_PREFIX = "test_result_";
+    private static final String TEST_CASES_FILE_SUFFIX = ".xml.part";
 
     private static final String TESTSUITE = "testsuite";
     private static final String TESTCASE = "testcase";
@@ -81,6 +88,23 @@ public class XmlTestRunListener implements ITestRunListener {
 
     private TestRunResult mRunResult = new TestRunResult();
 
+    private boolean mStreamResults = false;
+
+    /**
+     * The test cases written so far in the current run, when streaming results. Null if the
+     * results of the current run are kept in {@link #mRunResult}.
+     */
+    private File mTestCasesFile;
+    private OutputStream mTestCasesStream;
+    private KXmlSerializer mTestCasesSerializer;
+
+    /** The results of the tests in progress, when streaming results. */
+    private final Map<TestIdentifier, TestResult> mStreamedTests =
+            new LinkedHashMap<TestIdentifier, TestResult>();
+
+    /** The number of tests written in each state. Indexed by TestStatus.ordinal() */
+    private final int[] mStreamedStatusCounts = new int[TestStatus.values().length];
+
     /**
      * Sets the report file to use.
      */
@@ -88,6 +112,15 @@ public class XmlTestRunListener implements ITestRunListener {
         mReportDir = file;
     }
 
+    /**
+     * Sets whether the result of each test is written out when the test ends, rather than kept
+     * in memory until the end of the run. Streamed results are not part of
+     * {@link #getRunResult()}. Takes effect at the start of the next run.
+     */
+    public void setStreamResults(boolean streamResults) {
+        mStreamResults = streamResults;
+    }
+
     public void setHostName(String hostName) {
         mHostName = hostName;
     }
@@ -102,33 +135,63 @@ public class XmlTestRunListener implements ITestRunListener {
 
     @Override
     public void testRunStarted(String runName, int numTests) {
+        closeTestCases();
         mRunResult = new TestRunResult();
         mRunResult.testRunStarted(runName, numTests);
+        if (mStreamResults) {
+            openTestCases(mReportDir);
+        }
     }
 
     @Override
     public void testStarted(TestIdentifier test) {
-       mRunResult.testStarted(test);
+        if (mTestCasesSerializer != null) {
+            mStreamedTests.put(test, new TestResult());
+        } else {
+            mRunResult.testStarted(test);
+        }
     }
 
     @Override
     public void testFailed(TestIdentifier test, String trace) {
-        mRunResult.testFailed(test, trace);
+        if (mTestCasesSerializer != null) {
+            getStreamedTest(test).setStatus(TestStatus.FAILURE).setStackTrace(trace);
+        } else {
+            mRunResult.testFailed(test, trace);
+        }
     }
 
     @Override
     public void testAssumptionFailure(TestIdentifier test, String trace) {
-        mRunResult.testAssumptionFailure(test, trace);
+        if (mTestCasesSerializer != null) {
+            getStreamedTest(test).setStatus(TestStatus.ASSUMPTION_FAILURE).setStackTrace(trace);
+        } else {
+            mRunResult.testAssumptionFailure(test, trace);
+        }
     }
 
     @Override
     public void testIgnored(TestIdentifier test) {
-        mRunResult.testIgnored(test);
+        if (mTestCasesSerializer != null) {
+            getStreamedTest(test).setStatus(TestStatus.IGNORED);
+        } else {
+            mRunResult.testIgnored(test);
+        }
     }
 
     @Override
     public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
-        mRunResult.testEnded(test, testMetrics);
+        if (mTestCasesSerializer != null) {
+            TestResult result = getStreamedTest(test);
+            mStreamedTests.remove(test);
+            if (result.getStatus() == TestStatus.INCOMPLETE) {
+                result.setStatus(TestStatus.PASSED);
+            }
+            result.setEndTime(System.currentTimeMillis());
+            writeTestCase(test, result);
+        } else {
+            mRunResult.testEnded(test, testMetrics);
+        }
     }
 
     @Override
@@ -144,7 +207,109 @@ public class XmlTestRunListener implements ITestRunListener {
     @Override
     public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
         mRunResult.testRunEnded(elapsedTime, runMetrics);
+        if (mTestCasesSerializer != null) {
+            // tests which didn't end are reported as incomplete
+            for (Map.Entry<TestIdentifier, TestResult> testEntry : mStreamedTests.entrySet()) {
+                writeTestCase(testEntry.getKey(), testEntry.getValue());
+            }
+            mStreamedTests.clear();
+            try {
+                mTestCasesSerializer.flush();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to write test results");
+            }
+        }
         generateDocument(mReportDir, elapsedTime);
+        closeTestCases();
+    }
+
+    /**
+     * Starts writing the test cases of the run to a file in the report directory, to be included
+     * in the report when the run ends.
+     */
+    private void openTestCases(File reportDir) {
+        mStreamedTests.clear();
+        Arrays.fill(mStreamedStatusCounts, 0);
+        try {
+            mTestCasesFile = File.createTempFile(TEST_RESULT_FILE_PREFIX, TEST_CASES_FILE_SUFFIX,
+                    reportDir);
+            mTestCasesStream = new BufferedOutputStream(new FileOutputStream(mTestCasesFile));
+            mTestCasesSerializer = new KXmlSerializer();
+            mTestCasesSerializer.setOutput(mTestCasesStream, SdkConstants.UTF_8);
+            mTestCasesSerializer.setFeature(
+                    "http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to create test results file, keeping results in memory");
+            closeTestCases();
+        }
+    }
+
+    private void closeTestCases() {
+        if (mTestCasesStream != null) {
+            try {
+                mTestCasesStream.close();
+            } catch (IOException ignored) {
+            }
+        }
+        if (mTestCasesFile != null && !mTestCasesFile.delete()) {
+            mTestCasesFile.deleteOnExit();
+        }
+        mTestCasesFile = null;
+        mTestCasesStream = null;
+        mTestCasesSerializer = null;
+    }
+
+    private TestResult getStreamedTest(TestIdentifier test) {
+        TestResult result = mStreamedTests.get(test);
+        if (result == null) {
+            Log.d(LOG_TAG, String.format("received test event without test start for %s", test));
+            result = new TestResult();
+            mStreamedTests.put(test, result);
+        }
+        return result;
+    }
+
+    private void writeTestCase(TestIdentifier test, TestResult result) {
+        try {
+            print(mTestCasesSerializer, test, result);
+            mStreamedStatusCounts[result.getStatus().ordinal()]++;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, String.format("Failed to write result of %s", test));
+        }
+    }
+
+    private int getNumTests() {
+        if (mTestCasesSerializer == null) {
+            return mRunResult.getNumTests();
+        }
+        int numTests = 0;
+        for (int count : mStreamedStatusCounts) {
+            numTests += count;
+        }
+        return numTests;
+    }
+
+    private int getNumTestsInState(TestStatus status) {
+        if (mTestCasesSerializer == null) {
+            return mRunResult.getNumTestsInState(status);
+        }
+        return mStreamedStatusCounts[status.ordinal()];
+    }
+
+    /** Returns a user friendly string describing results, like TestRunResult#getTextSummary. */
+    private String getTextSummary() {
+        if (mTestCasesSerializer == null) {
+            return mRunResult.getTextSummary();
+        }
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("Total tests %d, ", getNumTests()));
+        for (TestStatus status : TestStatus.values()) {
+            int count = getNumTestsInState(status);
+            if (count > 0) {
+                builder.append(String.format("%s %d, ", status.toString().toLowerCase(), count));
+            }
+        }
+        return builder.toString();
     }
 
     /**
@@ -162,10 +327,10 @@ public class XmlTestRunListener implements ITestRunListener {
             serializer.setFeature(
                     "http://xmlpull.org/v1/doc/features.html#indent-output", true);
             // TODO: insert build info
-            printTestResults(serializer, timestamp, elapsedTime);
+            printTestResults(serializer, stream, timestamp, elapsedTime);
             serializer.endDocument();
             String msg = String.format("XML test result file generated at %s. %s" ,
-                    getAbsoluteReportPath(), mRunResult.getTextSummary());
+                    getAbsoluteReportPath(), getTextSummary());
             Log.logAndDisplay(LogLevel.INFO, LOG_TAG, msg);
         } catch (IOException e) {
             Log.e(LOG_TAG, "Failed to generate report data");
@@ -225,19 +390,19 @@ public class XmlTestRunListener implements ITestRunListener {
         return mRunResult.getName();
     }
 
-    void printTestResults(KXmlSerializer serializer, String timestamp, long elapsedTime)
-            throws IOException {
+    void printTestResults(KXmlSerializer serializer, OutputStream stream, String timestamp,
+            long elapsedTime) throws IOException {
         serializer.startTag(ns, TESTSUITE);
         String name = getTestSuiteName();
         if (name != null) {
             serializer.attribute(ns, ATTR_NAME, name);
         }
-        serializer.attribute(ns, ATTR_TESTS, Integer.toString(mRunResult.getNumTests()));
+        serializer.attribute(ns, ATTR_TESTS, Integer.toString(getNumTests()));
         serializer.attribute(ns, ATTR_FAILURES, Integer.toString(
-                mRunResult.getNumAllFailedTests()));
+                getNumTestsInState(TestStatus.FAILURE)));
         // legacy - there are no errors in JUnit4
         serializer.attribute(ns, ATTR_ERRORS, "0");
-        serializer.attribute(ns, ATTR_SKIPPED, Integer.toString(mRunResult.getNumTestsInState(
+        serializer.attribute(ns, ATTR_SKIPPED, Integer.toString(getNumTestsInState(
                 TestStatus.IGNORED)));
 
         serializer.attribute(ns, ATTR_TIME, Double.toString((double) elapsedTime / 1000.f));
@@ -253,9 +418,15 @@ public class XmlTestRunListener implements ITestRunListener {
         }
         serializer.endTag(ns, PROPERTIES);
 
-        Map<TestIdentifier, TestResult> testResults = mRunResult.getTestResults();
-        for (Map.Entry<TestIdentifier, TestResult> testEntry : testResults.entrySet()) {
-            print(serializer, testEntry.getKey(), testEntry.getValue());
+        if (mTestCasesFile != null) {
+            // the test cases were already written out, copy them as is.
+            serializer.flush();
+            Files.copy(mTestCasesFile, stream);
+        } else {
+            Map<TestIdentifier, TestResult> testResults = mRunResult.getTestResults();
+            for (Map.Entry<TestIdentifier, TestResult> testEntry : testResults.entrySet()) {
+                print(serializer, testEntry.getKey(), testEntry.getValue());
+            }
         }
 
         serializer.endTag(ns, TESTSUITE);
@@ -16,7 +16,21 @@
 package com.android.ddmlib;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.junit.Test;
 
 public final class AdbHelperTest {
@@ -27,4 +41,115 @@ public final class AdbHelperTest {
         byte[] bytes = path.getBytes(AdbHelper.DEFAULT_CHARSET);
         assertEquals(path, new String(bytes, AdbHelper.DEFAULT_CHARSET));
     }
+
+    @Test
+    public void asyncCommandOutput() throws Exception {
+        try (FakeAdb adb = new FakeAdb("OKAYhello\n", true)) {
+            CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+            Future<Void> future = executeAsync(adb, receiver, 0);
+            future.get(5, TimeUnit.SECONDS);
+            assertEquals("shell:echo hello", adb.getRequest());
+            assertEquals("hello\n", receiver.getOutput());
+        }
+    }
+
+    @Test
+    public void asyncCommandRejected() throws Exception {
+        try (FakeAdb adb = new FakeAdb("FAIL0005nope!", true)) {
+            Future<Void> future = executeAsync(adb, new CollectingOutputReceiver(), 0);
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof AdbCommandRejectedException);
+                assertEquals("nope!", e.getCause().getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void asyncCommandUnresponsive() throws Exception {
+        try (FakeAdb adb = new FakeAdb("OKAY", false)) {
+            Future<Void> future = executeAsync(adb, new CollectingOutputReceiver(), 100);
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof ShellCommandUnresponsiveException);
+            }
+        }
+    }
+
+    @Test
+    public void readTimesOut() throws Exception {
+        try (FakeAdb adb = new FakeAdb("OK", false);
+                SocketChannel chan = SocketChannel.open(adb.getAddress())) {
+            chan.configureBlocking(false);
+            long start = System.nanoTime();
+            try {
+                AdbHelper.read(chan, new byte[4], -1, 100);
+                fail();
+            } catch (TimeoutException e) {
+                assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+            }
+            // The channel can go back to blocking mode once the read is over.
+            chan.configureBlocking(true);
+        }
+    }
+
+    private static Future<Void> executeAsync(FakeAdb adb, IShellOutputReceiver receiver,
+            long maxTimeToOutputResponse) {
+        return AdbHelper.executeRemoteCommandAsync(adb.getAddress(), AdbHelper.AdbService.SHELL,
+                "echo hello", null, receiver, 0, maxTimeToOutputResponse,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /** Accepts one connection, reads one request and replies with a canned response. */
+    private static final class FakeAdb implements AutoCloseable {
+        private final ServerSocket mServerSocket;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private final Thread mThread;
+        private volatile String mRequest;
+
+        FakeAdb(String reply, boolean close) throws IOException {
+            mServerSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            mThread = new Thread(() -> {
+                try (Socket socket = mServerSocket.accept()) {
+                    OutputStream out = socket.getOutputStream();
+                    if (reply.startsWith("OKAY") || reply.startsWith("FAIL")) {
+                        DataInputStream in = new DataInputStream(socket.getInputStream());
+                        byte[] length = new byte[4];
+                        in.readFully(length);
+                        byte[] request = new byte[Integer.parseInt(new String(length), 16)];
+                        in.readFully(request);
+                        mRequest = new String(request, AdbHelper.DEFAULT_CHARSET);
+                    }
+                    out.write(reply.getBytes(AdbHelper.DEFAULT_CHARSET));
+                    out.flush();
+                    if (!close) {
+                        mDone.await();
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // the test is over
+                }
+            });
+            mThread.start();
+        }
+
+        InetSocketAddress getAddress() {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    mServerSocket.getLocalPort());
+        }
+
+        String getRequest() {
+            return mRequest;
+        }
+
+        @Override
+        public void close() throws Exception {
+            mDone.countDown();
+            mServerSocket.close();
+            mThread.join();
+        }
+    }
 }
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.annotations.NonNull;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+public class ChunkDispatcherTest extends TestCase {
+
+    private static final int CHUNK_TEST = ChunkHandler.type("TEST");
+
+    private final List<Runnable> mTasks = new ArrayList<>();
+
+    private final ByteBufferPool mPool = new ByteBufferPool(1024 * 1024);
+
+    private Client mClient;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ClientTracker tracker =
+                new ClientTracker() {
+                    @Override
+                    public void trackDisconnectedClient(@NonNull Client client) {}
+
+                    @Override
+                    public void trackClientToDropAndReopen(@NonNull Client client, int port) {}
+                };
+        mClient = new Client(new Device(tracker, "11", IDevice.DeviceState.ONLINE), null, 1);
+    }
+
+    public void testChunksHandledInOrder() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            CountDownLatch latch = new CountDownLatch(100);
+            RecordingHandler handler = new RecordingHandler(latch);
+            ChunkDispatcher dispatcher = new ChunkDispatcher(mClient, executor, mPool);
+            for (int i = 0; i < 100; i++) {
+                dispatcher.dispatch(handler, createPacket(i));
+            }
+
+            assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                expected.add(i);
+            }
+            assertThat(handler.mValues).containsExactlyElementsIn(expected).inOrder();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testPacketCopied() {
+        RecordingHandler handler = new RecordingHandler(null);
+        ChunkDispatcher dispatcher = new ChunkDispatcher(mClient, mTasks::add, mPool);
+        JdwpPacket packet = createPacket(42);
+        dispatcher.dispatch(handler, packet);
+        // the monitor thread reuses the buffer of the packet right away.
+        packet.getPayload().putInt(ChunkHandler.CHUNK_HEADER_LEN, 0);
+        assertThat(dispatcher.getQueueDepth()).isEqualTo(1);
+
+        runTasks();
+
+        assertThat(handler.mValues).containsExactly(42);
+        assertThat(dispatcher.getQueueDepth()).isEqualTo(0);
+        assertThat(dispatcher.getMaxQueueDepth()).isEqualTo(1);
+        assertThat(dispatcher.getHandledCount()).isEqualTo(1L);
+        // the copy is back in the pool.
+        assertThat(mPool.getPooledBytes()).isGreaterThan(0L);
+    }
+
+    public void testCloseDiscardsPendingChunks() {
+        RecordingHandler handler = new RecordingHandler(null);
+        ChunkDispatcher dispatcher = new ChunkDispatcher(mClient, mTasks::add, mPool);
+        dispatcher.dispatch(handler, createPacket(1));
+        dispatcher.dispatch(handler, createPacket(2));
+        dispatcher.close();
+        dispatcher.dispatch(handler, createPacket(3));
+
+        runTasks();
+
+        assertThat(handler.mValues).isEmpty();
+        assertThat(dispatcher.getQueueDepth()).isEqualTo(0);
+        assertThat(mPool.getPooledBytes()).isGreaterThan(0L);
+    }
+
+    public void testPoolReusesBuffers() {
+        ByteBuffer buffer = mPool.acquire(3000);
+        assertThat(buffer.capacity()).isEqualTo(4096);
+        buffer.position(100);
+        mPool.release(buffer);
+        assertThat(mPool.getPooledBytes()).isEqualTo(4096L);
+
+        ByteBuffer reused = mPool.acquire(4000);
+        assertThat(reused).isSameAs(buffer);
+        assertThat(reused.position()).isEqualTo(0);
+        assertThat(mPool.getPooledBytes()).isEqualTo(0L);
+
+        // buffers which don't fit in the pool are dropped.
+        mPool.release(mPool.acquire(2 * 1024 * 1024));
+        assertThat(mPool.getPooledBytes()).isEqualTo(0L);
+    }
+
+    private void runTasks() {
+        while (!mTasks.isEmpty()) {
+            mTasks.remove(0).run();
+        }
+    }
+
+    private static JdwpPacket createPacket(int value) {
+        ByteBuffer rawBuf = ChunkHandler.allocBuffer(4);
+        JdwpPacket packet = new JdwpPacket(rawBuf);
+        ByteBuffer buf = ChunkHandler.getChunkDataBuf(rawBuf);
+        buf.putInt(value);
+        ChunkHandler.finishChunkPacket(packet, CHUNK_TEST, buf.position());
+        return packet;
+    }
+
+    private static final class RecordingHandler extends ChunkHandler {
+        private final List<Integer> mValues = Collections.synchronizedList(new ArrayList<>());
+        private final CountDownLatch mLatch;
+
+        RecordingHandler(CountDownLatch latch) {
+            mLatch = latch;
+        }
+
+        @Override
+        void clientReady(Client client) {}
+
+        @Override
+        void clientDisconnected(Client client) {}
+
+        @Override
+        void handleChunk(
+                Client client, int type, ByteBuffer data, boolean isReply, int msgId) {
+            assertThat(type).isEqualTo(CHUNK_TEST);
+            mValues.add(data.getInt());
+            if (mLatch != null) {
+                mLatch.countDown();
+            }
+        }
+    }
+}
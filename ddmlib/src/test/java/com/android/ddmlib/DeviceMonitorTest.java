@@ -17,13 +17,21 @@ package com.android.ddmlib;
 
 import com.android.annotations.NonNull;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
+
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class DeviceMonitorTest extends TestCase {
     public void testDeviceListMonitor() {
@@ -61,6 +69,102 @@ public class DeviceMonitorTest extends TestCase {
         assertEquals("3", result.added.get(0).getSerialNumber());
     }
 
+    public void testClientListsAreCoalesced() {
+        List<String> opened = new ArrayList<>();
+        DeviceMonitor monitor = new DeviceMonitor(null, (device, pid) -> {
+            opened.add(device.getSerialNumber() + ":" + pid);
+            return false;
+        }, MoreExecutors.newDirectExecutorService());
+        Device device1 = addDevice(monitor, "1");
+        Device device2 = addDevice(monitor, "2");
+
+        // a burst of client lists: only the latest list of each device is processed.
+        monitor.queueClientList(device1, ImmutableSet.of(1));
+        monitor.queueClientList(device2, ImmutableSet.of(2));
+        monitor.queueClientList(device1, ImmutableSet.of(1, 3));
+        monitor.queueClientList(device1, ImmutableSet.of(4));
+        monitor.processPendingClientLists();
+        assertEquals(Arrays.asList("1:4", "2:2"), opened);
+
+        // the lists were processed once.
+        monitor.processPendingClientLists();
+        assertEquals(2, opened.size());
+    }
+
+    public void testOpeningClientIsNotOpenedTwice() {
+        List<Integer> opened = new ArrayList<>();
+        ManualExecutor executor = new ManualExecutor();
+        DeviceMonitor monitor = new DeviceMonitor(null, (device, pid) -> {
+            opened.add(pid);
+            return false;
+        }, executor);
+        Device device = addDevice(monitor, "1");
+
+        monitor.queueClientList(device, ImmutableSet.of(1));
+        monitor.processPendingClientLists();
+        // the client list is received again while the first client is being opened.
+        monitor.queueClientList(device, ImmutableSet.of(1, 2));
+        monitor.processPendingClientLists();
+        assertEquals(2, executor.mTasks.size());
+        executor.runAll();
+        assertEquals(Arrays.asList(1, 2), opened);
+
+        // the clients weren't added to the device, so they are opened again.
+        monitor.queueClientList(device, ImmutableSet.of(1, 2));
+        monitor.processPendingClientLists();
+        executor.runAll();
+        assertEquals(Arrays.asList(1, 2, 1, 2), opened);
+    }
+
+    @NonNull
+    private static Device addDevice(@NonNull DeviceMonitor monitor, @NonNull String serial) {
+        Device device = new Device(monitor, serial, IDevice.DeviceState.ONLINE);
+        monitor.addDevice(device);
+        return device;
+    }
+
+    /** Executor running its tasks when {@link #runAll()} is called. */
+    private static class ManualExecutor extends AbstractExecutorService {
+        private final Queue<Runnable> mTasks = new ArrayDeque<>();
+
+        void runAll() {
+            Runnable task;
+            while ((task = mTasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            mTasks.add(command);
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @NonNull
+        @Override
+        public List<Runnable> shutdownNow() {
+            return new ArrayList<>(mTasks);
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, @NonNull TimeUnit unit) {
+            return false;
+        }
+    }
+
     private IDevice mockDevice(@NonNull String serial, @NonNull IDevice.DeviceState state) {
         IDevice device = EasyMock.createMock(IDevice.class);
         EasyMock.expect(device.getSerialNumber()).andStubReturn(serial);
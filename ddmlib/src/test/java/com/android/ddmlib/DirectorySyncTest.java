@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class DirectorySyncTest {
+    private static final String REMOTE_DIR = "/data/local/tmp/dir";
+
+    /** Larger than the 8 packets of 64KB which {@link SyncService} buffers at once. */
+    private static final int LARGE_SIZE = 1200 * 1024 + 17;
+
+    private static final int MTIME = 1500000000;
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private final Random mRandom = new Random(42);
+
+    private FakeSyncServer mServer;
+
+    private IDevice mDevice;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new FakeSyncServer();
+        mDevice = createDevice(mServer);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+    }
+
+    @Test
+    public void pullMultiPacketFiles() throws Exception {
+        byte[] large = randomBytes(LARGE_SIZE);
+        byte[] small = randomBytes(100);
+        mServer.put(REMOTE_DIR + "/large.bin", large, MTIME);
+        mServer.put(REMOTE_DIR + "/sub/small.bin", small, MTIME);
+        mServer.put(REMOTE_DIR + "/empty.bin", new byte[0], MTIME);
+        mServer.put(REMOTE_DIR + "/trailing space ", small, MTIME);
+        File localDir = mTemporaryFolder.newFolder();
+
+        DirectorySync.Result result = new DirectorySync(mDevice)
+                .setMaxConnections(2)
+                .pull(REMOTE_DIR, localDir, SyncService.getNullProgressMonitor());
+
+        assertEquals(4, result.getTransferredCount());
+        assertEquals(0, result.getSkippedCount());
+        assertEquals(LARGE_SIZE + 200, result.getTransferredBytes());
+        assertArrayEquals(large, Files.readAllBytes(new File(localDir, "large.bin").toPath()));
+        assertArrayEquals(small,
+                Files.readAllBytes(new File(localDir, "sub/small.bin").toPath()));
+        assertEquals(0, new File(localDir, "empty.bin").length());
+        // File names aren't trimmed.
+        assertArrayEquals(small,
+                Files.readAllBytes(new File(localDir, "trailing space ").toPath()));
+        assertEquals(MTIME * 1000L, new File(localDir, "large.bin").lastModified());
+    }
+
+    @Test
+    public void pullSkipsUnchangedFiles() throws Exception {
+        mServer.put(REMOTE_DIR + "/a.bin", randomBytes(LARGE_SIZE), MTIME);
+        mServer.put(REMOTE_DIR + "/b.bin", randomBytes(100), MTIME);
+        File localDir = mTemporaryFolder.newFolder();
+        DirectorySync sync = new DirectorySync(mDevice).setVerifyHashes(true);
+        sync.pull(REMOTE_DIR, localDir, SyncService.getNullProgressMonitor());
+
+        DirectorySync.Result result =
+                sync.pull(REMOTE_DIR, localDir, SyncService.getNullProgressMonitor());
+        assertEquals(0, result.getTransferredCount());
+        assertEquals(2, result.getSkippedCount());
+
+        byte[] changed = randomBytes(100);
+        mServer.put(REMOTE_DIR + "/b.bin", changed, MTIME + 1);
+        result = sync.pull(REMOTE_DIR, localDir, SyncService.getNullProgressMonitor());
+        assertEquals(1, result.getTransferredCount());
+        assertEquals(1, result.getSkippedCount());
+        assertArrayEquals(changed, Files.readAllBytes(new File(localDir, "b.bin").toPath()));
+    }
+
+    @Test
+    public void interruptedPullResumesAndReplacesAtomically() throws Exception {
+        byte[] original = randomBytes(100);
+        mServer.put(REMOTE_DIR + "/a.bin", randomBytes(100), MTIME);
+        mServer.put(REMOTE_DIR + "/b.bin", original, MTIME);
+        mServer.put(REMOTE_DIR + "/c.bin", randomBytes(100), MTIME);
+        File localDir = mTemporaryFolder.newFolder();
+        // A single connection transfers the files in the order of the listing.
+        DirectorySync sync = new DirectorySync(mDevice).setMaxConnections(1);
+        sync.pull(REMOTE_DIR, localDir, SyncService.getNullProgressMonitor());
+
+        byte[] updated = randomBytes(LARGE_SIZE);
+        mServer.put(REMOTE_DIR + "/a.bin", randomBytes(100), MTIME + 1);
+        mServer.put(REMOTE_DIR + "/b.bin", updated, MTIME + 1);
+        mServer.put(REMOTE_DIR + "/c.bin", randomBytes(100), MTIME + 1);
+        mServer.setInterruptedPath(REMOTE_DIR + "/b.bin");
+        try {
+            sync.pull(REMOTE_DIR, localDir, SyncService.getNullProgressMonitor());
+            fail("Expected the interrupted transfer to fail");
+        } catch (SyncException | IOException expected) {
+        }
+        // The previous version is left in place until the new one is complete.
+        File local = new File(localDir, "b.bin");
+        assertArrayEquals(original, Files.readAllBytes(local.toPath()));
+        assertTrue(new File(localDir, "b.bin.part").isFile());
+
+        mServer.setInterruptedPath(null);
+        DirectorySync.Result result =
+                sync.pull(REMOTE_DIR, localDir, SyncService.getNullProgressMonitor());
+        // a.bin was pulled before the interruption.
+        assertEquals(2, result.getTransferredCount());
+        assertEquals(1, result.getSkippedCount());
+        assertArrayEquals(updated, Files.readAllBytes(local.toPath()));
+        assertFalse(new File(localDir, "b.bin.part").exists());
+    }
+
+    @Test
+    public void pushMultiPacketFiles() throws Exception {
+        File localDir = mTemporaryFolder.newFolder();
+        byte[] large = randomBytes(LARGE_SIZE);
+        byte[] small = randomBytes(100);
+        File largeFile = writeFile(localDir, "large.bin", large);
+        writeFile(localDir, "sub/small.bin", small);
+        writeFile(localDir, "empty.bin", new byte[0]);
+
+        DirectorySync.Result result = new DirectorySync(mDevice)
+                .setMaxConnections(2)
+                .push(localDir, REMOTE_DIR, null, SyncService.getNullProgressMonitor());
+
+        assertEquals(3, result.getTransferredCount());
+        assertEquals(LARGE_SIZE + 100, result.getTransferredBytes());
+        assertArrayEquals(large, mServer.get(REMOTE_DIR + "/large.bin").mContent);
+        assertArrayEquals(small, mServer.get(REMOTE_DIR + "/sub/small.bin").mContent);
+        assertEquals(0, mServer.get(REMOTE_DIR + "/empty.bin").mContent.length);
+        assertEquals(largeFile.lastModified() / 1000,
+                mServer.get(REMOTE_DIR + "/large.bin").mLastModified);
+    }
+
+    @Test
+    public void interruptedPushResumesWithManifest() throws Exception {
+        File localDir = mTemporaryFolder.newFolder();
+        File manifest = new File(mTemporaryFolder.getRoot(), "manifest");
+        writeFile(localDir, "a.bin", randomBytes(100));
+        byte[] large = randomBytes(LARGE_SIZE);
+        writeFile(localDir, "b.bin", large);
+        writeFile(localDir, "c.bin", randomBytes(100));
+        DirectorySync sync = new DirectorySync(mDevice).setMaxConnections(1);
+        mServer.setInterruptedPath(REMOTE_DIR + "/b.bin");
+        try {
+            // Files.walk doesn't guarantee an order, so the files pushed before the
+            // interruption aren't known.
+            sync.push(localDir, REMOTE_DIR, manifest, SyncService.getNullProgressMonitor());
+            fail("Expected the interrupted transfer to fail");
+        } catch (SyncException | IOException expected) {
+        }
+        assertNull(mServer.get(REMOTE_DIR + "/b.bin"));
+        int pushed = mServer.size();
+
+        mServer.setInterruptedPath(null);
+        DirectorySync.Result result =
+                sync.push(localDir, REMOTE_DIR, manifest, SyncService.getNullProgressMonitor());
+        assertEquals(3 - pushed, result.getTransferredCount());
+        assertEquals(pushed, result.getSkippedCount());
+        assertArrayEquals(large, mServer.get(REMOTE_DIR + "/b.bin").mContent);
+
+        result = sync.push(localDir, REMOTE_DIR, manifest, SyncService.getNullProgressMonitor());
+        assertEquals(0, result.getTransferredCount());
+        assertEquals(3, result.getSkippedCount());
+    }
+
+    private File writeFile(File dir, String path, byte[] content) throws IOException {
+        File file = new File(dir, path);
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), content);
+        // whole seconds, as the sync protocol doesn't transfer more.
+        assertTrue(file.setLastModified(MTIME * 1000L));
+        return file;
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        mRandom.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Creates a device whose sync connections go to the given server, and which lists the files
+     * of the server with {@code find}.
+     */
+    private static IDevice createDevice(FakeSyncServer server) throws Exception {
+        IDevice device = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(device.getSyncService()).andStubAnswer(() -> {
+            SyncService sync = new SyncService(server.getAddress(),
+                    new Device(null, "serial", IDevice.DeviceState.ONLINE));
+            return sync.openSync() ? sync : null;
+        });
+        device.executeShellCommand(EasyMock.anyObject(), EasyMock.anyObject(),
+                EasyMock.anyLong(), EasyMock.anyObject());
+        EasyMock.expectLastCall().andStubAnswer(() -> {
+            String command = (String) EasyMock.getCurrentArguments()[0];
+            IShellOutputReceiver receiver =
+                    (IShellOutputReceiver) EasyMock.getCurrentArguments()[1];
+            String dir = command.substring(command.indexOf('\'') + 1, command.lastIndexOf('\''));
+            byte[] output = server.find(dir).getBytes(UTF_8);
+            receiver.addOutput(output, 0, output.length);
+            receiver.flush();
+            return null;
+        });
+        EasyMock.replay(device);
+        return device;
+    }
+
+    private static final class RemoteFile {
+        final byte[] mContent;
+        final int mLastModified;
+
+        RemoteFile(byte[] content, int lastModified) {
+            mContent = content;
+            mLastModified = lastModified;
+        }
+    }
+
+    /**
+     * A fake adb server which handles the sync protocol over an in-memory file system. Transfers
+     * of the interrupted path are cut by closing the connection after the first data packet.
+     */
+    private static final class FakeSyncServer implements AutoCloseable {
+        private final ServerSocket mServerSocket;
+        private final Thread mThread;
+        private final Map<String, RemoteFile> mFiles = new ConcurrentSkipListMap<>();
+        private final List<Socket> mSockets = Collections.synchronizedList(new ArrayList<>());
+        private volatile String mInterruptedPath;
+
+        FakeSyncServer() throws IOException {
+            mServerSocket = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+            mThread = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket socket = mServerSocket.accept();
+                        mSockets.add(socket);
+                        Thread connection = new Thread(() -> serve(socket));
+                        connection.setDaemon(true);
+                        connection.start();
+                    }
+                } catch (IOException e) {
+                    // The server socket was closed.
+                }
+            });
+            mThread.start();
+        }
+
+        InetSocketAddress getAddress() {
+            return (InetSocketAddress) mServerSocket.getLocalSocketAddress();
+        }
+
+        void put(String path, byte[] content, int lastModified) {
+            mFiles.put(path, new RemoteFile(content, lastModified));
+        }
+
+        RemoteFile get(String path) {
+            return mFiles.get(path);
+        }
+
+        int size() {
+            return mFiles.size();
+        }
+
+        void setInterruptedPath(String path) {
+            mInterruptedPath = path;
+        }
+
+        /** Returns the output of {@code find <dir> -type f}. */
+        String find(String dir) {
+            StringBuilder output = new StringBuilder();
+            for (String path : mFiles.keySet()) {
+                if (path.startsWith(dir + "/")) {
+                    output.append(path).append('\n');
+                }
+            }
+            return output.toString();
+        }
+
+        private void serve(Socket socket) {
+            try (Socket s = socket) {
+                DataInputStream in =
+                        new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                DataOutputStream out =
+                        new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                // "host:transport:<serial>" then "sync:".
+                for (int i = 0; i < 2; i++) {
+                    byte[] length = new byte[4];
+                    in.readFully(length);
+                    in.readFully(new byte[Integer.parseInt(new String(length, UTF_8), 16)]);
+                    out.writeBytes("OKAY");
+                    out.flush();
+                }
+                while (true) {
+                    String id = readId(in);
+                    byte[] path = new byte[readInt(in)];
+                    in.readFully(path);
+                    boolean open;
+                    switch (id) {
+                        case "STAT":
+                            open = stat(new String(path, UTF_8), out);
+                            break;
+                        case "RECV":
+                            open = recv(new String(path, UTF_8), out);
+                            break;
+                        case "SEND":
+                            open = send(new String(path, UTF_8), in, out);
+                            break;
+                        default:
+                            open = false;
+                            break;
+                    }
+                    out.flush();
+                    if (!open) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                // The client closed the connection.
+            }
+        }
+
+        private boolean stat(String path, DataOutputStream out) throws IOException {
+            RemoteFile file = mFiles.get(path);
+            out.writeBytes("STAT");
+            writeInt(out, file != null ? 0100644 : 0);
+            writeInt(out, file != null ? file.mContent.length : 0);
+            writeInt(out, file != null ? file.mLastModified : 0);
+            return true;
+        }
+
+        private boolean recv(String path, DataOutputStream out) throws IOException {
+            RemoteFile file = mFiles.get(path);
+            if (file == null) {
+                byte[] message = "No such file or directory".getBytes(UTF_8);
+                out.writeBytes("FAIL");
+                writeInt(out, message.length);
+                out.write(message);
+                return true;
+            }
+            for (int offset = 0; offset < file.mContent.length; offset += 64 * 1024) {
+                int length = Math.min(64 * 1024, file.mContent.length - offset);
+                out.writeBytes("DATA");
+                writeInt(out, length);
+                out.write(file.mContent, offset, length);
+                if (path.equals(mInterruptedPath)) {
+                    return false;
+                }
+            }
+            out.writeBytes("DONE");
+            writeInt(out, 0);
+            return true;
+        }
+
+        private boolean send(String pathAndMode, DataInputStream in, DataOutputStream out)
+                throws IOException {
+            String path = pathAndMode.substring(0, pathAndMode.lastIndexOf(','));
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            while (true) {
+                String id = readId(in);
+                int value = readInt(in);
+                if (id.equals("DATA")) {
+                    byte[] data = new byte[value];
+                    in.readFully(data);
+                    content.write(data);
+                    if (path.equals(mInterruptedPath)) {
+                        return false;
+                    }
+                } else if (id.equals("DONE")) {
+                    // The value of DONE is the modification time.
+                    put(path, content.toByteArray(), value);
+                    out.writeBytes("OKAY");
+                    writeInt(out, 0);
+                    return true;
+                } else {
+                    return false;
+                }
+            }
+        }
+
+        private static String readId(DataInputStream in) throws IOException {
+            byte[] id = new byte[4];
+            in.readFully(id);
+            return new String(id, UTF_8);
+        }
+
+        private static int readInt(DataInputStream in) throws IOException {
+            return Integer.reverseBytes(in.readInt());
+        }
+
+        private static void writeInt(DataOutputStream out, int value) throws IOException {
+            out.writeInt(Integer.reverseBytes(value));
+        }
+
+        @Override
+        public void close() throws Exception {
+            mServerSocket.close();
+            synchronized (mSockets) {
+                for (Socket socket : mSockets) {
+                    socket.close();
+                }
+            }
+            mThread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+}
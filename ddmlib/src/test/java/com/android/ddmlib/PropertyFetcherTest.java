@@ -69,9 +69,35 @@ public class PropertyFetcherTest extends TestCase {
         DeviceTest.injectShellResponse(mockDevice, "[dev.bootcomplete]: [1]\r\n");
         EasyMock.replay(mockDevice);
 
-        PropertyFetcher fetcher = new PropertyFetcher(mockDevice);
-        assertEquals("0", fetcher.getProperty("dev.bootcomplete").get());
-        assertEquals("1", fetcher.getProperty("dev.bootcomplete").get());
+        PropertyFetcher.setMutablePropsTtl(0, TimeUnit.SECONDS);
+        try {
+            PropertyFetcher fetcher = new PropertyFetcher(mockDevice);
+            assertEquals("0", fetcher.getProperty("dev.bootcomplete").get());
+            assertEquals("1", fetcher.getProperty("dev.bootcomplete").get());
+        } finally {
+            PropertyFetcher.setMutablePropsTtl(1, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Test that volatile props requested again shortly after a getprop query are served
+     * from that query
+     */
+    public void testGetProperty_volatileWithinTtl() throws Exception {
+        IDevice mockDevice = DeviceTest.createMockDevice();
+        DeviceTest.injectShellResponse(mockDevice, "[dev.bootcomplete]: [1]\r\n");
+        EasyMock.replay(mockDevice);
+
+        PropertyFetcher.setMutablePropsTtl(1, TimeUnit.HOURS);
+        try {
+            PropertyFetcher fetcher = new PropertyFetcher(mockDevice);
+            assertEquals("1", fetcher.getProperty("dev.bootcomplete").get());
+            assertEquals("1", fetcher.getProperty("dev.bootcomplete").get(1,
+                    TimeUnit.MILLISECONDS));
+            EasyMock.verify(mockDevice);
+        } finally {
+            PropertyFetcher.setMutablePropsTtl(1, TimeUnit.SECONDS);
+        }
     }
 
     /**
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import junit.framework.TestCase;
+
+public class ScreenCaptureTest extends TestCase {
+
+    public void testGetARGB_rgb565() {
+        RawImage image = createImage(16, 64, 32);
+        image.red_offset = 11;
+        image.red_length = 5;
+        image.green_offset = 5;
+        image.green_length = 6;
+        checkConversion(image);
+    }
+
+    public void testGetARGB_rgba8888() {
+        RawImage image = createImage(32, 64, 32);
+        setOffsets(image, 0, 8, 16, 24, 8);
+        checkConversion(image);
+    }
+
+    public void testGetARGB_bgra8888() {
+        RawImage image = createImage(32, 64, 32);
+        setOffsets(image, 16, 8, 0, 24, 8);
+        checkConversion(image);
+    }
+
+    public void testGetARGB_rgbx8888() {
+        RawImage image = createImage(32, 64, 32);
+        setOffsets(image, 0, 8, 16, 24, 0);
+        checkConversion(image);
+    }
+
+    public void testGetARGB_parallelStripes() {
+        // large enough to be converted in several stripes.
+        RawImage image = createImage(32, 1080, 1920);
+        setOffsets(image, 0, 8, 16, 24, 8);
+        checkConversion(image);
+    }
+
+    public void testToImage_reusesImage() {
+        RawImage image = createImage(32, 64, 32);
+        setOffsets(image, 0, 8, 16, 24, 8);
+
+        BufferedImage bufferedImage = ScreenCapture.toImage(image, null);
+        assertThat(bufferedImage.getWidth()).isEqualTo(64);
+        assertThat(bufferedImage.getHeight()).isEqualTo(32);
+        assertThat(bufferedImage.getRGB(3, 5)).isEqualTo(image.getARGB((5 * 64 + 3) * 4));
+        assertThat(ScreenCapture.toImage(image, bufferedImage)).isSameAs(bufferedImage);
+
+        RawImage rotated = image.getRotated();
+        assertThat(ScreenCapture.toImage(rotated, bufferedImage)).isNotSameAs(bufferedImage);
+    }
+
+    private static void checkConversion(RawImage image) {
+        int pixels = image.width * image.height;
+        int[] argb = new int[pixels];
+        ScreenCapture.getARGB(image, argb);
+
+        int byteCount = image.bpp >> 3;
+        for (int i = 0; i < pixels; i++) {
+            if (argb[i] != image.getARGB(i * byteCount)) {
+                fail(
+                        String.format(
+                                "Pixel %d: expected %08x, got %08x",
+                                i, image.getARGB(i * byteCount), argb[i]));
+            }
+        }
+    }
+
+    private static RawImage createImage(int bpp, int width, int height) {
+        RawImage image = new RawImage();
+        image.version = 1;
+        image.bpp = bpp;
+        image.width = width;
+        image.height = height;
+        image.size = width * height * (bpp >> 3);
+        image.data = new byte[image.size];
+        new Random(42).nextBytes(image.data);
+        return image;
+    }
+
+    private static void setOffsets(
+            RawImage image, int red, int green, int blue, int alpha, int alphaLength) {
+        image.red_offset = red;
+        image.red_length = 8;
+        image.green_offset = green;
+        image.green_length = 8;
+        image.blue_offset = blue;
+        image.blue_length = 8;
+        image.alpha_offset = alpha;
+        image.alpha_length = alphaLength;
+    }
+}
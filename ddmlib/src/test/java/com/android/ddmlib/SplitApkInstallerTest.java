@@ -15,15 +15,249 @@
  */
 package com.android.ddmlib;
 
+import com.android.sdklib.AndroidVersion;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
 
 public class SplitApkInstallerTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
   @Test
   public void testInstallWriteReceiver() {
     SplitApkInstaller.InstallWriteReceiver receiver = new SplitApkInstaller.InstallWriteReceiver();
     receiver.processNewLines("Success: streamed 4754 bytes\n[CDS]close[0]".split("\n"));
     assertThat(receiver.isSuccess()).isTrue();
   }
+
+  @Test
+  public void testSkipInstalledApks() throws Exception {
+    File base = folder.newFile("base.apk");
+    Files.write("base", base, Charsets.UTF_8);
+    File split = folder.newFile("split.apk");
+    Files.write("split", split, Charsets.UTF_8);
+    String installedApks = String.format("%1$s  /data/app/a/base.apk\n%2$s  /data/app/a/split_b.apk\n",
+        Files.asByteSource(base).hash(Hashing.sha256()),
+        Files.asByteSource(split).hash(Hashing.sha256()));
+
+    IDevice device = mock(IDevice.class);
+    when(device.getVersion()).thenReturn(new AndroidVersion(24));
+    List<String> commands = new ArrayList<>();
+    doAnswer(invocation -> {
+      String command = invocation.getArgument(0);
+      commands.add(command);
+      String output = "";
+      if (command.startsWith("pm path")) {
+        output = "package:/data/app/a/base.apk\npackage:/data/app/a/split_b.apk\n";
+      } else if (command.startsWith("sha256sum")) {
+        output = installedApks;
+      }
+      IShellOutputReceiver receiver = invocation.getArgument(1);
+      byte[] data = output.getBytes(Charsets.UTF_8);
+      receiver.addOutput(data, 0, data.length);
+      receiver.flush();
+      return null;
+    }).when(device).executeShellCommand(anyString(), any(), anyLong(), any());
+
+    // Both APKs are already installed, so no install session is needed.
+    SplitApkInstaller.create(device, "com.example", Arrays.asList(base, split), true,
+        Collections.emptyList())
+        .setSkipInstalledApks(true)
+        .install(1, TimeUnit.MINUTES);
+    assertThat(commands).containsExactly("pm path com.example",
+        "sha256sum /data/app/a/base.apk /data/app/a/split_b.apk");
+  }
+
+  @Test
+  public void testConcurrentUploads() throws Exception {
+    List<File> apks = createApks(4);
+    List<String> commands = Collections.synchronizedList(new ArrayList<>());
+    try (FakeAdb adb = new FakeAdb(2, null)) {
+      SplitApkInstaller.create(createDevice(commands), apks, true, Collections.emptyList())
+          .setMaxConcurrentUploads(3)
+          .install(1, TimeUnit.MINUTES);
+
+      // Every APK was streamed in full, several of them at the same time.
+      assertThat(adb.getUploads()).hasSize(apks.size());
+      for (int i = 0; i < apks.size(); i++) {
+        // Digits aren't allowed in split names.
+        assertThat(adb.getUploads().get(i + "_split_"))
+            .isEqualTo(Files.toString(apks.get(i), Charsets.UTF_8));
+      }
+      assertThat(adb.getMaxConcurrentUploads()).isAtLeast(2);
+      assertThat(commands).hasSize(2);
+      assertThat(commands.get(0)).startsWith("cmd package install-create");
+      assertThat(commands.get(1)).isEqualTo("cmd package install-commit 1234");
+    }
+  }
+
+  @Test
+  public void testConcurrentUploadFailureAbandonsSession() throws Exception {
+    List<File> apks = createApks(4);
+    List<String> commands = Collections.synchronizedList(new ArrayList<>());
+    try (FakeAdb adb = new FakeAdb(2, "2_split_")) {
+      try {
+        SplitApkInstaller.create(createDevice(commands), apks, true, Collections.emptyList())
+            .setMaxConcurrentUploads(3)
+            .install(1, TimeUnit.MINUTES);
+        fail("Expected the install to fail");
+      } catch (InstallException expected) {
+      }
+      assertThat(commands).hasSize(2);
+      assertThat(commands.get(1)).isEqualTo("cmd package install-abandon 1234");
+    }
+  }
+
+  /** Creates APKs named split0.apk, split1.apk..., of 7 bytes each. */
+  private List<File> createApks(int count) throws IOException {
+    List<File> apks = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      File apk = folder.newFile("split" + i + ".apk");
+      Files.write("split" + i + "!", apk, Charsets.UTF_8);
+      apks.add(apk);
+    }
+    return apks;
+  }
+
+  /** Creates a device which creates session 1234, and records the shell commands. */
+  private static IDevice createDevice(List<String> commands) throws Exception {
+    IDevice device = mock(IDevice.class);
+    when(device.getVersion()).thenReturn(new AndroidVersion(24));
+    when(device.getSerialNumber()).thenReturn("serial");
+    doAnswer(invocation -> {
+      String command = invocation.getArgument(0);
+      commands.add(command);
+      String output = command.contains("install-create")
+          ? "Success: created install session [1234]\n"
+          : "Success\n";
+      IShellOutputReceiver receiver = invocation.getArgument(1);
+      byte[] data = output.getBytes(Charsets.UTF_8);
+      receiver.addOutput(data, 0, data.length);
+      receiver.flush();
+      return null;
+    }).when(device).executeShellCommand(anyString(), any(), anyLong(), any());
+    return device;
+  }
+
+  /**
+   * A fake adb server which accepts install-write commands, used for the uploads which go
+   * straight to adb rather than through {@link IDevice}.
+   */
+  private static final class FakeAdb implements AutoCloseable {
+    private final ServerSocket mServerSocket;
+    private final Thread mThread;
+    private final Map<String, String> mUploads = new ConcurrentHashMap<>();
+    private final AtomicInteger mConcurrentUploads = new AtomicInteger();
+    private final AtomicInteger mMaxConcurrentUploads = new AtomicInteger();
+    private final CountDownLatch mOverlap;
+
+    /**
+     * @param overlap the number of uploads each upload waits for, for up to a few seconds,
+     *     so that they overlap
+     * @param failingApk the unique id of the APK whose upload fails, if any
+     */
+    FakeAdb(int overlap, String failingApk) throws IOException {
+      mOverlap = new CountDownLatch(overlap);
+      mServerSocket =
+          new ServerSocket(0, 10, InetAddress.getByName(AndroidDebugBridge.DEFAULT_ADB_HOST));
+      mThread = new Thread(() -> {
+        try {
+          while (true) {
+            Socket socket = mServerSocket.accept();
+            new Thread(() -> serve(socket, failingApk)).start();
+          }
+        } catch (IOException e) {
+          // the test is over
+        }
+      });
+      mThread.start();
+      AndroidDebugBridge.enableFakeAdbServerMode(mServerSocket.getLocalPort());
+      AndroidDebugBridge.init(false);
+    }
+
+    private void serve(Socket socket, String failingApk) {
+      try (Socket s = socket) {
+        DataInputStream in = new DataInputStream(s.getInputStream());
+        OutputStream out = s.getOutputStream();
+        // "host:transport:serial", then "exec:cmd package install-write -S <size> <session>
+        // <unique id> -" followed by the APK.
+        readRequest(in);
+        out.write("OKAY".getBytes(Charsets.UTF_8));
+        String[] command = readRequest(in).split(" ");
+        out.write("OKAY".getBytes(Charsets.UTF_8));
+        byte[] apk = new byte[Integer.parseInt(command[4])];
+
+        int uploads = mConcurrentUploads.incrementAndGet();
+        mMaxConcurrentUploads.accumulateAndGet(uploads, Math::max);
+        mOverlap.countDown();
+        mOverlap.await(5, TimeUnit.SECONDS);
+        in.readFully(apk);
+        mConcurrentUploads.decrementAndGet();
+
+        String uniqueId = command[6];
+        if (uniqueId.equals(failingApk)) {
+          out.write("Failure [INSTALL_FAILED_INVALID_APK]\n".getBytes(Charsets.UTF_8));
+        } else {
+          mUploads.put(uniqueId, new String(apk, Charsets.UTF_8));
+          out.write(String.format("Success: streamed %d bytes\n", apk.length)
+              .getBytes(Charsets.UTF_8));
+        }
+      } catch (IOException | InterruptedException e) {
+        // the test is over
+      }
+    }
+
+    private static String readRequest(DataInputStream in) throws IOException {
+      byte[] length = new byte[4];
+      in.readFully(length);
+      byte[] request = new byte[Integer.parseInt(new String(length, Charsets.UTF_8), 16)];
+      in.readFully(request);
+      return new String(request, Charsets.UTF_8);
+    }
+
+    Map<String, String> getUploads() {
+      return mUploads;
+    }
+
+    int getMaxConcurrentUploads() {
+      return mMaxConcurrentUploads.get();
+    }
+
+    @Override
+    public void close() throws Exception {
+      AndroidDebugBridge.terminate();
+      AndroidDebugBridge.disableFakeAdbServerMode();
+      mServerSocket.close();
+      mThread.join();
+    }
+  }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.allocations;
+
+import com.android.ddmlib.AllocationAggregator;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import junit.framework.TestCase;
+
+public class AllocationAggregatorTest extends TestCase {
+
+    private static final String[] CLASS_NAMES = {"path.Foo", "path.Bar"};
+    private static final String[] METHOD_NAMES = {"foo", "bar"};
+    private static final String[] FILE_NAMES = {"Foo.java"};
+
+    // {size, thread, class, stack depth}
+    private static final int[] A = {32, 1, 0, 1};
+    private static final int[] B = {16, 1, 1, 1};
+    private static final int[] C = {64, 2, 0, 2};
+    private static final int[] D = {8, 2, 1, 1};
+    private static final int[] E = {24, 1, 0, 1};
+
+    public void testAggregation() throws IOException {
+        AllocationAggregator aggregator = new AllocationAggregator();
+        assertEquals(3, aggregator.update(createData(A, B, C)));
+
+        List<AllocationAggregator.Total> classes = aggregator.getClassTotals();
+        assertEquals(2, classes.size());
+        checkTotal("path.Foo", 2, 96, classes.get(0));
+        checkTotal("path.Bar", 1, 16, classes.get(1));
+
+        List<AllocationAggregator.Total> traces = aggregator.getStackTraceTotals();
+        assertEquals(3, traces.size());
+        AllocationAggregator.Total largest = traces.get(0);
+        assertEquals(64, largest.getSize());
+        assertNull(largest.getClassName());
+        StackTraceElement[] stackTrace = largest.getStackTrace();
+        assertEquals(2, stackTrace.length);
+        assertEquals("path.Foo", stackTrace[0].getClassName());
+        assertEquals("foo", stackTrace[0].getMethodName());
+        assertEquals("Foo.java", stackTrace[0].getFileName());
+        assertEquals(10, stackTrace[0].getLineNumber());
+        assertEquals("path.Bar", stackTrace[1].getClassName());
+        assertEquals(-2, stackTrace[1].getLineNumber());
+    }
+
+    public void testOverlappingFetches_oldestFirst() throws IOException {
+        AllocationAggregator aggregator = new AllocationAggregator();
+        assertEquals(3, aggregator.update(createData(A, B, C)));
+        // A was dropped by the VM, D and E are new.
+        assertEquals(2, aggregator.update(createData(B, C, D, E)));
+        assertEquals(0, aggregator.update(createData(B, C, D, E)));
+
+        assertEquals(5, aggregator.getTotalCount());
+        List<AllocationAggregator.Total> classes = aggregator.getClassTotals();
+        checkTotal("path.Foo", 3, 120, classes.get(0));
+        checkTotal("path.Bar", 2, 24, classes.get(1));
+    }
+
+    public void testOverlappingFetches_newestFirst() throws IOException {
+        AllocationAggregator aggregator = new AllocationAggregator();
+        assertEquals(3, aggregator.update(createData(C, B, A)));
+        assertEquals(2, aggregator.update(createData(E, D, C, B)));
+        assertEquals(5, aggregator.getTotalCount());
+    }
+
+    public void testRepeatedAllocations() throws IOException {
+        AllocationAggregator aggregator = new AllocationAggregator();
+        assertEquals(3, aggregator.update(createData(A, A, B)));
+        assertEquals(2, aggregator.update(createData(A, B, A, A)));
+        checkTotal("path.Foo", 4, 128, aggregator.getClassTotals().get(0));
+    }
+
+    public void testUnrelatedFetches() throws IOException {
+        AllocationAggregator aggregator = new AllocationAggregator();
+        assertEquals(2, aggregator.update(createData(A, B)));
+        // tracking was restarted.
+        assertEquals(2, aggregator.update(createData(D, E)));
+
+        aggregator.reset();
+        assertEquals(0, aggregator.getTotalCount());
+        assertTrue(aggregator.getClassTotals().isEmpty());
+        assertEquals(2, aggregator.update(createData(D, E)));
+    }
+
+    private static void checkTotal(
+            String className, long count, long size, AllocationAggregator.Total total) {
+        assertEquals(className, total.getClassName());
+        assertNull(total.getStackTrace());
+        assertEquals(count, total.getCount());
+        assertEquals(size, total.getSize());
+    }
+
+    private static ByteBuffer createData(int[]... entries) throws IOException {
+        short[][][] stackFrames = new short[entries.length][][];
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i][3] == 1) {
+                stackFrames[i] = new short[][] {{(short) entries[i][2], 1, 0, 42}};
+            } else {
+                stackFrames[i] = new short[][] {{0, 0, 0, 10}, {1, 1, 0, -2}};
+            }
+        }
+        return AllocationsParserTest.putAllocationInfo(
+                CLASS_NAMES, METHOD_NAMES, FILE_NAMES, entries, stackFrames);
+    }
+}
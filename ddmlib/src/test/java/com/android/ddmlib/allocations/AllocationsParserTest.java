@@ -15,6 +15,7 @@
  */
 package com.android.ddmlib.allocations;
 
+import com.android.ddmlib.AllocationAggregator;
 import com.android.ddmlib.AllocationInfo;
 import com.android.ddmlib.AllocationsParser;
 import com.google.common.base.Charsets;
@@ -23,6 +24,7 @@ import junit.framework.TestCase;
 import java.io.IOException;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.util.List;
 
 public class AllocationsParserTest extends TestCase {
 
@@ -102,6 +104,43 @@ public class AllocationsParserTest extends TestCase {
     checkStackFrame("path.Blue", "watchCatVideos", "SomewhatBlue.java", 16, elems3[2]);
   }
 
+  public void testParsingOnEntryCountOverflow() throws IOException {
+    // 65536 entries: the entry count in the header overflows to 0.
+    int[][] entries = new int[65536][];
+    short[][][] stackFrames = new short[entries.length][][];
+    long[] classSizes = new long[2];
+    for (int i = 0; i < entries.length; i++) {
+      entries[i] = new int[]{i, 1, i % 2, 1};
+      stackFrames[i] = new short[][]{{(short) (i % 2), 0, 0, 42}};
+      if (i < 65535) {
+        classSizes[i % 2] += i;
+      }
+    }
+    ByteBuffer data = putAllocationInfo(new String[]{"path.Foo", "path.Bar"}, new String[]{"foo"},
+            new String[]{"Foo.java"}, entries, stackFrames);
+
+    // the last entry is ignored.
+    AllocationInfo[] info = AllocationsParser.parse(data);
+    assertEquals(65535, info.length);
+    checkEntry(65535, "path.Foo", 0, 1, info[0]);
+    checkFirstTrace("path.Foo", "foo", info[0]);
+    checkEntry(1, "path.Foo", 65534, 1, info[65534]);
+    checkStackFrame("path.Foo", "foo", "Foo.java", 42, info[65534].getStackTrace()[0]);
+    checkEntry(2, "path.Bar", 65533, 1, info[65533]);
+
+    AllocationAggregator aggregator = new AllocationAggregator();
+    assertEquals(65535, aggregator.update(data));
+    assertEquals(65535, aggregator.getTotalCount());
+    List<AllocationAggregator.Total> totals = aggregator.getClassTotals();
+    assertEquals(2, totals.size());
+    assertEquals("path.Foo", totals.get(0).getClassName());
+    assertEquals(32768, totals.get(0).getCount());
+    assertEquals(classSizes[0], totals.get(0).getSize());
+    assertEquals("path.Bar", totals.get(1).getClassName());
+    assertEquals(32767, totals.get(1).getCount());
+    assertEquals(classSizes[1], totals.get(1).getSize());
+  }
+
   private static void checkEntry(int order, String className, int size, int thread, AllocationInfo alloc) {
     assertEquals(order, alloc.getAllocNumber());
     assertEquals(className, alloc.getAllocatedClass());
@@ -146,7 +185,7 @@ public class AllocationsParserTest extends TestCase {
     data.putShort((short) methodNames.length);
     data.putShort((short) fileNames.length);
 
-    for (short i = 0; i < entries.length; ++i) {
+    for (int i = 0; i < entries.length; ++i) {
       data.putInt(entries[i][0]); // total alloc size
       data.putShort((short) entries[i][1]); // thread id
       data.putShort((short) entries[i][2]); // allocated class index
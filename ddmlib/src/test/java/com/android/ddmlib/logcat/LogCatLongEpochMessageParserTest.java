@@ -18,6 +18,7 @@ package com.android.ddmlib.logcat;
 import static org.junit.Assert.assertEquals;
 
 import com.android.ddmlib.Log.LogLevel;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import org.junit.Test;
 
@@ -36,4 +37,19 @@ public final class LogCatLongEpochMessageParserTest {
                         .processLogHeader(
                                 "[          1517266949.472  5755: 5755 I/MainActivity ]", null));
     }
+    @Test
+    public void processLogHeaderFromBytes() {
+        byte[] data =
+                "[          1517266949.472  5755: 5755 I/MainActivity ]"
+                        .getBytes(StandardCharsets.UTF_8);
+        assertEquals(
+                new LogCatHeader(
+                        LogLevel.INFO,
+                        5755,
+                        5755,
+                        "?",
+                        "MainActivity",
+                        Instant.parse("2018-01-29T23:02:29.472Z")),
+                new LogCatLongEpochMessageParser().processLogHeader(data, 0, data.length, null));
+    }
 }
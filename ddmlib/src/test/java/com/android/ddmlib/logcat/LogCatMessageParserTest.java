@@ -17,6 +17,9 @@ package com.android.ddmlib.logcat;
 
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.Log.LogLevel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import junit.framework.TestCase;
 import org.easymock.EasyMock;
@@ -157,4 +160,59 @@ public final class LogCatMessageParserTest extends TestCase {
         assertEquals(3, mParsedMessages.size());
         assertEquals("Log[1] logline1", mParsedMessages.get(0).getMessage());
     }
+
+    public void testBytesParseLikeStrings() {
+        LogCatMessageParser parser = new LogCatMessageParser();
+        List<LogCatMessage> messages = parseBytes(parser, MESSAGES,
+                Collections.<LogCatFilter>emptyList());
+
+        assertEquals(mParsedMessages.size(), messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertEquals(mParsedMessages.get(i).getHeader().getTag(),
+                    messages.get(i).getHeader().getTag());
+            assertEquals(mParsedMessages.get(i).getLogLevel(), messages.get(i).getLogLevel());
+            assertEquals(mParsedMessages.get(i).getPid(), messages.get(i).getPid());
+            assertEquals(mParsedMessages.get(i).getTid(), messages.get(i).getTid());
+            assertEquals(mParsedMessages.get(i).getTimestamp(), messages.get(i).getTimestamp());
+            assertEquals(mParsedMessages.get(i).getMessage(), messages.get(i).getMessage());
+        }
+    }
+
+    public void testBytesFiltered() {
+        LogCatMessageParser parser = new LogCatMessageParser();
+        List<LogCatFilter> filters = Collections.singletonList(
+                new LogCatFilter("", "^my tag", "spaces", "", "", LogLevel.VERBOSE));
+        List<LogCatMessage> messages = parseBytes(parser, MESSAGES, filters);
+
+        assertEquals(1, messages.size());
+        assertEquals("my tag with spaces message", messages.get(0).getMessage());
+    }
+
+    public void testBytesInvalidHeaders() {
+        LogCatMessageParser parser = new LogCatMessageParser();
+        String[] headers = new String[] {
+                "[ 08-11 19:11:07.132   495:0x1ef D/dtag]",
+                "[ 08-11 19:11:07.132   495:0x1ef X/dtag ]",
+                "[ 08-11 19:11:07.132 495 0x1ef D/dtag ]",
+                "[ 08-11 19:11:07",
+        };
+        for (String header : headers) {
+            byte[] data = header.getBytes(StandardCharsets.UTF_8);
+            assertNull(header, parser.processLogHeader(data, 0, data.length, null));
+        }
+    }
+
+    private static List<LogCatMessage> parseBytes(LogCatMessageParser parser, String[] lines,
+            List<LogCatFilter> filters) {
+        List<LogCatMessage> messages = new ArrayList<LogCatMessage>();
+        for (String line : lines) {
+            // Pad the line to check that only the given range is used.
+            byte[] data = ("<" + line + ">").getBytes(StandardCharsets.UTF_8);
+            LogCatMessage message = parser.processLogLine(data, 1, data.length - 2, null, filters);
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
 }
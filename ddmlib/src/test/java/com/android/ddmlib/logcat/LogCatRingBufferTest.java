@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.logcat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.ddmlib.Log.LogLevel;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public final class LogCatRingBufferTest {
+    private static final LogLevel[] LEVELS = {
+        LogLevel.VERBOSE, LogLevel.DEBUG, LogLevel.INFO, LogLevel.WARN, LogLevel.ERROR
+    };
+
+    @Test
+    public void getMessagesReturnsAllMessages() {
+        LogCatRingBuffer buffer = new LogCatRingBuffer(1 << 16);
+        List<LogCatMessage> messages = createMessages(100);
+        buffer.add(messages);
+
+        assertEquals(100, buffer.getMessageCount());
+        assertSameMessages(messages, buffer.getMessages(Collections.<LogCatFilter>emptyList()));
+    }
+
+    @Test
+    public void oldestMessagesAreEvicted() {
+        LogCatRingBuffer buffer = new LogCatRingBuffer(4096);
+        List<LogCatMessage> messages = createMessages(1000);
+        buffer.add(messages);
+
+        List<LogCatMessage> kept = buffer.getMessages(Collections.<LogCatFilter>emptyList());
+        assertTrue(kept.size() < 1000);
+        assertEquals(1000, kept.size() + buffer.getEvictedCount());
+        assertSameMessages(messages.subList(1000 - kept.size(), 1000), kept);
+    }
+
+    @Test
+    public void getMessagesMatchesFilters() {
+        LogCatRingBuffer buffer = new LogCatRingBuffer(8192);
+        List<LogCatMessage> messages = createMessages(1000);
+        buffer.add(messages);
+        List<LogCatMessage> kept = buffer.getMessages(Collections.<LogCatFilter>emptyList());
+
+        String[] queries = {"pid:102", "tag:tag3", "tag:^tag[12]$ message", "app:app1 7$", "1"};
+        for (String query : queries) {
+            for (LogLevel level : LEVELS) {
+                List<LogCatFilter> filters = LogCatFilter.fromString(query, level);
+                List<LogCatMessage> expected = new ArrayList<>();
+                for (LogCatMessage message : kept) {
+                    if (matchesAll(filters, message)) {
+                        expected.add(message);
+                    }
+                }
+                assertSameMessages(expected, buffer.getMessages(filters));
+            }
+        }
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void legacyTimestampsAreKept() {
+        LogCatRingBuffer buffer = new LogCatRingBuffer(1024);
+        LogCatTimestamp timestamp = new LogCatTimestamp(12, 31, 23, 59, 58, 999);
+        buffer.add(new LogCatMessage(new LogCatHeader(LogLevel.INFO, 1, 2, "app", "tag",
+                timestamp), "text"));
+
+        List<LogCatMessage> messages =
+                buffer.getMessages(Collections.<LogCatFilter>emptyList());
+        assertEquals(1, messages.size());
+        assertEquals(timestamp, messages.get(0).getTimestamp());
+    }
+
+    private static List<LogCatMessage> createMessages(int count) {
+        List<LogCatMessage> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            LogCatHeader header = new LogCatHeader(LEVELS[i % LEVELS.length], 100 + i % 7, i,
+                    "app" + i % 3, "tag" + i % 5, Instant.ofEpochMilli(1517266949472L + i));
+            messages.add(new LogCatMessage(header, "message " + i));
+        }
+        return messages;
+    }
+
+    private static boolean matchesAll(List<LogCatFilter> filters, LogCatMessage message) {
+        for (LogCatFilter filter : filters) {
+            if (!filter.matches(message)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void assertSameMessages(List<LogCatMessage> expected,
+            List<LogCatMessage> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getHeader(), actual.get(i).getHeader());
+            assertEquals(expected.get(i).getMessage(), actual.get(i).getMessage());
+        }
+    }
+}
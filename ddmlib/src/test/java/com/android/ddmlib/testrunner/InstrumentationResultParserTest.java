@@ -16,6 +16,7 @@
 
 package com.android.ddmlib.testrunner;
 
+import com.google.common.base.Charsets;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
@@ -323,6 +324,34 @@ public class InstrumentationResultParserTest extends TestCase {
         injectAndVerifyTestString(output.toString());
     }
 
+    /**
+     * Test parsing output for a test failure with metrics, received one byte at a time.
+     */
+    public void testParse_splitOutput() {
+        StringBuilder output = buildCommonResult();
+        addStatusKey(output, "randomKey", "résumé");
+        addTimeStamp(output);
+        addStackTrace(output);
+        addFailureCode(output);
+
+        final Capture<Map<String, String>> captureMetrics = new Capture<Map<String, String>>();
+        mMockListener.testRunStarted(RUN_NAME, 1);
+        mMockListener.testStarted(TEST_ID);
+        mMockListener.testFailed(TEST_ID, STACK_TRACE);
+        mMockListener.testEnded(EasyMock.eq(TEST_ID), EasyMock.capture(captureMetrics));
+        mMockListener.testRunEnded(0, Collections.EMPTY_MAP);
+
+        EasyMock.replay(mMockListener);
+        byte[] data = output.toString().getBytes(Charsets.UTF_8);
+        for (int i = 0; i < data.length; i++) {
+            mParser.addOutput(data, i, 1);
+        }
+        mParser.flush();
+        EasyMock.verify(mMockListener);
+
+        assertEquals("résumé", captureMetrics.getValue().get("randomKey"));
+    }
+
     /**
      * Ensure that when onError message is available, we do not consider it as part of the class
      * name but as a stand alone entity.
@@ -160,6 +160,35 @@ public class XmlTestRunListenerTest extends TestCase {
         assertTrue(output.contains(failureTag));
     }
 
+    /**
+     * A test to ensure streamed results produce the same output, and aren't kept in memory.
+     */
+    public void testStreamedResults() {
+        Map<String, String> emptyMap = Collections.emptyMap();
+        final TestIdentifier passedId = new TestIdentifier("FooTest", "testFoo");
+        final TestIdentifier failedId = new TestIdentifier("FooTest", "testBar");
+        final String trace = "this is a trace";
+        mResultReporter.setStreamResults(true);
+        mResultReporter.testRunStarted("run", 2);
+        mResultReporter.testStarted(passedId);
+        mResultReporter.testEnded(passedId, emptyMap);
+        mResultReporter.testStarted(failedId);
+        mResultReporter.testFailed(failedId, trace);
+        mResultReporter.testEnded(failedId, emptyMap);
+        mResultReporter.testRunEnded(3, emptyMap);
+        String output =  getOutput();
+        assertTrue(output.contains("tests=\"2\" failures=\"1\" errors=\"0\""));
+        assertTrue(output.contains(String.format("<testcase name=\"%s\" classname=\"%s\"",
+                passedId.getTestName(), passedId.getClassName())));
+        assertTrue(output.contains(String.format("<testcase name=\"%s\" classname=\"%s\"",
+                failedId.getTestName(), failedId.getClassName())));
+        assertTrue(output.contains(String.format("<failure>%s</failure>", trace)));
+        assertTrue(output.endsWith("</testsuite>"));
+        assertEquals(0, mResultReporter.getRunResult().getNumTests());
+        // the test cases are written to a temporary file, which is deleted
+        assertEquals(0, mReportDir.listFiles().length);
+    }
+
     /**
      * Gets the output produced, stripping it of extraneous whitespace characters.
      */
@@ -24,6 +24,7 @@ import com.android.ddmlib.Log;
 import com.android.ddmlib.Log.ILogOutput;
 import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.RawImage;
+import com.android.ddmlib.ScreenCapture;
 import com.android.ddmlib.TimeoutException;
 import java.awt.color.ICC_Profile;
 import java.awt.image.BufferedImage;
@@ -342,18 +343,7 @@ public class Screenshot {
         }
 
         // convert raw data to an Image
-        BufferedImage image = new BufferedImage(rawImage.width, rawImage.height,
-                BufferedImage.TYPE_INT_ARGB);
-
-        int index = 0;
-        int IndexInc = rawImage.bpp >> 3;
-        for (int y = 0 ; y < rawImage.height ; y++) {
-            for (int x = 0 ; x < rawImage.width ; x++) {
-                int value = rawImage.getARGB(index);
-                index += IndexInc;
-                image.setRGB(x, y, value);
-            }
-        }
+        BufferedImage image = ScreenCapture.toImage(rawImage, null);
 
         File outFile = new File(filepath);
 
@@ -52,4 +52,13 @@ public interface DataBuffer {
     boolean hasRemaining();
 
     long remaining();
+
+    /**
+     * Returns a buffer over the same data with its own position, so that several threads can read
+     * it at the same time. Buffers which can't be shared this way return themselves.
+     */
+    @NonNull
+    default DataBuffer duplicate() {
+        return this;
+    }
 }
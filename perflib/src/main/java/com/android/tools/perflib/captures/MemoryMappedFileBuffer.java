@@ -48,6 +48,9 @@ public class MemoryMappedFileBuffer implements DataBuffer {
 
     private final long mLength;
 
+    // False for duplicates, which share the mapping of the buffer they were created from.
+    private final boolean mOwnsMapping;
+
     private long mCurrentPosition;
 
     @VisibleForTesting
@@ -56,6 +59,7 @@ public class MemoryMappedFileBuffer implements DataBuffer {
         mBufferSize = bufferSize;
         mPadding = padding;
         mLength = f.length();
+        mOwnsMapping = true;
         int shards = (int) (mLength / mBufferSize) + 1;
         mByteBuffers = new ByteBuffer[shards];
 
@@ -88,15 +92,49 @@ public class MemoryMappedFileBuffer implements DataBuffer {
         this(f, DEFAULT_SIZE, DEFAULT_PADDING);
     }
 
+    private MemoryMappedFileBuffer(@NonNull MemoryMappedFileBuffer source) {
+        mBufferSize = source.mBufferSize;
+        mPadding = source.mPadding;
+        mLength = source.mLength;
+        mOwnsMapping = false;
+        mByteBuffers = new ByteBuffer[source.mByteBuffers.length];
+        for (int i = 0; i < mByteBuffers.length; i++) {
+            mByteBuffers[i] = source.mByteBuffers[i].duplicate();
+            mByteBuffers[i].order(HPROF_BYTE_ORDER);
+        }
+        mCurrentPosition = source.mCurrentPosition;
+    }
+
+    /**
+     * Returns a buffer over the same mapping with its own position, so that different threads can
+     * read the file at the same time, each through its own duplicate. Disposing of a duplicate does
+     * nothing, and duplicates must not be used once this buffer is disposed.
+     */
+    @NonNull
+    @Override
+    public MemoryMappedFileBuffer duplicate() {
+        return new MemoryMappedFileBuffer(this);
+    }
+
     /**
      * Attempts to unmap the buffer. It is the caller's responsibility to ensure there are no other
      * accesses to this buffer, otherwise this can result in a crash and kill the JVM.
      */
     @Override
     public void dispose() {
+        if (mOwnsMapping) {
+            unmap(mByteBuffers);
+        }
+    }
+
+    /**
+     * Attempts to unmap the given memory-mapped buffers. The same caveats as for {@link #dispose()}
+     * apply: none of the buffers may be accessed afterwards.
+     */
+    public static void unmap(@NonNull ByteBuffer... byteBuffers) {
         try {
             if (System.getProperty("java.version", "").startsWith("1.8")) {
-                for (ByteBuffer buffer : mByteBuffers) {
+                for (ByteBuffer buffer : byteBuffers) {
                     ((DirectBuffer)buffer).cleaner().clean();
                 }
             }
@@ -106,7 +144,7 @@ public class MemoryMappedFileBuffer implements DataBuffer {
                 Unsafe unsafe = (Unsafe)theUnsafe.get(null);
                 MethodType type = MethodType.methodType(void.class, ByteBuffer.class);
                 @SuppressWarnings("JavaLangInvokeHandleSignature") MethodHandle cleaner = MethodHandles.lookup().findVirtual(Unsafe.class, "invokeCleaner", type);
-                for (ByteBuffer buffer : mByteBuffers) {
+                for (ByteBuffer buffer : byteBuffers) {
                     cleaner.invokeExact(unsafe, buffer);
                 }
             }
@@ -23,6 +23,10 @@ import java.nio.CharBuffer;
 
 public class ArrayInstance extends Instance {
 
+    private static final long FINGERPRINT_SEED = 0x9e3779b97f4a7c15L;
+
+    private static final long FINGERPRINT_MULTIPLIER = 0xbf58476d1ce4e5b9L;
+
     private final Type mType;
 
     private final int mLength;
@@ -69,6 +73,83 @@ public class ArrayInstance extends Instance {
         return result;
     }
 
+    /**
+     * Returns a 64-bit hash of the raw bytes of {@code elementCount} elements starting at {@code
+     * start}, read straight from the heap dump without copying them out. Equal contents always have
+     * equal fingerprints, so only arrays with the same fingerprint need to be compared with {@link
+     * #contentEquals(int, ArrayInstance, int, int)}.
+     */
+    public long getContentFingerprint(int start, int elementCount) {
+        assert mType != Type.OBJECT;
+        assert start + elementCount <= mLength;
+        int byteCount = elementCount * mType.getSize();
+        DataBuffer buffer = getBuffer();
+        buffer.setPosition(mValuesOffset + (long) start * mType.getSize());
+
+        long hash = FINGERPRINT_SEED ^ byteCount;
+        int i = 0;
+        for (; i + 8 <= byteCount; i += 8) {
+            hash = (hash ^ buffer.readLong()) * FINGERPRINT_MULTIPLIER;
+            hash ^= hash >>> 29;
+        }
+        long tail = 0;
+        for (; i < byteCount; i++) {
+            tail = (tail << 8) | (buffer.readByte() & 0xFF);
+        }
+        hash = (hash ^ tail) * FINGERPRINT_MULTIPLIER;
+
+        // Final avalanche from MurmurHash3, so that the low bits depend on all of the input.
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Returns whether {@code elementCount} elements starting at {@code start} hold the same raw
+     * bytes as those of {@code other} starting at {@code otherStart}. The contents are compared in
+     * place in the heap dump.
+     */
+    public boolean contentEquals(int start, @NonNull ArrayInstance other, int otherStart,
+            int elementCount) {
+        assert mType != Type.OBJECT;
+        assert start + elementCount <= mLength;
+        assert otherStart + elementCount <= other.mLength;
+        if (mType != other.mType) {
+            return false;
+        }
+        if (other == this && start == otherStart) {
+            return true;
+        }
+
+        int byteCount = elementCount * mType.getSize();
+        long position = mValuesOffset + (long) start * mType.getSize();
+        long otherPosition = other.mValuesOffset + (long) otherStart * mType.getSize();
+        // Both arrays usually live in the same buffer, so reposition it before every read.
+        DataBuffer buffer = getBuffer();
+        DataBuffer otherBuffer = other.getBuffer();
+        int i = 0;
+        for (; i + 8 <= byteCount; i += 8) {
+            buffer.setPosition(position + i);
+            long word = buffer.readLong();
+            otherBuffer.setPosition(otherPosition + i);
+            if (word != otherBuffer.readLong()) {
+                return false;
+            }
+        }
+        for (; i < byteCount; i++) {
+            buffer.setPosition(position + i);
+            byte value = buffer.readByte();
+            otherBuffer.setPosition(otherPosition + i);
+            if (value != otherBuffer.readByte()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public final int getSize() {
         // TODO: Take the rest of the fields into account: length, type, etc (~16 bytes).
@@ -81,16 +162,26 @@ public class ArrayInstance extends Instance {
             for (Object value : getValues()) {
                 if (value instanceof Instance) {
                     ((Instance)value).addReverseReference(null, this);
-                    mHardForwardReferences.add((Instance)value);
+                    addHardForwardReference((Instance)value);
                 }
             }
         }
     }
 
+    @Override
+    final void readReferenceIds(@NonNull ReferenceIdConsumer consumer) {
+        if (mType == Type.OBJECT) {
+            getBuffer().setPosition(mValuesOffset);
+            for (int i = 0; i < mLength; i++) {
+                consumer.accept(readId(), false);
+            }
+        }
+    }
+
     @Override
     public final void accept(@NonNull Visitor visitor) {
         visitor.visitArrayInstance(this);
-        for (Instance instance : mHardForwardReferences) {
+        for (Instance instance : getHardForwardReferences()) {
             visitor.visitLater(this, instance);
         }
     }
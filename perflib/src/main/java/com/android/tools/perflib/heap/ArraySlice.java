@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+
+/**
+ * A range of elements of a primitive {@link ArrayInstance}, such as the characters backing a
+ * string. The elements stay in the heap dump and are only read when hashed or compared.
+ */
+public final class ArraySlice {
+
+    @NonNull
+    private final ArrayInstance mArray;
+
+    private final int mStart;
+
+    private final int mLength;
+
+    public ArraySlice(@NonNull ArrayInstance array, int start, int length) {
+        assert array.getArrayType() != Type.OBJECT;
+        mArray = array;
+        mStart = start;
+        mLength = length;
+    }
+
+    @NonNull
+    public ArrayInstance getArray() {
+        return mArray;
+    }
+
+    public int getStart() {
+        return mStart;
+    }
+
+    /**
+     * Returns the number of elements in the slice.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    public int getByteLength() {
+        return mLength * mArray.getArrayType().getSize();
+    }
+
+    /**
+     * @see ArrayInstance#getContentFingerprint(int, int)
+     */
+    public long getContentFingerprint() {
+        return mArray.getContentFingerprint(mStart, mLength);
+    }
+
+    /**
+     * Returns whether both slices hold the same elements of the same type.
+     */
+    public boolean contentEquals(@NonNull ArraySlice other) {
+        return mLength == other.mLength
+                && mArray.contentEquals(mStart, other.mArray, other.mStart, mLength);
+    }
+}
@@ -69,17 +69,40 @@ public class ClassInstance extends Instance {
                 if (getIsSoftReference() && fieldValue.getField().getName().equals("referent")) {
                     mSoftForwardReference = referencedInstance;
                 } else {
-                    mHardForwardReferences.add(referencedInstance);
+                    addHardForwardReference(referencedInstance);
                 }
             }
         }
-        mHardForwardReferences.trimToSize(); // Don't wait until the compactMemory stage to trim.
+        if (mHardForwardReferences != null) {
+            // Don't wait until the compactMemory stage to trim.
+            mHardForwardReferences.trimToSize();
+        }
+    }
+
+    @Override
+    final void readReferenceIds(@NonNull ReferenceIdConsumer consumer) {
+        ClassObj clazz = getClassObj();
+        boolean isSoftReference = clazz != null && clazz.getIsSoftReference();
+        getBuffer().setPosition(mValuesOffset);
+        while (clazz != null) {
+            for (Field field : clazz.getFields()) {
+                Type type = field.getType();
+                if (type == Type.OBJECT) {
+                    consumer.accept(readId(),
+                            isSoftReference && field.getName().equals("referent"));
+                } else {
+                    getBuffer().setPosition(
+                            getBuffer().position() + mHeap.mSnapshot.getTypeSize(type));
+                }
+            }
+            clazz = clazz.getSuperClassObj();
+        }
     }
 
     @Override
     public final void accept(@NonNull Visitor visitor) {
         visitor.visitClassInstance(this);
-        for (Instance instance : mHardForwardReferences) {
+        for (Instance instance : getHardForwardReferences()) {
             visitor.visitLater(this, instance);
         }
     }
@@ -105,6 +128,28 @@ public class ClassInstance extends Instance {
 
     @Nullable
     public final String getAsString(int maxDecodeStringLength) {
+        ArraySlice content = getStringContent();
+        if (content == null) {
+            return null;
+        }
+        ArrayInstance array = content.getArray();
+        int length = Math.min(content.getLength(), maxDecodeStringLength);
+        if (array.getArrayType() == Type.BYTE) {
+            try {
+                return new String(array.asRawByteArray(content.getStart(), length), "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                return null;
+            }
+        }
+        return new String(array.asCharArray(content.getStart(), length));
+    }
+
+    /**
+     * Returns the part of the backing array holding the characters of this string, without
+     * decoding them, or null if this isn't a string with a char or byte backing array.
+     */
+    @Nullable
+    public final ArraySlice getStringContent() {
         int count = -1;
         int offset = 0;
         ArrayInstance charBufferArray = null;
@@ -130,23 +175,10 @@ public class ClassInstance extends Instance {
             }
         }
 
-        if (byteBufferArray != null) {
-            try {
-                return new String(
-                        byteBufferArray.asRawByteArray(
-                                offset >= 0 ? offset : 0,
-                                Math.max(Math.min(count, maxDecodeStringLength), 0)),
-                        "UTF-8");
-            } catch (UnsupportedEncodingException e) {
-                return null;
-            }
-        }
-        return charBufferArray == null
+        ArrayInstance array = byteBufferArray != null ? byteBufferArray : charBufferArray;
+        return array == null
                 ? null
-                : new String(
-                        charBufferArray.asCharArray(
-                                offset >= 0 ? offset : 0,
-                                Math.max(Math.min(count, maxDecodeStringLength), 0)));
+                : new ArraySlice(array, Math.max(offset, 0), Math.max(count, 0));
     }
 
     public static class FieldValue {
@@ -198,7 +198,27 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
             Object value = entry.getValue();
             if (value instanceof Instance) {
                 ((Instance)value).addReverseReference(entry.getKey(), this);
-                mHardForwardReferences.add((Instance)value);
+                addHardForwardReference((Instance)value);
+            }
+        }
+    }
+
+    @Override
+    final void readReferenceIds(@NonNull ReferenceIdConsumer consumer) {
+        getBuffer().setPosition(mStaticFieldsOffset);
+
+        int numEntries = readUnsignedShort();
+        for (int i = 0; i < numEntries; i++) {
+            Type type = mStaticFields[i].getType();
+
+            readId();
+            readUnsignedByte();
+
+            if (type == Type.OBJECT) {
+                consumer.accept(readId(), false);
+            } else {
+                getBuffer().setPosition(
+                        getBuffer().position() + mHeap.mSnapshot.getTypeSize(type));
             }
         }
     }
@@ -206,7 +226,7 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
     @Override
     public final void accept(@NonNull Visitor visitor) {
         visitor.visitClassObj(this);
-        for (Instance instance : mHardForwardReferences) {
+        for (Instance instance : getHardForwardReferences()) {
             visitor.visitLater(this, instance);
         }
     }
@@ -0,0 +1,395 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.io.IntArrayStorage;
+import com.android.tools.perflib.heap.io.LongArrayStorage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * A compact representation of the reference graph of a {@link Snapshot}.
+ *
+ * Every class object and instance is assigned a dense node index, in ascending id order, so an id
+ * maps back to its node with a binary search. Per-node data lives in parallel primitive arrays,
+ * and references are kept in compressed sparse row (CSR) form: the hard references of node
+ * {@code n} are the nodes stored in {@code mForwardEdges} between {@code mForwardOffsets[n]} and
+ * {@code mForwardOffsets[n + 1]}. This costs a few dozen bytes per node plus 8 bytes per
+ * reference, instead of two {@link ArrayList}s per {@link Instance}. All arrays can be
+ * memory-mapped from scratch files, so the graph doesn't even need to fit into the Java heap.
+ *
+ * Once a snapshot has a graph, {@link Instance#getHardForwardReferences()} and friends become
+ * views over it, and {@link Snapshot#resolveReferences()} no longer fills per-instance lists.
+ */
+public final class HeapGraph {
+
+    public static final int NO_NODE = -1;
+
+    @NonNull
+    private final Snapshot mSnapshot;
+
+    private final int mNodeCount;
+
+    //  The id of each node, sorted in ascending order.
+    @NonNull
+    private final LongArrayStorage mIds;
+
+    //  The node of the ClassObj of each node, or NO_NODE if unknown.
+    @NonNull
+    private final IntArrayStorage mClassNodes;
+
+    @NonNull
+    private final IntArrayStorage mSizes;
+
+    //  The referent of each soft/weak/phantom reference node, or NO_NODE.
+    @NonNull
+    private final IntArrayStorage mSoftForwardEdges;
+
+    @NonNull
+    private final LongArrayStorage mForwardOffsets;
+
+    @NonNull
+    private final IntArrayStorage mForwardEdges;
+
+    //  Hard reverse references, deduped and without self references.
+    @NonNull
+    private final LongArrayStorage mReverseOffsets;
+
+    @NonNull
+    private final IntArrayStorage mReverseEdges;
+
+    @NonNull
+    private final LongArrayStorage mSoftReverseOffsets;
+
+    @NonNull
+    private final IntArrayStorage mSoftReverseEdges;
+
+    private HeapGraph(@NonNull Snapshot snapshot, int nodeCount, @NonNull LongArrayStorage ids,
+            @NonNull IntArrayStorage classNodes, @NonNull IntArrayStorage sizes,
+            @NonNull IntArrayStorage softForwardEdges, @NonNull LongArrayStorage forwardOffsets,
+            @NonNull IntArrayStorage forwardEdges, @NonNull LongArrayStorage reverseOffsets,
+            @NonNull IntArrayStorage reverseEdges, @NonNull LongArrayStorage softReverseOffsets,
+            @NonNull IntArrayStorage softReverseEdges) {
+        mSnapshot = snapshot;
+        mNodeCount = nodeCount;
+        mIds = ids;
+        mClassNodes = classNodes;
+        mSizes = sizes;
+        mSoftForwardEdges = softForwardEdges;
+        mForwardOffsets = forwardOffsets;
+        mForwardEdges = forwardEdges;
+        mReverseOffsets = reverseOffsets;
+        mReverseEdges = reverseEdges;
+        mSoftReverseOffsets = softReverseOffsets;
+        mSoftReverseEdges = softReverseEdges;
+    }
+
+    /**
+     * Builds the graph of all class objects and instances in {@code snapshot}, reading references
+     * straight from the snapshot's buffer.
+     *
+     * @param scratchDirectory if non-null, all arrays are memory-mapped from temporary files in
+     *                         this directory instead of being allocated on the Java heap
+     */
+    @NonNull
+    static HeapGraph build(@NonNull Snapshot snapshot, @Nullable File scratchDirectory)
+            throws IOException {
+        long count = 0;
+        for (Heap heap : snapshot.getHeaps()) {
+            count += heap.getClasses().size() + heap.getInstancesCount();
+        }
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many instances in snapshot: " + count);
+        }
+        final int nodeCount = (int) count;
+
+        // Assign node indices in ascending id order.
+        final LongArrayStorage ids = LongArrayStorage.allocate(nodeCount, scratchDirectory);
+        final long[] nextNode = new long[1];
+        forEachNode(snapshot, instance -> ids.set(nextNode[0]++, instance.getId()));
+        ids.sort();
+
+        // Record per-node data and count the references of each node.
+        final IntArrayStorage classNodes = IntArrayStorage.allocate(nodeCount, scratchDirectory);
+        final IntArrayStorage sizes = IntArrayStorage.allocate(nodeCount, scratchDirectory);
+        final IntArrayStorage softForwardEdges =
+                IntArrayStorage.allocate(nodeCount, scratchDirectory);
+        final LongArrayStorage forwardOffsets =
+                LongArrayStorage.allocate(nodeCount + 1, scratchDirectory);
+        final LongArrayStorage reverseOffsets =
+                LongArrayStorage.allocate(nodeCount + 1, scratchDirectory);
+        final LongArrayStorage softReverseOffsets =
+                LongArrayStorage.allocate(nodeCount + 1, scratchDirectory);
+        forEachNode(snapshot, instance -> {
+            int node = (int) ids.binarySearch(instance.getId());
+            ClassObj classObj = instance.getClassObj();
+            classNodes.set(node,
+                    classObj != null ? (int) ids.binarySearch(classObj.getId()) : NO_NODE);
+            sizes.set(node, instance.getSize());
+            softForwardEdges.set(node, NO_NODE);
+            instance.readReferenceIds((id, isSoft) -> {
+                int target = (int) ids.binarySearch(id);
+                if (target == NO_NODE) {
+                    return;
+                }
+                if (isSoft) {
+                    softForwardEdges.set(node, target);
+                    softReverseOffsets.set(target + 1, softReverseOffsets.get(target + 1) + 1);
+                } else {
+                    forwardOffsets.set(node + 1, forwardOffsets.get(node + 1) + 1);
+                    reverseOffsets.set(target + 1, reverseOffsets.get(target + 1) + 1);
+                }
+            });
+        });
+        accumulate(forwardOffsets);
+        accumulate(reverseOffsets);
+        accumulate(softReverseOffsets);
+
+        // Fill in the forward references, in field order.
+        final IntArrayStorage forwardEdges =
+                IntArrayStorage.allocate(forwardOffsets.get(nodeCount), scratchDirectory);
+        forEachNode(snapshot, instance -> {
+            int node = (int) ids.binarySearch(instance.getId());
+            long[] position = new long[] {forwardOffsets.get(node)};
+            instance.readReferenceIds((id, isSoft) -> {
+                int target = (int) ids.binarySearch(id);
+                if (target != NO_NODE && !isSoft) {
+                    forwardEdges.set(position[0]++, target);
+                }
+            });
+        });
+
+        // Derive the reverse references from the forward ones.
+        IntArrayStorage reverseEdges =
+                IntArrayStorage.allocate(reverseOffsets.get(nodeCount), scratchDirectory);
+        IntArrayStorage softReverseEdges =
+                IntArrayStorage.allocate(softReverseOffsets.get(nodeCount), scratchDirectory);
+        shiftRight(reverseOffsets);
+        shiftRight(softReverseOffsets);
+        for (int node = 0; node < nodeCount; node++) {
+            for (long i = forwardOffsets.get(node); i < forwardOffsets.get(node + 1); i++) {
+                int target = forwardEdges.get(i);
+                long position = reverseOffsets.get(target + 1);
+                reverseEdges.set(position, node);
+                reverseOffsets.set(target + 1, position + 1);
+            }
+            int referent = softForwardEdges.get(node);
+            if (referent != NO_NODE) {
+                long position = softReverseOffsets.get(referent + 1);
+                softReverseEdges.set(position, node);
+                softReverseOffsets.set(referent + 1, position + 1);
+            }
+        }
+        dedupe(reverseOffsets, reverseEdges, nodeCount, true);
+        dedupe(softReverseOffsets, softReverseEdges, nodeCount, false);
+
+        return new HeapGraph(snapshot, nodeCount, ids, classNodes, sizes, softForwardEdges,
+                forwardOffsets, forwardEdges, reverseOffsets, reverseEdges, softReverseOffsets,
+                softReverseEdges);
+    }
+
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+
+    /**
+     * Returns the node of the class object or instance with the given id, or {@link #NO_NODE}.
+     */
+    public int getNode(long id) {
+        return (int) mIds.binarySearch(id);
+    }
+
+    public long getId(int node) {
+        return mIds.get(node);
+    }
+
+    public int getClassNode(int node) {
+        return mClassNodes.get(node);
+    }
+
+    public int getSize(int node) {
+        return mSizes.get(node);
+    }
+
+    public int getHardForwardReferenceCount(int node) {
+        return (int) (mForwardOffsets.get(node + 1) - mForwardOffsets.get(node));
+    }
+
+    public int getHardForwardReference(int node, int index) {
+        return mForwardEdges.get(mForwardOffsets.get(node) + index);
+    }
+
+    public int getSoftForwardReference(int node) {
+        return mSoftForwardEdges.get(node);
+    }
+
+    public int getHardReverseReferenceCount(int node) {
+        return (int) (mReverseOffsets.get(node + 1) - mReverseOffsets.get(node));
+    }
+
+    public int getHardReverseReference(int node, int index) {
+        return mReverseEdges.get(mReverseOffsets.get(node) + index);
+    }
+
+    public int getSoftReverseReferenceCount(int node) {
+        return (int) (mSoftReverseOffsets.get(node + 1) - mSoftReverseOffsets.get(node));
+    }
+
+    public int getSoftReverseReference(int node, int index) {
+        return mSoftReverseEdges.get(mSoftReverseOffsets.get(node) + index);
+    }
+
+    /**
+     * Returns the {@link Instance} or {@link ClassObj} backing {@code node}.
+     */
+    @Nullable
+    public Instance getInstance(int node) {
+        return mSnapshot.findInstance(mIds.get(node));
+    }
+
+    public void dispose() {
+        mIds.dispose();
+        mClassNodes.dispose();
+        mSizes.dispose();
+        mSoftForwardEdges.dispose();
+        mForwardOffsets.dispose();
+        mForwardEdges.dispose();
+        mReverseOffsets.dispose();
+        mReverseEdges.dispose();
+        mSoftReverseOffsets.dispose();
+        mSoftReverseEdges.dispose();
+    }
+
+    @NonNull
+    ArrayList<Instance> getHardForwardReferences(@NonNull Instance instance) {
+        int node = getNode(instance.getId());
+        if (node == NO_NODE) {
+            return new ArrayList<>(0);
+        }
+        return toInstances(mForwardOffsets, mForwardEdges, node);
+    }
+
+    @Nullable
+    Instance getSoftForwardReference(@NonNull Instance instance) {
+        int node = getNode(instance.getId());
+        int referent = node == NO_NODE ? NO_NODE : mSoftForwardEdges.get(node);
+        return referent == NO_NODE ? null : getInstance(referent);
+    }
+
+    @NonNull
+    ArrayList<Instance> getHardReverseReferences(@NonNull Instance instance) {
+        int node = getNode(instance.getId());
+        if (node == NO_NODE) {
+            return new ArrayList<>(0);
+        }
+        return toInstances(mReverseOffsets, mReverseEdges, node);
+    }
+
+    @Nullable
+    ArrayList<Instance> getSoftReverseReferences(@NonNull Instance instance) {
+        int node = getNode(instance.getId());
+        if (node == NO_NODE || getSoftReverseReferenceCount(node) == 0) {
+            return null;
+        }
+        return toInstances(mSoftReverseOffsets, mSoftReverseEdges, node);
+    }
+
+    @NonNull
+    private ArrayList<Instance> toInstances(@NonNull LongArrayStorage offsets,
+            @NonNull IntArrayStorage edges, int node) {
+        long start = offsets.get(node);
+        long end = offsets.get(node + 1);
+        ArrayList<Instance> result = new ArrayList<>((int) (end - start));
+        for (long i = start; i < end; i++) {
+            Instance instance = getInstance(edges.get(i));
+            if (instance != null) {
+                result.add(instance);
+            }
+        }
+        return result;
+    }
+
+    private static void forEachNode(@NonNull Snapshot snapshot,
+            @NonNull Consumer<Instance> consumer) {
+        for (Heap heap : snapshot.getHeaps()) {
+            for (ClassObj classObj : heap.getClasses()) {
+                consumer.accept(classObj);
+            }
+            heap.forEachInstance(instance -> {
+                consumer.accept(instance);
+                return true;
+            });
+        }
+    }
+
+    /**
+     * Turns per-node counts stored at {@code offsets[node + 1]} into start offsets.
+     */
+    private static void accumulate(@NonNull LongArrayStorage offsets) {
+        for (long i = 1; i < offsets.length(); i++) {
+            offsets.set(i, offsets.get(i) + offsets.get(i - 1));
+        }
+    }
+
+    /**
+     * Moves the start offset of each node to {@code offsets[node + 1]}, where it serves as a write
+     * cursor. Once every edge is written, each cursor has advanced to the start of the next node.
+     */
+    private static void shiftRight(@NonNull LongArrayStorage offsets) {
+        for (long i = offsets.length() - 1; i > 0; i--) {
+            offsets.set(i, offsets.get(i - 1));
+        }
+        offsets.set(0, 0);
+    }
+
+    /**
+     * Sorts and dedupes the edges of each node in place, compacting them towards the start of
+     * {@code edges}.
+     */
+    private static void dedupe(@NonNull LongArrayStorage offsets, @NonNull IntArrayStorage edges,
+            int nodeCount, boolean removeSelfReferences) {
+        int[] segment = new int[16];
+        long readStart = 0;
+        long write = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            long readEnd = offsets.get(node + 1);
+            int length = (int) (readEnd - readStart);
+            if (segment.length < length) {
+                segment = new int[Math.max(length, segment.length * 2)];
+            }
+            for (int i = 0; i < length; i++) {
+                segment[i] = edges.get(readStart + i);
+            }
+            Arrays.sort(segment, 0, length);
+            for (int i = 0; i < length; i++) {
+                if ((i > 0 && segment[i] == segment[i - 1])
+                        || (removeSelfReferences && segment[i] == node)) {
+                    continue;
+                }
+                edges.set(write++, segment[i]);
+            }
+            offsets.set(node + 1, write);
+            readStart = readEnd;
+        }
+    }
+}
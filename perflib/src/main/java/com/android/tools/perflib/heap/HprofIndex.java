@@ -0,0 +1,484 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.io.MappedFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A persistent index over a heap dump, stored in a sidecar file next to it, that answers lookups
+ * by object id and by class without parsing the dump into a {@link Snapshot}.
+ *
+ * The index holds the offset of every object record in the dump, sorted by object id, the
+ * instances of each class, the GC roots, the heaps and the dump's string table. It is memory
+ * mapped when opened, so reopening a dump that was already indexed costs next to nothing.
+ * Class names are the ones in the dump, before any proguard mapping.
+ */
+public final class HprofIndex {
+
+    static final int MAGIC = 0x504c4958; // "PLIX"
+
+    static final int VERSION = 1;
+
+    static final long NO_STRING = -1;
+
+    // Header layout.
+    static final int HEADER_MAGIC = 0;
+    static final int HEADER_VERSION = 4;
+    static final int HEADER_HPROF_LENGTH = 8;
+    static final int HEADER_HPROF_LAST_MODIFIED = 16;
+    static final int HEADER_ID_SIZE = 24;
+    static final int HEADER_OBJECT_COUNT = 32;
+    static final int HEADER_CLASS_COUNT = 40;
+    static final int HEADER_CLASSES_OFFSET = 48;
+    static final int HEADER_CLASS_NAMES_OFFSET = 56;
+    static final int HEADER_INSTANCES_OFFSET = 64;
+    static final int HEADER_ROOT_COUNT = 72;
+    static final int HEADER_ROOTS_OFFSET = 80;
+    static final int HEADER_HEAP_COUNT = 88;
+    static final int HEADER_HEAPS_OFFSET = 96;
+    static final int HEADER_STRING_COUNT = 104;
+    static final int HEADER_STRINGS_OFFSET = 112;
+    static final int HEADER_SIZE = 128;
+
+    // Object records, sorted by id, start right after the header.
+    static final int OBJECT_ID = 0;
+    static final int OBJECT_OFFSET = 8;
+    static final int OBJECT_CLASS_ID = 16;
+    static final int OBJECT_HEAP_ID = 24;
+    static final int OBJECT_KIND = 28;
+    static final int OBJECT_RECORD_SIZE = 32;
+
+    static final int KIND_CLASS = 0;
+    static final int KIND_INSTANCE = 1;
+    static final int KIND_OBJECT_ARRAY = 2;
+    static final int KIND_PRIMITIVE_ARRAY = 3;
+
+    // Class records, sorted by id.
+    static final int CLASS_ID = 0;
+    static final int CLASS_SUPER_CLASS_ID = 8;
+    static final int CLASS_NAME = 16;
+    static final int CLASS_FIRST_INSTANCE = 24;
+    static final int CLASS_INSTANCE_COUNT = 32;
+    static final int CLASS_RECORD_SIZE = 40;
+
+    // Root records: id, then the RootType ordinal.
+    static final int ROOT_RECORD_SIZE = 16;
+
+    // Heap records: heap id, then the offset of its name.
+    static final int HEAP_RECORD_SIZE = 16;
+
+    // String records, sorted by id: id, then the offset of its length-prefixed UTF-8 bytes.
+    static final int STRING_RECORD_SIZE = 16;
+
+    public enum Kind {
+        CLASS,
+        INSTANCE,
+        OBJECT_ARRAY,
+        PRIMITIVE_ARRAY
+    }
+
+    @NonNull
+    private final MappedFile mFile;
+
+    private final int mIdSize;
+
+    private final long mObjectCount;
+
+    private final int mClassCount;
+
+    private final long mClassesOffset;
+
+    private final long mClassNamesOffset;
+
+    private final long mInstancesOffset;
+
+    private final int mRootCount;
+
+    private final long mRootsOffset;
+
+    private final int mHeapCount;
+
+    private final long mHeapsOffset;
+
+    private final long mStringCount;
+
+    private final long mStringsOffset;
+
+    private HprofIndex(@NonNull MappedFile file) {
+        mFile = file;
+        mIdSize = file.getInt(HEADER_ID_SIZE);
+        mObjectCount = file.getLong(HEADER_OBJECT_COUNT);
+        mClassCount = (int) file.getLong(HEADER_CLASS_COUNT);
+        mClassesOffset = file.getLong(HEADER_CLASSES_OFFSET);
+        mClassNamesOffset = file.getLong(HEADER_CLASS_NAMES_OFFSET);
+        mInstancesOffset = file.getLong(HEADER_INSTANCES_OFFSET);
+        mRootCount = (int) file.getLong(HEADER_ROOT_COUNT);
+        mRootsOffset = file.getLong(HEADER_ROOTS_OFFSET);
+        mHeapCount = (int) file.getLong(HEADER_HEAP_COUNT);
+        mHeapsOffset = file.getLong(HEADER_HEAPS_OFFSET);
+        mStringCount = file.getLong(HEADER_STRING_COUNT);
+        mStringsOffset = file.getLong(HEADER_STRINGS_OFFSET);
+    }
+
+    /**
+     * Returns the sidecar file the index of {@code hprof} is kept in.
+     */
+    @NonNull
+    public static File getIndexFile(@NonNull File hprof) {
+        return new File(hprof.getPath() + ".index");
+    }
+
+    /**
+     * Opens the index of {@code hprof}, first building it if it doesn't exist yet or is out of date
+     * with respect to the dump.
+     */
+    @NonNull
+    public static HprofIndex open(@NonNull File hprof) throws IOException {
+        File indexFile = getIndexFile(hprof);
+        HprofIndex index = load(hprof, indexFile);
+        if (index == null) {
+            build(hprof, indexFile);
+            index = load(hprof, indexFile);
+            if (index == null) {
+                throw new IOException("Failed to index " + hprof);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Indexes {@code hprof} into {@code indexFile}, replacing any existing index.
+     */
+    public static void build(@NonNull File hprof, @NonNull File indexFile) throws IOException {
+        File temporaryFile = new File(indexFile.getPath() + ".tmp");
+        DataBuffer buffer = new MemoryMappedFileBuffer(hprof);
+        try {
+            HprofIndexer.write(buffer, hprof.length(), hprof.lastModified(), temporaryFile);
+        } catch (IOException | RuntimeException e) {
+            //noinspection ResultOfMethodCallIgnored
+            temporaryFile.delete();
+            throw e;
+        } finally {
+            buffer.dispose();
+        }
+        Files.move(temporaryFile.toPath(), indexFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Nullable
+    private static HprofIndex load(@NonNull File hprof, @NonNull File indexFile)
+            throws IOException {
+        if (!indexFile.isFile() || indexFile.length() < HEADER_SIZE) {
+            return null;
+        }
+        MappedFile file = MappedFile.mapReadOnly(indexFile);
+        if (file.getInt(HEADER_MAGIC) != MAGIC
+                || file.getInt(HEADER_VERSION) != VERSION
+                || file.getLong(HEADER_HPROF_LENGTH) != hprof.length()
+                || file.getLong(HEADER_HPROF_LAST_MODIFIED) != hprof.lastModified()) {
+            file.dispose();
+            return null;
+        }
+        return new HprofIndex(file);
+    }
+
+    public void dispose() {
+        mFile.dispose();
+    }
+
+    public int getIdSize() {
+        return mIdSize;
+    }
+
+    public long getObjectCount() {
+        return mObjectCount;
+    }
+
+    /**
+     * Returns the object (class, instance or array) with the given id, or null if there's none.
+     */
+    @Nullable
+    public IndexedObject findObject(long id) {
+        long low = 0;
+        long high = mObjectCount - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            long offset = HEADER_SIZE + mid * OBJECT_RECORD_SIZE;
+            long midId = mFile.getLong(offset + OBJECT_ID);
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                int kind = mFile.getInt(offset + OBJECT_KIND);
+                return new IndexedObject(id, mFile.getLong(offset + OBJECT_OFFSET),
+                        Kind.values()[kind & 0xff], mFile.getLong(offset + OBJECT_CLASS_ID),
+                        mFile.getInt(offset + OBJECT_HEAP_ID), Type.getType(kind >>> 8));
+            }
+        }
+        return null;
+    }
+
+    public int getClassCount() {
+        return mClassCount;
+    }
+
+    @Nullable
+    public IndexedClass findClass(long id) {
+        int low = 0;
+        int high = mClassCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midId = mFile.getLong(mClassesOffset + (long) mid * CLASS_RECORD_SIZE);
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return getClass(mid);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a class with the given name, or null if there's none. Like
+     * {@link Snapshot#findClass(String)}, if several classes share the name, any one of them may
+     * be returned.
+     */
+    @Nullable
+    public IndexedClass findClass(@NonNull String name) {
+        int low = 0;
+        int high = mClassCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int index = mFile.getInt(mClassNamesOffset + 4L * mid);
+            String midName = readString(
+                    mFile.getLong(mClassesOffset + (long) index * CLASS_RECORD_SIZE + CLASS_NAME));
+            int comparison = midName == null ? -1 : midName.compareTo(name);
+            if (comparison < 0) {
+                low = mid + 1;
+            } else if (comparison > 0) {
+                high = mid - 1;
+            } else {
+                return getClass(index);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the ids of the instances and object arrays of {@code theClass}, in ascending order.
+     * Subclass instances aren't included.
+     */
+    @NonNull
+    public long[] getInstanceIds(@NonNull IndexedClass theClass) {
+        long[] ids = new long[(int) theClass.getInstanceCount()];
+        long offset = mInstancesOffset + 8 * theClass.mFirstInstance;
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = mFile.getLong(offset + 8L * i);
+        }
+        return ids;
+    }
+
+    public int getRootCount() {
+        return mRootCount;
+    }
+
+    public long getRootId(int index) {
+        return mFile.getLong(mRootsOffset + (long) index * ROOT_RECORD_SIZE);
+    }
+
+    @NonNull
+    public RootType getRootType(int index) {
+        return RootType.values()[mFile.getInt(
+                mRootsOffset + (long) index * ROOT_RECORD_SIZE + 8)];
+    }
+
+    /**
+     * Returns the name of the heap with the given id, or null if the dump doesn't have it.
+     */
+    @Nullable
+    public String getHeapName(int heapId) {
+        for (int i = 0; i < mHeapCount; i++) {
+            long offset = mHeapsOffset + (long) i * HEAP_RECORD_SIZE;
+            if (mFile.getInt(offset) == heapId) {
+                return readString(mFile.getLong(offset + 8));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the string with the given id from the dump's string table, or null if there's none.
+     */
+    @Nullable
+    public String getString(long id) {
+        long low = 0;
+        long high = mStringCount - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            long offset = mStringsOffset + mid * STRING_RECORD_SIZE;
+            long midId = mFile.getLong(offset);
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return readString(mFile.getLong(offset + 8));
+            }
+        }
+        return null;
+    }
+
+    @NonNull
+    private IndexedClass getClass(int index) {
+        long offset = mClassesOffset + (long) index * CLASS_RECORD_SIZE;
+        return new IndexedClass(mFile.getLong(offset + CLASS_ID),
+                mFile.getLong(offset + CLASS_SUPER_CLASS_ID),
+                readString(mFile.getLong(offset + CLASS_NAME)),
+                mFile.getLong(offset + CLASS_FIRST_INSTANCE),
+                mFile.getLong(offset + CLASS_INSTANCE_COUNT));
+    }
+
+    @Nullable
+    private String readString(long offset) {
+        if (offset == NO_STRING) {
+            return null;
+        }
+        byte[] bytes = new byte[mFile.getInt(offset)];
+        mFile.getBytes(offset + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * An object record in the heap dump.
+     */
+    public static final class IndexedObject {
+        private final long mId;
+
+        private final long mOffset;
+
+        @NonNull
+        private final Kind mKind;
+
+        private final long mClassId;
+
+        private final int mHeapId;
+
+        @Nullable
+        private final Type mArrayType;
+
+        IndexedObject(long id, long offset, @NonNull Kind kind, long classId, int heapId,
+                @Nullable Type arrayType) {
+            mId = id;
+            mOffset = offset;
+            mKind = kind;
+            mClassId = classId;
+            mHeapId = heapId;
+            mArrayType = arrayType;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        /**
+         * Returns the position of the record's sub-tag in the heap dump.
+         */
+        public long getOffset() {
+            return mOffset;
+        }
+
+        @NonNull
+        public Kind getKind() {
+            return mKind;
+        }
+
+        /**
+         * Returns the id of the instance's or object array's class, or 0 for classes and
+         * primitive arrays.
+         */
+        public long getClassId() {
+            return mClassId;
+        }
+
+        public int getHeapId() {
+            return mHeapId;
+        }
+
+        /**
+         * Returns the element type of arrays, or null for classes and instances.
+         */
+        @Nullable
+        public Type getArrayType() {
+            return mArrayType;
+        }
+    }
+
+    /**
+     * A class dumped in the heap dump.
+     */
+    public static final class IndexedClass {
+        private final long mId;
+
+        private final long mSuperClassId;
+
+        @Nullable
+        private final String mName;
+
+        private final long mFirstInstance;
+
+        private final long mInstanceCount;
+
+        IndexedClass(long id, long superClassId, @Nullable String name, long firstInstance,
+                long instanceCount) {
+            mId = id;
+            mSuperClassId = superClassId;
+            mName = name;
+            mFirstInstance = firstInstance;
+            mInstanceCount = instanceCount;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public long getSuperClassId() {
+            return mSuperClassId;
+        }
+
+        @Nullable
+        public String getName() {
+            return mName;
+        }
+
+        public long getInstanceCount() {
+            return mInstanceCount;
+        }
+    }
+}
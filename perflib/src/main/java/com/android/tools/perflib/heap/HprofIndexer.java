@@ -0,0 +1,625 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import static com.android.tools.perflib.heap.HprofIndex.*;
+import static com.android.tools.perflib.heap.HprofParser.*;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.heap.io.MappedFile;
+import com.google.common.primitives.UnsignedBytes;
+import com.google.common.primitives.UnsignedInts;
+import gnu.trove.TLongObjectHashMap;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a {@link HprofIndex} file in a single sequential pass over a heap dump, without creating
+ * any {@link Instance}s.
+ *
+ * Object records are streamed straight into the index file as they are encountered and sorted by
+ * id in place once the pass is over, through a memory mapping of the file. Only the string table,
+ * classes and roots, which are small compared to the objects, are kept on the Java heap.
+ */
+final class HprofIndexer {
+
+    @NonNull
+    private final DataBuffer mInput;
+
+    @NonNull
+    private final DataOutputStream mOutput;
+
+    private int mIdSize;
+
+    private long mObjectCount;
+
+    private int mCurrentHeapId = Snapshot.DEFAULT_HEAP_ID;
+
+    @NonNull
+    private final TLongObjectHashMap<byte[]> mStrings = new TLongObjectHashMap<>();
+
+    // Class id to the id of its name string.
+    @NonNull
+    private final TLongObjectHashMap<Long> mClassNameIds = new TLongObjectHashMap<>();
+
+    // Class id to its super class id, for each dumped class.
+    @NonNull
+    private final TLongObjectHashMap<Long> mSuperClassIds = new TLongObjectHashMap<>();
+
+    // Class id to the number of instances and object arrays of that class.
+    @NonNull
+    private final TLongObjectHashMap<int[]> mInstanceCounts = new TLongObjectHashMap<>();
+
+    @NonNull
+    private final Map<Integer, String> mHeapNames = new LinkedHashMap<>();
+
+    @NonNull
+    private long[] mRootIds = new long[1024];
+
+    @NonNull
+    private int[] mRootTypes = new int[1024];
+
+    private int mRootCount;
+
+    private HprofIndexer(@NonNull DataBuffer input, @NonNull DataOutputStream output) {
+        mInput = input;
+        mOutput = output;
+        mHeapNames.put(Snapshot.DEFAULT_HEAP_ID, Snapshot.DEFAULT_HEAP_NAME);
+    }
+
+    /**
+     * Indexes the heap dump in {@code buffer}, writing the result to {@code indexFile}.
+     */
+    static void write(@NonNull DataBuffer buffer, long hprofLength, long hprofLastModified,
+            @NonNull File indexFile) throws IOException {
+        HprofIndexer indexer;
+        Layout layout;
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(indexFile), 1 << 16))) {
+            output.write(new byte[HEADER_SIZE]);
+            indexer = new HprofIndexer(buffer, output);
+            indexer.readRecords();
+            layout = indexer.writeTables();
+        }
+
+        MappedFile file = MappedFile.mapReadWrite(indexFile, layout.mLength);
+        try {
+            sortObjects(file, indexer.mObjectCount);
+            fillInstances(file, indexer.mObjectCount, layout);
+
+            file.putInt(HEADER_VERSION, VERSION);
+            file.putLong(HEADER_HPROF_LENGTH, hprofLength);
+            file.putLong(HEADER_HPROF_LAST_MODIFIED, hprofLastModified);
+            file.putInt(HEADER_ID_SIZE, indexer.mIdSize);
+            file.putLong(HEADER_OBJECT_COUNT, indexer.mObjectCount);
+            file.putLong(HEADER_CLASS_COUNT, layout.mClassIds.length);
+            file.putLong(HEADER_CLASSES_OFFSET, layout.mClassesOffset);
+            file.putLong(HEADER_CLASS_NAMES_OFFSET, layout.mClassNamesOffset);
+            file.putLong(HEADER_INSTANCES_OFFSET, layout.mInstancesOffset);
+            file.putLong(HEADER_ROOT_COUNT, indexer.mRootCount);
+            file.putLong(HEADER_ROOTS_OFFSET, layout.mRootsOffset);
+            file.putLong(HEADER_HEAP_COUNT, indexer.mHeapNames.size());
+            file.putLong(HEADER_HEAPS_OFFSET, layout.mHeapsOffset);
+            file.putLong(HEADER_STRING_COUNT, indexer.mStrings.size());
+            file.putLong(HEADER_STRINGS_OFFSET, layout.mStringsOffset);
+            // The magic number goes in last, so a partially written index is never picked up.
+            file.putInt(HEADER_MAGIC, MAGIC);
+            file.force();
+        } finally {
+            file.dispose();
+        }
+    }
+
+    private void readRecords() throws IOException {
+        readNullTerminatedString(); // Version, ignored for now.
+
+        mIdSize = mInput.readInt();
+        mInput.readLong(); // Timestamp, ignored for now.
+
+        while (mInput.hasRemaining()) {
+            int tag = readUnsignedByte();
+            mInput.readInt(); // Ignored: timestamp
+            long length = readUnsignedInt();
+
+            switch (tag) {
+                case STRING_IN_UTF8:
+                    long id = readId();
+                    byte[] string = new byte[(int) length - mIdSize];
+                    mInput.read(string);
+                    mStrings.put(id, string);
+                    break;
+
+                case LOAD_CLASS:
+                    mInput.readInt(); // Ignored: Class serial number.
+                    long classId = readId();
+                    mInput.readInt(); // Ignored: Stack trace serial number.
+                    mClassNameIds.put(classId, readId());
+                    break;
+
+                case HEAP_DUMP:
+                case HEAP_DUMP_SEGMENT:
+                    readHeapDump(mInput.position() + length);
+                    mCurrentHeapId = Snapshot.DEFAULT_HEAP_ID;
+                    break;
+
+                default:
+                    skipFully(length);
+            }
+        }
+    }
+
+    private void readHeapDump(long end) throws IOException {
+        while (mInput.position() < end) {
+            long position = mInput.position();
+            int tag = readUnsignedByte();
+
+            switch (tag) {
+                case ROOT_UNKNOWN:
+                    addRoot(RootType.UNKNOWN);
+                    break;
+
+                case ROOT_JNI_GLOBAL:
+                    addRoot(RootType.NATIVE_STATIC);
+                    readId(); // Ignored: JNI global ref id.
+                    break;
+
+                case ROOT_JNI_LOCAL:
+                    addRoot(RootType.NATIVE_LOCAL);
+                    skipFully(4 + 4);
+                    break;
+
+                case ROOT_JAVA_FRAME:
+                    addRoot(RootType.JAVA_LOCAL);
+                    skipFully(4 + 4);
+                    break;
+
+                case ROOT_NATIVE_STACK:
+                    addRoot(RootType.NATIVE_STACK);
+                    skipFully(4);
+                    break;
+
+                case ROOT_STICKY_CLASS:
+                    addRoot(RootType.SYSTEM_CLASS);
+                    break;
+
+                case ROOT_THREAD_BLOCK:
+                    addRoot(RootType.THREAD_BLOCK);
+                    skipFully(4);
+                    break;
+
+                case ROOT_MONITOR_USED:
+                    addRoot(RootType.BUSY_MONITOR);
+                    break;
+
+                case ROOT_THREAD_OBJECT:
+                    addRoot(RootType.THREAD_OBJECT);
+                    skipFully(4 + 4);
+                    break;
+
+                case CLASS_DUMP:
+                    readClassDump(position);
+                    break;
+
+                case INSTANCE_DUMP: {
+                    long id = readId();
+                    mInput.readInt(); // Ignored: Stack trace serial number.
+                    long classId = readId();
+                    int remaining = mInput.readInt();
+                    writeObject(id, position, classId, KIND_INSTANCE, 0);
+                    countInstance(classId);
+                    skipFully(remaining);
+                    break;
+                }
+
+                case OBJECT_ARRAY_DUMP: {
+                    long id = readId();
+                    mInput.readInt(); // Ignored: Stack trace serial number.
+                    int numElements = mInput.readInt();
+                    long classId = readId();
+                    writeObject(id, position, classId, KIND_OBJECT_ARRAY, Type.OBJECT.getTypeId());
+                    countInstance(classId);
+                    skipFully((long) numElements * mIdSize);
+                    break;
+                }
+
+                case PRIMITIVE_ARRAY_DUMP: {
+                    long id = readId();
+                    mInput.readInt(); // Ignored: Stack trace serial number.
+                    int numElements = mInput.readInt();
+                    Type type = Type.getType(readUnsignedByte());
+                    writeObject(id, position, 0, KIND_PRIMITIVE_ARRAY, type.getTypeId());
+                    skipFully((long) numElements * type.getSize());
+                    break;
+                }
+
+                case PRIMITIVE_ARRAY_NODATA:
+                    throw new IllegalArgumentException("Don't know how to load a nodata array");
+
+                case HEAP_DUMP_INFO:
+                    mCurrentHeapId = mInput.readInt();
+                    byte[] heapName = mStrings.get(readId());
+                    if (!mHeapNames.containsKey(mCurrentHeapId) && heapName != null) {
+                        mHeapNames.put(mCurrentHeapId,
+                                new String(heapName, StandardCharsets.UTF_8));
+                    }
+                    break;
+
+                case ROOT_INTERNED_STRING:
+                    addRoot(RootType.INTERNED_STRING);
+                    break;
+
+                case ROOT_FINALIZING:
+                    addRoot(RootType.FINALIZING);
+                    break;
+
+                case ROOT_DEBUGGER:
+                    addRoot(RootType.DEBUGGER);
+                    break;
+
+                case ROOT_REFERENCE_CLEANUP:
+                    addRoot(RootType.REFERENCE_CLEANUP);
+                    break;
+
+                case ROOT_VM_INTERNAL:
+                    addRoot(RootType.VM_INTERNAL);
+                    break;
+
+                case ROOT_JNI_MONITOR:
+                    addRoot(RootType.NATIVE_MONITOR);
+                    skipFully(4 + 4);
+                    break;
+
+                case ROOT_UNREACHABLE:
+                    addRoot(RootType.UNREACHABLE);
+                    break;
+
+                default:
+                    throw new IllegalArgumentException(
+                            "readHeapDump loop with unknown tag " + tag
+                                    + " with " + mInput.remaining()
+                                    + " bytes possibly remaining");
+            }
+        }
+    }
+
+    private void readClassDump(long position) throws IOException {
+        long id = readId();
+        mInput.readInt(); // Ignored: Stack trace serial number.
+        long superClassId = readId();
+        skipFully(5 * mIdSize); // Class loader, signers, protection domain and reserved ids.
+        mInput.readInt(); // Ignored: Instance size.
+
+        int numEntries = readUnsignedShort();
+        for (int i = 0; i < numEntries; i++) {
+            readUnsignedShort();
+            skipValue();
+        }
+
+        numEntries = readUnsignedShort();
+        for (int i = 0; i < numEntries; i++) {
+            readId();
+            skipValue();
+        }
+
+        numEntries = readUnsignedShort();
+        skipFully(numEntries * (mIdSize + 1L));
+
+        writeObject(id, position, 0, KIND_CLASS, 0);
+        mSuperClassIds.put(id, superClassId);
+    }
+
+    private void addRoot(@NonNull RootType type) throws IOException {
+        if (mRootCount == mRootIds.length) {
+            mRootIds = Arrays.copyOf(mRootIds, mRootCount * 2);
+            mRootTypes = Arrays.copyOf(mRootTypes, mRootCount * 2);
+        }
+        mRootIds[mRootCount] = readId();
+        mRootTypes[mRootCount] = type.ordinal();
+        mRootCount++;
+    }
+
+    private void countInstance(long classId) {
+        int[] count = mInstanceCounts.get(classId);
+        if (count == null) {
+            mInstanceCounts.put(classId, new int[] {1});
+        } else {
+            count[0]++;
+        }
+    }
+
+    private void writeObject(long id, long position, long classId, int kind, int typeId)
+            throws IOException {
+        mOutput.writeLong(id);
+        mOutput.writeLong(position);
+        mOutput.writeLong(classId);
+        mOutput.writeInt(mCurrentHeapId);
+        mOutput.writeInt(kind | (typeId << 8));
+        mObjectCount++;
+    }
+
+    /**
+     * Appends everything but the object records to the index, leaving the per-class instance lists
+     * zeroed, to be filled in once the objects are sorted.
+     */
+    @NonNull
+    private Layout writeTables() throws IOException {
+        Layout layout = new Layout();
+        layout.mClassIds = mSuperClassIds.keys();
+        Arrays.sort(layout.mClassIds);
+        long[] stringIds = mStrings.keys();
+        Arrays.sort(stringIds);
+        int classCount = layout.mClassIds.length;
+
+        layout.mClassesOffset = HEADER_SIZE + mObjectCount * OBJECT_RECORD_SIZE;
+        layout.mClassNamesOffset = layout.mClassesOffset + (long) classCount * CLASS_RECORD_SIZE;
+        layout.mInstancesOffset = layout.mClassNamesOffset + align8(classCount * 4L);
+        layout.mFirstInstances = new long[classCount];
+        long instanceCount = 0;
+        for (int i = 0; i < classCount; i++) {
+            layout.mFirstInstances[i] = instanceCount;
+            int[] count = mInstanceCounts.get(layout.mClassIds[i]);
+            instanceCount += count == null ? 0 : count[0];
+        }
+        layout.mRootsOffset = layout.mInstancesOffset + instanceCount * 8;
+        layout.mHeapsOffset = layout.mRootsOffset + (long) mRootCount * ROOT_RECORD_SIZE;
+        layout.mStringsOffset = layout.mHeapsOffset + (long) mHeapNames.size() * HEAP_RECORD_SIZE;
+
+        // The string blob follows the string table: hprof strings first, then heap names.
+        TLongObjectHashMap<Long> stringOffsets = new TLongObjectHashMap<>();
+        long blobOffset = layout.mStringsOffset + (long) stringIds.length * STRING_RECORD_SIZE;
+        for (long stringId : stringIds) {
+            stringOffsets.put(stringId, blobOffset);
+            blobOffset += blobEntrySize(mStrings.get(stringId));
+        }
+        List<byte[]> heapNames = new ArrayList<>();
+        long[] heapNameOffsets = new long[mHeapNames.size()];
+        for (String heapName : mHeapNames.values()) {
+            byte[] bytes = heapName.getBytes(StandardCharsets.UTF_8);
+            heapNameOffsets[heapNames.size()] = blobOffset;
+            heapNames.add(bytes);
+            blobOffset += blobEntrySize(bytes);
+        }
+        layout.mLength = blobOffset;
+
+        // Classes, by id.
+        long[] nameOffsets = new long[classCount];
+        String[] names = new String[classCount];
+        for (int i = 0; i < classCount; i++) {
+            long classId = layout.mClassIds[i];
+            Long nameId = mClassNameIds.get(classId);
+            Long nameOffset = nameId == null ? null : stringOffsets.get(nameId);
+            nameOffsets[i] = nameOffset == null ? NO_STRING : nameOffset;
+            names[i] = nameOffset == null
+                    ? null
+                    : new String(mStrings.get(nameId), StandardCharsets.UTF_8);
+
+            int[] count = mInstanceCounts.get(classId);
+            mOutput.writeLong(classId);
+            mOutput.writeLong(mSuperClassIds.get(classId));
+            mOutput.writeLong(nameOffsets[i]);
+            mOutput.writeLong(layout.mFirstInstances[i]);
+            mOutput.writeLong(count == null ? 0 : count[0]);
+        }
+
+        // Classes, by name. Unnamed classes sort first and are never found by name.
+        Integer[] byName = new Integer[classCount];
+        for (int i = 0; i < classCount; i++) {
+            byName[i] = i;
+        }
+        Arrays.sort(byName, Comparator.comparing((Integer i) -> names[i],
+                Comparator.nullsFirst(Comparator.naturalOrder())));
+        for (Integer index : byName) {
+            mOutput.writeInt(index);
+        }
+        writePadding(align8(classCount * 4L) - classCount * 4L);
+
+        writePadding(instanceCount * 8);
+
+        for (int i = 0; i < mRootCount; i++) {
+            mOutput.writeLong(mRootIds[i]);
+            mOutput.writeInt(mRootTypes[i]);
+            mOutput.writeInt(0);
+        }
+
+        int heapIndex = 0;
+        for (int heapId : mHeapNames.keySet()) {
+            mOutput.writeInt(heapId);
+            mOutput.writeInt(0);
+            mOutput.writeLong(heapNameOffsets[heapIndex++]);
+        }
+
+        for (long stringId : stringIds) {
+            mOutput.writeLong(stringId);
+            mOutput.writeLong(stringOffsets.get(stringId));
+        }
+        for (long stringId : stringIds) {
+            writeBlobEntry(mStrings.get(stringId));
+        }
+        for (byte[] heapName : heapNames) {
+            writeBlobEntry(heapName);
+        }
+        return layout;
+    }
+
+    private void writeBlobEntry(@NonNull byte[] bytes) throws IOException {
+        mOutput.writeInt(bytes.length);
+        mOutput.write(bytes);
+        writePadding(blobEntrySize(bytes) - 4 - bytes.length);
+    }
+
+    private void writePadding(long count) throws IOException {
+        for (long i = 0; i < count; i++) {
+            mOutput.write(0);
+        }
+    }
+
+    private static long blobEntrySize(@NonNull byte[] bytes) {
+        return (4 + bytes.length + 3) & ~3L;
+    }
+
+    private static long align8(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    /**
+     * Sorts the object records by id, in place. Heapsort, so that no extra memory is needed.
+     */
+    private static void sortObjects(@NonNull MappedFile file, long count) {
+        for (long i = count / 2 - 1; i >= 0; i--) {
+            siftDown(file, i, count);
+        }
+        for (long end = count - 1; end > 0; end--) {
+            swapObjects(file, 0, end);
+            siftDown(file, 0, end);
+        }
+    }
+
+    private static void siftDown(@NonNull MappedFile file, long root, long end) {
+        while (true) {
+            long child = 2 * root + 1;
+            if (child >= end) {
+                return;
+            }
+            if (child + 1 < end && objectId(file, child + 1) > objectId(file, child)) {
+                child++;
+            }
+            if (objectId(file, child) <= objectId(file, root)) {
+                return;
+            }
+            swapObjects(file, root, child);
+            root = child;
+        }
+    }
+
+    private static long objectId(@NonNull MappedFile file, long index) {
+        return file.getLong(HEADER_SIZE + index * OBJECT_RECORD_SIZE);
+    }
+
+    private static void swapObjects(@NonNull MappedFile file, long a, long b) {
+        long offsetA = HEADER_SIZE + a * OBJECT_RECORD_SIZE;
+        long offsetB = HEADER_SIZE + b * OBJECT_RECORD_SIZE;
+        for (int i = 0; i < OBJECT_RECORD_SIZE; i += 8) {
+            long value = file.getLong(offsetA + i);
+            file.putLong(offsetA + i, file.getLong(offsetB + i));
+            file.putLong(offsetB + i, value);
+        }
+    }
+
+    /**
+     * Fills in the per-class instance lists from the sorted objects, so each list is sorted by id.
+     */
+    private static void fillInstances(@NonNull MappedFile file, long objectCount,
+            @NonNull Layout layout) {
+        long[] cursors = layout.mFirstInstances.clone();
+        for (long i = 0; i < objectCount; i++) {
+            long offset = HEADER_SIZE + i * OBJECT_RECORD_SIZE;
+            int kind = file.getInt(offset + OBJECT_KIND) & 0xff;
+            if (kind != KIND_INSTANCE && kind != KIND_OBJECT_ARRAY) {
+                continue;
+            }
+            int classIndex = Arrays.binarySearch(layout.mClassIds,
+                    file.getLong(offset + OBJECT_CLASS_ID));
+            if (classIndex >= 0) {
+                file.putLong(layout.mInstancesOffset + 8 * cursors[classIndex]++,
+                        file.getLong(offset + OBJECT_ID));
+            }
+        }
+    }
+
+    @NonNull
+    private String readNullTerminatedString() throws IOException {
+        StringBuilder s = new StringBuilder();
+        for (byte c = mInput.readByte(); c != 0; c = mInput.readByte()) {
+            s.append((char) c);
+        }
+        return s.toString();
+    }
+
+    private long readId() throws IOException {
+        // As long as we don't interpret IDs, reading signed values here is fine.
+        switch (mIdSize) {
+            case 1:
+                return mInput.readByte();
+            case 2:
+                return mInput.readShort();
+            case 4:
+                return mInput.readInt();
+            case 8:
+                return mInput.readLong();
+        }
+
+        throw new IllegalArgumentException("ID Length must be 1, 2, 4, or 8");
+    }
+
+    private int readUnsignedByte() throws IOException {
+        return UnsignedBytes.toInt(mInput.readByte());
+    }
+
+    private int readUnsignedShort() throws IOException {
+        return mInput.readShort() & 0xffff;
+    }
+
+    private long readUnsignedInt() throws IOException {
+        return UnsignedInts.toLong(mInput.readInt());
+    }
+
+    private void skipValue() throws IOException {
+        Type type = Type.getType(readUnsignedByte());
+        skipFully(type == Type.OBJECT ? mIdSize : type.getSize());
+    }
+
+    private void skipFully(long numBytes) throws IOException {
+        mInput.setPosition(mInput.position() + numBytes);
+    }
+
+    /**
+     * Where the sections following the object records start, and what's needed to fill in the
+     * instance lists.
+     */
+    private static final class Layout {
+        long mClassesOffset;
+
+        long mClassNamesOffset;
+
+        long mInstancesOffset;
+
+        long mRootsOffset;
+
+        long mHeapsOffset;
+
+        long mStringsOffset;
+
+        long mLength;
+
+        // Sorted ids of the dumped classes, and where each one's instance list starts.
+        long[] mClassIds;
+
+        long[] mFirstInstances;
+    }
+}
@@ -17,7 +17,10 @@
 package com.android.tools.perflib.heap;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
 import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
 import com.android.tools.proguard.ProguardMap;
 import com.google.common.primitives.UnsignedBytes;
 import com.google.common.primitives.UnsignedInts;
@@ -26,70 +29,75 @@ import gnu.trove.TLongObjectHashMap;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 class HprofParser {
 
-    private static final int STRING_IN_UTF8 = 0x01;
+    static final int STRING_IN_UTF8 = 0x01;
 
-    private static final int LOAD_CLASS = 0x02;
+    static final int LOAD_CLASS = 0x02;
 
     @SuppressWarnings("UnusedDeclaration")
-    private static final int UNLOAD_CLASS = 0x03;
+    static final int UNLOAD_CLASS = 0x03;
 
-    private static final int STACK_FRAME = 0x04;
+    static final int STACK_FRAME = 0x04;
 
-    private static final int STACK_TRACE = 0x05;
+    static final int STACK_TRACE = 0x05;
 
     @SuppressWarnings("UnusedDeclaration")
-    private static final int ALLOC_SITES = 0x06;
+    static final int ALLOC_SITES = 0x06;
 
     @SuppressWarnings("UnusedDeclaration")
-    private static final int HEAP_SUMMARY = 0x07;
+    static final int HEAP_SUMMARY = 0x07;
 
     @SuppressWarnings("UnusedDeclaration")
-    private static final int START_THREAD = 0x0a;
+    static final int START_THREAD = 0x0a;
 
     @SuppressWarnings("UnusedDeclaration")
-    private static final int END_THREAD = 0x0b;
+    static final int END_THREAD = 0x0b;
 
-    private static final int HEAP_DUMP = 0x0c;
+    static final int HEAP_DUMP = 0x0c;
 
-    private static final int HEAP_DUMP_SEGMENT = 0x1c;
+    static final int HEAP_DUMP_SEGMENT = 0x1c;
 
     @SuppressWarnings("UnusedDeclaration")
-    private static final int HEAP_DUMP_END = 0x2c;
+    static final int HEAP_DUMP_END = 0x2c;
 
     @SuppressWarnings("UnusedDeclaration")
-    private static final int CPU_SAMPLES = 0x0d;
+    static final int CPU_SAMPLES = 0x0d;
 
     @SuppressWarnings("UnusedDeclaration")
-    private static final int CONTROL_SETTINGS = 0x0e;
+    static final int CONTROL_SETTINGS = 0x0e;
 
-    private static final int ROOT_UNKNOWN = 0xff;
+    static final int ROOT_UNKNOWN = 0xff;
 
-    private static final int ROOT_JNI_GLOBAL = 0x01;
+    static final int ROOT_JNI_GLOBAL = 0x01;
 
-    private static final int ROOT_JNI_LOCAL = 0x02;
+    static final int ROOT_JNI_LOCAL = 0x02;
 
-    private static final int ROOT_JAVA_FRAME = 0x03;
+    static final int ROOT_JAVA_FRAME = 0x03;
 
-    private static final int ROOT_NATIVE_STACK = 0x04;
+    static final int ROOT_NATIVE_STACK = 0x04;
 
-    private static final int ROOT_STICKY_CLASS = 0x05;
+    static final int ROOT_STICKY_CLASS = 0x05;
 
-    private static final int ROOT_THREAD_BLOCK = 0x06;
+    static final int ROOT_THREAD_BLOCK = 0x06;
 
-    private static final int ROOT_MONITOR_USED = 0x07;
+    static final int ROOT_MONITOR_USED = 0x07;
 
-    private static final int ROOT_THREAD_OBJECT = 0x08;
+    static final int ROOT_THREAD_OBJECT = 0x08;
 
-    private static final int CLASS_DUMP = 0x20;
+    static final int CLASS_DUMP = 0x20;
 
-    private static final int INSTANCE_DUMP = 0x21;
+    static final int INSTANCE_DUMP = 0x21;
 
-    private static final int OBJECT_ARRAY_DUMP = 0x22;
+    static final int OBJECT_ARRAY_DUMP = 0x22;
 
-    private static final int PRIMITIVE_ARRAY_DUMP = 0x23;
+    static final int PRIMITIVE_ARRAY_DUMP = 0x23;
 
     /**
      * Android format addition
@@ -102,23 +110,26 @@ class HprofParser {
      *
      * Format: u1: Tag value (0xFE) u4: heap ID ID: heap name string ID
      */
-    private static final int HEAP_DUMP_INFO = 0xfe;
+    static final int HEAP_DUMP_INFO = 0xfe;
 
-    private static final int ROOT_INTERNED_STRING = 0x89;
+    static final int ROOT_INTERNED_STRING = 0x89;
 
-    private static final int ROOT_FINALIZING = 0x8a;
+    static final int ROOT_FINALIZING = 0x8a;
 
-    private static final int ROOT_DEBUGGER = 0x8b;
+    static final int ROOT_DEBUGGER = 0x8b;
 
-    private static final int ROOT_REFERENCE_CLEANUP = 0x8c;
+    static final int ROOT_REFERENCE_CLEANUP = 0x8c;
 
-    private static final int ROOT_VM_INTERNAL = 0x8d;
+    static final int ROOT_VM_INTERNAL = 0x8d;
 
-    private static final int ROOT_JNI_MONITOR = 0x8e;
+    static final int ROOT_JNI_MONITOR = 0x8e;
 
-    private static final int ROOT_UNREACHABLE = 0x90;
+    static final int ROOT_UNREACHABLE = 0x90;
 
-    private static final int PRIMITIVE_ARRAY_NODATA = 0xc3;
+    static final int PRIMITIVE_ARRAY_NODATA = 0xc3;
+
+    // Heap dump segments are handed to worker threads in batches of at least this many bytes.
+    private static final long DEFAULT_MIN_BATCH_SIZE = 4 << 20;
 
     @NonNull
     private final DataBuffer mInput;
@@ -135,22 +146,82 @@ class HprofParser {
      * heap data.
      */
     @NonNull
-    TLongObjectHashMap<String> mStrings = new TLongObjectHashMap<>();
+    TLongObjectHashMap<String> mStrings;
 
     @NonNull
-    TLongObjectHashMap<String> mClassNamesById = new TLongObjectHashMap<>();
+    TLongObjectHashMap<String> mClassNamesById;
 
     @NonNull
-    TIntObjectHashMap<String> mClassNamesBySerial = new TIntObjectHashMap<>();
+    TIntObjectHashMap<String> mClassNamesBySerial;
+
+    /*
+     * Set when heap dump segments are parsed on worker threads: the positions and lengths of the
+     * segments in the main parser, the parsed contents of the current batch in a worker.
+     */
+    @Nullable
+    private final ExecutorService mExecutor;
+
+    private final long mMinBatchSize;
+
+    @Nullable
+    private List<long[]> mHeapDumpSegments;
+
+    @Nullable
+    private List<HeapChunk> mChunks;
 
     static void parseBuffer(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer, @NonNull ProguardMap map) {
-        new HprofParser(snapshot, buffer, map).parse();
+        parseBuffer(snapshot, buffer, map, null);
+    }
+
+    /**
+     * Parses {@code buffer} into {@code snapshot}. If {@code executor} is non-null and the buffer is
+     * a {@link MemoryMappedFileBuffer}, the heap dump segments are decoded on the executor's
+     * threads and merged into the snapshot afterwards, in file order.
+     */
+    static void parseBuffer(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer,
+            @NonNull ProguardMap map, @Nullable ExecutorService executor) {
+        parseBuffer(snapshot, buffer, map, executor, DEFAULT_MIN_BATCH_SIZE);
+    }
+
+    @VisibleForTesting
+    static void parseBuffer(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer,
+            @NonNull ProguardMap map, @Nullable ExecutorService executor, long minBatchSize) {
+        if (!(buffer instanceof MemoryMappedFileBuffer)) {
+            executor = null;
+        }
+        new HprofParser(snapshot, buffer, map, executor, minBatchSize).parse();
     }
 
-    private HprofParser(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer, @NonNull ProguardMap map) {
+    private HprofParser(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer,
+            @NonNull ProguardMap map, @Nullable ExecutorService executor, long minBatchSize) {
         mInput = buffer;
         mSnapshot = snapshot;
         mProguardMap = map;
+        mExecutor = executor;
+        mMinBatchSize = minBatchSize;
+        mStrings = new TLongObjectHashMap<>();
+        mClassNamesById = new TLongObjectHashMap<>();
+        mClassNamesBySerial = new TIntObjectHashMap<>();
+        if (executor != null) {
+            mHeapDumpSegments = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Creates a parser for a batch of heap dump segments, sharing the tables of {@code parent},
+     * which are only read from at this point.
+     */
+    private HprofParser(@NonNull HprofParser parent, @NonNull DataBuffer buffer) {
+        mInput = buffer;
+        mSnapshot = parent.mSnapshot;
+        mProguardMap = parent.mProguardMap;
+        mExecutor = null;
+        mMinBatchSize = parent.mMinBatchSize;
+        mIdSize = parent.mIdSize;
+        mStrings = parent.mStrings;
+        mClassNamesById = parent.mClassNamesById;
+        mClassNamesBySerial = parent.mClassNamesBySerial;
+        mChunks = new ArrayList<>();
     }
 
     private void parse() {
@@ -187,11 +258,12 @@ class HprofParser {
                             break;
 
                         case HEAP_DUMP:
-                            loadHeapDump(length);
-                            mSnapshot.setToDefaultHeap();
-                            break;
-
                         case HEAP_DUMP_SEGMENT:
+                            if (mHeapDumpSegments != null) {
+                                mHeapDumpSegments.add(new long[] {mInput.position(), length});
+                                skipFully(length);
+                                break;
+                            }
                             loadHeapDump(length);
                             mSnapshot.setToDefaultHeap();
                             break;
@@ -204,6 +276,9 @@ class HprofParser {
             } catch (EOFException eof) {
                 //  this is fine
             }
+            if (mHeapDumpSegments != null) {
+                loadHeapDumpSegmentsInParallel();
+            }
             mSnapshot.resolveClasses();
             mSnapshot.identifySoftReferences();
             // TODO: enable this after the dominators computation is also optimized.
@@ -217,6 +292,96 @@ class HprofParser {
         mStrings.clear();
     }
 
+    /**
+     * Decodes the heap dump segments collected by {@link #parse()} on worker threads, then adds
+     * the results to the snapshot on this thread, in the order they appear in the file.
+     */
+    private void loadHeapDumpSegmentsInParallel() throws IOException {
+        assert mExecutor != null && mHeapDumpSegments != null;
+        MemoryMappedFileBuffer buffer = (MemoryMappedFileBuffer) mInput;
+
+        List<Future<List<HeapChunk>>> batches = new ArrayList<>();
+        int start = 0;
+        while (start < mHeapDumpSegments.size()) {
+            int end = start;
+            long batchSize = 0;
+            while (end < mHeapDumpSegments.size() && batchSize < mMinBatchSize) {
+                batchSize += mHeapDumpSegments.get(end++)[1];
+            }
+            List<long[]> segments = mHeapDumpSegments.subList(start, end);
+            batches.add(mExecutor.submit(() -> {
+                HprofParser parser = new HprofParser(this, buffer.duplicate());
+                for (long[] segment : segments) {
+                    parser.mChunks.add(new HeapChunk(Snapshot.DEFAULT_HEAP_ID,
+                            Snapshot.DEFAULT_HEAP_NAME));
+                    parser.mInput.setPosition(segment[0]);
+                    parser.loadHeapDump(segment[1]);
+                }
+                return parser.mChunks;
+            }));
+            start = end;
+        }
+
+        try {
+            for (Future<List<HeapChunk>> batch : batches) {
+                for (HeapChunk chunk : batch.get()) {
+                    mSnapshot.setHeapTo(chunk.mHeapId, chunk.mHeapName);
+                    for (Runnable update : chunk.mUpdates) {
+                        update.run();
+                    }
+                    for (ClassObj theClass : chunk.mClasses) {
+                        mSnapshot.addClass(theClass.getId(), theClass);
+                    }
+                    for (Instance instance : chunk.mInstances) {
+                        mSnapshot.addInstance(instance.getId(), instance);
+                    }
+                }
+                mSnapshot.setToDefaultHeap();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            for (Future<List<HeapChunk>> batch : batches) {
+                batch.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Applies an update to the snapshot that depends on the records before it, such as looking up
+     * a thread. Deferred until merging when parsing on a worker thread.
+     */
+    private void runInOrder(@NonNull Runnable update) {
+        if (mChunks == null) {
+            update.run();
+        } else {
+            mChunks.get(mChunks.size() - 1).mUpdates.add(update);
+        }
+    }
+
+    private void addClass(@NonNull ClassObj theClass) {
+        if (mChunks == null) {
+            mSnapshot.addClass(theClass.getId(), theClass);
+        } else {
+            mChunks.get(mChunks.size() - 1).mClasses.add(theClass);
+        }
+    }
+
+    private void addInstance(@NonNull Instance instance) {
+        if (mChunks == null) {
+            mSnapshot.addInstance(instance.getId(), instance);
+        } else {
+            mChunks.get(mChunks.size() - 1).mInstances.add(instance);
+        }
+    }
+
     @NonNull
     private String readNullTerminatedString() throws IOException {
         StringBuilder s = new StringBuilder();
@@ -384,7 +549,11 @@ class HprofParser {
                     long heapNameId = readId();
                     String heapName = mStrings.get(heapNameId);
 
-                    mSnapshot.setHeapTo(heapId, heapName);
+                    if (mChunks == null) {
+                        mSnapshot.setHeapTo(heapId, heapName);
+                    } else {
+                        mChunks.add(new HeapChunk(heapId, heapName));
+                    }
                     length -= 4 + mIdSize;
                     break;
 
@@ -429,11 +598,14 @@ class HprofParser {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
         int stackFrameNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackFrameNumber);
-        RootObj root = new RootObj(RootType.NATIVE_LOCAL, id, threadSerialNumber, trace);
+        runInOrder(() -> {
+            ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
+            StackTrace trace =
+                    mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackFrameNumber);
+            RootObj root = new RootObj(RootType.NATIVE_LOCAL, id, threadSerialNumber, trace);
 
-        mSnapshot.addRoot(root);
+            mSnapshot.addRoot(root);
+        });
 
         return mIdSize + 4 + 4;
     }
@@ -442,11 +614,14 @@ class HprofParser {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
         int stackFrameNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackFrameNumber);
-        RootObj root = new RootObj(RootType.JAVA_LOCAL, id, threadSerialNumber, trace);
+        runInOrder(() -> {
+            ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
+            StackTrace trace =
+                    mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackFrameNumber);
+            RootObj root = new RootObj(RootType.JAVA_LOCAL, id, threadSerialNumber, trace);
 
-        mSnapshot.addRoot(root);
+            mSnapshot.addRoot(root);
+        });
 
         return mIdSize + 4 + 4;
     }
@@ -454,11 +629,13 @@ class HprofParser {
     private int loadNativeStack() throws IOException {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTrace(thread.mStackTrace);
-        RootObj root = new RootObj(RootType.NATIVE_STACK, id, threadSerialNumber, trace);
+        runInOrder(() -> {
+            ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
+            StackTrace trace = mSnapshot.getStackTrace(thread.mStackTrace);
+            RootObj root = new RootObj(RootType.NATIVE_STACK, id, threadSerialNumber, trace);
 
-        mSnapshot.addRoot(root);
+            mSnapshot.addRoot(root);
+        });
 
         return mIdSize + 4;
     }
@@ -467,7 +644,7 @@ class HprofParser {
         long id = readId();
         RootObj root = new RootObj(type, id);
 
-        mSnapshot.addRoot(root);
+        runInOrder(() -> mSnapshot.addRoot(root));
 
         return mIdSize;
     }
@@ -475,11 +652,13 @@ class HprofParser {
     private int loadThreadBlock() throws IOException {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace stack = mSnapshot.getStackTrace(thread.mStackTrace);
-        RootObj root = new RootObj(RootType.THREAD_BLOCK, id, threadSerialNumber, stack);
+        runInOrder(() -> {
+            ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
+            StackTrace stack = mSnapshot.getStackTrace(thread.mStackTrace);
+            RootObj root = new RootObj(RootType.THREAD_BLOCK, id, threadSerialNumber, stack);
 
-        mSnapshot.addRoot(root);
+            mSnapshot.addRoot(root);
+        });
 
         return mIdSize + 4;
     }
@@ -492,8 +671,10 @@ class HprofParser {
         StackTrace stack = mSnapshot.getStackTrace(stackSerialNumber);
         RootObj root = new RootObj(RootType.THREAD_OBJECT, id, threadSerialNumber, stack);
 
-        mSnapshot.addThread(thread, threadSerialNumber);
-        mSnapshot.addRoot(root);
+        runInOrder(() -> {
+            mSnapshot.addThread(thread, threadSerialNumber);
+            mSnapshot.addRoot(root);
+        });
 
         return mIdSize + 4 + 4;
     }
@@ -562,7 +743,7 @@ class HprofParser {
         theClass.setFields(fields);
         theClass.setInstanceSize(instanceSize);
 
-        mSnapshot.addClass(id, theClass);
+        addClass(theClass);
 
         return bytesRead;
     }
@@ -577,7 +758,7 @@ class HprofParser {
         long position = mInput.position();
         ClassInstance instance = new ClassInstance(id, stack, position);
         instance.setClassId(classId);
-        mSnapshot.addInstance(id, instance);
+        addInstance(instance);
 
         skipFully(remaining);
         return mIdSize + 4 + mIdSize + 4 + remaining;
@@ -592,7 +773,7 @@ class HprofParser {
         ArrayInstance array =
                 new ArrayInstance(id, stack, Type.OBJECT, numElements, mInput.position());
         array.setClassId(classId);
-        mSnapshot.addInstance(id, array);
+        addInstance(array);
 
         int remaining = numElements * mIdSize;
         skipFully(remaining);
@@ -607,7 +788,7 @@ class HprofParser {
         Type type = Type.getType(readUnsignedByte());
         int size = mSnapshot.getTypeSize(type);
         ArrayInstance array = new ArrayInstance(id, stack, type, numElements, mInput.position());
-        mSnapshot.addInstance(id, array);
+        addInstance(array);
 
         int remaining = numElements * size;
         skipFully(remaining);
@@ -618,11 +799,13 @@ class HprofParser {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
         int stackDepth = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackDepth);
-        RootObj root = new RootObj(RootType.NATIVE_MONITOR, id, threadSerialNumber, trace);
+        runInOrder(() -> {
+            ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
+            StackTrace trace = mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackDepth);
+            RootObj root = new RootObj(RootType.NATIVE_MONITOR, id, threadSerialNumber, trace);
 
-        mSnapshot.addRoot(root);
+            mSnapshot.addRoot(root);
+        });
 
         return mIdSize + 4 + 4;
     }
@@ -639,4 +822,28 @@ class HprofParser {
     private void skipFully(long numBytes) throws IOException {
         mInput.setPosition(mInput.position() + numBytes);
     }
+
+    /**
+     * Objects decoded on a worker thread from a run of sub-records belonging to the same heap.
+     */
+    private static final class HeapChunk {
+        private final int mHeapId;
+
+        @NonNull
+        private final String mHeapName;
+
+        @NonNull
+        private final List<Runnable> mUpdates = new ArrayList<>();
+
+        @NonNull
+        private final List<ClassObj> mClasses = new ArrayList<>();
+
+        @NonNull
+        private final List<Instance> mInstances = new ArrayList<>();
+
+        HeapChunk(int heapId, @NonNull String heapName) {
+            mHeapId = heapId;
+            mHeapName = heapName;
+        }
+    }
 }
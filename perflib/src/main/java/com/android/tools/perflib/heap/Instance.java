@@ -63,12 +63,14 @@ public abstract class Instance {
     //  To save space, we only keep a primitive array here following the order in mSnapshot.mHeaps.
     private long[] mRetainedSizes;
 
-    protected final ArrayList<Instance> mHardForwardReferences = new ArrayList<>();
+    //  The reference lists below are only allocated once the first reference is added. When the
+    //  snapshot has a HeapGraph they stay empty, and references are served from the graph.
+    protected ArrayList<Instance> mHardForwardReferences = null;
 
     protected Instance mSoftForwardReference = null;
 
     //  List of all objects that hold a live reference to this object
-    protected final ArrayList<Instance> mHardReverseReferences = new ArrayList<>();
+    protected ArrayList<Instance> mHardReverseReferences = null;
 
     //  List of all objects that hold a soft/weak/phantom reference to this object.
     //  Don't create an actual list until we need to.
@@ -91,7 +93,9 @@ public abstract class Instance {
      */
     public void compactMemory() {
         // mHardForwardReferences trimmed in resolveReferences();
-        mHardReverseReferences.trimToSize();
+        if (mHardReverseReferences != null) {
+            mHardReverseReferences.trimToSize();
+        }
         if (mSoftReverseReferences != null) {
             mSoftReverseReferences.trimToSize();
         }
@@ -238,27 +242,53 @@ public abstract class Instance {
             }
             mSoftReverseReferences.add(reference);
         } else {
+            if (mHardReverseReferences == null) {
+                mHardReverseReferences = new ArrayList<>();
+            }
             mHardReverseReferences.add(reference);
         }
     }
 
+    protected final void addHardForwardReference(@NonNull Instance reference) {
+        if (mHardForwardReferences == null) {
+            mHardForwardReferences = new ArrayList<>();
+        }
+        mHardForwardReferences.add(reference);
+    }
+
     @NonNull
     public ArrayList<Instance> getHardForwardReferences() {
-        return mHardForwardReferences;
+        HeapGraph graph = getHeapGraph();
+        if (graph != null) {
+            return graph.getHardForwardReferences(this);
+        }
+        return mHardForwardReferences != null ? mHardForwardReferences : new ArrayList<>(0);
     }
 
     @NonNull
     public Instance getSoftForwardReference() {
+        HeapGraph graph = getHeapGraph();
+        if (graph != null) {
+            return graph.getSoftForwardReference(this);
+        }
         return mSoftForwardReference;
     }
 
     @NonNull
     public ArrayList<Instance> getHardReverseReferences() {
-        return mHardReverseReferences;
+        HeapGraph graph = getHeapGraph();
+        if (graph != null) {
+            return graph.getHardReverseReferences(this);
+        }
+        return mHardReverseReferences != null ? mHardReverseReferences : new ArrayList<>(0);
     }
 
     @Nullable
     public ArrayList<Instance> getSoftReverseReferences() {
+        HeapGraph graph = getHeapGraph();
+        if (graph != null) {
+            return graph.getSoftReverseReferences(this);
+        }
         return mSoftReverseReferences;
     }
 
@@ -266,16 +296,23 @@ public abstract class Instance {
      * Removes all duplicate references AND references to itself.
      */
     public void dedupeReferences() {
-        Set<Instance> dedupeSet = new HashSet<>(mHardReverseReferences.size());
-        dedupeSet.addAll(mHardReverseReferences);
-        dedupeSet.remove(this);
-        mHardReverseReferences.clear();
-        mHardReverseReferences.addAll(dedupeSet);
-        mHardReverseReferences.trimToSize();
-
-        if (getSoftReverseReferences() != null) {
+        if (getHeapGraph() != null) {
+            // The graph dedupes its reverse references when it is built.
+            return;
+        }
+
+        Set<Instance> dedupeSet = new HashSet<>();
+        if (mHardReverseReferences != null) {
+            dedupeSet.addAll(mHardReverseReferences);
+            dedupeSet.remove(this);
+            mHardReverseReferences.clear();
+            mHardReverseReferences.addAll(dedupeSet);
+            mHardReverseReferences.trimToSize();
+        }
+
+        if (mSoftReverseReferences != null) {
             dedupeSet.clear();
-            dedupeSet.addAll(getSoftReverseReferences());
+            dedupeSet.addAll(mSoftReverseReferences);
             mSoftReverseReferences.clear();
             mSoftReverseReferences.addAll(dedupeSet);
             mSoftReverseReferences.trimToSize();
@@ -292,6 +329,19 @@ public abstract class Instance {
         return false;
     }
 
+    /**
+     * Reads the ids of all instances this instance references straight from the buffer, without
+     * resolving them. Used to build a {@link HeapGraph} instead of calling
+     * {@link #resolveReferences()}.
+     */
+    void readReferenceIds(@NonNull ReferenceIdConsumer consumer) {
+    }
+
+    @Nullable
+    HeapGraph getHeapGraph() {
+        return mHeap != null ? mHeap.mSnapshot.getHeapGraph() : null;
+    }
+
     @Nullable
     protected Object readValue(@NonNull Type type) {
         switch (type) {
@@ -346,6 +396,14 @@ public abstract class Instance {
     }
 
 
+    interface ReferenceIdConsumer {
+        /**
+         * @param id     the id of the referenced instance, which may be 0 for null references
+         * @param isSoft whether this is the referent of a soft/weak/phantom reference
+         */
+        void accept(long id, boolean isSoft);
+    }
+
     public static class CompositeSizeVisitor extends NonRecursiveVisitor {
         int mSize = 0;
 
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.analysis.HeapQueryEngine;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a batch of queries against a single heap dump, so that scripts can ask many questions
+ * without loading the dump each time.
+ *
+ * Usage: {@code QueryMain <hprof file> [<query file>]}. Queries are read one per line from the
+ * query file, or from standard input if there is none. Empty lines and lines starting with '#'
+ * are skipped. The supported queries are:
+ * <ul>
+ *     <li>{@code retainers <class name> [<count>]}: the top retainers of instances of a class</li>
+ *     <li>{@code path <instance id>}: the shortest strong path from a GC root to an instance</li>
+ *     <li>{@code packages [<count>]}: the retained size of each package</li>
+ *     <li>{@code classloaders [<count>]}: the retained size of each class loader</li>
+ * </ul>
+ */
+public class QueryMain {
+
+    private static final int DEFAULT_COUNT = 10;
+
+    public static void main(String argv[]) {
+        if (argv.length < 1 || argv.length > 2) {
+            System.err.println("Usage: QueryMain <hprof file> [<query file>]");
+            System.exit(1);
+        }
+
+        DataBuffer buffer = null;
+        try {
+            long start = System.nanoTime();
+            buffer = new MemoryMappedFileBuffer(new File(argv[0]));
+            Snapshot snapshot = Snapshot.createSnapshot(buffer);
+            HeapQueryEngine engine = new HeapQueryEngine(snapshot);
+            System.out.println("Loaded in " + (System.nanoTime() - start) / 1000000 + "ms");
+
+            InputStream queries = argv.length > 1 ? new FileInputStream(argv[1]) : System.in;
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(queries, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    System.out.println("> " + line);
+                    try {
+                        runQuery(snapshot, engine, line, System.out);
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("Error: " + e.getMessage());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (buffer != null) {
+                buffer.dispose();
+            }
+        }
+    }
+
+    /** Runs a single query and prints its results. */
+    static void runQuery(@NonNull Snapshot snapshot, @NonNull HeapQueryEngine engine,
+            @NonNull String query, @NonNull PrintStream out) {
+        String[] words = query.split("\\s+");
+        switch (words[0]) {
+            case "retainers":
+                if (words.length < 2) {
+                    throw new IllegalArgumentException("Usage: retainers <class name> [<count>]");
+                }
+                List<HeapQueryEngine.Retainer> retainers =
+                        engine.getTopRetainers(words[1], getCount(words, 2));
+                for (HeapQueryEngine.Retainer retainer : retainers) {
+                    out.printf("%12d %8d  %s%n", retainer.getRetainedSize(),
+                            retainer.getInstanceCount(),
+                            retainer.getInstance() == null ? "<GC roots>"
+                                    : retainer.getInstance());
+                }
+                break;
+            case "path":
+                if (words.length != 2) {
+                    throw new IllegalArgumentException("Usage: path <instance id>");
+                }
+                long id = parseId(words[1]);
+                Instance instance = snapshot.findInstance(id);
+                if (instance == null && (id & 0xffffffffL) == id) {
+                    // Ids are printed unsigned, but 4 byte ids are read as signed ints.
+                    instance = snapshot.findInstance((int) id);
+                }
+                if (instance == null) {
+                    throw new IllegalArgumentException("No instance with id " + words[1]);
+                }
+                List<Instance> path = engine.getPathToGcRoot(instance);
+                if (path.isEmpty()) {
+                    out.println("Not reachable");
+                }
+                for (Instance node : path) {
+                    out.println("  " + node);
+                }
+                break;
+            case "packages":
+                printSizes(engine.getRetainedSizeByPackage(), getCount(words, 1), out);
+                break;
+            case "classloaders":
+                printSizes(engine.getRetainedSizeByClassLoader(), getCount(words, 1), out);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown query " + words[0]);
+        }
+    }
+
+    private static void printSizes(@NonNull Map<String, Long> sizes, int count,
+            @NonNull PrintStream out) {
+        for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+            if (count-- == 0) {
+                break;
+            }
+            out.printf("%12d  %s%n", entry.getValue(), entry.getKey());
+        }
+    }
+
+    private static int getCount(@NonNull String[] words, int index) {
+        if (words.length <= index) {
+            return DEFAULT_COUNT;
+        }
+        try {
+            return Integer.parseInt(words[index]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid count " + words[index]);
+        }
+    }
+
+    private static long parseId(@NonNull String id) {
+        try {
+            return Long.decode(id);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid instance id " + id);
+        }
+    }
+}
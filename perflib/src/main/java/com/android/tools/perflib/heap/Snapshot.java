@@ -21,6 +21,7 @@ import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.tools.perflib.analyzer.Capture;
 import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
 import com.android.tools.perflib.heap.analysis.*;
 import com.android.tools.perflib.heap.ext.NativeRegistryPostProcessor;
 import com.android.tools.perflib.heap.ext.SnapshotPostProcessor;
@@ -29,7 +30,11 @@ import gnu.trove.THashSet;
 import gnu.trove.TIntObjectHashMap;
 import gnu.trove.TLongObjectHashMap;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 /*
  * A snapshot of all of the heaps, and related meta-data, for the runtime at a given instant.
@@ -82,11 +87,17 @@ public class Snapshot extends Capture {
     //  Special root object used in dominator computation for objects reachable via multiple roots.
     public static final Instance SENTINEL_ROOT = new RootObj(RootType.UNKNOWN);
 
-    private static final int DEFAULT_HEAP_ID = 0;
+    static final int DEFAULT_HEAP_ID = 0;
+
+    static final String DEFAULT_HEAP_NAME = "default";
 
     @NonNull
     private final DataBuffer mBuffer;
 
+    //  Instances read their values by positioning the buffer, so each thread gets its own view.
+    @NonNull
+    private final ThreadLocal<DataBuffer> mThreadBuffers;
+
     @NonNull
     ArrayList<Heap> mHeaps = new ArrayList<>();
 
@@ -115,6 +126,10 @@ public class Snapshot extends Capture {
     //  The set of all classes that are (sub)class(es) of java.lang.ref.Reference.
     private THashSet<ClassObj> mReferenceClasses = new THashSet<>();
 
+    //  Compact reference graph, if requested. Replaces the per-instance reference lists.
+    @Nullable
+    private HeapGraph mHeapGraph;
+
     private int[] mTypeSizes;
 
     private long mIdSizeMask = 0x00000000ffffffffL;
@@ -134,9 +149,23 @@ public class Snapshot extends Capture {
             @NonNull DataBuffer buffer,
             @NonNull ProguardMap map,
             @NonNull List<SnapshotPostProcessor> postProcessors) {
+        return createSnapshot(buffer, map, postProcessors, null);
+    }
+
+    /**
+     * Like {@link #createSnapshot(DataBuffer, ProguardMap, List)}, but if {@code executor} is
+     * non-null and {@code buffer} is a {@link MemoryMappedFileBuffer}, the heap dump segments are
+     * decoded in parallel on the executor's threads.
+     */
+    @NonNull
+    public static Snapshot createSnapshot(
+            @NonNull DataBuffer buffer,
+            @NonNull ProguardMap map,
+            @NonNull List<SnapshotPostProcessor> postProcessors,
+            @Nullable ExecutorService executor) {
         try {
             Snapshot snapshot = new Snapshot(buffer);
-            HprofParser.parseBuffer(snapshot, buffer, map);
+            HprofParser.parseBuffer(snapshot, buffer, map, executor);
             for (SnapshotPostProcessor processor : postProcessors) {
                 processor.postProcess(snapshot);
             }
@@ -151,21 +180,30 @@ public class Snapshot extends Capture {
     @VisibleForTesting
     public Snapshot(@NonNull DataBuffer buffer) {
         mBuffer = buffer;
+        mThreadBuffers = ThreadLocal.withInitial(buffer::duplicate);
         setToDefaultHeap();
     }
 
     public void dispose() {
+        if (mHeapGraph != null) {
+            mHeapGraph.dispose();
+            mHeapGraph = null;
+        }
         mBuffer.dispose();
     }
 
+    /**
+     * Returns the calling thread's view of the heap dump, so that analyses can read instance
+     * values from several threads once the snapshot has been loaded.
+     */
     @NonNull
     DataBuffer getBuffer() {
-        return mBuffer;
+        return mThreadBuffers.get();
     }
 
     @NonNull
     public Heap setToDefaultHeap() {
-        return setHeapTo(DEFAULT_HEAP_ID, "default");
+        return setHeapTo(DEFAULT_HEAP_ID, DEFAULT_HEAP_NAME);
     }
 
     @NonNull
@@ -400,7 +438,31 @@ public class Snapshot extends Capture {
         }
     }
 
+    /**
+     * Builds a {@link HeapGraph} holding all references between instances in primitive arrays.
+     * From then on, the reference accessors of {@link Instance} are served from the graph and
+     * {@link #resolveReferences()} becomes a no-op, which keeps memory usage low on large dumps.
+     * Call this before {@link #computeDominators()}.
+     *
+     * @param scratchDirectory if non-null, the graph is memory-mapped from temporary files in this
+     *                         directory instead of being allocated on the Java heap
+     */
+    public void buildHeapGraph(@Nullable File scratchDirectory) throws IOException {
+        if (mHeapGraph == null) {
+            mHeapGraph = HeapGraph.build(this, scratchDirectory);
+        }
+    }
+
+    @Nullable
+    public HeapGraph getHeapGraph() {
+        return mHeapGraph;
+    }
+
     public void resolveReferences() {
+        if (mHeapGraph != null) {
+            // References are already available from the graph.
+            return;
+        }
         for (Heap heap : getHeaps()) {
             for (ClassObj clazz : heap.getClasses()) {
                 clazz.resolveReferences();
@@ -436,6 +498,15 @@ public class Snapshot extends Capture {
         doComputeDominators(new LinkEvalDominators(this));
     }
 
+    /**
+     * Like {@link #computeDominators()}, but spreads the work over {@code pool}; see
+     * {@link ParallelDominators}.
+     */
+    public void computeDominators(@NonNull ForkJoinPool pool) {
+        prepareDominatorComputation();
+        doComputeDominators(new ParallelDominators(this, pool));
+    }
+
     @VisibleForTesting
     public void prepareDominatorComputation() {
         if (mDominators != null) {
@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two heap dumps of the same process: how the instance count, shallow size and retained
+ * size of each class changed, and which newly allocated objects dominate the most memory.
+ *
+ * Classes are matched by name. Instances are matched by id, provided both have the same class
+ * name, since the VM may have reused the id of a collected object. Both sides are reduced to
+ * tables sorted by class name and by instance id, which are then merged in a single pass, so
+ * no map spanning both snapshots is built.
+ *
+ * Only instances reachable from GC roots are compared, so both snapshots need their dominators
+ * computed.
+ */
+public final class HeapDiff {
+
+    private static final int DEFAULT_MAX_NEW_SUBTREES = 20;
+
+    @NonNull
+    private final List<ClassDelta> mClassDeltas;
+
+    @NonNull
+    private final List<Instance> mNewSubtreeRoots;
+
+    private final long mNewInstanceCount;
+
+    private final long mRemovedInstanceCount;
+
+    private final long mMatchedInstanceCount;
+
+    private HeapDiff(@NonNull List<ClassDelta> classDeltas,
+            @NonNull List<Instance> newSubtreeRoots, long newInstanceCount,
+            long removedInstanceCount, long matchedInstanceCount) {
+        mClassDeltas = classDeltas;
+        mNewSubtreeRoots = newSubtreeRoots;
+        mNewInstanceCount = newInstanceCount;
+        mRemovedInstanceCount = removedInstanceCount;
+        mMatchedInstanceCount = matchedInstanceCount;
+    }
+
+    @NonNull
+    public static HeapDiff compute(@NonNull Snapshot baseline, @NonNull Snapshot current) {
+        return compute(baseline, current, current.getHeaps(), DEFAULT_MAX_NEW_SUBTREES);
+    }
+
+    /**
+     * Compares {@code current} against {@code baseline}.
+     *
+     * @param heaps           the heaps of {@code current} to compare, each against the heap with
+     *                        the same name in {@code baseline}
+     * @param maxNewSubtrees  the maximum number of new dominator subtrees to report
+     */
+    @NonNull
+    public static HeapDiff compute(@NonNull Snapshot baseline, @NonNull Snapshot current,
+            @NonNull Collection<Heap> heaps, int maxNewSubtrees) {
+        List<Heap> baselineHeaps = new ArrayList<>();
+        for (Heap heap : heaps) {
+            Heap baselineHeap = baseline.getHeap(heap.getName());
+            if (baselineHeap != null) {
+                baselineHeaps.add(baselineHeap);
+            }
+        }
+
+        ClassDelta[] deltas = mergeClasses(summarizeClasses(baselineHeaps, true),
+                summarizeClasses(heaps, false));
+
+        // Merge the instance ids of both sides.
+        long[] baselineIds = getSortedReachableIds(baselineHeaps);
+        long[] currentIds = getSortedReachableIds(heaps);
+        long[] newIds = new long[currentIds.length];
+        int newCount = 0;
+        long removedCount = 0;
+        long matchedCount = 0;
+        int b = 0;
+        int c = 0;
+        while (b < baselineIds.length || c < currentIds.length) {
+            if (c == currentIds.length
+                    || (b < baselineIds.length && baselineIds[b] < currentIds[c])) {
+                removedCount++;
+                b++;
+            } else if (b == baselineIds.length || currentIds[c] < baselineIds[b]) {
+                newIds[newCount++] = currentIds[c++];
+            } else {
+                long id = currentIds[c];
+                if (getClassName(baseline.findInstance(id))
+                        .equals(getClassName(current.findInstance(id)))) {
+                    matchedCount++;
+                } else {
+                    removedCount++;
+                    newIds[newCount++] = id;
+                }
+                b++;
+                c++;
+            }
+        }
+
+        // A new object whose dominator existed before is the root of a new dominator subtree.
+        List<Instance> subtreeRoots = new ArrayList<>();
+        for (int i = 0; i < newCount; i++) {
+            Instance instance = current.findInstance(newIds[i]);
+            ClassDelta delta = findDelta(deltas, getClassName(instance));
+            if (delta != null) {
+                delta.mNewInstanceCount++;
+            }
+            Instance dominator = instance.getImmediateDominator();
+            if (dominator == null || dominator == Snapshot.SENTINEL_ROOT
+                    || Arrays.binarySearch(newIds, 0, newCount, dominator.getId()) < 0) {
+                subtreeRoots.add(instance);
+            }
+        }
+        subtreeRoots.sort((first, second) ->
+                Long.compare(second.getTotalRetainedSize(), first.getTotalRetainedSize()));
+
+        return new HeapDiff(Collections.unmodifiableList(Arrays.asList(deltas)),
+                new ArrayList<>(subtreeRoots.subList(0,
+                        Math.min(maxNewSubtrees, subtreeRoots.size()))),
+                newCount, removedCount, matchedCount);
+    }
+
+    /**
+     * Returns the changes of every class present in either snapshot, sorted by class name.
+     */
+    @NonNull
+    public List<ClassDelta> getClassDeltas() {
+        return mClassDeltas;
+    }
+
+    /**
+     * Returns the roots of the largest subtrees of the dominator tree made up of new objects only,
+     * largest first.
+     */
+    @NonNull
+    public List<Instance> getNewSubtreeRoots() {
+        return mNewSubtreeRoots;
+    }
+
+    public long getNewInstanceCount() {
+        return mNewInstanceCount;
+    }
+
+    public long getRemovedInstanceCount() {
+        return mRemovedInstanceCount;
+    }
+
+    public long getMatchedInstanceCount() {
+        return mMatchedInstanceCount;
+    }
+
+    /**
+     * Adds up the reachable instances of each class, returning one delta per class name with only
+     * the baseline or the current side filled in, sorted by name.
+     *
+     * The retained size of a class only counts instances not dominated by another instance of the
+     * same class, either directly or through instances of other classes, so nested structures like
+     * linked lists or trees holding their children in arrays aren't counted several times.
+     */
+    @NonNull
+    private static ClassDelta[] summarizeClasses(@NonNull Collection<Heap> heaps,
+            boolean isBaseline) {
+        Map<String, ClassDelta> summaries = new HashMap<>();
+        Map<String, Map<Long, Boolean>> dominatedByClass = new HashMap<>();
+        for (Heap heap : heaps) {
+            heap.forEachInstance(instance -> {
+                if (!instance.isReachable()) {
+                    return true;
+                }
+                String name = getClassName(instance);
+                ClassDelta summary = summaries.computeIfAbsent(name, ClassDelta::new);
+                long retainedSize = 0;
+                if (!isDominatedBy(instance, name,
+                        dominatedByClass.computeIfAbsent(name, key -> new HashMap<>()))) {
+                    retainedSize = instance.getTotalRetainedSize();
+                }
+                if (isBaseline) {
+                    summary.mBaselineCount++;
+                    summary.mBaselineShallowSize += instance.getSize();
+                    summary.mBaselineRetainedSize += retainedSize;
+                } else {
+                    summary.mCount++;
+                    summary.mShallowSize += instance.getSize();
+                    summary.mRetainedSize += retainedSize;
+                }
+                return true;
+            });
+        }
+        ClassDelta[] sorted = summaries.values().toArray(new ClassDelta[0]);
+        Arrays.sort(sorted, (first, second) -> first.mClassName.compareTo(second.mClassName));
+        return sorted;
+    }
+
+    /**
+     * Returns whether an instance of the class {@code className} dominates {@code instance}.
+     *
+     * @param memo whether instances of other classes are dominated by an instance of the class,
+     *             by id. The dominators walked through are added to it, so that the walks from
+     *             other instances of the class stop there.
+     */
+    private static boolean isDominatedBy(@NonNull Instance instance, @NonNull String className,
+            @NonNull Map<Long, Boolean> memo) {
+        List<Instance> walked = new ArrayList<>();
+        Boolean dominated;
+        Instance dominator = instance.getImmediateDominator();
+        while (true) {
+            if (dominator == null || dominator == Snapshot.SENTINEL_ROOT) {
+                dominated = false;
+                break;
+            }
+            dominated = memo.get(dominator.getId());
+            if (dominated != null) {
+                break;
+            }
+            if (className.equals(getClassName(dominator))) {
+                dominated = true;
+                break;
+            }
+            walked.add(dominator);
+            dominator = dominator.getImmediateDominator();
+        }
+        for (Instance walkedDominator : walked) {
+            memo.put(walkedDominator.getId(), dominated);
+        }
+        return dominated;
+    }
+
+    @NonNull
+    private static ClassDelta[] mergeClasses(@NonNull ClassDelta[] baseline,
+            @NonNull ClassDelta[] current) {
+        List<ClassDelta> merged = new ArrayList<>(Math.max(baseline.length, current.length));
+        int b = 0;
+        int c = 0;
+        while (b < baseline.length || c < current.length) {
+            int comparison = b == baseline.length ? 1
+                    : c == current.length ? -1
+                            : baseline[b].mClassName.compareTo(current[c].mClassName);
+            if (comparison < 0) {
+                merged.add(baseline[b++]);
+            } else if (comparison > 0) {
+                merged.add(current[c++]);
+            } else {
+                ClassDelta delta = current[c++];
+                ClassDelta old = baseline[b++];
+                delta.mBaselineCount = old.mBaselineCount;
+                delta.mBaselineShallowSize = old.mBaselineShallowSize;
+                delta.mBaselineRetainedSize = old.mBaselineRetainedSize;
+                merged.add(delta);
+            }
+        }
+        return merged.toArray(new ClassDelta[0]);
+    }
+
+    @Nullable
+    private static ClassDelta findDelta(@NonNull ClassDelta[] deltas, @NonNull String className) {
+        int low = 0;
+        int high = deltas.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int comparison = deltas[mid].mClassName.compareTo(className);
+            if (comparison < 0) {
+                low = mid + 1;
+            } else if (comparison > 0) {
+                high = mid - 1;
+            } else {
+                return deltas[mid];
+            }
+        }
+        return null;
+    }
+
+    @NonNull
+    private static long[] getSortedReachableIds(@NonNull Collection<Heap> heaps) {
+        int count = 0;
+        for (Heap heap : heaps) {
+            count += heap.getInstancesCount();
+        }
+        long[] ids = new long[count];
+        int[] size = {0};
+        for (Heap heap : heaps) {
+            heap.forEachInstance(instance -> {
+                if (instance.isReachable()) {
+                    ids[size[0]++] = instance.getId();
+                }
+                return true;
+            });
+        }
+        long[] reachable = Arrays.copyOf(ids, size[0]);
+        Arrays.sort(reachable);
+        return reachable;
+    }
+
+    @NonNull
+    private static String getClassName(@Nullable Instance instance) {
+        ClassObj classObj = instance == null ? null : instance.getClassObj();
+        return classObj == null ? "" : classObj.getClassName();
+    }
+
+    /**
+     * How the instances of a class changed between the two snapshots.
+     */
+    public static final class ClassDelta {
+        @NonNull
+        private final String mClassName;
+
+        private long mBaselineCount;
+
+        private long mCount;
+
+        private long mNewInstanceCount;
+
+        private long mBaselineShallowSize;
+
+        private long mShallowSize;
+
+        private long mBaselineRetainedSize;
+
+        private long mRetainedSize;
+
+        private ClassDelta(@NonNull String className) {
+            mClassName = className;
+        }
+
+        @NonNull
+        public String getClassName() {
+            return mClassName;
+        }
+
+        public long getBaselineCount() {
+            return mBaselineCount;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getCountDelta() {
+            return mCount - mBaselineCount;
+        }
+
+        /**
+         * Returns the number of instances in the current snapshot that weren't in the baseline.
+         */
+        public long getNewInstanceCount() {
+            return mNewInstanceCount;
+        }
+
+        public long getShallowSizeDelta() {
+            return mShallowSize - mBaselineShallowSize;
+        }
+
+        public long getRetainedSizeDelta() {
+            return mRetainedSize - mBaselineRetainedSize;
+        }
+
+        public long getShallowSize() {
+            return mShallowSize;
+        }
+
+        public long getRetainedSize() {
+            return mRetainedSize;
+        }
+
+        public boolean isUnchanged() {
+            return mBaselineCount == mCount && mNewInstanceCount == 0
+                    && mBaselineShallowSize == mShallowSize
+                    && mBaselineRetainedSize == mRetainedSize;
+        }
+    }
+}
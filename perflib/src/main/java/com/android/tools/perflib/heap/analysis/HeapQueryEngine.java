@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Answers questions about what keeps memory alive in a snapshot, on top of its dominator tree:
+ * which objects retain the instances of a class, how an instance is reachable from the GC roots,
+ * and how the retained memory splits by package or class loader.
+ *
+ * Results are kept in a bounded cache, least recently used first out, so that running many
+ * queries against the same snapshot doesn't walk the heap again for repeated questions. The
+ * engine isn't thread safe.
+ */
+public final class HeapQueryEngine {
+
+    private static final int DEFAULT_CACHE_SIZE = 64;
+
+    /** Name of the group of instances of classes loaded by the boot class loader. */
+    public static final String BOOT_CLASS_LOADER = "<boot>";
+
+    /** Name of the group of instances of classes without a package, including primitive arrays. */
+    public static final String DEFAULT_PACKAGE = "<default>";
+
+    @NonNull
+    private final Snapshot mSnapshot;
+
+    @NonNull
+    private final Map<String, Object> mCache;
+
+    private long mCacheHitCount;
+
+    private long mCacheMissCount;
+
+    public HeapQueryEngine(@NonNull Snapshot snapshot) {
+        this(snapshot, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Creates an engine over {@code snapshot}, computing its dominators if they haven't been yet.
+     *
+     * @param cacheSize  the maximum number of query results kept
+     */
+    public HeapQueryEngine(@NonNull Snapshot snapshot, int cacheSize) {
+        mSnapshot = snapshot;
+        mSnapshot.computeDominators();
+        mCache = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the objects retaining the most memory through the instances of the classes named
+     * {@code className}, largest first. The retainer of an instance is its closest dominator which
+     * isn't itself an instance of the class, so an instance dominated by another instance of the
+     * class is accounted for through the outer one.
+     *
+     * @param count  the maximum number of retainers to return
+     */
+    @NonNull
+    public List<Retainer> getTopRetainers(@NonNull String className, int count) {
+        List<Retainer> retainers = getCached("retainers:" + className,
+                key -> computeRetainers(className));
+        return new ArrayList<>(retainers.subList(0, Math.min(count, retainers.size())));
+    }
+
+    /**
+     * Returns the shortest path of strong references from a GC root to {@code instance}, starting
+     * with the root and ending with the instance, or an empty list if it isn't reachable.
+     */
+    @NonNull
+    public List<Instance> getPathToGcRoot(@NonNull Instance instance) {
+        return getCached("path:" + instance.getId(), key -> {
+            if (!instance.isReachable()) {
+                return Collections.<Instance>emptyList();
+            }
+            List<Instance> path = new ArrayList<>(instance.getDistanceToGcRoot() + 1);
+            for (Instance node = instance; node != null; node = node.getNextInstanceToGcRoot()) {
+                path.add(node);
+            }
+            Collections.reverse(path);
+            return Collections.unmodifiableList(path);
+        });
+    }
+
+    /**
+     * Returns the memory retained by the instances of each package, largest first. The package of
+     * an array is that of its elements, and the package of a class object is that of the class.
+     */
+    @NonNull
+    public Map<String, Long> getRetainedSizeByPackage() {
+        return getCached("groups:package",
+                key -> computeRetainedSizeByGroup(HeapQueryEngine::getPackageName));
+    }
+
+    /**
+     * Returns the memory retained by the instances of the classes loaded by each class loader,
+     * largest first. Class loaders are named after their instance, and classes loaded by the boot
+     * class loader are grouped under {@link #BOOT_CLASS_LOADER}.
+     */
+    @NonNull
+    public Map<String, Long> getRetainedSizeByClassLoader() {
+        return getCached("groups:classloader",
+                key -> computeRetainedSizeByGroup(HeapQueryEngine::getClassLoaderName));
+    }
+
+    public long getCacheHitCount() {
+        return mCacheHitCount;
+    }
+
+    public long getCacheMissCount() {
+        return mCacheMissCount;
+    }
+
+    @SuppressWarnings("unchecked")
+    @NonNull
+    private <T> T getCached(@NonNull String key, @NonNull Function<String, T> compute) {
+        T result = (T) mCache.get(key);
+        if (result != null) {
+            mCacheHitCount++;
+            return result;
+        }
+        mCacheMissCount++;
+        result = compute.apply(key);
+        mCache.put(key, result);
+        return result;
+    }
+
+    @NonNull
+    private List<Retainer> computeRetainers(@NonNull String className) {
+        Map<Instance, Retainer> retainers = new IdentityHashMap<>();
+        for (ClassObj classObj : mSnapshot.findClasses(className)) {
+            for (Instance instance : classObj.getInstancesList()) {
+                if (!instance.isReachable() || instance.getImmediateDominator() == null) {
+                    continue;
+                }
+                Instance dominator = instance.getImmediateDominator();
+                if (isDominatedByInstanceOf(dominator, className)) {
+                    continue;
+                }
+                Instance retainer = dominator == Snapshot.SENTINEL_ROOT ? null : dominator;
+                Retainer result = retainers.computeIfAbsent(retainer, Retainer::new);
+                result.mInstanceCount++;
+                result.mRetainedSize += instance.getTotalRetainedSize();
+            }
+        }
+
+        List<Retainer> sorted = new ArrayList<>(retainers.values());
+        sorted.sort((first, second) ->
+                Long.compare(second.mRetainedSize, first.mRetainedSize));
+        return Collections.unmodifiableList(sorted);
+    }
+
+    /** Returns whether {@code instance} or one of its dominators is of the named class. */
+    private static boolean isDominatedByInstanceOf(@NonNull Instance instance,
+            @NonNull String className) {
+        for (Instance node = instance; node != null && node != Snapshot.SENTINEL_ROOT;
+                node = node.getImmediateDominator()) {
+            ClassObj classObj = node.getClassObj();
+            if (classObj != null && className.equals(classObj.getClassName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds up the retained sizes of the instances of each group, only counting instances which
+     * aren't dominated by another instance of the same group, so that no memory is counted twice
+     * in a group. This walks the dominator tree depth first, keeping count of the instances of
+     * each group on the current path.
+     */
+    @NonNull
+    private Map<String, Long> computeRetainedSizeByGroup(
+            @NonNull Function<Instance, String> grouping) {
+        List<Instance> instances = mSnapshot.getReachableInstances();
+        int count = instances.size();
+        Map<Instance, Integer> indices = new IdentityHashMap<>(count);
+        for (int i = 0; i < count; i++) {
+            indices.put(instances.get(i), i);
+        }
+
+        // Lay out the children of each node of the dominator tree contiguously. The sentinel root
+        // is node count.
+        int[] parents = new int[count];
+        int[] childStarts = new int[count + 3];
+        for (int i = 0; i < count; i++) {
+            Integer parent = indices.get(instances.get(i).getImmediateDominator());
+            parents[i] = parent == null ? count : parent;
+            childStarts[parents[i] + 2]++;
+        }
+        for (int i = 2; i < childStarts.length; i++) {
+            childStarts[i] += childStarts[i - 1];
+        }
+        int[] children = new int[count];
+        for (int i = 0; i < count; i++) {
+            children[childStarts[parents[i] + 1]++] = i;
+        }
+        // childStarts[n + 1] is now where the children of n end, and childStarts[n] where they
+        // start.
+
+        Map<String, Integer> groupIds = new HashMap<>();
+        List<String> groupNames = new ArrayList<>();
+        int[] groups = new int[count];
+        for (int i = 0; i < count; i++) {
+            String name = grouping.apply(instances.get(i));
+            Integer id = groupIds.get(name);
+            if (id == null) {
+                id = groupNames.size();
+                groupIds.put(name, id);
+                groupNames.add(name);
+            }
+            groups[i] = id;
+        }
+
+        int[] groupsOnPath = new int[groupNames.size()];
+        long[] sizes = new long[groupNames.size()];
+        int[] stack = new int[count + 1];
+        int[] nextChild = new int[count + 1];
+        int depth = 0;
+        stack[0] = count;
+        nextChild[0] = childStarts[count];
+        while (depth >= 0) {
+            int node = stack[depth];
+            if (nextChild[depth] < childStarts[node + 1]) {
+                int child = children[nextChild[depth]++];
+                if (groupsOnPath[groups[child]]++ == 0) {
+                    sizes[groups[child]] += instances.get(child).getTotalRetainedSize();
+                }
+                stack[++depth] = child;
+                nextChild[depth] = childStarts[child];
+            } else {
+                if (node != count) {
+                    groupsOnPath[groups[node]]--;
+                }
+                depth--;
+            }
+        }
+
+        List<Integer> sorted = new ArrayList<>(groupNames.size());
+        for (int i = 0; i < groupNames.size(); i++) {
+            sorted.add(i);
+        }
+        sorted.sort((first, second) -> Long.compare(sizes[second], sizes[first]));
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (int group : sorted) {
+            result.put(groupNames.get(group), sizes[group]);
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    @NonNull
+    private static String getPackageName(@NonNull Instance instance) {
+        ClassObj classObj = instance instanceof ClassObj ? (ClassObj) instance
+                : instance.getClassObj();
+        if (classObj == null) {
+            return DEFAULT_PACKAGE;
+        }
+        String className = classObj.getClassName().replace("[]", "");
+        int end = className.lastIndexOf('.');
+        return end < 0 ? DEFAULT_PACKAGE : className.substring(0, end);
+    }
+
+    @NonNull
+    private static String getClassLoaderName(@NonNull Instance instance) {
+        ClassObj classObj = instance instanceof ClassObj ? (ClassObj) instance
+                : instance.getClassObj();
+        Instance classLoader = classObj == null ? null : classObj.getClassLoader();
+        return classLoader == null ? BOOT_CLASS_LOADER : classLoader.toString();
+    }
+
+    /**
+     * An object retaining instances of a class, along with how many of them it retains and how
+     * much memory they retain.
+     */
+    public static final class Retainer {
+        @Nullable
+        private final Instance mInstance;
+
+        private int mInstanceCount;
+
+        private long mRetainedSize;
+
+        private Retainer(@Nullable Instance instance) {
+            mInstance = instance;
+        }
+
+        /** Returns the retaining object, or null for instances only retained by GC roots. */
+        @Nullable
+        public Instance getInstance() {
+            return mInstance;
+        }
+
+        public int getInstanceCount() {
+            return mInstanceCount;
+        }
+
+        public long getRetainedSize() {
+            return mRetainedSize;
+        }
+    }
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.RootObj;
+import com.android.tools.perflib.heap.Snapshot;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntConsumer;
+
+/**
+ * Computes dominators over dense int node indices instead of per-instance node objects.
+ *
+ * Nodes are numbered by their topological order, with 0 being {@link Snapshot#SENTINEL_ROOT}, and
+ * the reference graph is flattened into compressed successor and predecessor arrays. Building
+ * those arrays, writing the results back into the {@link Instance}s and rolling up retained sizes
+ * (one dominator tree level at a time) are spread over a {@link ForkJoinPool}. The depth-first
+ * numbering and the semi-dominator sweep of the Lengauer-Tarjan algorithm are inherently
+ * sequential, but run over primitive arrays only.
+ */
+public final class ParallelDominators extends DominatorsBase {
+
+    private static final int NONE = -1;
+
+    // Below this many items, a parallel loop runs on the calling thread.
+    private static final int GRAIN = 4096;
+
+    @NonNull
+    private final ForkJoinPool mPool;
+
+    // Nodes indexed by topological order.
+    @NonNull
+    private final Instance[] mNodes;
+
+    // Root instances, by topological order.
+    @NonNull
+    private final int[] mRoots;
+
+    // Depth-first preorder: mVertex[dfsNumber] is a node, mDfsNumber[node] its number.
+    private int[] mVertex;
+
+    // Immediate dominator of each depth-first number, as a depth-first number.
+    private int[] mDominator;
+
+    private final AtomicInteger mReferenceProgress = new AtomicInteger();
+
+    private volatile int mSemiDominatorProgress = 0;
+
+    private volatile int mDominatorProgress = 0;
+
+    public ParallelDominators(@NonNull Snapshot snapshot, @NonNull ForkJoinPool pool) {
+        super(snapshot);
+        mPool = pool;
+
+        mNodes = new Instance[mTopSort.size() + 1];
+        mNodes[0] = Snapshot.SENTINEL_ROOT;
+        parallelFor(1, mNodes.length, node -> mNodes[node] = mTopSort.get(node - 1), null);
+
+        int[] roots = new int[snapshot.getGCRoots().size()];
+        boolean[] isRoot = new boolean[mNodes.length];
+        int rootCount = 0;
+        for (RootObj root : snapshot.getGCRoots()) {
+            int node = getNode(root.getReferredInstance());
+            if (node != NONE && !isRoot[node]) {
+                isRoot[node] = true;
+                roots[rootCount++] = node;
+            }
+        }
+        mRoots = new int[rootCount];
+        System.arraycopy(roots, 0, mRoots, 0, rootCount);
+    }
+
+    @NonNull
+    @Override
+    public ComputationProgress getComputationProgress() {
+        int nodeCount = mNodes.length;
+        String progressMessage;
+        double progress;
+        if (mVertex == null) {
+            int collected = Math.min(mReferenceProgress.get(), 2 * nodeCount);
+            progressMessage = String.format("Collecting references %d/%d", collected / 2,
+                    nodeCount);
+            progress = 0.2 * (double) collected / (2.0 * nodeCount);
+        } else if (mSemiDominatorProgress < nodeCount - 1) {
+            progressMessage = String.format("Calculating semi-dominators %d/%d",
+                    mSemiDominatorProgress, nodeCount);
+            progress = 0.2 + 0.7 * (double) mSemiDominatorProgress / (double) nodeCount;
+        } else {
+            progressMessage = String.format("Calculating immediate dominators %d/%d",
+                    mDominatorProgress, nodeCount);
+            progress = 0.9 + 0.1 * (double) mDominatorProgress / (double) nodeCount;
+        }
+        mCurrentProgress.setMessage(progressMessage);
+        mCurrentProgress.setProgress(progress);
+        return mCurrentProgress;
+    }
+
+    @Override
+    public void computeDominators() {
+        int nodeCount = mNodes.length;
+
+        // Successors of each node, in compressed form.
+        int[] successorOffsets = new int[nodeCount + 1];
+        successorOffsets[1] = mRoots.length;
+        parallelFor(1, nodeCount, node -> {
+            int count = 0;
+            for (Instance reference : mNodes[node].getHardForwardReferences()) {
+                if (getNode(reference) != NONE) {
+                    count++;
+                }
+            }
+            successorOffsets[node + 1] = count;
+        }, mReferenceProgress);
+        accumulate(successorOffsets);
+        int[] successors = new int[successorOffsets[nodeCount]];
+        System.arraycopy(mRoots, 0, successors, 0, mRoots.length);
+        parallelFor(1, nodeCount, node -> {
+            int position = successorOffsets[node];
+            for (Instance reference : mNodes[node].getHardForwardReferences()) {
+                int successor = getNode(reference);
+                if (successor != NONE) {
+                    successors[position++] = successor;
+                }
+            }
+        }, mReferenceProgress);
+
+        // Predecessors, derived from the successors.
+        AtomicIntegerArray cursors = new AtomicIntegerArray(nodeCount + 1);
+        parallelFor(0, nodeCount, node -> {
+            for (int i = successorOffsets[node]; i < successorOffsets[node + 1]; i++) {
+                cursors.incrementAndGet(successors[i] + 1);
+            }
+        }, null);
+        int[] predecessorOffsets = new int[nodeCount + 1];
+        for (int i = 1; i <= nodeCount; i++) {
+            predecessorOffsets[i] = predecessorOffsets[i - 1] + cursors.get(i);
+            cursors.set(i - 1, predecessorOffsets[i - 1]);
+        }
+        int[] predecessors = new int[predecessorOffsets[nodeCount]];
+        parallelFor(0, nodeCount, node -> {
+            for (int i = successorOffsets[node]; i < successorOffsets[node + 1]; i++) {
+                predecessors[cursors.getAndIncrement(successors[i])] = node;
+            }
+        }, null);
+
+        int[] dfsNumber = new int[nodeCount];
+        int[] parent = new int[nodeCount];
+        int[] vertex = depthFirstSearch(successorOffsets, successors, dfsNumber, parent);
+        int vertexCount = vertex.length;
+        mVertex = vertex;
+
+        // Lengauer-Tarjan with path compression, entirely in depth-first number space.
+        int[] semi = new int[vertexCount];
+        int[] ancestor = new int[vertexCount];
+        int[] best = new int[vertexCount];
+        int[] sameDominator = new int[vertexCount];
+        int[] bucketHead = new int[vertexCount];
+        int[] bucketNext = new int[vertexCount];
+        int[] dominator = new int[vertexCount];
+        int[] compressStack = new int[vertexCount];
+        for (int i = 0; i < vertexCount; i++) {
+            semi[i] = i;
+            ancestor[i] = NONE;
+            best[i] = i;
+            sameDominator[i] = NONE;
+            bucketHead[i] = NONE;
+        }
+
+        for (int w = vertexCount - 1; w > 0; --w, mSemiDominatorProgress = vertexCount - 1 - w) {
+            int node = vertex[w];
+            int p = parent[w];
+            int s = p;
+            for (int i = predecessorOffsets[node]; i < predecessorOffsets[node + 1]; i++) {
+                int v = dfsNumber[predecessors[i]];
+                if (v == NONE) {
+                    continue;
+                }
+                int candidate = v <= w ? v : semi[eval(v, ancestor, best, semi, compressStack)];
+                if (candidate < s) {
+                    s = candidate;
+                }
+            }
+            semi[w] = s;
+            bucketNext[w] = bucketHead[s];
+            bucketHead[s] = w;
+            ancestor[w] = p;
+
+            for (int v = bucketHead[p]; v != NONE; v = bucketNext[v]) {
+                int y = eval(v, ancestor, best, semi, compressStack);
+                if (semi[y] == semi[v]) {
+                    dominator[v] = p;
+                } else {
+                    sameDominator[v] = y;
+                }
+            }
+            bucketHead[p] = NONE;
+        }
+
+        for (int i = 1; i < vertexCount; i++) {
+            if (sameDominator[i] != NONE) {
+                dominator[i] = dominator[sameDominator[i]];
+            }
+            mDominatorProgress = i;
+        }
+        mDominator = dominator;
+
+        // Like LinkEvalDominators, leave the depth-first number as the instance's topological
+        // order.
+        parallelFor(1, vertexCount, i -> {
+            Instance instance = mNodes[vertex[i]];
+            instance.setImmediateDominator(mNodes[vertex[dominator[i]]]);
+            instance.setTopologicalOrder(i);
+        }, null);
+        mDominatorProgress = vertexCount;
+    }
+
+    /**
+     * Rolls up retained sizes along the dominator tree, one level at a time starting from the
+     * deepest, processing all parents of a level in parallel.
+     */
+    @Override
+    public void computeRetainedSizes() {
+        int[] vertex = mVertex;
+        int[] dominator = mDominator;
+        int vertexCount = vertex.length;
+        int heapCount = mSnapshot.getHeaps().size();
+
+        // Dominators always precede the nodes they dominate in depth-first order.
+        int[] depth = new int[vertexCount];
+        int maxDepth = 0;
+        for (int i = 1; i < vertexCount; i++) {
+            depth[i] = depth[dominator[i]] + 1;
+            maxDepth = Math.max(maxDepth, depth[i]);
+        }
+
+        // Children of each node in the dominator tree, and nodes grouped by depth.
+        int[] childOffsets = new int[vertexCount + 1];
+        int[] levelOffsets = new int[maxDepth + 2];
+        for (int i = 1; i < vertexCount; i++) {
+            childOffsets[dominator[i] + 1]++;
+            levelOffsets[depth[i] + 1]++;
+        }
+        levelOffsets[1]++; // The sentinel root.
+        accumulate(childOffsets);
+        accumulate(levelOffsets);
+        int[] children = new int[vertexCount];
+        int[] levels = new int[vertexCount];
+        int[] childCursors = childOffsets.clone();
+        int[] levelCursors = levelOffsets.clone();
+        levels[levelCursors[0]++] = 0;
+        for (int i = 1; i < vertexCount; i++) {
+            children[childCursors[dominator[i]]++] = i;
+            levels[levelCursors[depth[i]]++] = i;
+        }
+
+        long[] retainedSizes = new long[vertexCount * heapCount];
+        parallelFor(1, vertexCount, i -> {
+            Instance instance = mNodes[vertex[i]];
+            for (int heap = 0; heap < heapCount; heap++) {
+                retainedSizes[i * heapCount + heap] = instance.getRetainedSize(heap);
+            }
+        }, null);
+
+        // Level 0 is the sentinel root, which doesn't accumulate a retained size.
+        for (int level = maxDepth - 1; level >= 1; level--) {
+            parallelFor(levelOffsets[level], levelOffsets[level + 1], index -> {
+                int parent = levels[index];
+                for (int c = childOffsets[parent]; c < childOffsets[parent + 1]; c++) {
+                    int child = children[c];
+                    for (int heap = 0; heap < heapCount; heap++) {
+                        retainedSizes[parent * heapCount + heap] +=
+                                retainedSizes[child * heapCount + heap];
+                    }
+                }
+            }, null);
+        }
+
+        parallelFor(1, vertexCount, i -> {
+            Instance instance = mNodes[vertex[i]];
+            for (int heap = 0; heap < heapCount; heap++) {
+                long delta = retainedSizes[i * heapCount + heap] - instance.getRetainedSize(heap);
+                if (delta != 0) {
+                    instance.addRetainedSize(heap, delta);
+                }
+            }
+        }, null);
+    }
+
+    private int getNode(@Nullable Instance instance) {
+        if (instance == null) {
+            return NONE;
+        }
+        int node = instance.getTopologicalOrder();
+        return node > 0 && node < mNodes.length && mNodes[node] == instance ? node : NONE;
+    }
+
+    /**
+     * Numbers the nodes reachable from the sentinel root in depth-first preorder, returning the
+     * nodes in that order. Depth-first search in loop form, since the recursive version blows the
+     * stack.
+     */
+    @NonNull
+    private static int[] depthFirstSearch(@NonNull int[] successorOffsets,
+            @NonNull int[] successors, @NonNull int[] dfsNumber, @NonNull int[] parent) {
+        int nodeCount = dfsNumber.length;
+        int[] vertex = new int[nodeCount];
+        int[] nodeStack = new int[nodeCount];
+        int[] childOffsetStack = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            dfsNumber[i] = NONE;
+        }
+
+        int count = 0;
+        int top = 0;
+        dfsNumber[0] = count;
+        vertex[count++] = 0;
+        nodeStack[0] = 0;
+        childOffsetStack[0] = successorOffsets[0];
+        while (top >= 0) {
+            int node = nodeStack[top];
+            int offset = childOffsetStack[top];
+            if (offset == successorOffsets[node + 1]) {
+                top--;
+                continue;
+            }
+            childOffsetStack[top] = offset + 1;
+            int successor = successors[offset];
+            if (dfsNumber[successor] == NONE) {
+                dfsNumber[successor] = count;
+                parent[count] = dfsNumber[node];
+                vertex[count++] = successor;
+                top++;
+                nodeStack[top] = successor;
+                childOffsetStack[top] = successorOffsets[successor];
+            }
+        }
+
+        if (count == nodeCount) {
+            return vertex;
+        }
+        int[] reachable = new int[count];
+        System.arraycopy(vertex, 0, reachable, 0, count);
+        return reachable;
+    }
+
+    /**
+     * Returns the ancestor of {@code v} with the lowest semi-dominator, compressing the path to it
+     * on the way. Manual recursion-to-loop conversion using {@code stack}.
+     */
+    private static int eval(int v, @NonNull int[] ancestor, @NonNull int[] best,
+            @NonNull int[] semi, @NonNull int[] stack) {
+        int top = 0;
+        int x = v;
+        while (ancestor[ancestor[x]] != NONE) {
+            stack[top++] = x;
+            x = ancestor[x];
+        }
+        while (top > 0) {
+            x = stack[--top];
+            int a = ancestor[x];
+            if (semi[best[a]] < semi[best[x]]) {
+                best[x] = best[a];
+            }
+            ancestor[x] = ancestor[a];
+        }
+        return best[v];
+    }
+
+    /**
+     * Turns per-node counts stored at {@code offsets[node + 1]} into start offsets.
+     */
+    private static void accumulate(@NonNull int[] offsets) {
+        for (int i = 1; i < offsets.length; i++) {
+            offsets[i] += offsets[i - 1];
+        }
+    }
+
+    private void parallelFor(int from, int to, @NonNull IntConsumer body,
+            @Nullable AtomicInteger progress) {
+        if (to - from <= GRAIN) {
+            new RangeAction(from, to, body, progress).compute();
+        } else {
+            mPool.invoke(new RangeAction(from, to, body, progress));
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class RangeAction extends RecursiveAction {
+        private final int mFrom;
+
+        private final int mTo;
+
+        @NonNull
+        private final IntConsumer mBody;
+
+        @Nullable
+        private final AtomicInteger mProgress;
+
+        RangeAction(int from, int to, @NonNull IntConsumer body,
+                @Nullable AtomicInteger progress) {
+            mFrom = from;
+            mTo = to;
+            mBody = body;
+            mProgress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= GRAIN) {
+                for (int i = mFrom; i < mTo; i++) {
+                    mBody.accept(i);
+                }
+                if (mProgress != null) {
+                    mProgress.addAndGet(mTo - mFrom);
+                }
+            } else {
+                int middle = (mFrom + mTo) >>> 1;
+                invokeAll(new RangeAction(mFrom, middle, mBody, mProgress),
+                        new RangeAction(middle, mTo, mBody, mProgress));
+            }
+        }
+    }
+}
@@ -44,6 +44,14 @@ public class InMemoryBuffer implements DataBuffer {
     @Override
     public void dispose() {}
 
+    @NonNull
+    @Override
+    public InMemoryBuffer duplicate() {
+        ByteBuffer duplicate = mBuffer.duplicate();
+        duplicate.order(mBuffer.order());
+        return new InMemoryBuffer(duplicate);
+    }
+
     public ByteBuffer getDirectBuffer() {
         return mBuffer;
     }
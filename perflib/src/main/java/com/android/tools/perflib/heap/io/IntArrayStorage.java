@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.io;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A fixed-length, long-indexed array of ints, either living on the Java heap or memory-mapped from
+ * a scratch file so that it doesn't count against the heap limit.
+ */
+public abstract class IntArrayStorage {
+
+    /**
+     * Allocates a zero-filled array of {@code length} ints.
+     *
+     * @param scratchDirectory if non-null, the array is backed by a temporary file created in this
+     *                         directory, otherwise by a plain {@code int[]}
+     */
+    @NonNull
+    public static IntArrayStorage allocate(long length, @Nullable File scratchDirectory)
+            throws IOException {
+        if (scratchDirectory == null) {
+            if (length > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException(
+                        "Array of " + length + " ints requires a scratch directory");
+            }
+            return new OnHeap((int) length);
+        }
+        return new Mapped(new ScratchFile(scratchDirectory, length * 4), length);
+    }
+
+    public abstract long length();
+
+    public abstract int get(long index);
+
+    public abstract void set(long index, int value);
+
+    /**
+     * Releases the resources held by this array. The array must not be accessed afterwards.
+     */
+    public void dispose() {
+    }
+
+    private static final class OnHeap extends IntArrayStorage {
+        @NonNull
+        private final int[] mValues;
+
+        OnHeap(int length) {
+            mValues = new int[length];
+        }
+
+        @Override
+        public long length() {
+            return mValues.length;
+        }
+
+        @Override
+        public int get(long index) {
+            return mValues[(int) index];
+        }
+
+        @Override
+        public void set(long index, int value) {
+            mValues[(int) index] = value;
+        }
+    }
+
+    private static final class Mapped extends IntArrayStorage {
+        @NonNull
+        private final ScratchFile mFile;
+
+        private final long mLength;
+
+        Mapped(@NonNull ScratchFile file, long length) {
+            mFile = file;
+            mLength = length;
+        }
+
+        @Override
+        public long length() {
+            return mLength;
+        }
+
+        @Override
+        public int get(long index) {
+            return mFile.getInt(index * 4);
+        }
+
+        @Override
+        public void set(long index, int value) {
+            mFile.putInt(index * 4, value);
+        }
+
+        @Override
+        public void dispose() {
+            mFile.dispose();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.io;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A fixed-length, long-indexed array of longs, either living on the Java heap or memory-mapped
+ * from a scratch file so that it doesn't count against the heap limit.
+ */
+public abstract class LongArrayStorage {
+
+    /**
+     * Allocates a zero-filled array of {@code length} longs.
+     *
+     * @param scratchDirectory if non-null, the array is backed by a temporary file created in this
+     *                         directory, otherwise by a plain {@code long[]}
+     */
+    @NonNull
+    public static LongArrayStorage allocate(long length, @Nullable File scratchDirectory)
+            throws IOException {
+        if (scratchDirectory == null) {
+            if (length > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException(
+                        "Array of " + length + " longs requires a scratch directory");
+            }
+            return new OnHeap((int) length);
+        }
+        return new Mapped(new ScratchFile(scratchDirectory, length * 8), length);
+    }
+
+    public abstract long length();
+
+    public abstract long get(long index);
+
+    public abstract void set(long index, long value);
+
+    /**
+     * Sorts the whole array in ascending order.
+     */
+    public void sort() {
+        // In-place heapsort, so that sorting a mapped array doesn't need any extra memory.
+        long length = length();
+        for (long i = length / 2 - 1; i >= 0; i--) {
+            siftDown(i, length);
+        }
+        for (long end = length - 1; end > 0; end--) {
+            long top = get(0);
+            set(0, get(end));
+            set(end, top);
+            siftDown(0, end);
+        }
+    }
+
+    /**
+     * Returns the index of {@code value} in this array, which must be sorted, or -1 if absent.
+     */
+    public long binarySearch(long value) {
+        long low = 0;
+        long high = length() - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            long midValue = get(mid);
+            if (midValue < value) {
+                low = mid + 1;
+            } else if (midValue > value) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Releases the resources held by this array. The array must not be accessed afterwards.
+     */
+    public void dispose() {
+    }
+
+    private void siftDown(long root, long end) {
+        long value = get(root);
+        while (true) {
+            long child = 2 * root + 1;
+            if (child >= end) {
+                break;
+            }
+            if (child + 1 < end && get(child + 1) > get(child)) {
+                child++;
+            }
+            long childValue = get(child);
+            if (childValue <= value) {
+                break;
+            }
+            set(root, childValue);
+            root = child;
+        }
+        set(root, value);
+    }
+
+    private static final class OnHeap extends LongArrayStorage {
+        @NonNull
+        private final long[] mValues;
+
+        OnHeap(int length) {
+            mValues = new long[length];
+        }
+
+        @Override
+        public long length() {
+            return mValues.length;
+        }
+
+        @Override
+        public long get(long index) {
+            return mValues[(int) index];
+        }
+
+        @Override
+        public void set(long index, long value) {
+            mValues[(int) index] = value;
+        }
+
+        @Override
+        public void sort() {
+            Arrays.sort(mValues);
+        }
+
+        @Override
+        public long binarySearch(long value) {
+            int index = Arrays.binarySearch(mValues, value);
+            return index >= 0 ? index : -1;
+        }
+    }
+
+    private static final class Mapped extends LongArrayStorage {
+        @NonNull
+        private final ScratchFile mFile;
+
+        private final long mLength;
+
+        Mapped(@NonNull ScratchFile file, long length) {
+            mFile = file;
+            mLength = length;
+        }
+
+        @Override
+        public long length() {
+            return mLength;
+        }
+
+        @Override
+        public long get(long index) {
+            return mFile.getLong(index * 8);
+        }
+
+        @Override
+        public void set(long index, long value) {
+            mFile.putLong(index * 8, value);
+        }
+
+        @Override
+        public void dispose() {
+            mFile.dispose();
+        }
+    }
+}
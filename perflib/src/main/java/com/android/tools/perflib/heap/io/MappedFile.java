@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.io;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A file mapped into memory in 1 GB chunks, with absolute big-endian accessors that work past
+ * the 2 GB limit of a single {@link ByteBuffer}. Ints and longs must be naturally aligned so that
+ * no access straddles two chunks; byte ranges may straddle.
+ */
+public final class MappedFile {
+
+    private static final int CHUNK_SHIFT = 30;
+
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    @NonNull
+    private final ByteBuffer[] mChunks;
+
+    private final long mLength;
+
+    private MappedFile(@NonNull ByteBuffer[] chunks, long length) {
+        mChunks = chunks;
+        mLength = length;
+    }
+
+    /**
+     * Maps the whole of an existing file for reading.
+     */
+    @NonNull
+    public static MappedFile mapReadOnly(@NonNull File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            return map(randomAccessFile, FileChannel.MapMode.READ_ONLY, randomAccessFile.length());
+        }
+    }
+
+    /**
+     * Maps {@code file} for reading and writing, first resizing it to {@code byteLength} bytes.
+     */
+    @NonNull
+    public static MappedFile mapReadWrite(@NonNull File file, long byteLength)
+            throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(byteLength);
+            return map(randomAccessFile, FileChannel.MapMode.READ_WRITE, byteLength);
+        }
+    }
+
+    @NonNull
+    private static MappedFile map(@NonNull RandomAccessFile file, @NonNull FileChannel.MapMode mode,
+            long byteLength) throws IOException {
+        int chunkCount = (int) ((byteLength + CHUNK_MASK) >>> CHUNK_SHIFT);
+        ByteBuffer[] chunks = new ByteBuffer[Math.max(chunkCount, 1)];
+        FileChannel channel = file.getChannel();
+        long offset = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            long size = Math.min(byteLength - offset, 1L << CHUNK_SHIFT);
+            chunks[i] = channel.map(mode, offset, size);
+            chunks[i].order(DataBuffer.HPROF_BYTE_ORDER);
+            offset += size;
+        }
+        return new MappedFile(chunks, byteLength);
+    }
+
+    public long length() {
+        return mLength;
+    }
+
+    public byte getByte(long offset) {
+        return mChunks[(int) (offset >>> CHUNK_SHIFT)].get((int) (offset & CHUNK_MASK));
+    }
+
+    public void putByte(long offset, byte value) {
+        mChunks[(int) (offset >>> CHUNK_SHIFT)].put((int) (offset & CHUNK_MASK), value);
+    }
+
+    public void getBytes(long offset, @NonNull byte[] destination) {
+        for (int i = 0; i < destination.length; i++) {
+            destination[i] = getByte(offset + i);
+        }
+    }
+
+    public void putBytes(long offset, @NonNull byte[] source) {
+        for (int i = 0; i < source.length; i++) {
+            putByte(offset + i, source[i]);
+        }
+    }
+
+    public int getInt(long offset) {
+        return mChunks[(int) (offset >>> CHUNK_SHIFT)].getInt((int) (offset & CHUNK_MASK));
+    }
+
+    public void putInt(long offset, int value) {
+        mChunks[(int) (offset >>> CHUNK_SHIFT)].putInt((int) (offset & CHUNK_MASK), value);
+    }
+
+    public long getLong(long offset) {
+        return mChunks[(int) (offset >>> CHUNK_SHIFT)].getLong((int) (offset & CHUNK_MASK));
+    }
+
+    public void putLong(long offset, long value) {
+        mChunks[(int) (offset >>> CHUNK_SHIFT)].putLong((int) (offset & CHUNK_MASK), value);
+    }
+
+    /**
+     * Writes any changes made to a read-write mapping back to the file.
+     */
+    public void force() {
+        for (ByteBuffer chunk : mChunks) {
+            if (chunk instanceof MappedByteBuffer) {
+                ((MappedByteBuffer) chunk).force();
+            }
+        }
+    }
+
+    /**
+     * Unmaps the file. The mapping must not be accessed afterwards.
+     */
+    public void dispose() {
+        MemoryMappedFileBuffer.unmap(mChunks);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.io;
+
+import com.android.annotations.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A temporary file mapped read-write into memory, used to keep large primitive tables off the Java
+ * heap. The file is deleted when disposed.
+ */
+final class ScratchFile {
+
+    @NonNull
+    private final File mFile;
+
+    @NonNull
+    private final MappedFile mMapping;
+
+    ScratchFile(@NonNull File directory, long byteLength) throws IOException {
+        mFile = File.createTempFile("perflib", ".scratch", directory);
+        mFile.deleteOnExit();
+        mMapping = MappedFile.mapReadWrite(mFile, byteLength);
+    }
+
+    int getInt(long offset) {
+        return mMapping.getInt(offset);
+    }
+
+    void putInt(long offset, int value) {
+        mMapping.putInt(offset, value);
+    }
+
+    long getLong(long offset) {
+        return mMapping.getLong(offset);
+    }
+
+    void putLong(long offset, long value) {
+        mMapping.putLong(offset, value);
+    }
+
+    void dispose() {
+        mMapping.dispose();
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.VisibleForTesting;
+import com.android.tools.perflib.heap.ArraySlice;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Groups owners, such as strings or bitmaps, by the contents of their backing arrays.
+ *
+ * <p>Contents are never copied out of the heap dump: each one is reduced to a 64-bit fingerprint
+ * plus its length, and only owners whose fingerprints collide have their contents compared byte by
+ * byte. Memory use is therefore proportional to the number of owners, not to their total size.
+ */
+final class ContentFingerprintIndex<T> {
+
+    @NonNull
+    private final Map<Fingerprint, List<Entry<T>>> mCandidates = new HashMap<>();
+
+    /**
+     * Indexes {@code owner} under the fingerprint of {@code content}, reading it from the heap dump.
+     */
+    void add(@NonNull T owner, @NonNull ArraySlice content) {
+        add(owner, content, content.getContentFingerprint());
+    }
+
+    /**
+     * Indexes {@code owner} under the given fingerprint of {@code content}.
+     */
+    @VisibleForTesting
+    void add(@NonNull T owner, @NonNull ArraySlice content, long contentFingerprint) {
+        Fingerprint fingerprint = new Fingerprint(contentFingerprint, content.getByteLength());
+        mCandidates.computeIfAbsent(fingerprint, key -> new ArrayList<>(1))
+                .add(new Entry<>(owner, content));
+    }
+
+    /**
+     * Merges the owners indexed by {@code other} into this index.
+     */
+    void addAll(@NonNull ContentFingerprintIndex<T> other) {
+        for (Map.Entry<Fingerprint, List<Entry<T>>> candidates : other.mCandidates.entrySet()) {
+            mCandidates.computeIfAbsent(candidates.getKey(), key -> new ArrayList<>(1))
+                    .addAll(candidates.getValue());
+        }
+    }
+
+    /**
+     * Returns the groups of more than one distinct owner whose contents are identical.
+     */
+    @NonNull
+    List<List<T>> getDuplicates() {
+        List<List<T>> duplicates = new ArrayList<>();
+        List<Entry<T>> representatives = new ArrayList<>();
+        List<Set<T>> groups = new ArrayList<>();
+        for (List<Entry<T>> candidates : mCandidates.values()) {
+            if (candidates.size() <= 1) {
+                continue;
+            }
+
+            // Matching fingerprints almost always mean matching contents, so this is usually
+            // a single comparison per candidate.
+            representatives.clear();
+            groups.clear();
+            for (Entry<T> candidate : candidates) {
+                int group = 0;
+                while (group < representatives.size()
+                        && !representatives.get(group).mContent.contentEquals(candidate.mContent)) {
+                    group++;
+                }
+                if (group == representatives.size()) {
+                    representatives.add(candidate);
+                    groups.add(new LinkedHashSet<>());
+                }
+                groups.get(group).add(candidate.mOwner);
+            }
+
+            for (Set<T> group : groups) {
+                if (group.size() > 1) {
+                    duplicates.add(new ArrayList<>(group));
+                }
+            }
+        }
+        return duplicates;
+    }
+
+    private static final class Fingerprint {
+
+        private final long mHash;
+
+        private final int mByteLength;
+
+        private Fingerprint(long hash, int byteLength) {
+            mHash = hash;
+            mByteLength = byteLength;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Fingerprint)) {
+                return false;
+            }
+            Fingerprint that = (Fingerprint) o;
+            return mHash == that.mHash && mByteLength == that.mByteLength;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (mHash ^ (mHash >>> 32));
+        }
+    }
+
+    private static final class Entry<T> {
+
+        @NonNull
+        private final T mOwner;
+
+        @NonNull
+        private final ArraySlice mContent;
+
+        private Entry(@NonNull T owner, @NonNull ArraySlice content) {
+            mOwner = owner;
+            mContent = content;
+        }
+    }
+}
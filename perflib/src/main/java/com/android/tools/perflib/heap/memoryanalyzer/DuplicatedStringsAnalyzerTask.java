@@ -18,21 +18,28 @@ package com.android.tools.perflib.heap.memoryanalyzer;
 import com.android.annotations.NonNull;
 import com.android.tools.perflib.analyzer.AnalysisResultEntry;
 import com.android.tools.perflib.heap.*;
-import com.google.common.collect.HashMultimap;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.RecursiveTask;
 
 public class DuplicatedStringsAnalyzerTask extends MemoryAnalyzerTask {
 
+    // Number of strings below which a scan isn't split any further.
+    private static final int SCAN_GRAIN = 4096;
+
     @Override
     protected List<AnalysisResultEntry<?>> analyze(@NonNull Configuration configuration,
                                                    @NonNull Snapshot snapshot) {
         List<AnalysisResultEntry<?>> results = new ArrayList<>();
 
-        HashMultimap<String, ClassInstance> stringIndex = HashMultimap.create();
+        // Strings are grouped by a fingerprint of their characters, so that they don't need to be
+        // decoded unless they turn out to be duplicated. The raw contents of the backing arrays
+        // are compared, so a string backed by a byte[] (a compressed string) and one backed by a
+        // char[] are not duplicates even if they hold the same text. That doesn't happen within a
+        // heap dump: a VM either never compresses strings, or compresses all the strings it can.
+        ContentFingerprintIndex<Instance> stringIndex = new ContentFingerprintIndex<>();
         ClassObj stringClass = snapshot.findClass("java.lang.String");
         if (stringClass == null) {
             return Collections.emptyList();
@@ -41,29 +48,39 @@ public class DuplicatedStringsAnalyzerTask extends MemoryAnalyzerTask {
         for (Heap heap : configuration.mHeaps) {
             List<Instance> instances = stringClass.getHeapInstances(heap.getId());
 
-            for (Instance instance : instances) {
-                assert instance instanceof ClassInstance;
-                ClassInstance stringInstance = (ClassInstance) instance;
-                if (stringInstance.getDistanceToGcRoot() != Integer.MAX_VALUE) {
-                    String text = stringInstance.getAsString();
-                    if (text != null) {
-                        stringIndex.put(text, stringInstance);
-                    }
-                }
+            if (configuration.mPool != null && instances.size() > SCAN_GRAIN) {
+                stringIndex.addAll(configuration.mPool.invoke(
+                        new ScanTask(instances, 0, instances.size())));
+            } else {
+                scan(instances, 0, instances.size(), stringIndex);
             }
         }
 
-        for (String key : stringIndex.keySet()) {
-            Set<ClassInstance> classInstanceSet = stringIndex.get(key);
-            if (classInstanceSet.size() > 1) {
-                results.add(
-                        new DuplicatedStringsEntry(key, new ArrayList<>(classInstanceSet)));
+        for (List<Instance> duplicates : stringIndex.getDuplicates()) {
+            String text = ((ClassInstance) duplicates.get(0)).getAsString();
+            if (text != null) {
+                results.add(new DuplicatedStringsEntry(text, duplicates));
             }
         }
 
         return results;
     }
 
+    private static void scan(@NonNull List<Instance> instances, int start, int end,
+            @NonNull ContentFingerprintIndex<Instance> stringIndex) {
+        for (int i = start; i < end; i++) {
+            Instance instance = instances.get(i);
+            assert instance instanceof ClassInstance;
+            ClassInstance stringInstance = (ClassInstance) instance;
+            if (stringInstance.getDistanceToGcRoot() != Integer.MAX_VALUE) {
+                ArraySlice content = stringInstance.getStringContent();
+                if (content != null) {
+                    stringIndex.add(stringInstance, content);
+                }
+            }
+        }
+    }
+
     @NonNull
     @Override
     public String getTaskName() {
@@ -76,6 +93,42 @@ public class DuplicatedStringsAnalyzerTask extends MemoryAnalyzerTask {
         return "Detects duplicate strings in the application.";
     }
 
+    /**
+     * Indexes a range of string instances, splitting it in halves until they are small enough.
+     */
+    @SuppressWarnings("serial")
+    private static final class ScanTask extends RecursiveTask<ContentFingerprintIndex<Instance>> {
+
+        @NonNull
+        private final List<Instance> mInstances;
+
+        private final int mStart;
+
+        private final int mEnd;
+
+        private ScanTask(@NonNull List<Instance> instances, int start, int end) {
+            mInstances = instances;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected ContentFingerprintIndex<Instance> compute() {
+            if (mEnd - mStart <= SCAN_GRAIN) {
+                ContentFingerprintIndex<Instance> stringIndex = new ContentFingerprintIndex<>();
+                scan(mInstances, mStart, mEnd, stringIndex);
+                return stringIndex;
+            }
+            int middle = (mStart + mEnd) >>> 1;
+            ScanTask left = new ScanTask(mInstances, mStart, middle);
+            left.fork();
+            ContentFingerprintIndex<Instance> stringIndex =
+                    new ScanTask(mInstances, middle, mEnd).compute();
+            stringIndex.addAll(left.join());
+            return stringIndex;
+        }
+    }
+
     public static class DuplicatedStringsEntry extends MemoryAnalysisResultEntry {
 
         private DuplicatedStringsEntry(@NonNull String offendingString,
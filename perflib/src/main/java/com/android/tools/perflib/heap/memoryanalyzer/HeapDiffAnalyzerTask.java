@@ -0,0 +1,118 @@
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.analysis.HeapDiff;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compares each analyzed Snapshot against a baseline heap dump of the same process, reporting the
+ * classes whose footprint changed and the largest dominator subtrees made up of new objects.
+ *
+ * <p>Both the baseline and the analyzed snapshots need their dominators computed.
+ */
+public final class HeapDiffAnalyzerTask extends MemoryAnalyzerTask {
+
+    private static final int DEFAULT_NUM_SUBTREES = 20;
+
+    @NonNull
+    private final Snapshot mBaseline;
+
+    private final int mNumSubtrees;
+
+    public HeapDiffAnalyzerTask(@NonNull Snapshot baseline) {
+        this(baseline, DEFAULT_NUM_SUBTREES);
+    }
+
+    public HeapDiffAnalyzerTask(@NonNull Snapshot baseline, int numSubtrees) {
+        mBaseline = baseline;
+        mNumSubtrees = numSubtrees;
+    }
+
+    @Override
+    protected List<AnalysisResultEntry<?>> analyze(@NonNull Configuration configuration,
+            @NonNull Snapshot snapshot) {
+        if (snapshot == mBaseline) {
+            return Collections.emptyList();
+        }
+
+        HeapDiff diff = HeapDiff.compute(mBaseline, snapshot, configuration.mHeaps, mNumSubtrees);
+        List<AnalysisResultEntry<?>> results = new ArrayList<>();
+        for (HeapDiff.ClassDelta delta : diff.getClassDeltas()) {
+            if (!delta.isUnchanged()) {
+                results.add(new ClassDeltaEntry(delta));
+            }
+        }
+        for (Instance root : diff.getNewSubtreeRoots()) {
+            results.add(new NewSubtreeEntry(root));
+        }
+        return results;
+    }
+
+    @NonNull
+    @Override
+    public String getTaskName() {
+        return "Heap Growth";
+    }
+
+    @NonNull
+    @Override
+    public String getTaskDescription() {
+        return "Compares the heap against a baseline heap dump of the same process.";
+    }
+
+    public static class ClassDeltaEntry extends MemoryAnalysisResultEntry {
+
+        @NonNull
+        private final HeapDiff.ClassDelta mDelta;
+
+        private ClassDeltaEntry(@NonNull HeapDiff.ClassDelta delta) {
+            super(delta.getClassName(), Collections.emptyList());
+            mDelta = delta;
+        }
+
+        @NonNull
+        public HeapDiff.ClassDelta getDelta() {
+            return mDelta;
+        }
+
+        @NonNull
+        @Override
+        public String getWarningMessage() {
+            return String.format("%s: %+d instances (%d new), %+d bytes shallow, %+d bytes retained",
+                    mDelta.getClassName(), mDelta.getCountDelta(), mDelta.getNewInstanceCount(),
+                    mDelta.getShallowSizeDelta(), mDelta.getRetainedSizeDelta());
+        }
+
+        @NonNull
+        @Override
+        public String getCategory() {
+            return "Heap Growth";
+        }
+    }
+
+    public static class NewSubtreeEntry extends MemoryAnalysisResultEntry {
+
+        private NewSubtreeEntry(@NonNull Instance root) {
+            super("New object " + root + " retains " + root.getTotalRetainedSize() + " bytes",
+                    Collections.singletonList(root));
+        }
+
+        @NonNull
+        @Override
+        public String getWarningMessage() {
+            return mOffender.getOffendingDescription();
+        }
+
+        @NonNull
+        @Override
+        public String getCategory() {
+            return "Heap Growth";
+        }
+    }
+}
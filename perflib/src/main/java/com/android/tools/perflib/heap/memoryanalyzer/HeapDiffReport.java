@@ -0,0 +1,77 @@
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.analysis.HeapDiff;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A report to organize the results of perflib's {@link HeapDiffAnalyzerTask}.
+ *
+ * <p>When printed, it creates a table of the classes whose footprint changed, sorted by the change
+ * in retained size, followed by a table of the largest new dominator subtrees.
+ */
+public final class HeapDiffReport implements Report {
+
+    private final List<HeapDiff.ClassDelta> mClassDeltas = new ArrayList<>();
+
+    private final List<Instance> mNewSubtreeRoots = new ArrayList<>();
+
+    @Override
+    public void generate(@NonNull List<AnalysisResultEntry<?>> data) {
+        mClassDeltas.clear();
+        mNewSubtreeRoots.clear();
+        for (AnalysisResultEntry<?> entry : data) {
+            if (entry instanceof HeapDiffAnalyzerTask.ClassDeltaEntry) {
+                mClassDeltas.add(((HeapDiffAnalyzerTask.ClassDeltaEntry) entry).getDelta());
+            } else if (entry instanceof HeapDiffAnalyzerTask.NewSubtreeEntry) {
+                mNewSubtreeRoots.add((Instance) entry.getOffender().getOffenders().get(0));
+            }
+        }
+        mClassDeltas.sort((first, second) ->
+                Long.compare(second.getRetainedSizeDelta(), first.getRetainedSizeDelta()));
+    }
+
+    @Override
+    public void print(@NonNull Printer printer) {
+        printer.addHeading(2, "Heap Growth Report");
+        printer.addParagraph(
+                "Compares the heap against a baseline heap dump of the same process.");
+
+        if (mClassDeltas.isEmpty() && mNewSubtreeRoots.isEmpty()) {
+            printer.addParagraph("No changes found.");
+            return;
+        }
+
+        if (!mClassDeltas.isEmpty()) {
+            printer.addHeading(3, "Classes");
+            printer.startTable("Class", "Count Change", "New Instances", "Shallow Size Change",
+                    "Retained Size Change");
+            for (HeapDiff.ClassDelta delta : mClassDeltas) {
+                printer.addRow(delta.getClassName(), formatChange(delta.getCountDelta()),
+                        Long.toString(delta.getNewInstanceCount()),
+                        formatChange(delta.getShallowSizeDelta()),
+                        formatChange(delta.getRetainedSizeDelta()));
+            }
+            printer.endTable();
+        }
+
+        if (!mNewSubtreeRoots.isEmpty()) {
+            printer.addHeading(3, "New Dominator Subtrees");
+            printer.startTable("Total Retained Size", "Instance");
+            for (Instance root : mNewSubtreeRoots) {
+                printer.addRow(Long.toString(root.getTotalRetainedSize()),
+                        printer.formatInstance(root));
+            }
+            printer.endTable();
+        }
+    }
+
+    @NonNull
+    private static String formatChange(long change) {
+        return String.format("%+d", change);
+    }
+}
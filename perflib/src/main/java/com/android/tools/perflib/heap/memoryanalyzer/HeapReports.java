@@ -2,6 +2,7 @@ package com.android.tools.perflib.heap.memoryanalyzer;
 
 import com.android.annotations.NonNull;
 import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.analyzer.CaptureGroup;
 import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
 import com.android.tools.perflib.heap.Snapshot;
 
@@ -10,8 +11,10 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -66,4 +69,70 @@ public final class HeapReports {
         List<AnalysisResultEntry<?>> results = TaskRunner.runTasks(tasks, snapshot);
         report.generate(results);
     }
+
+    /**
+     * Runs several {@link MemoryAnalyzerTask}s on a {@link Snapshot} at the same time and passes the
+     * results of each task to its {@link Report}, so that the whole run takes about as long as the
+     * slowest task.
+     *
+     * <p>The same requirements as for {@link #generateReport(Report, MemoryAnalyzerTask, Snapshot)}
+     * apply to the snapshot and to each report.
+     *
+     * @param reports     the report to generate for each task.
+     * @param snapshot    the heap dump to run on.
+     * @param parallelism the number of threads to run the tasks on.
+     */
+    public static void generateReports(@NonNull Map<MemoryAnalyzerTask, Report> reports,
+            @NonNull Snapshot snapshot, int parallelism) {
+        Set<MemoryAnalyzerTask> tasks = new HashSet<>();
+        List<RecordingTask> recordingTasks = new ArrayList<>();
+        for (MemoryAnalyzerTask task : reports.keySet()) {
+            RecordingTask recordingTask = new RecordingTask(task);
+            tasks.add(recordingTask);
+            recordingTasks.add(recordingTask);
+        }
+        CaptureGroup captureGroup = new CaptureGroup();
+        captureGroup.addCapture(snapshot);
+        TaskRunner.runTasks(tasks, Collections.emptySet(), captureGroup, parallelism);
+        for (RecordingTask recordingTask : recordingTasks) {
+            reports.get(recordingTask.mTask).generate(new ArrayList<>(recordingTask.mResults));
+        }
+    }
+
+    /**
+     * Keeps the results of the task it wraps apart from those of the other tasks run with it.
+     */
+    private static final class RecordingTask extends MemoryAnalyzerTask {
+
+        @NonNull
+        private final MemoryAnalyzerTask mTask;
+
+        @NonNull
+        private final List<AnalysisResultEntry<?>> mResults =
+                Collections.synchronizedList(new ArrayList<>());
+
+        private RecordingTask(@NonNull MemoryAnalyzerTask task) {
+            mTask = task;
+        }
+
+        @Override
+        protected List<AnalysisResultEntry<?>> analyze(@NonNull Configuration configuration,
+                @NonNull Snapshot snapshot) {
+            List<AnalysisResultEntry<?>> results = mTask.analyze(configuration, snapshot);
+            mResults.addAll(results);
+            return results;
+        }
+
+        @NonNull
+        @Override
+        public String getTaskName() {
+            return mTask.getTaskName();
+        }
+
+        @NonNull
+        @Override
+        public String getTaskDescription() {
+            return mTask.getTaskDescription();
+        }
+    }
 }
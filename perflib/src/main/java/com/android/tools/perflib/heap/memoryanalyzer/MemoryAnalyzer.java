@@ -31,6 +31,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 public class MemoryAnalyzer extends Analyzer {
 
@@ -62,6 +63,9 @@ public class MemoryAnalyzer extends Analyzer {
      * Analyze the given {@code captureGroup}. It is highly recommended to call this method on the
      * same thread as that of the {@code synchronizingExecutor} to avoid race conditions.
      *
+     * <p>Tasks run concurrently if {@code taskExecutor} has several threads. If it is a {@link
+     * ForkJoinPool}, tasks may also split their own scans across it.
+     *
      * @param captureGroup          captures to analyze
      * @param synchronizingExecutor executor to synchronize the results aggregation
      * @param taskExecutor          executor service to run the analyzer tasks on
@@ -90,6 +94,8 @@ public class MemoryAnalyzer extends Analyzer {
 
         List<ListenableFutureTask<List<AnalysisResultEntry<?>>>> futuresList
                 = new ArrayList<>();
+        ForkJoinPool pool = taskExecutor instanceof ForkJoinPool
+                ? (ForkJoinPool) taskExecutor : null;
 
         for (final Capture capture : captureGroup.getCaptures()) {
             if (accept(capture)) {
@@ -106,7 +112,7 @@ public class MemoryAnalyzer extends Analyzer {
                     }
                 }
                 final MemoryAnalyzerTask.Configuration configuration
-                        = new MemoryAnalyzerTask.Configuration(heapsToUse);
+                        = new MemoryAnalyzerTask.Configuration(heapsToUse, pool);
 
                 for (final MemoryAnalyzerTask task : mTasks) {
                     final ListenableFutureTask<List<AnalysisResultEntry<?>>> futureTask =
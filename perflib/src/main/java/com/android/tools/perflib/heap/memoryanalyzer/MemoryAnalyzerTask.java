@@ -16,6 +16,7 @@
 package com.android.tools.perflib.heap.memoryanalyzer;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.tools.perflib.analyzer.AnalysisResultEntry;
 import com.android.tools.perflib.analyzer.AnalyzerTask;
 import com.android.tools.perflib.heap.Heap;
@@ -23,6 +24,7 @@ import com.android.tools.perflib.heap.Snapshot;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public abstract class MemoryAnalyzerTask implements AnalyzerTask {
 
@@ -30,8 +32,20 @@ public abstract class MemoryAnalyzerTask implements AnalyzerTask {
 
         public Collection<Heap> mHeaps;
 
+        /**
+         * Pool the task may split its own work across, or null if it should run on the calling
+         * thread only. Other tasks may be running on the same pool at the same time.
+         */
+        @Nullable
+        public ForkJoinPool mPool;
+
         public Configuration(@NonNull Collection<Heap> heaps) {
+            this(heaps, null);
+        }
+
+        public Configuration(@NonNull Collection<Heap> heaps, @Nullable ForkJoinPool pool) {
             mHeaps = heaps;
+            mPool = pool;
         }
     }
 
@@ -14,6 +14,7 @@ import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -21,21 +22,38 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 final class TaskRunner {
 
+    /**
+     * Blocks until the given tasks are run through a {@link MemoryAnalyzer}, using one thread per
+     * available processor.
+     *
+     * @see #runTasks(Set, Set, CaptureGroup, int)
+     */
+    static List<AnalysisResultEntry<?>> runTasks(
+            @NonNull Set<MemoryAnalyzerTask> tasks, @NonNull Set<Listener> listeners,
+            @NonNull CaptureGroup captureGroup) {
+        return runTasks(tasks, listeners, captureGroup, Runtime.getRuntime().availableProcessors());
+    }
+
     /**
      * Blocks until the given tasks are run through a {@link MemoryAnalyzer}.
      *
-     * <p>All result entries will be aggregated into one list and returned.
+     * <p>The tasks run at the same time on a pool of {@code parallelism} threads, which they also
+     * use to split up their own work. All result entries will be aggregated into one list and
+     * returned.
      *
      * @param captureGroup the perflib {@link CaptureGroup} to run the tasks on.
+     * @param parallelism  the number of threads to run the tasks on.
      * @return list of results, or null if the report was cancelled or the tasks interrupted.
      */
     static List<AnalysisResultEntry<?>> runTasks(
             @NonNull Set<MemoryAnalyzerTask> tasks, @NonNull Set<Listener> listeners,
-            @NonNull CaptureGroup captureGroup) {
+            @NonNull CaptureGroup captureGroup, int parallelism) {
 
         final List<AnalysisResultEntry<?>> generatedEntries = new ArrayList<>();
 
+        // Results are aggregated on a single thread, so the listeners don't need to be thread-safe.
         final ExecutorService executorService = Executors.newSingleThreadExecutor();
+        final ForkJoinPool taskPool = new ForkJoinPool(parallelism);
 
         // Setup listeners - user supplied listeners from this.listeners, plus our own custom listener.
         final Set<Listener> listenerSet = new HashSet<>();
@@ -62,7 +80,7 @@ final class TaskRunner {
                 });
 
         MemoryAnalyzer memoryAnalyzer = new MemoryAnalyzer();
-        memoryAnalyzer.analyze(captureGroup, listenerSet, tasks, executorService, executorService);
+        memoryAnalyzer.analyze(captureGroup, listenerSet, tasks, executorService, taskPool);
 
         // Block until complete.
         try {
@@ -71,6 +89,7 @@ final class TaskRunner {
             cancelledOrInterrupted.set(true);
         }
 
+        taskPool.shutdownNow();
         executorService.shutdownNow();
 
         if (!cancelledOrInterrupted.get()) {
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.primitives.UnsignedInts;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+/**
+ * Folds the trace actions of one thread into per-method {@link MethodProfileData} as they are
+ * read, so that a trace can be summarized without keeping its {@link Call} tree in memory. Calls
+ * are reconstructed with the same rules as {@link CallStackReconstructor}, so the resulting
+ * statistics match those of {@link VmTraceData.Builder}, except that calls are never found to
+ * be recursive through a method which was entered before tracing started.
+ *
+ * <p>Each call can also be written to a {@link PagedCallTree} as it exits, and each action
+ * counted in a {@link TimeBucketSummary}.
+ */
+class CallAggregator {
+    private static final int EXCLUSIVE_THREAD_TIME = 0;
+    private static final int EXCLUSIVE_GLOBAL_TIME = 1;
+    private static final int CALLER_INCLUSIVE_THREAD_TIME = 2;
+    private static final int CALLER_INCLUSIVE_GLOBAL_TIME = 3;
+    private static final int CALLEE_INCLUSIVE_THREAD_TIME = 4;
+    private static final int CALLEE_INCLUSIVE_GLOBAL_TIME = 5;
+    private static final int INVOCATION_COUNT = 6;
+
+    private final int mThreadId;
+
+    /** Method builders shared by all the threads of the trace. */
+    @NonNull
+    private final Map<Long, MethodProfileData.Builder> mProfileBuilders;
+
+    @Nullable
+    private final PagedCallTree mCalls;
+
+    @Nullable
+    private final TimeBucketSummary mTimeBuckets;
+
+    /** Calls entered but not exited yet. The bottom frame stands for the top level call. */
+    private final List<Frame> mStack = new ArrayList<>();
+
+    /** Number of frames for each method on the stack, to find recursive calls. */
+    private final Map<Long, Integer> mMethodsOnStack = new HashMap<>();
+
+    /**
+     * Statistics of the calls made at the top level, by method. Their caller changes each time a
+     * method entered before tracing started exits, so they are only added once it is known.
+     */
+    private final Map<Long, long[]> mTopLevelStats = new HashMap<>();
+
+    private int mFirstTopLevelEntryThreadTime;
+    private int mFirstTopLevelEntryGlobalTime;
+
+    private int mUnmatchedExitCount;
+    private int mEntryCount;
+
+    CallAggregator(int threadId, long topLevelMethodId,
+            @NonNull Map<Long, MethodProfileData.Builder> profileBuilders,
+            @Nullable PagedCallTree calls, @Nullable TimeBucketSummary timeBuckets) {
+        mThreadId = threadId;
+        mProfileBuilders = profileBuilders;
+        mCalls = calls;
+        mTimeBuckets = timeBuckets;
+        mStack.add(new Frame(topLevelMethodId, 0, 0, 0, false));
+    }
+
+    void addTraceAction(long methodId, TraceAction action, int threadTime, int globalTime)
+            throws IOException {
+        if (action == TraceAction.METHOD_ENTER) {
+            enterMethod(methodId, threadTime, globalTime);
+        } else {
+            exitMethod(methodId, threadTime, globalTime);
+        }
+        if (mTimeBuckets != null) {
+            mTimeBuckets.addEvent(UnsignedInts.toLong(globalTime), mStack.size() - 1,
+                    action == TraceAction.METHOD_ENTER);
+        }
+    }
+
+    private void enterMethod(long methodId, int threadTime, int globalTime) {
+        Frame topLevel = mStack.get(0);
+        if (mStack.size() == 1 && !topLevel.mHasCallees) {
+            mFirstTopLevelEntryThreadTime = threadTime;
+            mFirstTopLevelEntryGlobalTime = globalTime;
+        }
+
+        push(new Frame(methodId, threadTime, globalTime, mEntryCount++,
+                mMethodsOnStack.containsKey(methodId)));
+    }
+
+    private void exitMethod(long methodId, int threadTime, int globalTime) throws IOException {
+        if (mStack.size() > 1) {
+            Frame frame = pop();
+            if (frame.mMethodId != methodId) {
+                String msg = String
+                        .format("Error during call stack reconstruction. Attempt to exit from method 0x%1$x while in method 0x%2$x",
+                                frame.mMethodId, methodId);
+                throw new RuntimeException(msg);
+            }
+            completeCall(frame, threadTime, globalTime);
+            return;
+        }
+
+        // We are exiting out of a method that was entered into before tracing was started. All
+        // the calls made at the top level so far are now assumed to have been made from it, and
+        // its entry time is guessed as in CallStackReconstructor.
+        Frame topLevel = mStack.get(0);
+        int entryThreadTime = threadTime - 1;
+        int entryGlobalTime = globalTime - 1;
+        if (topLevel.mHasCallees) {
+            entryThreadTime = Math.max(mFirstTopLevelEntryThreadTime - 1, 0);
+            entryGlobalTime = Math.max(mFirstTopLevelEntryGlobalTime - 1, 0);
+        }
+
+        mUnmatchedExitCount++;
+        Frame frame = new Frame(methodId, entryThreadTime, entryGlobalTime, -mUnmatchedExitCount,
+                false);
+        frame.adoptCallees(topLevel);
+        addTopLevelStats(methodId);
+        topLevel.mHasCallees = false;
+        topLevel.mCalleeThreadTime = 0;
+        topLevel.mCalleeGlobalTime = 0;
+
+        mFirstTopLevelEntryThreadTime = entryThreadTime;
+        mFirstTopLevelEntryGlobalTime = entryGlobalTime;
+        completeCall(frame, threadTime, globalTime);
+    }
+
+    /**
+     * Exits from all the calls still on the stack and adds the statistics of the top level call,
+     * as {@link CallStackReconstructor} does once the whole trace has been read.
+     *
+     * @return the top level call, with the times of the whole thread but without any callees.
+     */
+    @NonNull
+    Call finish() throws IOException {
+        while (mStack.size() > 1) {
+            Frame frame = mStack.get(mStack.size() - 1);
+            exitMethod(frame.mMethodId, frame.getLastExitThreadTime(),
+                    frame.getLastExitGlobalTime());
+        }
+
+        Frame topLevel = mStack.get(0);
+        int exitThreadTime = topLevel.getLastExitThreadTime();
+        int exitGlobalTime = topLevel.getLastExitGlobalTime();
+        int entryThreadTime = exitThreadTime - 1;
+        int entryGlobalTime = exitGlobalTime - 1;
+        if (topLevel.mHasCallees) {
+            entryThreadTime = Math.max(mFirstTopLevelEntryThreadTime - 1, 0);
+            entryGlobalTime = Math.max(mFirstTopLevelEntryGlobalTime - 1, 0);
+        }
+
+        long inclusiveThreadTime = UnsignedInts.toLong(exitThreadTime - entryThreadTime);
+        long inclusiveGlobalTime = UnsignedInts.toLong(exitGlobalTime - entryGlobalTime);
+        MethodProfileData.Builder builder = getProfileBuilder(topLevel.mMethodId);
+        builder.addThreadTime(mThreadId, ClockType.THREAD,
+                inclusiveThreadTime - topLevel.mCalleeThreadTime, inclusiveThreadTime);
+        builder.addThreadTime(mThreadId, ClockType.GLOBAL,
+                inclusiveGlobalTime - topLevel.mCalleeGlobalTime, inclusiveGlobalTime);
+        builder.addThreadInvocations(mThreadId, 1);
+        addTopLevelStats(topLevel.mMethodId);
+
+        if (mCalls != null) {
+            mCalls.finish(mUnmatchedExitCount, entryThreadTime, entryGlobalTime, exitThreadTime,
+                    exitGlobalTime);
+        }
+
+        Call.Builder topLevelCall = new Call.Builder(topLevel.mMethodId);
+        topLevelCall.setMethodEntryTime(entryThreadTime, entryGlobalTime);
+        topLevelCall.setMethodExitTime(exitThreadTime, exitGlobalTime);
+        return topLevelCall.build(new Stack<>());
+    }
+
+    private void completeCall(@NonNull Frame frame, int exitThreadTime, int exitGlobalTime)
+            throws IOException {
+        long inclusiveThreadTime = UnsignedInts.toLong(exitThreadTime - frame.mEntryThreadTime);
+        long inclusiveGlobalTime = UnsignedInts.toLong(exitGlobalTime - frame.mEntryGlobalTime);
+        long exclusiveThreadTime = inclusiveThreadTime - frame.mCalleeThreadTime;
+        long exclusiveGlobalTime = inclusiveGlobalTime - frame.mCalleeGlobalTime;
+        // Recursive calls don't count towards the inclusive time of their method.
+        long ownInclusiveThreadTime = frame.mRecursive ? 0 : inclusiveThreadTime;
+        long ownInclusiveGlobalTime = frame.mRecursive ? 0 : inclusiveGlobalTime;
+
+        MethodProfileData.Builder builder = getProfileBuilder(frame.mMethodId);
+        builder.addThreadTime(mThreadId, ClockType.THREAD, exclusiveThreadTime,
+                ownInclusiveThreadTime);
+        builder.addThreadTime(mThreadId, ClockType.GLOBAL, exclusiveGlobalTime,
+                ownInclusiveGlobalTime);
+        builder.addThreadInvocations(mThreadId, 1);
+        if (frame.mRecursive) {
+            builder.setRecursive();
+        }
+
+        Frame caller = mStack.get(mStack.size() - 1);
+        if (mStack.size() == 1) {
+            long[] stats = mTopLevelStats.computeIfAbsent(frame.mMethodId, id -> new long[7]);
+            stats[EXCLUSIVE_THREAD_TIME] += exclusiveThreadTime;
+            stats[EXCLUSIVE_GLOBAL_TIME] += exclusiveGlobalTime;
+            stats[CALLER_INCLUSIVE_THREAD_TIME] += ownInclusiveThreadTime;
+            stats[CALLER_INCLUSIVE_GLOBAL_TIME] += ownInclusiveGlobalTime;
+            stats[CALLEE_INCLUSIVE_THREAD_TIME] += inclusiveThreadTime;
+            stats[CALLEE_INCLUSIVE_GLOBAL_TIME] += inclusiveGlobalTime;
+            stats[INVOCATION_COUNT]++;
+        } else {
+            builder.addCallerTime(mThreadId, caller.mMethodId, ClockType.THREAD,
+                    exclusiveThreadTime, ownInclusiveThreadTime);
+            builder.addCallerTime(mThreadId, caller.mMethodId, ClockType.GLOBAL,
+                    exclusiveGlobalTime, ownInclusiveGlobalTime);
+            builder.addCallerInvocations(mThreadId, caller.mMethodId, 1);
+
+            MethodProfileData.Builder callerBuilder = getProfileBuilder(caller.mMethodId);
+            if (!caller.mRecursive) {
+                callerBuilder.addCalleeTime(mThreadId, frame.mMethodId, ClockType.THREAD,
+                        inclusiveThreadTime);
+                callerBuilder.addCalleeTime(mThreadId, frame.mMethodId, ClockType.GLOBAL,
+                        inclusiveGlobalTime);
+            }
+            callerBuilder.addCalleeInvocations(mThreadId, frame.mMethodId, 1);
+        }
+        caller.addCallee(inclusiveThreadTime, inclusiveGlobalTime, exitThreadTime,
+                exitGlobalTime);
+
+        if (mCalls != null) {
+            mCalls.addCall(frame.mMethodId, frame.mEntryThreadTime, frame.mEntryGlobalTime,
+                    exitThreadTime, exitGlobalTime, mStack.size() - 1, mUnmatchedExitCount,
+                    frame.mSequence);
+        }
+    }
+
+    /**
+     * Adds the statistics of the calls made at the top level so far, now that their caller is
+     * known.
+     */
+    private void addTopLevelStats(long callerId) {
+        MethodProfileData.Builder callerBuilder = getProfileBuilder(callerId);
+        for (Map.Entry<Long, long[]> entry : mTopLevelStats.entrySet()) {
+            long calleeId = entry.getKey();
+            long[] stats = entry.getValue();
+
+            MethodProfileData.Builder builder = getProfileBuilder(calleeId);
+            builder.addCallerTime(mThreadId, callerId, ClockType.THREAD,
+                    stats[EXCLUSIVE_THREAD_TIME], stats[CALLER_INCLUSIVE_THREAD_TIME]);
+            builder.addCallerTime(mThreadId, callerId, ClockType.GLOBAL,
+                    stats[EXCLUSIVE_GLOBAL_TIME], stats[CALLER_INCLUSIVE_GLOBAL_TIME]);
+            builder.addCallerInvocations(mThreadId, callerId, stats[INVOCATION_COUNT]);
+
+            callerBuilder.addCalleeTime(mThreadId, calleeId, ClockType.THREAD,
+                    stats[CALLEE_INCLUSIVE_THREAD_TIME]);
+            callerBuilder.addCalleeTime(mThreadId, calleeId, ClockType.GLOBAL,
+                    stats[CALLEE_INCLUSIVE_GLOBAL_TIME]);
+            callerBuilder.addCalleeInvocations(mThreadId, calleeId, stats[INVOCATION_COUNT]);
+        }
+        mTopLevelStats.clear();
+    }
+
+    @NonNull
+    private MethodProfileData.Builder getProfileBuilder(long methodId) {
+        return mProfileBuilders.computeIfAbsent(methodId, id -> new MethodProfileData.Builder());
+    }
+
+    private void push(@NonNull Frame frame) {
+        mStack.add(frame);
+        mMethodsOnStack.merge(frame.mMethodId, 1, Integer::sum);
+    }
+
+    @NonNull
+    private Frame pop() {
+        Frame frame = mStack.remove(mStack.size() - 1);
+        mMethodsOnStack.computeIfPresent(frame.mMethodId,
+                (id, count) -> count > 1 ? count - 1 : null);
+        return frame;
+    }
+
+    /** A call which has been entered, with what is known about its callees so far. */
+    private static final class Frame {
+        private final long mMethodId;
+        private final int mEntryThreadTime;
+        private final int mEntryGlobalTime;
+        private final int mSequence;
+        private final boolean mRecursive;
+
+        private boolean mHasCallees;
+        private long mCalleeThreadTime;
+        private long mCalleeGlobalTime;
+        private int mLastCalleeExitThreadTime;
+        private int mLastCalleeExitGlobalTime;
+
+        private Frame(long methodId, int entryThreadTime, int entryGlobalTime, int sequence,
+                boolean recursive) {
+            mMethodId = methodId;
+            mEntryThreadTime = entryThreadTime;
+            mEntryGlobalTime = entryGlobalTime;
+            mSequence = sequence;
+            mRecursive = recursive;
+        }
+
+        private void addCallee(long inclusiveThreadTime, long inclusiveGlobalTime,
+                int exitThreadTime, int exitGlobalTime) {
+            mHasCallees = true;
+            mCalleeThreadTime += inclusiveThreadTime;
+            mCalleeGlobalTime += inclusiveGlobalTime;
+            mLastCalleeExitThreadTime = exitThreadTime;
+            mLastCalleeExitGlobalTime = exitGlobalTime;
+        }
+
+        private void adoptCallees(@NonNull Frame other) {
+            mHasCallees = other.mHasCallees;
+            mCalleeThreadTime = other.mCalleeThreadTime;
+            mCalleeGlobalTime = other.mCalleeGlobalTime;
+            mLastCalleeExitThreadTime = other.mLastCalleeExitThreadTime;
+            mLastCalleeExitGlobalTime = other.mLastCalleeExitGlobalTime;
+        }
+
+        /**
+         * Returns the thread time this call is assumed to have exited at if its exit wasn't
+         * traced: just after its last callee, or just after its entry if it has none.
+         */
+        private int getLastExitThreadTime() {
+            return mHasCallees ? mLastCalleeExitThreadTime + 1 : mEntryThreadTime + 1;
+        }
+
+        private int getLastExitGlobalTime() {
+            return mHasCallees ? mLastCalleeExitGlobalTime + 1 : mEntryGlobalTime + 1;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.primitives.UnsignedInts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An index over the call hierarchy of a thread for time range queries, so that views of a part of
+ * a trace don't need to walk the whole call tree.
+ *
+ * <p>The calls at a given depth never overlap, and are ordered by both their entry and exit times.
+ * The index keeps the calls of each depth in that order, so the calls overlapping a time window are
+ * found with a binary search. Each depth also has a segment tree over the durations of its calls,
+ * which skips runs of calls shorter than a minimum duration without visiting them.
+ */
+public class CallIndex {
+    @NonNull
+    private final List<Level> mLevels = new ArrayList<>();
+
+    @NonNull
+    private final Map<Long, List<Call>> mCallsByMethod = new HashMap<>();
+
+    public CallIndex(@NonNull Call topLevelCall) {
+        List<List<Call>> callsByDepth = new ArrayList<>();
+        // The hierarchy iterator returns calls in entry order, so each depth is sorted as well.
+        Iterator<Call> it = topLevelCall.getCallHierarchyIterator();
+        while (it.hasNext()) {
+            Call c = it.next();
+            int depth = c.getDepth() - topLevelCall.getDepth();
+            while (callsByDepth.size() <= depth) {
+                callsByDepth.add(new ArrayList<>());
+            }
+            callsByDepth.get(depth).add(c);
+
+            List<Call> calls = mCallsByMethod.get(c.getMethodId());
+            if (calls == null) {
+                calls = new ArrayList<>();
+                mCallsByMethod.put(c.getMethodId(), calls);
+            }
+            calls.add(c);
+        }
+
+        for (List<Call> calls : callsByDepth) {
+            mLevels.add(new Level(calls));
+        }
+    }
+
+    /** Returns the number of levels of calls, the deepest call being at depth count - 1. */
+    public int getDepthCount() {
+        return mLevels.size();
+    }
+
+    /** Returns all the calls to the given method, in the order they were entered. */
+    @NonNull
+    public List<Call> getCalls(long methodId) {
+        List<Call> calls = mCallsByMethod.get(methodId);
+        return calls == null ? Collections.emptyList() : Collections.unmodifiableList(calls);
+    }
+
+    /**
+     * Returns the calls from {@code minDepth} to {@code maxDepth} overlapping the window from
+     * {@code start} to {@code end}, leaving out calls shorter than {@code minDuration}. Depths are
+     * relative to the indexed call, which is at depth 0.
+     */
+    @NonNull
+    public List<Call> getCalls(long start, long end, int minDepth, int maxDepth, long minDuration,
+            @NonNull ClockType clockType, @NonNull TimeUnit unit) {
+        TimeUnit traceUnit = VmTraceData.getDefaultTimeUnits();
+        long windowStart = traceUnit.convert(start, unit);
+        long windowEnd = traceUnit.convert(end, unit);
+        long windowMinDuration = traceUnit.convert(minDuration, unit);
+        boolean thread = clockType == ClockType.THREAD;
+
+        List<Call> result = new ArrayList<>();
+        int lastDepth = Math.min(maxDepth, mLevels.size() - 1);
+        for (int depth = Math.max(minDepth, 0); depth <= lastDepth; depth++) {
+            Level level = mLevels.get(depth);
+            int from = level.firstExitingAfter(windowStart, thread);
+            int to = level.firstEnteringAfter(windowEnd, thread);
+            if (from < to) {
+                level.collect(from, to, windowMinDuration, thread, result);
+            }
+        }
+        return result;
+    }
+
+    /** Returns the call at the given depth which was running at the given time, if any. */
+    @Nullable
+    public Call getCallAt(long time, int depth, @NonNull ClockType clockType,
+            @NonNull TimeUnit unit) {
+        if (depth < 0 || depth >= mLevels.size()) {
+            return null;
+        }
+        long traceTime = VmTraceData.getDefaultTimeUnits().convert(time, unit);
+        boolean thread = clockType == ClockType.THREAD;
+        Level level = mLevels.get(depth);
+        int i = level.firstExitingAfter(traceTime, thread);
+        return i < level.mCalls.length && level.getEntryTime(i, thread) <= traceTime
+                ? level.mCalls[i]
+                : null;
+    }
+
+    /**
+     * Returns the methods which ran the longest during the window from {@code start} to
+     * {@code end}, mapped to their inclusive time within the window in the given units, longest
+     * first. At most {@code limit} methods are returned. Recursive calls are only counted once,
+     * through their outermost call.
+     */
+    @NonNull
+    public Map<Long, Long> getTopMethods(long start, long end, @NonNull ClockType clockType,
+            @NonNull TimeUnit unit, int limit) {
+        TimeUnit traceUnit = VmTraceData.getDefaultTimeUnits();
+        long windowStart = traceUnit.convert(start, unit);
+        long windowEnd = traceUnit.convert(end, unit);
+        boolean thread = clockType == ClockType.THREAD;
+
+        Map<Long, Long> timeByMethod = new HashMap<>();
+        for (Level level : mLevels) {
+            int to = level.firstEnteringAfter(windowEnd, thread);
+            for (int i = level.firstExitingAfter(windowStart, thread); i < to; i++) {
+                Call c = level.mCalls[i];
+                if (c.isRecursive()) {
+                    continue;
+                }
+                long time = Math.min(level.getExitTime(i, thread), windowEnd)
+                        - Math.max(level.getEntryTime(i, thread), windowStart);
+                timeByMethod.merge(c.getMethodId(), time, Long::sum);
+            }
+        }
+
+        List<Map.Entry<Long, Long>> entries = new ArrayList<>(timeByMethod.entrySet());
+        entries.sort((e1, e2) -> Long.compare(e2.getValue(), e1.getValue()));
+        Map<Long, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<Long, Long> entry : entries.subList(0, Math.min(limit, entries.size()))) {
+            result.put(entry.getKey(), unit.convert(entry.getValue(), traceUnit));
+        }
+        return result;
+    }
+
+    /**
+     * The calls at one depth, ordered by time. Times are unsigned, and are compared as longs.
+     */
+    private static final class Level {
+        @NonNull
+        private final Call[] mCalls;
+
+        private final int[] mEntryThreadTimes;
+        private final int[] mEntryGlobalTimes;
+        private final int[] mExitThreadTimes;
+        private final int[] mExitGlobalTimes;
+
+        /** Number of leaves in the segment trees, a power of two. */
+        private final int mLeafCount;
+
+        /**
+         * Segment trees of the longest call for each clock. Node 1 is the root, the children of
+         * node n are 2n and 2n + 1, and the leaves start at {@link #mLeafCount}.
+         */
+        private final long[] mMaxThreadDurations;
+        private final long[] mMaxGlobalDurations;
+
+        private Level(@NonNull List<Call> calls) {
+            int count = calls.size();
+            mCalls = calls.toArray(new Call[count]);
+            mEntryThreadTimes = new int[count];
+            mEntryGlobalTimes = new int[count];
+            mExitThreadTimes = new int[count];
+            mExitGlobalTimes = new int[count];
+
+            mLeafCount = Integer.highestOneBit(Math.max(count - 1, 1)) << 1;
+            mMaxThreadDurations = new long[2 * mLeafCount];
+            mMaxGlobalDurations = new long[2 * mLeafCount];
+
+            TimeUnit traceUnit = VmTraceData.getDefaultTimeUnits();
+            for (int i = 0; i < count; i++) {
+                Call c = mCalls[i];
+                mEntryThreadTimes[i] = (int) c.getEntryTime(ClockType.THREAD, traceUnit);
+                mEntryGlobalTimes[i] = (int) c.getEntryTime(ClockType.GLOBAL, traceUnit);
+                mExitThreadTimes[i] = (int) c.getExitTime(ClockType.THREAD, traceUnit);
+                mExitGlobalTimes[i] = (int) c.getExitTime(ClockType.GLOBAL, traceUnit);
+                mMaxThreadDurations[mLeafCount + i] = getExitTime(i, true) - getEntryTime(i, true);
+                mMaxGlobalDurations[mLeafCount + i] =
+                        getExitTime(i, false) - getEntryTime(i, false);
+            }
+            for (int node = mLeafCount - 1; node > 0; node--) {
+                mMaxThreadDurations[node] =
+                        Math.max(mMaxThreadDurations[2 * node], mMaxThreadDurations[2 * node + 1]);
+                mMaxGlobalDurations[node] =
+                        Math.max(mMaxGlobalDurations[2 * node], mMaxGlobalDurations[2 * node + 1]);
+            }
+        }
+
+        private long getEntryTime(int i, boolean thread) {
+            return UnsignedInts.toLong(thread ? mEntryThreadTimes[i] : mEntryGlobalTimes[i]);
+        }
+
+        private long getExitTime(int i, boolean thread) {
+            return UnsignedInts.toLong(thread ? mExitThreadTimes[i] : mExitGlobalTimes[i]);
+        }
+
+        /** Returns the index of the first call exiting at or after the given time. */
+        private int firstExitingAfter(long time, boolean thread) {
+            int low = 0;
+            int high = mCalls.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (getExitTime(middle, thread) < time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /** Returns the index of the first call entered strictly after the given time. */
+        private int firstEnteringAfter(long time, boolean thread) {
+            int low = 0;
+            int high = mCalls.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (getEntryTime(middle, thread) <= time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /** Adds the calls from {@code from} to {@code to} at least {@code minDuration} long. */
+        private void collect(int from, int to, long minDuration, boolean thread,
+                @NonNull List<Call> result) {
+            if (minDuration <= 0) {
+                for (int i = from; i < to; i++) {
+                    result.add(mCalls[i]);
+                }
+            } else {
+                collect(1, 0, mLeafCount, from, to, minDuration,
+                        thread ? mMaxThreadDurations : mMaxGlobalDurations, result);
+            }
+        }
+
+        private void collect(int node, int nodeStart, int nodeEnd, int from, int to,
+                long minDuration, @NonNull long[] maxDurations, @NonNull List<Call> result) {
+            if (nodeEnd <= from || nodeStart >= to || maxDurations[node] < minDuration) {
+                return;
+            }
+            if (node >= mLeafCount) {
+                result.add(mCalls[nodeStart]);
+                return;
+            }
+            int middle = (nodeStart + nodeEnd) >>> 1;
+            collect(2 * node, nodeStart, middle, from, to, minDuration, maxDurations, result);
+            collect(2 * node + 1, middle, nodeEnd, from, to, minDuration, maxDurations, result);
+        }
+    }
+}
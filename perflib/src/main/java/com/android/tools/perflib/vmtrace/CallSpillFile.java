@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Temporary file holding the calls of all the threads of a trace read in streaming mode. Each
+ * thread's {@link PagedCallTree} appends its calls to it a page at a time, and reads back only the
+ * pages it needs. The file is deleted when closed.
+ */
+class CallSpillFile implements Closeable {
+    @NonNull
+    private final File mFile;
+
+    @NonNull
+    private final FileChannel mChannel;
+
+    private long mLength;
+
+    CallSpillFile(@Nullable File directory) throws IOException {
+        mFile = File.createTempFile("vmtrace", ".calls", directory);
+        mFile.deleteOnExit();
+        mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+    }
+
+    /** Appends the remaining bytes of {@code page} and returns the offset they were written at. */
+    synchronized long append(@NonNull ByteBuffer page) throws IOException {
+        long offset = mLength;
+        while (page.hasRemaining()) {
+            mLength += mChannel.write(page, mLength);
+        }
+        return offset;
+    }
+
+    /** Fills the remaining bytes of {@code page} from the given offset. */
+    void read(long offset, @NonNull ByteBuffer page) throws IOException {
+        while (page.hasRemaining()) {
+            int read = mChannel.read(page, offset);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of " + mFile);
+            }
+            offset += read;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+}
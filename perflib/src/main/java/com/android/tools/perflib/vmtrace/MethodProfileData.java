@@ -190,6 +190,53 @@ public class MethodProfileData {
             }
         }
 
+        /**
+         * Adds the times of calls to this method in the given thread, for builders which fold
+         * trace events without keeping {@link Call}s around. Times are in the units of the trace,
+         * and the inclusive time of recursive calls should be left out, as for
+         * {@link #addCallTime(Call, Call, ThreadInfo)}.
+         */
+        void addThreadTime(int threadId, ClockType type, long exclusiveTime,
+                long inclusiveTime) {
+            MethodStats stats = getPerThreadStats(threadId);
+            addExclusiveTime(stats, toDataTime(exclusiveTime), type);
+            addInclusiveTime(stats, toDataTime(inclusiveTime), type);
+        }
+
+        /** Adds the times of calls to this method made from the given caller. */
+        void addCallerTime(int threadId, long callerId, ClockType type, long exclusiveTime,
+                long inclusiveTime) {
+            MethodStats stats =
+                    getMethodStatsFromTable(threadId, callerId, mPerThreadStatsByCaller);
+            addExclusiveTime(stats, toDataTime(exclusiveTime), type);
+            addInclusiveTime(stats, toDataTime(inclusiveTime), type);
+        }
+
+        /** Adds the inclusive time of calls made from this method to the given callee. */
+        void addCalleeTime(int threadId, long calleeId, ClockType type, long inclusiveTime) {
+            MethodStats stats =
+                    getMethodStatsFromTable(threadId, calleeId, mPerThreadStatsByCallee);
+            addInclusiveTime(stats, toDataTime(inclusiveTime), type);
+        }
+
+        void addThreadInvocations(int threadId, long count) {
+            getPerThreadStats(threadId).mInvocationCount += count;
+        }
+
+        void addCallerInvocations(int threadId, long callerId, long count) {
+            getMethodStatsFromTable(threadId, callerId, mPerThreadStatsByCaller)
+                    .mInvocationCount += count;
+        }
+
+        void addCalleeInvocations(int threadId, long calleeId, long count) {
+            getMethodStatsFromTable(threadId, calleeId, mPerThreadStatsByCallee)
+                    .mInvocationCount += count;
+        }
+
+        private static long toDataTime(long time) {
+            return DATA_TIME_UNITS.convert(time, VmTraceData.getDefaultTimeUnits());
+        }
+
         private void addInclusiveTime(MethodStats stats, long time, ClockType type) {
             if (type == ClockType.THREAD) {
                 stats.mInclusiveThreadTime += time;
@@ -207,10 +254,14 @@ public class MethodProfileData {
         }
 
         private MethodStats getPerThreadStats(ThreadInfo thread) {
-            MethodStats stats = mPerThreadCumulativeStats.get(thread.getId());
+            return getPerThreadStats(thread.getId());
+        }
+
+        private MethodStats getPerThreadStats(int threadId) {
+            MethodStats stats = mPerThreadCumulativeStats.get(threadId);
             if (stats == null) {
                 stats = new MethodStats();
-                mPerThreadCumulativeStats.put(thread.getId(), stats);
+                mPerThreadCumulativeStats.put(threadId, stats);
             }
             return stats;
         }
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.annotations.NonNull;
+import com.google.common.primitives.UnsignedInts;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Stack;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The calls of one thread of a trace read in streaming mode, kept on disk in a
+ * {@link CallSpillFile} rather than as a tree of {@link Call}s.
+ *
+ * <p>Calls are written in the order they exit, a page at a time. Since exit times only grow, each
+ * page covers a time range, and {@link #getCalls} only reads the pages which may hold calls
+ * overlapping the requested window.
+ */
+public class PagedCallTree {
+    /**
+     * Size of a call on disk: method id, entry and exit times for both clocks, depth, number of
+     * unmatched exits seen before the call was written, and entry sequence number.
+     */
+    static final int CALL_SIZE = 8 + 4 * 4 + 4 + 4 + 4;
+
+    private static final int CALLS_PER_PAGE = 1024;
+
+    @NonNull
+    private final CallSpillFile mSpillFile;
+
+    private final long mTopLevelMethodId;
+
+    @NonNull
+    private final List<Page> mPages = new ArrayList<>();
+
+    /** Calls not written out yet, or null once the tree is complete. */
+    private ByteBuffer mPendingCalls = ByteBuffer.allocate(CALLS_PER_PAGE * CALL_SIZE);
+
+    @NonNull
+    private Page mPendingPage = new Page();
+
+    /** Number of exits from methods entered before tracing started, over the whole thread. */
+    private int mUnmatchedExitCount;
+
+    private int mEntryThreadTime;
+    private int mEntryGlobalTime;
+    private int mExitThreadTime;
+    private int mExitGlobalTime;
+
+    PagedCallTree(@NonNull CallSpillFile spillFile, long topLevelMethodId) {
+        mSpillFile = spillFile;
+        mTopLevelMethodId = topLevelMethodId;
+    }
+
+    /**
+     * Adds a call which just exited.
+     *
+     * @param depth          depth of the call in the stack seen while reading, starting at 0.
+     * @param unmatchedExits number of exits from methods entered before tracing started seen so
+     *                       far. Each of them moves all the calls already written one level down.
+     * @param sequence       position of the call in entry order. Calls exited before tracing
+     *                       started are entered before all calls seen so far, and use decreasing
+     *                       negative numbers.
+     */
+    void addCall(long methodId, int entryThreadTime, int entryGlobalTime, int exitThreadTime,
+            int exitGlobalTime, int depth, int unmatchedExits, int sequence) throws IOException {
+        mPendingCalls.putLong(methodId);
+        mPendingCalls.putInt(entryThreadTime);
+        mPendingCalls.putInt(entryGlobalTime);
+        mPendingCalls.putInt(exitThreadTime);
+        mPendingCalls.putInt(exitGlobalTime);
+        mPendingCalls.putInt(depth);
+        mPendingCalls.putInt(unmatchedExits);
+        mPendingCalls.putInt(sequence);
+        mPendingPage.add(entryThreadTime, entryGlobalTime, exitThreadTime, exitGlobalTime);
+
+        if (!mPendingCalls.hasRemaining()) {
+            flush();
+        }
+    }
+
+    /** Writes out the remaining calls and sets the times of the thread's top level call. */
+    void finish(int unmatchedExitCount, int entryThreadTime, int entryGlobalTime,
+            int exitThreadTime, int exitGlobalTime) throws IOException {
+        flush();
+        mPendingCalls = null;
+        mUnmatchedExitCount = unmatchedExitCount;
+        mEntryThreadTime = entryThreadTime;
+        mEntryGlobalTime = entryGlobalTime;
+        mExitThreadTime = exitThreadTime;
+        mExitGlobalTime = exitGlobalTime;
+    }
+
+    private void flush() throws IOException {
+        if (mPendingPage.mCallCount == 0) {
+            return;
+        }
+        mPendingCalls.flip();
+        mPendingPage.mOffset = mSpillFile.append(mPendingCalls);
+        mPages.add(mPendingPage);
+        mPendingCalls.clear();
+        mPendingPage = new Page();
+    }
+
+    @NonNull
+    private Call.Builder newTopLevelCall() {
+        Call.Builder builder = new Call.Builder(mTopLevelMethodId);
+        builder.setMethodEntryTime(mEntryThreadTime, mEntryGlobalTime);
+        builder.setMethodExitTime(mExitThreadTime, mExitGlobalTime);
+        return builder;
+    }
+
+    /**
+     * Reads back the calls overlapping the window from {@code start} to {@code end}, and returns
+     * them nested below a copy of the top level call. Calls shorter than {@code minDuration} are
+     * left out along with their callees, which are never longer. Exclusive times of the returned
+     * calls only account for the callees which were read.
+     */
+    @NonNull
+    public Call getCalls(long start, long end, long minDuration, @NonNull ClockType clockType,
+            @NonNull TimeUnit unit) throws IOException {
+        assert mPendingCalls == null : "Calls can only be read once the trace has been parsed";
+        TimeUnit traceUnit = VmTraceData.getDefaultTimeUnits();
+        long windowStart = traceUnit.convert(start, unit);
+        long windowEnd = traceUnit.convert(end, unit);
+        long windowMinDuration = traceUnit.convert(minDuration, unit);
+        boolean thread = clockType == ClockType.THREAD;
+
+        List<SpilledCall> calls = new ArrayList<>();
+        ByteBuffer page = ByteBuffer.allocate(CALLS_PER_PAGE * CALL_SIZE);
+        for (int i = firstPageExitingAfter(windowStart, thread); i < mPages.size(); i++) {
+            Page pageInfo = mPages.get(i);
+            if ((thread ? pageInfo.mMinEntryThreadTime : pageInfo.mMinEntryGlobalTime)
+                    > windowEnd) {
+                continue;
+            }
+
+            page.clear();
+            page.limit(pageInfo.mCallCount * CALL_SIZE);
+            mSpillFile.read(pageInfo.mOffset, page);
+            page.flip();
+            while (page.hasRemaining()) {
+                SpilledCall call = new SpilledCall(page, mUnmatchedExitCount);
+                long entry = UnsignedInts.toLong(thread ? call.mEntryThreadTime
+                        : call.mEntryGlobalTime);
+                long exit = UnsignedInts.toLong(thread ? call.mExitThreadTime
+                        : call.mExitGlobalTime);
+                if (entry <= windowEnd && exit >= windowStart
+                        && exit - entry >= windowMinDuration) {
+                    calls.add(call);
+                }
+            }
+        }
+
+        // Rebuild the nesting of the calls from their entry order and depths. Since a caller spans
+        // all of its callees, the callers of every call read are read as well.
+        calls.sort(Comparator.comparingInt(call -> call.mSequence));
+        Call.Builder topLevel = newTopLevelCall();
+        Stack<Call.Builder> callers = new Stack<>();
+        callers.push(topLevel);
+        for (SpilledCall call : calls) {
+            while (callers.size() > call.mDepth) {
+                callers.pop();
+            }
+            Call.Builder builder = new Call.Builder(call.mMethodId);
+            builder.setMethodEntryTime(call.mEntryThreadTime, call.mEntryGlobalTime);
+            builder.setMethodExitTime(call.mExitThreadTime, call.mExitGlobalTime);
+            callers.peek().addCallee(builder);
+            callers.push(builder);
+        }
+        return topLevel.build(new Stack<>());
+    }
+
+    /** Returns the index of the first page which may hold a call exiting at or after the time. */
+    private int firstPageExitingAfter(long time, boolean thread) {
+        int low = 0;
+        int high = mPages.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            Page page = mPages.get(middle);
+            if ((thread ? page.mMaxExitThreadTime : page.mMaxExitGlobalTime) < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /** Location and time range of a page of calls. Times are unsigned, so are kept as longs. */
+    private static final class Page {
+        private long mOffset;
+        private int mCallCount;
+
+        private long mMinEntryThreadTime = Long.MAX_VALUE;
+        private long mMinEntryGlobalTime = Long.MAX_VALUE;
+        private long mMaxExitThreadTime;
+        private long mMaxExitGlobalTime;
+
+        private void add(int entryThreadTime, int entryGlobalTime, int exitThreadTime,
+                int exitGlobalTime) {
+            mCallCount++;
+            mMinEntryThreadTime =
+                    Math.min(mMinEntryThreadTime, UnsignedInts.toLong(entryThreadTime));
+            mMinEntryGlobalTime =
+                    Math.min(mMinEntryGlobalTime, UnsignedInts.toLong(entryGlobalTime));
+            mMaxExitThreadTime = Math.max(mMaxExitThreadTime, UnsignedInts.toLong(exitThreadTime));
+            mMaxExitGlobalTime = Math.max(mMaxExitGlobalTime, UnsignedInts.toLong(exitGlobalTime));
+        }
+    }
+
+    /** A call read back from disk. */
+    private static final class SpilledCall {
+        private final long mMethodId;
+        private final int mEntryThreadTime;
+        private final int mEntryGlobalTime;
+        private final int mExitThreadTime;
+        private final int mExitGlobalTime;
+
+        /** Depth below the thread's top level call, which is at depth 0. */
+        private final int mDepth;
+
+        private final int mSequence;
+
+        private SpilledCall(@NonNull ByteBuffer page, int unmatchedExitCount) {
+            mMethodId = page.getLong();
+            mEntryThreadTime = page.getInt();
+            mEntryGlobalTime = page.getInt();
+            mExitThreadTime = page.getInt();
+            mExitGlobalTime = page.getInt();
+            int depth = page.getInt();
+            int unmatchedExits = page.getInt();
+            mDepth = depth + (unmatchedExitCount - unmatchedExits) + 1;
+            mSequence = page.getInt();
+        }
+    }
+}
@@ -29,10 +29,26 @@ public class ThreadInfo {
     /** Top level call in this thread */
     private final Call mTopLevelCall;
 
+    /** Calls in this thread spilled to disk, if the trace was read in streaming mode */
+    private final PagedCallTree mPagedCalls;
+
+    /** Summary of the activity of this thread over time, if the trace was read in streaming mode */
+    private final TimeBucketSummary mTimeBuckets;
+
+    /** Index over the calls in this thread, built the first time it is needed */
+    private CallIndex mCallIndex;
+
     public ThreadInfo(int threadId, @NonNull String name, @Nullable Call topLevelCall) {
+        this(threadId, name, topLevelCall, null, null);
+    }
+
+    public ThreadInfo(int threadId, @NonNull String name, @Nullable Call topLevelCall,
+            @Nullable PagedCallTree pagedCalls, @Nullable TimeBucketSummary timeBuckets) {
         mId = threadId;
         mName = name;
         mTopLevelCall = topLevelCall;
+        mPagedCalls = pagedCalls;
+        mTimeBuckets = timeBuckets;
     }
 
     public int getId() {
@@ -44,8 +60,35 @@ public class ThreadInfo {
         return mName;
     }
 
+    /**
+     * Returns the top level call in this thread. If the trace was read in streaming mode, it has
+     * the times of the whole thread but no callees.
+     */
     @Nullable
     public Call getTopLevelCall() {
         return mTopLevelCall;
     }
+
+    /** Returns the calls in this thread which can be paged in from disk, if they were spilled. */
+    @Nullable
+    public PagedCallTree getPagedCalls() {
+        return mPagedCalls;
+    }
+
+    @Nullable
+    public TimeBucketSummary getTimeBuckets() {
+        return mTimeBuckets;
+    }
+
+    /**
+     * Returns an index over the calls in this thread for time range queries, or null if the thread
+     * has no calls. The index is built on the first call.
+     */
+    @Nullable
+    public synchronized CallIndex getCallIndex() {
+        if (mCallIndex == null && mTopLevelCall != null) {
+            mCallIndex = new CallIndex(mTopLevelCall);
+        }
+        return mCallIndex;
+    }
 }
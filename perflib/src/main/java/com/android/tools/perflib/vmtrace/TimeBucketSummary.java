@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Summary of the activity of a thread over fixed-width buckets of global time, collected while a
+ * trace is read in streaming mode. It is enough to draw an overview of a whole trace without any
+ * of its calls.
+ */
+public class TimeBucketSummary {
+    /** Width of each bucket, in the units of the trace. */
+    private final long mBucketWidth;
+
+    /** Number of calls entered in each bucket. */
+    private int[] mCallCounts = new int[16];
+
+    /** Deepest call stack seen in each bucket. */
+    private int[] mMaxDepths = new int[16];
+
+    private int mBucketCount;
+
+    private long mLastTime;
+    private int mLastDepth;
+
+    TimeBucketSummary(long bucketWidth) {
+        assert bucketWidth > 0;
+        mBucketWidth = bucketWidth;
+    }
+
+    public long getBucketWidth(TimeUnit unit) {
+        return unit.convert(mBucketWidth, VmTraceData.getDefaultTimeUnits());
+    }
+
+    public int getBucketCount() {
+        return mBucketCount;
+    }
+
+    /** Returns the bucket holding the given global time, or -1 if it is past the last bucket. */
+    public int getBucket(long globalTime, TimeUnit unit) {
+        long bucket = VmTraceData.getDefaultTimeUnits().convert(globalTime, unit) / mBucketWidth;
+        return bucket < mBucketCount ? (int) bucket : -1;
+    }
+
+    /** Returns the number of calls entered during the given bucket. */
+    public int getCallCount(int bucket) {
+        return mCallCounts[bucket];
+    }
+
+    /**
+     * Returns the deepest call stack seen during the given bucket. Depths are those seen while
+     * reading, so calls entered before tracing started aren't counted.
+     */
+    public int getMaxDepth(int bucket) {
+        return mMaxDepths[bucket];
+    }
+
+    /**
+     * Records a trace event at the given global time, after which the stack is {@code depth}
+     * calls deep.
+     */
+    void addEvent(long globalTime, int depth, boolean isEntry) {
+        int lastBucket = (int) (mLastTime / mBucketWidth);
+        int bucket = ensureBucket(globalTime);
+
+        // The stack stayed at its previous depth until this event.
+        for (int b = Math.min(lastBucket, bucket); b <= bucket; b++) {
+            mMaxDepths[b] = Math.max(mMaxDepths[b], mLastDepth);
+        }
+
+        mMaxDepths[bucket] = Math.max(mMaxDepths[bucket], depth);
+        if (isEntry) {
+            mCallCounts[bucket]++;
+        }
+        mLastTime = Math.max(mLastTime, globalTime);
+        mLastDepth = depth;
+    }
+
+    private int ensureBucket(long globalTime) {
+        int bucket = (int) (globalTime / mBucketWidth);
+        if (bucket >= mCallCounts.length) {
+            int capacity = Math.max(bucket + 1, mCallCounts.length * 2);
+            mCallCounts = Arrays.copyOf(mCallCounts, capacity);
+            mMaxDepths = Arrays.copyOf(mMaxDepths, capacity);
+        }
+        mBucketCount = Math.max(mBucketCount, bucket + 1);
+        return bucket;
+    }
+}
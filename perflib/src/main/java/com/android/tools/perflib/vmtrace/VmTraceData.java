@@ -17,12 +17,15 @@
 package com.android.tools.perflib.vmtrace;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.utils.SparseArray;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 
@@ -34,6 +37,10 @@ import java.util.concurrent.TimeUnit;
  *      <li>A mapping from method ids to {@link MethodInfo}</li>
  *      <li>A mapping from each thread to the top level call on that thread.</li>
  *  </ul>
+ *
+ * Traces read in streaming mode (see {@link Builder#setStreaming(boolean)}) only have the
+ * per-method statistics in memory. Their top level calls have no callees, and their calls can be
+ * paged in from disk through {@link ThreadInfo#getPagedCalls()} if they were spilled.
  */
 public class VmTraceData {
 
@@ -51,6 +58,10 @@ public class VmTraceData {
     /** Map from thread name to thread info. */
     private final Map<String, ThreadInfo> mThreadInfo;
 
+    /** File the calls of a trace read in streaming mode were spilled to, if any. */
+    @Nullable
+    private final CallSpillFile mCallSpillFile;
+
     private VmTraceData(Builder b) {
         mVersion = b.mVersion;
         mDataFileOverflow = b.mDataFileOverflow;
@@ -60,6 +71,7 @@ public class VmTraceData {
         mMethods = b.mMethods;
         mStartTimeUs = b.mStartTimeUs;
         mElapsedTimeUs = b.mElapsedTimeUs;
+        mCallSpillFile = b.mCallSpillFile;
 
         mThreadInfo = Maps.newHashMapWithExpectedSize(b.mThreads.size());
         for (int i = 0; i < b.mThreads.size(); i++) {
@@ -72,11 +84,23 @@ public class VmTraceData {
                 name = String.format("%1$s-%2$d", name, id);
             }
 
-            info = new ThreadInfo(id, name, b.mTopLevelCalls.get(id));
+            info = new ThreadInfo(id, name, b.mTopLevelCalls.get(id), b.mPagedCalls.get(id),
+                    b.mTimeBuckets.get(id));
             mThreadInfo.put(name, info);
         }
     }
 
+    /** Deletes the calls spilled to disk while reading the trace in streaming mode, if any. */
+    public void dispose() {
+        if (mCallSpillFile != null) {
+            try {
+                mCallSpillFile.close();
+            } catch (IOException e) {
+                // The file is deleted on exit anyway.
+            }
+        }
+    }
+
     public int getVersion() {
         return mVersion;
     }
@@ -191,13 +215,9 @@ public class VmTraceData {
         }
 
         // Find all invocations of the matched methods
-        Iterator<Call> iterator = topLevelCall.getCallHierarchyIterator();
-        while (iterator.hasNext()) {
-            Call c = iterator.next();
-            MethodInfo method = getMethod(c.getMethodId());
-            if (methods.contains(method)) {
-                calls.add(c);
-            }
+        CallIndex index = getThread(thread.getName()).getCallIndex();
+        for (MethodInfo method : methods) {
+            calls.addAll(index.getCalls(method.id));
         }
 
         return new SearchResult(methods, calls);
@@ -232,6 +252,57 @@ public class VmTraceData {
         /** Map from thread id to the top level call for that thread. */
         private final SparseArray<Call> mTopLevelCalls = new SparseArray<>(10);
 
+        private boolean mStreaming;
+        private File mCallSpillDirectory;
+        private boolean mSpillCalls;
+        private long mTimeBucketWidth;
+
+        /** Map from thread id to the aggregator of its trace actions, in streaming mode. */
+        private final SparseArray<CallAggregator> mCallAggregators = new SparseArray<>(10);
+
+        /** Map from method id to its profile data builder, in streaming mode. */
+        private final Map<Long, MethodProfileData.Builder> mProfileBuilders = new HashMap<>(100);
+
+        private CallSpillFile mCallSpillFile;
+
+        /** Map from thread id to the calls spilled to disk for that thread. */
+        private final SparseArray<PagedCallTree> mPagedCalls = new SparseArray<>(10);
+
+        /** Map from thread id to the summary of its activity over time. */
+        private final SparseArray<TimeBucketSummary> mTimeBuckets = new SparseArray<>(10);
+
+        /**
+         * Sets whether method actions are folded into per-method statistics as they are read,
+         * instead of building the {@link Call} tree of every thread. This keeps the memory used
+         * proportional to the number of methods and threads rather than to the length of the
+         * trace, but then the threads' top level calls have no callees.
+         */
+        public Builder setStreaming(boolean streaming) {
+            mStreaming = streaming;
+            return this;
+        }
+
+        /**
+         * In streaming mode, writes every call to a temporary file in the given directory, or the
+         * default temporary directory if null, so that the calls in a time window can be read back
+         * through {@link ThreadInfo#getPagedCalls()}. The file is deleted by
+         * {@link VmTraceData#dispose()}.
+         */
+        public Builder setCallSpillDirectory(@Nullable File directory) {
+            mSpillCalls = true;
+            mCallSpillDirectory = directory;
+            return this;
+        }
+
+        /**
+         * In streaming mode, also summarizes the activity of each thread over buckets of global
+         * time of the given width, see {@link ThreadInfo#getTimeBuckets()}.
+         */
+        public Builder setTimeBucketWidth(long width, @NonNull TimeUnit unit) {
+            mTimeBucketWidth = getDefaultTimeUnits().convert(width, unit);
+            return this;
+        }
+
         @Override
         public void setVersion(int version) {
             mVersion = version;
@@ -293,6 +364,16 @@ public class VmTraceData {
                         mThreads.get(threadId), methodId, methodInfo.getShortName(), methodAction);
             }
 
+            if (mStreaming) {
+                try {
+                    getCallAggregator(threadId).addTraceAction(methodId, methodAction,
+                            threadTime, globalTime);
+                } catch (IOException e) {
+                    throw new RuntimeException("Unable to spill calls to disk", e);
+                }
+                return;
+            }
+
             CallStackReconstructor reconstructor = mStackReconstructors.get(threadId);
             if (reconstructor == null) {
                 long topLevelCallId = createUniqueMethodIdForThread(threadId);
@@ -303,6 +384,34 @@ public class VmTraceData {
             reconstructor.addTraceAction(methodId, methodAction, threadTime, globalTime);
         }
 
+        @NonNull
+        private CallAggregator getCallAggregator(int threadId) throws IOException {
+            CallAggregator aggregator = mCallAggregators.get(threadId);
+            if (aggregator == null) {
+                long topLevelCallId = createUniqueMethodIdForThread(threadId);
+
+                PagedCallTree calls = null;
+                if (mSpillCalls) {
+                    if (mCallSpillFile == null) {
+                        mCallSpillFile = new CallSpillFile(mCallSpillDirectory);
+                    }
+                    calls = new PagedCallTree(mCallSpillFile, topLevelCallId);
+                    mPagedCalls.put(threadId, calls);
+                }
+
+                TimeBucketSummary timeBuckets = null;
+                if (mTimeBucketWidth > 0) {
+                    timeBuckets = new TimeBucketSummary(mTimeBucketWidth);
+                    mTimeBuckets.put(threadId, timeBuckets);
+                }
+
+                aggregator = new CallAggregator(threadId, topLevelCallId, mProfileBuilders, calls,
+                        timeBuckets);
+                mCallAggregators.put(threadId, aggregator);
+            }
+            return aggregator;
+        }
+
         private long createUniqueMethodIdForThread(int threadId) {
             long id = Long.MAX_VALUE - threadId;
             assert mMethods.get(id) == null :
@@ -313,6 +422,10 @@ public class VmTraceData {
         }
 
         public VmTraceData build() {
+            if (mStreaming) {
+                return buildStreaming();
+            }
+
             for (int i = 0; i < mStackReconstructors.size(); i++) {
                 int threadId = mStackReconstructors.keyAt(i);
                 CallStackReconstructor reconstructor = mStackReconstructors.valueAt(i);
@@ -324,6 +437,23 @@ public class VmTraceData {
             return data;
         }
 
+        private VmTraceData buildStreaming() {
+            try {
+                for (int i = 0; i < mCallAggregators.size(); i++) {
+                    mTopLevelCalls.put(mCallAggregators.keyAt(i),
+                            mCallAggregators.valueAt(i).finish());
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to spill calls to disk", e);
+            }
+
+            VmTraceData data = new VmTraceData(this);
+            for (Map.Entry<Long, MethodProfileData.Builder> entry : mProfileBuilders.entrySet()) {
+                data.getMethod(entry.getKey()).setProfileData(entry.getValue().build());
+            }
+            return data;
+        }
+
         @Override
         public void setStartTimeUs(long startTimeUs) {
             mStartTimeUs =  startTimeUs;
@@ -54,15 +54,17 @@ public class VmTraceParser {
     }
 
     public void parse() throws IOException {
-        ByteBuffer buffer;
         if (isStreamingTrace(mTraceFile)) {
             StreamingTraceParser streamingTraceParser = new StreamingTraceParser(mTraceFile);
-            buffer = streamingTraceParser.parse();
+            try {
+                parseData(streamingTraceParser.parse());
+            } finally {
+                streamingTraceParser.deleteDataFile();
+            }
         } else {
             long headerLength = parseHeader(mTraceFile);
-            buffer = ByteBufferUtil.mapFile(mTraceFile, headerLength, ByteOrder.LITTLE_ENDIAN);
+            parseData(ByteBufferUtil.mapFile(mTraceFile, headerLength, ByteOrder.LITTLE_ENDIAN));
         }
-        parseData(buffer);
     }
 
     private static boolean isStreamingTrace(File file) throws IOException {
@@ -407,18 +409,29 @@ public class VmTraceParser {
 
         private File mTraceFile;
         private DataInputStream mInputStream;
-        private ByteArrayOutputStream mByteOutputStream;
+
+        /**
+         * Temporary file the data file header and method trace data are copied to. The trace
+         * options are only known once the whole file has been read, so the data can't be parsed
+         * as it is read, and traces can be too large to copy on the heap.
+         */
+        private File mDataFile;
+        private OutputStream mByteOutputStream;
 
         private StreamingTraceParser(File streamingTraceFile) throws IOException {
             mTraceFile = streamingTraceFile;
-            mInputStream = new DataInputStream(new FileInputStream(mTraceFile));
-            mByteOutputStream = new ByteArrayOutputStream();
+            mInputStream =
+                    new DataInputStream(
+                            new BufferedInputStream(new FileInputStream(mTraceFile)));
+            mDataFile = File.createTempFile("vmtrace", ".data");
+            mDataFile.deleteOnExit();
+            mByteOutputStream = new BufferedOutputStream(new FileOutputStream(mDataFile));
         }
 
         /**
          * Parses the streaming trace file. This method reads a streaming trace file, sets the
          * header properties to {@link #mTraceDataHandler}, and returns a {@link ByteBuffer}
-         * containing the data file header and the method trace data corresponding to the trace.
+         * mapping the data file header and the method trace data corresponding to the trace.
          */
         private ByteBuffer parse() throws IOException {
             try {
@@ -503,8 +516,18 @@ public class VmTraceParser {
                 } catch (IOException e) {
                     // cannot happen
                 }
+                mByteOutputStream.close();
             }
-            return ByteBuffer.wrap(mByteOutputStream.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+            return ByteBufferUtil.mapFile(mDataFile, 0, ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * Deletes the copy of the method trace data. Where files can't be deleted while mapped, it
+         * is deleted on exit instead.
+         */
+        private void deleteDataFile() {
+            //noinspection ResultOfMethodCallIgnored
+            mDataFile.delete();
         }
 
         /**
@@ -17,25 +17,38 @@
 package com.android.tools.perflib.vmtrace.viz;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
 import com.android.tools.perflib.vmtrace.Call;
+import com.android.tools.perflib.vmtrace.CallIndex;
 import com.android.tools.perflib.vmtrace.ClockType;
 import com.android.tools.perflib.vmtrace.MethodInfo;
+import com.android.tools.perflib.vmtrace.PagedCallTree;
 import com.android.tools.perflib.vmtrace.ThreadInfo;
 import com.android.tools.perflib.vmtrace.VmTraceData;
 import com.android.utils.HtmlBuilder;
 
 import java.awt.*;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
+import java.io.IOException;
 import java.text.DecimalFormat;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import static com.android.tools.perflib.vmtrace.ClockType.THREAD;
 import static com.android.tools.perflib.vmtrace.ClockType.GLOBAL;
 
-/** Renders the call hierarchy rooted at a given call that is part of the trace. */
+/**
+ * Renders the call hierarchy rooted at a given call that is part of the trace.
+ *
+ * <p>For traces read in streaming mode, the calls in the viewport are paged in from disk through
+ * {@link ThreadInfo#getPagedCalls()}. If the calls were not spilled to disk, only the top level
+ * call of each thread is known and rendered.
+ */
 public class CallHierarchyRenderer {
     /** Height in pixels for a single call instance. Its length is proportional to its duration. */
     private static final int PER_LEVEL_HEIGHT_PX = 10;
@@ -47,6 +60,8 @@ public class CallHierarchyRenderer {
     private final VmTraceData mTraceData;
     private final ThreadInfo mThread;
     private final Call mTopCall;
+    @Nullable private final CallIndex mCallIndex;
+    @Nullable private final PagedCallTree mPagedCalls;
     private final int mYOffset;
     private final TimeUnit mLayoutTimeUnits;
     private final RenderContext mRenderContext;
@@ -62,6 +77,8 @@ public class CallHierarchyRenderer {
         mTraceData = vmTraceData;
         mThread = thread;
         mTopCall = thread.getTopLevelCall();
+        mPagedCalls = thread.getPagedCalls();
+        mCallIndex = mPagedCalls == null ? thread.getCallIndex() : null;
         mYOffset = yOffset;
         mLayoutTimeUnits = defaultTimeUnits;
         mRenderContext = renderContext;
@@ -69,16 +86,14 @@ public class CallHierarchyRenderer {
 
     /**
      * Renders the call hierarchy on a given graphics context.
-     * This essentially iterates through every single call in the hierarchy and renders it if it is
-     * visible in the current viewport.
+     * This looks up the calls visible in the current viewport in the thread's {@link CallIndex},
+     * or pages them in from disk, leaving out those which would be less than a pixel wide, and
+     * renders them.
      */
     public void render(Graphics2D g, AffineTransform viewPortTransform) {
         Rectangle clip = g.getClipBounds();
 
-        Iterator<Call> it = mTopCall.getCallHierarchyIterator();
-        while (it.hasNext()) {
-            Call c = it.next();
-
+        for (Call c : getVisibleCalls(clip, viewPortTransform)) {
             // obtain layout in item space
             fillLayoutBounds(c, mLayout);
 
@@ -106,6 +121,62 @@ public class CallHierarchyRenderer {
         }
     }
 
+    /**
+     * Returns the calls which may be visible within the clip bounds, found by mapping the clip
+     * bounds back to a time window and a range of depths.
+     */
+    @VisibleForTesting
+    List<Call> getVisibleCalls(Rectangle clip, AffineTransform viewPortTransform) {
+        AffineTransform inverse;
+        try {
+            inverse = viewPortTransform.createInverse();
+        } catch (NoninvertibleTransformException e) {
+            // The viewport is only ever scaled or translated, both of which are invertible.
+            return Collections.emptyList();
+        }
+
+        mTmpPoint1.setLocation(clip.getMinX(), clip.getMinY());
+        mTmpPoint2.setLocation(clip.getMaxX(), clip.getMaxY());
+        inverse.transform(mTmpPoint1, mTmpPoint1);
+        inverse.transform(mTmpPoint2, mTmpPoint2);
+
+        ClockType renderClock = mRenderContext.getRenderClock();
+        long topEntry = mTopCall.getEntryTime(renderClock, mLayoutTimeUnits);
+        long start = topEntry + (long) Math.floor(mTmpPoint1.getX()) - PADDING;
+        long end = topEntry + (long) Math.ceil(mTmpPoint2.getX());
+        int minDepth = (int) Math.floor((mTmpPoint1.getY() - mYOffset) / PER_LEVEL_HEIGHT_PX);
+        int maxDepth = (int) Math.ceil((mTmpPoint2.getY() - mYOffset) / PER_LEVEL_HEIGHT_PX);
+
+        // A call is drawn 2 * PADDING narrower than its duration, and only if at least 1px wide.
+        long minDuration = (long) Math.floor(1 / viewPortTransform.getScaleX()) + 2 * PADDING;
+
+        CallIndex index = getCallIndex(Math.max(start, 0), end, minDuration);
+        if (index == null) {
+            return Collections.emptyList();
+        }
+        return index.getCalls(Math.max(start, 0), end, minDepth, maxDepth, minDuration,
+                renderClock, mLayoutTimeUnits);
+    }
+
+    /**
+     * Returns an index over the calls overlapping the given time window which are at least
+     * {@code minDuration} long, paging them in from disk if the trace was read in streaming mode.
+     * The index may hold other calls as well. Returns null if the calls can't be read.
+     */
+    @Nullable
+    private CallIndex getCallIndex(long start, long end, long minDuration) {
+        if (mPagedCalls == null) {
+            return mCallIndex;
+        }
+
+        try {
+            return new CallIndex(mPagedCalls.getCalls(start, end, minDuration,
+                    mRenderContext.getRenderClock(), mLayoutTimeUnits));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     private Rectangle2D transformRect(AffineTransform viewPortTransform, Rectangle2D rect) {
         mTmpPoint1.setLocation(rect.getX(), rect.getY());
         mTmpPoint2.setLocation(rect.getWidth(), rect.getHeight());
@@ -160,17 +231,19 @@ public class CallHierarchyRenderer {
 
     /** Get the tooltip corresponding to given location (in item coordinates). */
     public String getToolTipFor(double x, double y) {
-        Iterator<Call> it = mTopCall.getCallHierarchyIterator();
-        while (it.hasNext()) {
-            Call c = it.next();
-
-            fillLayoutBounds(c, mLayout);
-            if (mLayout.contains(x, y)) {
-                return formatToolTip(c);
-            }
+        ClockType renderClock = mRenderContext.getRenderClock();
+        long time = mTopCall.getEntryTime(renderClock, mLayoutTimeUnits) + (long) x - PADDING;
+        int depth = (int) Math.floor((y - mYOffset) / PER_LEVEL_HEIGHT_PX);
+        CallIndex index = getCallIndex(Math.max(time, 0), Math.max(time, 0), 0);
+        Call c = index != null
+                ? index.getCallAt(Math.max(time, 0), depth, renderClock, mLayoutTimeUnits)
+                : null;
+        if (c == null) {
+            return null;
         }
 
-        return null;
+        fillLayoutBounds(c, mLayout);
+        return mLayout.contains(x, y) ? formatToolTip(c) : null;
     }
 
     private static final DecimalFormat PERCENTAGE_FORMATTER = new DecimalFormat("#.##");
@@ -64,6 +64,45 @@ public class ArrayInstanceTest extends TestCase {
         assertArrayEquals(new char[]{}, a.asCharArray(1, 0));
     }
 
+    public void testContentFingerprint() throws IOException {
+        // Set up a heap dump with three arrays of characters, the last differing from the others
+        // only in its final character, which doesn't fill a whole 8-byte word.
+        List<HprofRecord> records = new ArrayList<HprofRecord>();
+        List<HprofDumpRecord> dump = new ArrayList<HprofDumpRecord>();
+
+        long chars[] = new long[]{'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j'};
+        long otherChars[] = new long[]{'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'x'};
+        dump.add(new HprofPrimitiveArrayDump(0xA, 0, HprofType.TYPE_CHAR, chars));
+        dump.add(new HprofPrimitiveArrayDump(0xB, 0, HprofType.TYPE_CHAR, chars));
+        dump.add(new HprofPrimitiveArrayDump(0xC, 0, HprofType.TYPE_CHAR, otherChars));
+
+        records.add(new HprofHeapDump(0, dump.toArray(new HprofDumpRecord[0])));
+
+        Hprof hprof = new Hprof("JAVA PROFILE 1.0.3", 2, new Date(), records);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        hprof.write(os);
+        Snapshot snapshot = Snapshot.createSnapshot(new InMemoryBuffer(os.toByteArray()));
+
+        ArrayInstance a = (ArrayInstance)snapshot.findInstance(0xA);
+        ArrayInstance b = (ArrayInstance)snapshot.findInstance(0xB);
+        ArrayInstance c = (ArrayInstance)snapshot.findInstance(0xC);
+
+        assertEquals(a.getContentFingerprint(0, 10), b.getContentFingerprint(0, 10));
+        assertTrue(a.contentEquals(0, b, 0, 10));
+        assertFalse(a.getContentFingerprint(0, 10) == c.getContentFingerprint(0, 10));
+        assertFalse(a.contentEquals(0, c, 0, 10));
+
+        // Equal prefixes and suffixes.
+        assertEquals(a.getContentFingerprint(0, 9), c.getContentFingerprint(0, 9));
+        assertTrue(a.contentEquals(0, c, 0, 9));
+        assertTrue(a.contentEquals(1, b, 1, 9));
+        assertFalse(a.contentEquals(0, b, 1, 9));
+
+        assertTrue(new ArraySlice(a, 2, 4).contentEquals(new ArraySlice(c, 2, 4)));
+        assertFalse(new ArraySlice(a, 2, 4).contentEquals(new ArraySlice(c, 2, 5)));
+        assertEquals(8, new ArraySlice(a, 2, 4).getByteLength());
+    }
+
     private static void assertArrayEquals(char[] a, char[] b) {
         assertEquals(a.length, b.length);
         for (int i = 0; i < a.length; i++) {
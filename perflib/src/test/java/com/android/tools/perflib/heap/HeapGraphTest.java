@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.testutils.TestResources;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.google.common.io.Files;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+
+public class HeapGraphTest extends TestCase {
+
+    private Snapshot mSnapshot;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mSnapshot != null) {
+            mSnapshot.dispose();
+        }
+        super.tearDown();
+    }
+
+    public void testReferences() throws Exception {
+        mSnapshot = new SnapshotBuilder(11, 2, 1)
+                .addReferences(1, 2, 3)
+                .insertSoftReference(1, 11)
+                .addReferences(2, 4, 4)
+                .addReferences(3, 5, 6)
+                .insertSoftReference(4, 9)
+                .addReferences(5, 7)
+                .addReferences(6, 7, 6)
+                .addReferences(7, 8, 10)
+                .insertSoftAndHardReference(8, 10, 9)
+                .addRoot(1)
+                .build();
+        mSnapshot.buildHeapGraph(null);
+        HeapGraph graph = mSnapshot.getHeapGraph();
+        assertNotNull(graph);
+
+        // 14 instances, the classes of the 11 regular ones and the two reference classes.
+        assertEquals(27, graph.getNodeCount());
+
+        int node2 = graph.getNode(2);
+        assertEquals(2, graph.getId(node2));
+        assertEquals(graph.getNode(102), graph.getClassNode(node2));
+        assertEquals(2, graph.getHardForwardReferenceCount(node2));
+        assertEquals(graph.getNode(4), graph.getHardForwardReference(node2, 0));
+        assertEquals(graph.getNode(4), graph.getHardForwardReference(node2, 1));
+
+        // Reverse references are deduped and don't include self references.
+        Instance instance4 = mSnapshot.findInstance(4);
+        assertEquals(1, instance4.getHardReverseReferences().size());
+        assertEquals(mSnapshot.findInstance(2), instance4.getHardReverseReferences().get(0));
+        assertEquals(1, mSnapshot.findInstance(6).getHardReverseReferences().size());
+
+        Instance instance9 = mSnapshot.findInstance(9);
+        assertEquals(1, instance9.getHardReverseReferences().size());
+        assertEquals(1, instance9.getSoftReverseReferences().size());
+        Instance instance11 = mSnapshot.findInstance(11);
+        assertEquals(0, instance11.getHardReverseReferences().size());
+        assertEquals(1, instance11.getSoftReverseReferences().size());
+        assertEquals(instance11,
+                instance11.getSoftReverseReferences().get(0).getSoftForwardReference());
+        assertNull(mSnapshot.findInstance(1).getSoftReverseReferences());
+
+        mSnapshot.computeDominators();
+        assertEquals(13, mSnapshot.getReachableInstances().size());
+        assertEquals(Integer.MAX_VALUE, instance11.getDistanceToGcRoot());
+        assertEquals(6, instance9.getDistanceToGcRoot());
+    }
+
+    public void testMatchesResolvedReferences() throws Exception {
+        File file = TestResources.getFile(getClass(), "/dialer.android-hprof");
+        Map<Long, Long> dominators = new HashMap<>();
+        Map<Long, Long> retainedSizes = new HashMap<>();
+
+        mSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        mSnapshot.computeDominators();
+        for (Instance instance : mSnapshot.getReachableInstances()) {
+            dominators.put(instance.getId(), instance.getImmediateDominator().getId());
+            retainedSizes.put(instance.getId(), instance.getTotalRetainedSize());
+        }
+        mSnapshot.dispose();
+
+        File scratchDirectory = Files.createTempDir();
+        try {
+            mSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+            mSnapshot.buildHeapGraph(scratchDirectory);
+            mSnapshot.computeDominators();
+
+            assertEquals(dominators.size(), mSnapshot.getReachableInstances().size());
+            for (Instance instance : mSnapshot.getReachableInstances()) {
+                assertEquals(dominators.get(instance.getId()).longValue(),
+                        instance.getImmediateDominator().getId());
+                assertEquals(retainedSizes.get(instance.getId()).longValue(),
+                        instance.getTotalRetainedSize());
+            }
+        } finally {
+            mSnapshot.dispose();
+            mSnapshot = null;
+            File[] files = scratchDirectory.listFiles();
+            assertNotNull(files);
+            assertEquals(0, files.length);
+            assertTrue(scratchDirectory.delete());
+        }
+    }
+}
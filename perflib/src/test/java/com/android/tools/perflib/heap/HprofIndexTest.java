@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.testutils.TestResources;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.google.common.io.Files;
+import java.io.File;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+public class HprofIndexTest extends TestCase {
+
+    private File mDirectory;
+
+    private File mHprof;
+
+    private Snapshot mSnapshot;
+
+    private HprofIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = Files.createTempDir();
+        mHprof = new File(mDirectory, "dialer.android-hprof");
+        Files.copy(TestResources.getFile(getClass(), "/dialer.android-hprof"), mHprof);
+        mSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(mHprof));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mIndex != null) {
+            mIndex.dispose();
+        }
+        mSnapshot.dispose();
+        for (File file : mDirectory.listFiles()) {
+            assertTrue(file.delete());
+        }
+        assertTrue(mDirectory.delete());
+        super.tearDown();
+    }
+
+    public void testMatchesSnapshot() throws Exception {
+        mIndex = HprofIndex.open(mHprof);
+        assertTrue(HprofIndex.getIndexFile(mHprof).isFile());
+        assertEquals(mSnapshot.getTypeSize(Type.OBJECT), mIndex.getIdSize());
+        assertEquals(mSnapshot.getGCRoots().size(), mIndex.getRootCount());
+
+        long[] objectCount = {0};
+        for (Heap heap : mSnapshot.getHeaps()) {
+            heap.forEachInstance(instance -> {
+                HprofIndex.IndexedObject object = mIndex.findObject(instance.getId());
+                assertNotNull(object);
+                assertEquals(heap.getId(), object.getHeapId());
+                if (instance instanceof ClassInstance) {
+                    assertEquals(HprofIndex.Kind.INSTANCE, object.getKind());
+                    assertEquals(instance.getClassObj().getId(), object.getClassId());
+                } else {
+                    ArrayInstance array = (ArrayInstance) instance;
+                    assertEquals(array.getArrayType(), object.getArrayType());
+                }
+                objectCount[0]++;
+                return true;
+            });
+            for (ClassObj theClass : heap.getClasses()) {
+                HprofIndex.IndexedObject object = mIndex.findObject(theClass.getId());
+                assertNotNull(object);
+                assertEquals(HprofIndex.Kind.CLASS, object.getKind());
+                objectCount[0]++;
+            }
+            assertEquals(heap.getName(), mIndex.getHeapName(heap.getId()));
+        }
+        assertEquals(objectCount[0], mIndex.getObjectCount());
+        assertNull(mIndex.findObject(0xdeadbeefL));
+    }
+
+    public void testClasses() throws Exception {
+        mIndex = HprofIndex.open(mHprof);
+        assertNull(mIndex.findClass("no.such.Class"));
+
+        ClassObj expected = mSnapshot.findClass("android.graphics.Bitmap");
+        HprofIndex.IndexedClass bitmap = mIndex.findClass("android.graphics.Bitmap");
+        assertNotNull(bitmap);
+        assertEquals(expected.getId(), bitmap.getId());
+        assertEquals(expected.getSuperClassObj().getId(), bitmap.getSuperClassId());
+        assertEquals(expected.getInstanceCount(), bitmap.getInstanceCount());
+
+        long[] expectedIds = new long[expected.getInstanceCount()];
+        for (int i = 0; i < expectedIds.length; i++) {
+            expectedIds[i] = expected.getInstancesList().get(i).getId();
+        }
+        Arrays.sort(expectedIds);
+        assertTrue(Arrays.equals(expectedIds, mIndex.getInstanceIds(bitmap)));
+
+        for (ClassObj theClass : mSnapshot.findAllDescendantClasses("java.lang.Object")) {
+            HprofIndex.IndexedClass indexed = mIndex.findClass(theClass.getId());
+            assertNotNull(indexed);
+            assertEquals(theClass.getClassName(), indexed.getName());
+        }
+    }
+
+    public void testReusesIndex() throws Exception {
+        File indexFile = HprofIndex.getIndexFile(mHprof);
+        HprofIndex.open(mHprof).dispose();
+        assertTrue(indexFile.setLastModified(1000));
+
+        mIndex = HprofIndex.open(mHprof);
+        assertEquals(1000, indexFile.lastModified());
+        mIndex.dispose();
+        mIndex = null;
+
+        // Touching the dump invalidates the index.
+        assertTrue(mHprof.setLastModified(mHprof.lastModified() - 10000));
+        mIndex = HprofIndex.open(mHprof);
+        assertTrue(indexFile.lastModified() != 1000);
+    }
+}
@@ -46,6 +46,8 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import junit.framework.TestCase;
 
 public class HprofParserTest extends TestCase {
@@ -315,4 +317,58 @@ public class HprofParserTest extends TestCase {
         assertEquals("Methods.java", frames[0].getFilename());
         assertEquals(43, frames[0].getLineNumber());
     }
+
+    public void testParallelParse() throws Exception {
+        File file = TestResources.getFile(getClass(), "/dialer.android-hprof");
+        Snapshot expected = new Snapshot(new MemoryMappedFileBuffer(file));
+        HprofParser.parseBuffer(expected, expected.getBuffer(), new ProguardMap());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        // A minimum batch size of 1 byte hands each heap dump segment to its own task.
+        Snapshot actual = new Snapshot(new MemoryMappedFileBuffer(file));
+        try {
+            HprofParser.parseBuffer(actual, actual.getBuffer(), new ProguardMap(), executor, 1);
+
+            List<Heap> expectedHeaps = new ArrayList<>(expected.getHeaps());
+            List<Heap> actualHeaps = new ArrayList<>(actual.getHeaps());
+            assertEquals(expectedHeaps.size(), actualHeaps.size());
+            for (int i = 0; i < expectedHeaps.size(); i++) {
+                Heap heap = expectedHeaps.get(i);
+                assertEquals(heap.getId(), actualHeaps.get(i).getId());
+                assertEquals(heap.getName(), actualHeaps.get(i).getName());
+                assertEquals(heap.getInstancesCount(), actualHeaps.get(i).getInstancesCount());
+                assertEquals(heap.getClasses().size(), actualHeaps.get(i).getClasses().size());
+                heap.forEachInstance(instance -> {
+                    Instance other = actual.findInstance(instance.getId());
+                    assertNotNull(other);
+                    assertEquals(heap.getId(), other.getHeap().getId());
+                    assertEquals(instance.getClassObj().getClassName(),
+                            other.getClassObj().getClassName());
+                    assertEquals(instance.getSize(), other.getSize());
+                    return true;
+                });
+            }
+
+            List<RootObj> expectedRoots = new ArrayList<>(expected.getGCRoots());
+            List<RootObj> actualRoots = new ArrayList<>(actual.getGCRoots());
+            assertEquals(expectedRoots.size(), actualRoots.size());
+            for (int i = 0; i < expectedRoots.size(); i++) {
+                assertEquals(expectedRoots.get(i).toString(), actualRoots.get(i).toString());
+                assertEquals(expectedRoots.get(i).getHeap().getId(),
+                        actualRoots.get(i).getHeap().getId());
+            }
+
+            expected.computeDominators();
+            actual.computeDominators();
+            assertEquals(expected.getReachableInstances().size(),
+                    actual.getReachableInstances().size());
+            for (Instance instance : expected.getReachableInstances()) {
+                assertEquals(instance.getTotalRetainedSize(),
+                        actual.findInstance(instance.getId()).getTotalRetainedSize());
+            }
+        } finally {
+            executor.shutdown();
+            expected.dispose();
+            actual.dispose();
+        }
+    }
 }
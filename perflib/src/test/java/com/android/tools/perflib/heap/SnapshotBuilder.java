@@ -44,6 +44,11 @@ public class SnapshotBuilder {
 
     public static final long DEFAULT_HEAP_DEFAULT_CLASS_ID = 97;
 
+    public static final long OBJECT_ARRAY_CLASS_ID = 96;
+
+    /** The id of the first array inserted by {@link #insertObjectArray(int, int...)}. */
+    public static final int FIRST_OBJECT_ARRAY_ID = 1001;
+
     private int mNextAvailableSoftReferenceNodeId;
 
     private int mNextAvailableSoftAndHardReferenceNodeId;
@@ -60,6 +65,9 @@ public class SnapshotBuilder {
 
     private List<Integer> mRoots;
 
+    // The nodes referenced by each Object[] instance.
+    private List<int[]> mObjectArrays = new ArrayList<>();
+
     public SnapshotBuilder(int numNodes) {
         this(numNodes, 0, 0);
     }
@@ -111,6 +119,20 @@ public class SnapshotBuilder {
         return this;
     }
 
+    /**
+     * Inserts an Object[] instance between <code>nodeFrom</code> and <code>nodesTo</code>. The
+     * arrays have ids starting at {@link #FIRST_OBJECT_ARRAY_ID}, in the order they are inserted.
+     *
+     * @param nodeFrom the parent node
+     * @param nodesTo the elements of the array
+     * @return this
+     */
+    public SnapshotBuilder insertObjectArray(int nodeFrom, int... nodesTo) {
+        mReferences[nodeFrom].add(FIRST_OBJECT_ARRAY_ID + mObjectArrays.size());
+        mObjectArrays.add(nodesTo);
+        return this;
+    }
+
     public SnapshotBuilder addRoot(int node) {
         mRoots.add(node);
         return this;
@@ -235,6 +257,24 @@ public class SnapshotBuilder {
             dump.add(new HprofInstanceDump(i, 0, SOFT_AND_HARD_REFERENCE_ID, values.toByteArray()));
         }
 
+        // Object[] instances, and their class.
+        if (!mObjectArrays.isEmpty()) {
+            records.add(new HprofLoadClass(0, 2, OBJECT_ARRAY_CLASS_ID, 0,
+                                           strings.get("java.lang.Object[]")));
+            dump.add(new HprofClassDump(OBJECT_ARRAY_CLASS_ID, 0, 0, 0, 0, 0, 0, 0, 0,
+                                        new HprofConstant[0], new HprofStaticField[0],
+                                        new HprofInstanceField[0]));
+        }
+        for (int i = 0; i < mObjectArrays.size(); i++) {
+            int[] nodes = mObjectArrays.get(i);
+            long[] elements = new long[nodes.length];
+            for (int j = 0; j < nodes.length; j++) {
+                elements[j] = nodes[j];
+            }
+            dump.add(new HprofObjectArrayDump(FIRST_OBJECT_ARRAY_ID + i, 0, OBJECT_ARRAY_CLASS_ID,
+                                              elements));
+        }
+
         records.add(new HprofHeapDump(0, dump.toArray(new HprofDumpRecord[0])));
 
         // TODO: Should perflib handle the case where strings are referred to
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.SnapshotBuilder;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compares {@link LinkEvalDominators} against {@link ParallelDominators} on synthetic graphs.
+ * Not run as part of the tests; run the main method by hand, optionally passing the node counts
+ * to measure.
+ */
+public class DominatorsBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 3;
+
+    private static final int ITERATIONS = 5;
+
+    public static void main(String[] args) {
+        // SnapshotBuilder gives every node its own class, which caps graphs at 64K nodes.
+        int[] nodeCounts = {10000, 30000, 60000};
+        if (args.length > 0) {
+            nodeCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                nodeCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        for (int nodeCount : nodeCounts) {
+            SnapshotBuilder builder =
+                    ParallelDominatorsTest.randomGraph(new Random(nodeCount), nodeCount);
+            double linkEval = measure(builder, null);
+            double parallel = measure(builder, pool);
+            System.out.printf("%,d nodes: link-eval %.1f ms, parallel (%d threads) %.1f ms%n",
+                    nodeCount, linkEval, pool.getParallelism(), parallel);
+        }
+    }
+
+    /**
+     * Returns the average time in milliseconds spent in dominator and retained size computation,
+     * excluding parsing and the topological sort shared by both implementations.
+     */
+    private static double measure(SnapshotBuilder builder, ForkJoinPool pool) {
+        long total = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; i++) {
+            Snapshot snapshot = builder.build();
+            snapshot.prepareDominatorComputation();
+            long start = System.nanoTime();
+            snapshot.doComputeDominators(pool == null
+                    ? new LinkEvalDominators(snapshot)
+                    : new ParallelDominators(snapshot, pool));
+            long elapsed = System.nanoTime() - start;
+            if (i >= WARMUP_ITERATIONS) {
+                total += elapsed;
+            }
+            snapshot.dispose();
+        }
+        return total / (ITERATIONS * 1e6);
+    }
+}
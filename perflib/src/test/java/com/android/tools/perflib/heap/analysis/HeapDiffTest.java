@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.SnapshotBuilder;
+
+import junit.framework.TestCase;
+
+public class HeapDiffTest extends TestCase {
+
+    private Snapshot mBaseline;
+
+    private Snapshot mCurrent;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // Classes are named after node / 2: Class0 for 1, Class1 for 2 and 3, Class2 for 4 and 5.
+        mBaseline = new SnapshotBuilder(3)
+                .addReferences(1, 2, 3)
+                .addRoot(1)
+                .build();
+        mBaseline.computeDominators();
+        mCurrent = new SnapshotBuilder(5)
+                .addReferences(1, 2, 3)
+                .addReferences(3, 4)
+                .addReferences(4, 5)
+                .addRoot(1)
+                .build();
+        mCurrent.computeDominators();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBaseline.dispose();
+        mCurrent.dispose();
+        super.tearDown();
+    }
+
+    public void testInstances() {
+        HeapDiff diff = HeapDiff.compute(mBaseline, mCurrent);
+
+        assertEquals(3, diff.getMatchedInstanceCount());
+        assertEquals(2, diff.getNewInstanceCount());
+        assertEquals(0, diff.getRemovedInstanceCount());
+
+        // 5 is dominated by 4, which is new too, so only 4 roots a new subtree.
+        assertEquals(1, diff.getNewSubtreeRoots().size());
+        Instance root = diff.getNewSubtreeRoots().get(0);
+        assertEquals(4, root.getId());
+        assertEquals(root.getSize() + mCurrent.findInstance(5).getSize(),
+                root.getTotalRetainedSize());
+    }
+
+    public void testClasses() {
+        HeapDiff diff = HeapDiff.compute(mBaseline, mCurrent);
+
+        assertEquals(3, diff.getClassDeltas().size());
+        HeapDiff.ClassDelta class0 = diff.getClassDeltas().get(0);
+        HeapDiff.ClassDelta class1 = diff.getClassDeltas().get(1);
+        HeapDiff.ClassDelta class2 = diff.getClassDeltas().get(2);
+        assertEquals("Class0", class0.getClassName());
+        assertEquals("Class1", class1.getClassName());
+        assertEquals("Class2", class2.getClassName());
+
+        long newSize = mCurrent.findInstance(4).getSize() + mCurrent.findInstance(5).getSize();
+        assertEquals(0, class0.getCountDelta());
+        assertEquals(0, class0.getShallowSizeDelta());
+        assertEquals(newSize, class0.getRetainedSizeDelta());
+
+        assertEquals(0, class1.getCountDelta());
+        assertEquals(0, class1.getNewInstanceCount());
+        assertEquals(newSize, class1.getRetainedSizeDelta());
+
+        // 5 is dominated by 4, an instance of the same class, so its size is only counted once.
+        assertEquals(0, class2.getBaselineCount());
+        assertEquals(2, class2.getCountDelta());
+        assertEquals(2, class2.getNewInstanceCount());
+        assertEquals(newSize, class2.getShallowSizeDelta());
+        assertEquals(newSize, class2.getRetainedSizeDelta());
+    }
+
+    public void testNestedThroughOtherClass() {
+        // 5 is held by 4 through an array, so it is dominated by an instance of its class, 4, but
+        // not immediately.
+        Snapshot current = new SnapshotBuilder(5)
+                .addReferences(1, 2, 3)
+                .addReferences(3, 4)
+                .insertObjectArray(4, 5)
+                .addRoot(1)
+                .build();
+        current.computeDominators();
+        try {
+            HeapDiff diff = HeapDiff.compute(mBaseline, current);
+
+            assertEquals(4, diff.getClassDeltas().size());
+            HeapDiff.ClassDelta class2 = diff.getClassDeltas().get(2);
+            HeapDiff.ClassDelta arrayClass = diff.getClassDeltas().get(3);
+            assertEquals("Class2", class2.getClassName());
+            assertEquals("java.lang.Object[]", arrayClass.getClassName());
+
+            Instance array = current.findInstance(SnapshotBuilder.FIRST_OBJECT_ARRAY_ID);
+            long size5 = current.findInstance(5).getSize();
+            assertEquals(array.getSize() + size5, array.getTotalRetainedSize());
+            assertEquals(array.getTotalRetainedSize(), arrayClass.getRetainedSize());
+
+            // The size of 5 is only counted once, as part of the size retained by 4.
+            assertEquals(current.findInstance(4).getTotalRetainedSize(),
+                    class2.getRetainedSize());
+            assertEquals(current.findInstance(4).getSize() + array.getSize() + size5,
+                    class2.getRetainedSize());
+        } finally {
+            current.dispose();
+        }
+    }
+
+    public void testRemovedInstances() {
+        HeapDiff diff = HeapDiff.compute(mCurrent, mBaseline);
+
+        assertEquals(0, diff.getNewInstanceCount());
+        assertEquals(2, diff.getRemovedInstanceCount());
+        assertTrue(diff.getNewSubtreeRoots().isEmpty());
+        assertEquals(-2, diff.getClassDeltas().get(2).getCountDelta());
+    }
+
+    public void testIdenticalSnapshots() {
+        HeapDiff diff = HeapDiff.compute(mCurrent, mCurrent);
+
+        assertEquals(0, diff.getNewInstanceCount());
+        assertEquals(0, diff.getRemovedInstanceCount());
+        for (HeapDiff.ClassDelta delta : diff.getClassDeltas()) {
+            assertTrue(delta.isUnchanged());
+        }
+    }
+}
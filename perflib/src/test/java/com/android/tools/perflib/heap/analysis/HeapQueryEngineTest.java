@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.SnapshotBuilder;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class HeapQueryEngineTest extends TestCase {
+
+    private Snapshot mSnapshot;
+
+    private HeapQueryEngine mEngine;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // Classes are named after node / 2: Class0 for 1, Class1 for 2 and 3, Class2 for 4 and 5,
+        // Class3 for 6.
+        mSnapshot = new SnapshotBuilder(6)
+                .addReferences(1, 2, 3)
+                .addReferences(3, 4)
+                .addReferences(4, 5)
+                .addReferences(5, 6)
+                .addRoot(1)
+                .build();
+        mEngine = new HeapQueryEngine(mSnapshot);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSnapshot.dispose();
+        super.tearDown();
+    }
+
+    public void testTopRetainers() {
+        List<HeapQueryEngine.Retainer> retainers = mEngine.getTopRetainers("Class1", 10);
+        assertEquals(1, retainers.size());
+        assertEquals(1, retainers.get(0).getInstance().getId());
+        assertEquals(2, retainers.get(0).getInstanceCount());
+        assertEquals(mSnapshot.findInstance(2).getTotalRetainedSize()
+                        + mSnapshot.findInstance(3).getTotalRetainedSize(),
+                retainers.get(0).getRetainedSize());
+
+        // 5 is dominated by 4, which is of the same class, so it is accounted for through 4.
+        retainers = mEngine.getTopRetainers("Class2", 10);
+        assertEquals(1, retainers.size());
+        assertEquals(3, retainers.get(0).getInstance().getId());
+        assertEquals(1, retainers.get(0).getInstanceCount());
+        assertEquals(mSnapshot.findInstance(4).getTotalRetainedSize(),
+                retainers.get(0).getRetainedSize());
+
+        // Instances only retained by GC roots have no retaining object.
+        retainers = mEngine.getTopRetainers("Class0", 10);
+        assertEquals(1, retainers.size());
+        assertNull(retainers.get(0).getInstance());
+
+        assertTrue(mEngine.getTopRetainers("Class1", 0).isEmpty());
+        assertTrue(mEngine.getTopRetainers("NoSuchClass", 10).isEmpty());
+    }
+
+    public void testPathToGcRoot() {
+        List<Long> ids = new ArrayList<>();
+        for (Instance instance : mEngine.getPathToGcRoot(mSnapshot.findInstance(6))) {
+            ids.add(instance.getId());
+        }
+        assertEquals(Arrays.asList(1L, 3L, 4L, 5L, 6L), ids);
+    }
+
+    public void testRetainedSizeByGroup() {
+        long totalSize = mSnapshot.findInstance(1).getTotalRetainedSize();
+
+        Map<String, Long> packages = mEngine.getRetainedSizeByPackage();
+        assertEquals(1, packages.size());
+        assertEquals(Long.valueOf(totalSize), packages.get(HeapQueryEngine.DEFAULT_PACKAGE));
+
+        // The classes of odd nodes are loaded by 1, the others by the boot class loader. 6 is
+        // accounted for through 4, which dominates it.
+        Map<String, Long> classLoaders = mEngine.getRetainedSizeByClassLoader();
+        assertEquals(2, classLoaders.size());
+        assertEquals(Long.valueOf(totalSize),
+                classLoaders.get(mSnapshot.findInstance(1).toString()));
+        assertEquals(Long.valueOf(mSnapshot.findInstance(2).getTotalRetainedSize()
+                        + mSnapshot.findInstance(4).getTotalRetainedSize()),
+                classLoaders.get(HeapQueryEngine.BOOT_CLASS_LOADER));
+    }
+
+    public void testCache() {
+        mEngine.getTopRetainers("Class1", 10);
+        mEngine.getTopRetainers("Class1", 1);
+        mEngine.getRetainedSizeByPackage();
+        assertEquals(1, mEngine.getCacheHitCount());
+        assertEquals(2, mEngine.getCacheMissCount());
+
+        // Once evicted, results are computed again.
+        HeapQueryEngine engine = new HeapQueryEngine(mSnapshot, 1);
+        engine.getTopRetainers("Class1", 10);
+        engine.getTopRetainers("Class2", 10);
+        engine.getTopRetainers("Class1", 10);
+        assertEquals(0, engine.getCacheHitCount());
+        assertEquals(3, engine.getCacheMissCount());
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.testutils.TestResources;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.SnapshotBuilder;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+public class ParallelDominatorsTest extends TestCase {
+
+    private ForkJoinPool mPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPool = new ForkJoinPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPool.shutdown();
+        super.tearDown();
+    }
+
+    public void testSimpleGraph() {
+        Snapshot snapshot = new SnapshotBuilder(6)
+                .addReferences(1, 2, 3)
+                .addReferences(2, 4, 6)
+                .addReferences(3, 4, 5)
+                .addReferences(4, 6)
+                .addRoot(1)
+                .build();
+        snapshot.computeDominators(mPool);
+
+        assertEquals(6, snapshot.getReachableInstances().size());
+        assertEquals(1, snapshot.findInstance(4).getImmediateDominator().getId());
+        assertEquals(1, snapshot.findInstance(6).getImmediateDominator().getId());
+        assertEquals(3, snapshot.findInstance(5).getImmediateDominator().getId());
+        assertEquals(Snapshot.SENTINEL_ROOT, snapshot.findInstance(1).getImmediateDominator());
+        assertEquals(21, snapshot.findInstance(1).getTotalRetainedSize());
+    }
+
+    public void testSoftReferences() {
+        assertSameAsLinkEval(new SnapshotBuilder(4, 1, 1)
+                .addReferences(1, 2)
+                .insertSoftReference(2, 3)
+                .insertSoftAndHardReference(1, 3, 4)
+                .addReferences(3, 4)
+                .addRoot(1));
+    }
+
+    public void testRandomGraphs() {
+        Random random = new Random(42);
+        for (int i = 0; i < 20; i++) {
+            assertSameAsLinkEval(randomGraph(random, 50 + random.nextInt(500)));
+        }
+    }
+
+    public void testLargeRandomGraph() {
+        // Big enough to split every phase into several parallel tasks.
+        assertSameAsLinkEval(randomGraph(new Random(7), 20000));
+    }
+
+    public void testSampleHprof() throws Exception {
+        File file = TestResources.getFile(getClass(), "/dialer.android-hprof");
+        Snapshot expected = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        Snapshot actual = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        try {
+            expected.computeDominators();
+            actual.computeDominators(mPool);
+            assertSameDominators(expected, actual);
+        } finally {
+            expected.dispose();
+            actual.dispose();
+        }
+    }
+
+    /**
+     * Builds a graph where most references point forward, with a few back edges for cycles and a
+     * handful of roots.
+     */
+    static SnapshotBuilder randomGraph(Random random, int nodeCount) {
+        SnapshotBuilder builder = new SnapshotBuilder(nodeCount);
+        for (int node = 1; node <= nodeCount; node++) {
+            int[] references = new int[random.nextInt(4)];
+            for (int i = 0; i < references.length; i++) {
+                references[i] = random.nextInt(10) == 0
+                        ? 1 + random.nextInt(nodeCount)
+                        : Math.min(nodeCount, node + 1 + random.nextInt(20));
+            }
+            builder.addReferences(node, references);
+        }
+        builder.addRoot(1);
+        for (int i = 0; i < 1 + nodeCount / 1000; i++) {
+            builder.addRoot(1 + random.nextInt(nodeCount));
+        }
+        return builder;
+    }
+
+    private static void assertSameAsLinkEval(SnapshotBuilder builder) {
+        Snapshot expected = builder.build();
+        expected.computeDominators();
+        Snapshot actual = builder.build();
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            actual.computeDominators(pool);
+        } finally {
+            pool.shutdown();
+        }
+        assertSameDominators(expected, actual);
+    }
+
+    private static void assertSameDominators(Snapshot expected, Snapshot actual) {
+        Map<Long, Instance> dominators = new HashMap<>();
+        Map<Long, Instance> instances = new HashMap<>();
+        for (Instance instance : expected.getReachableInstances()) {
+            dominators.put(instance.getId(), instance.getImmediateDominator());
+            instances.put(instance.getId(), instance);
+        }
+
+        assertEquals(dominators.size(), actual.getReachableInstances().size());
+        int heapCount = actual.getHeaps().size();
+        for (Instance instance : actual.getReachableInstances()) {
+            Instance dominator = dominators.get(instance.getId());
+            assertNotNull(dominator);
+            if (dominator == Snapshot.SENTINEL_ROOT) {
+                assertEquals(Snapshot.SENTINEL_ROOT, instance.getImmediateDominator());
+            } else {
+                assertEquals(dominator.getId(), instance.getImmediateDominator().getId());
+            }
+            Instance expectedInstance = instances.get(instance.getId());
+            for (int heap = 0; heap < heapCount; heap++) {
+                assertEquals(expectedInstance.getRetainedSize(heap),
+                        instance.getRetainedSize(heap));
+            }
+        }
+    }
+}
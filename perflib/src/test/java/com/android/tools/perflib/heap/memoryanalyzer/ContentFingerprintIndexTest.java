@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.tools.perflib.heap.ArrayInstance;
+import com.android.tools.perflib.heap.ArraySlice;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.hprof.*;
+import com.android.tools.perflib.heap.io.InMemoryBuffer;
+import com.google.common.collect.ImmutableSet;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class ContentFingerprintIndexTest extends TestCase {
+
+    private Snapshot mSnapshot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // 0xA and 0xB hold the same characters, 0xC differs from them in its last character, and
+        // 0xD holds the characters of 0xA twice.
+        HprofDumpRecord[] dump = new HprofDumpRecord[]{
+                new HprofPrimitiveArrayDump(0xA, 0, HprofType.TYPE_CHAR,
+                        new long[]{'a', 'b', 'c'}),
+                new HprofPrimitiveArrayDump(0xB, 0, HprofType.TYPE_CHAR,
+                        new long[]{'a', 'b', 'c'}),
+                new HprofPrimitiveArrayDump(0xC, 0, HprofType.TYPE_CHAR,
+                        new long[]{'a', 'b', 'x'}),
+                new HprofPrimitiveArrayDump(0xD, 0, HprofType.TYPE_CHAR,
+                        new long[]{'a', 'b', 'c', 'a', 'b', 'c'})};
+        Hprof hprof = new Hprof("JAVA PROFILE 1.0.3", 2, new Date(),
+                Collections.singletonList(new HprofHeapDump(0, dump)));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        hprof.write(os);
+        mSnapshot = Snapshot.createSnapshot(new InMemoryBuffer(os.toByteArray()));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSnapshot.dispose();
+        super.tearDown();
+    }
+
+    public void testIdenticalContentsAreGrouped() {
+        ContentFingerprintIndex<String> index = new ContentFingerprintIndex<>();
+        index.add("a", slice(0xA, 0, 3));
+        index.add("b", slice(0xB, 0, 3));
+        index.add("c", slice(0xC, 0, 3));
+        index.add("d1", slice(0xD, 0, 3));
+        index.add("d2", slice(0xD, 3, 3));
+        // A prefix of the others.
+        index.add("ab", slice(0xA, 0, 2));
+
+        assertEquals(ImmutableSet.of(ImmutableSet.of("a", "b", "d1", "d2")),
+                toSets(index.getDuplicates()));
+    }
+
+    public void testSameOwnerIsNotDuplicated() {
+        ContentFingerprintIndex<String> index = new ContentFingerprintIndex<>();
+        index.add("a", slice(0xA, 0, 3));
+        index.add("a", slice(0xB, 0, 3));
+
+        assertTrue(index.getDuplicates().isEmpty());
+    }
+
+    public void testFingerprintCollisions() {
+        // All the contents have the same fingerprint: only the identical ones are grouped.
+        ContentFingerprintIndex<String> index = new ContentFingerprintIndex<>();
+        index.add("a", slice(0xA, 0, 3), 42);
+        index.add("c", slice(0xC, 0, 3), 42);
+        index.add("b", slice(0xB, 0, 3), 42);
+        index.add("d", slice(0xD, 3, 3), 42);
+        index.add("c2", slice(0xC, 0, 3), 42);
+        index.add("x", slice(0xD, 1, 3), 42);
+
+        assertEquals(
+                ImmutableSet.of(ImmutableSet.of("a", "b", "d"), ImmutableSet.of("c", "c2")),
+                toSets(index.getDuplicates()));
+    }
+
+    public void testAddAll() {
+        ContentFingerprintIndex<String> index = new ContentFingerprintIndex<>();
+        index.add("a", slice(0xA, 0, 3));
+        index.add("c", slice(0xC, 0, 3));
+        ContentFingerprintIndex<String> other = new ContentFingerprintIndex<>();
+        other.add("b", slice(0xB, 0, 3));
+        index.addAll(other);
+
+        assertEquals(ImmutableSet.of(ImmutableSet.of("a", "b")), toSets(index.getDuplicates()));
+    }
+
+    private ArraySlice slice(long arrayId, int start, int length) {
+        return new ArraySlice((ArrayInstance) mSnapshot.findInstance(arrayId), start, length);
+    }
+
+    private static Set<Set<String>> toSets(List<List<String>> groups) {
+        Set<Set<String>> sets = new HashSet<>();
+        for (List<String> group : groups) {
+            assertEquals(group.size(), new HashSet<>(group).size());
+            sets.add(new HashSet<>(group));
+        }
+        return sets;
+    }
+}
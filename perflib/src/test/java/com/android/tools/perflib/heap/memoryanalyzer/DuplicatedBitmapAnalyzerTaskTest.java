@@ -3,9 +3,13 @@ package com.android.tools.perflib.heap.memoryanalyzer;
 import com.android.testutils.TestResources;
 import com.android.tools.perflib.analyzer.AnalysisResultEntry;
 import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.ArrayInstance;
+import com.android.tools.perflib.heap.ClassInstance;
+import com.android.tools.perflib.heap.Instance;
 import com.android.tools.perflib.heap.Snapshot;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -40,6 +44,27 @@ public final class DuplicatedBitmapAnalyzerTaskTest {
 
         // assert
         Assert.assertEquals(returnedEntries.size(), 7);
+        Set<ByteBuffer> contents = new HashSet<>();
+        for (AnalysisResultEntry<?> entry : returnedEntries) {
+            List<?> bitmaps = entry.getOffender().getOffenders();
+            Assert.assertTrue(bitmaps.size() > 1);
+            ByteBuffer content = getBuffer((Instance) bitmaps.get(0));
+            for (Object bitmap : bitmaps) {
+                Assert.assertEquals(content, getBuffer((Instance) bitmap));
+            }
+            // Each group holds all the bitmaps with its contents.
+            Assert.assertTrue(contents.add(content));
+        }
+    }
+
+    private static ByteBuffer getBuffer(Instance bitmap) {
+        for (ClassInstance.FieldValue fieldValue : ((ClassInstance) bitmap).getValues()) {
+            if (fieldValue.getField().getName().equals("mBuffer")) {
+                ArrayInstance buffer = (ArrayInstance) fieldValue.getValue();
+                return ByteBuffer.wrap(buffer.asRawByteArray(0, buffer.getLength()));
+            }
+        }
+        throw new AssertionError("Bitmap without a buffer");
     }
 
     @After
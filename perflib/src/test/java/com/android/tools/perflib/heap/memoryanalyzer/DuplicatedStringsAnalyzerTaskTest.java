@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.hprof.*;
+import com.android.tools.perflib.heap.io.InMemoryBuffer;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class DuplicatedStringsAnalyzerTaskTest {
+
+    private static final int STRING_CLASS_ID = 1;
+
+    private Snapshot mSnapshot = null;
+
+    @Before
+    public void createSnapshot() throws IOException {
+        HprofStringBuilder strings = new HprofStringBuilder(0);
+        List<HprofRecord> records = new ArrayList<>();
+        List<HprofDumpRecord> dump = new ArrayList<>();
+
+        records.add(new HprofLoadClass(0, 1, STRING_CLASS_ID, 0, strings.get("java.lang.String")));
+        dump.add(new HprofClassDump(STRING_CLASS_ID, 0, 0, 0, 0, 0, 0, 0, 10,
+                new HprofConstant[0], new HprofStaticField[0],
+                new HprofInstanceField[]{
+                        new HprofInstanceField(strings.get("value"), HprofType.TYPE_OBJECT),
+                        new HprofInstanceField(strings.get("count"), HprofType.TYPE_INT),
+                        new HprofInstanceField(strings.get("offset"), HprofType.TYPE_INT)}));
+        dump.add(new HprofHeapDumpInfo(HprofHeapDumpInfo.HEAP_APP, strings.get("app")));
+
+        dump.add(new HprofPrimitiveArrayDump(0x10, 0, HprofType.TYPE_CHAR,
+                new long[]{'f', 'o', 'o'}));
+        dump.add(new HprofPrimitiveArrayDump(0x11, 0, HprofType.TYPE_CHAR,
+                new long[]{'f', 'o', 'o'}));
+        dump.add(new HprofPrimitiveArrayDump(0x12, 0, HprofType.TYPE_CHAR,
+                new long[]{'a', 'f', 'o', 'o', 'b'}));
+        dump.add(new HprofPrimitiveArrayDump(0x13, 0, HprofType.TYPE_BYTE,
+                new long[]{'f', 'o', 'o'}));
+        dump.add(new HprofPrimitiveArrayDump(0x14, 0, HprofType.TYPE_CHAR,
+                new long[]{'b', 'a', 'r'}));
+        dump.add(new HprofPrimitiveArrayDump(0x15, 0, HprofType.TYPE_CHAR,
+                new long[]{'b', 'a', 'r'}));
+
+        // Three char-backed "foo"s, one of them in the middle of a larger array.
+        addString(dump, 0x20, 0x10, 3, 0);
+        addString(dump, 0x21, 0x11, 3, 0);
+        addString(dump, 0x22, 0x12, 3, 1);
+        // A byte-backed "foo", whose contents don't match the char-backed ones.
+        addString(dump, 0x23, 0x13, 3, 0);
+        // A "bar" duplicated by an unreachable string only.
+        addString(dump, 0x24, 0x14, 3, 0);
+        addString(dump, 0x25, 0x15, 3, 0);
+
+        for (int id = 0x20; id <= 0x24; id++) {
+            dump.add(new HprofRootUnknown(id));
+        }
+        records.add(new HprofHeapDump(0, dump.toArray(new HprofDumpRecord[0])));
+
+        List<HprofRecord> actualRecords = new ArrayList<>();
+        actualRecords.addAll(strings.getStringRecords());
+        actualRecords.addAll(records);
+        Hprof hprof = new Hprof("JAVA PROFILE 1.0.3", 2, new Date(), actualRecords);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        hprof.write(os);
+        mSnapshot = Snapshot.createSnapshot(new InMemoryBuffer(os.toByteArray()));
+        mSnapshot.computeDominators();
+    }
+
+    @Test
+    public void testDuplicatedStringsAnalyzerTask() throws Exception {
+        // act
+        List<AnalysisResultEntry<?>> returnedEntries = new DuplicatedStringsAnalyzerTask()
+                .analyze(new MemoryAnalyzerTask.Configuration(mSnapshot.getHeaps()), mSnapshot);
+
+        // assert
+        Assert.assertEquals(1, returnedEntries.size());
+        AnalysisResultEntry<?> entry = returnedEntries.get(0);
+        Assert.assertEquals("foo", entry.getOffender().getOffendingDescription());
+        Assert.assertEquals(
+                ImmutableSet.of(mSnapshot.findInstance(0x20), mSnapshot.findInstance(0x21),
+                        mSnapshot.findInstance(0x22)),
+                new HashSet<>(entry.getOffender().getOffenders()));
+    }
+
+    @After
+    public void dispose() {
+        mSnapshot.dispose();
+    }
+
+    private static void addString(List<HprofDumpRecord> dump, int id, int valueId, int count,
+            int offset) {
+        ByteArrayDataOutput values = ByteStreams.newDataOutput();
+        values.writeShort(valueId);
+        values.writeInt(count);
+        values.writeInt(offset);
+        dump.add(new HprofInstanceDump(id, 0, STRING_CLASS_ID, values.toByteArray()));
+    }
+}
@@ -0,0 +1,69 @@
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.SnapshotBuilder;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class HeapDiffReportTest {
+
+    private Snapshot mBaseline;
+
+    private Snapshot mCurrent;
+
+    @Before
+    public void setUp() {
+        mBaseline = new SnapshotBuilder(3).addReferences(1, 2, 3).addRoot(1).build();
+        mBaseline.computeDominators();
+        mCurrent = new SnapshotBuilder(5)
+                .addReferences(1, 2, 3)
+                .addReferences(3, 4)
+                .addReferences(4, 5)
+                .addRoot(1)
+                .build();
+        mCurrent.computeDominators();
+    }
+
+    @After
+    public void tearDown() {
+        mBaseline.dispose();
+        mCurrent.dispose();
+    }
+
+    @Test
+    public void testHtmlReport() {
+        HeapDiffAnalyzerTask task = new HeapDiffAnalyzerTask(mBaseline);
+        List<AnalysisResultEntry<?>> results = task.analyze(
+                new MemoryAnalyzerTask.Configuration(mCurrent.getHeaps()), mCurrent);
+        // All three classes changed, plus one new subtree.
+        assertEquals(4, results.size());
+
+        HeapDiffReport report = new HeapDiffReport();
+        report.generate(results);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        report.print(new HtmlPrinter(new PrintStream(output)));
+
+        String html = output.toString();
+        assertTrue(html.contains("<h2>Heap Growth Report</h2>"));
+        assertTrue(html.contains("<td>Class2</td>\n<td>+2</td>\n<td>2</td>"));
+        assertTrue(html.contains("<h3>New Dominator Subtrees</h3>"));
+    }
+
+    @Test
+    public void testBaselineIsSkipped() {
+        HeapDiffAnalyzerTask task = new HeapDiffAnalyzerTask(mBaseline);
+        assertTrue(task.analyze(
+                new MemoryAnalyzerTask.Configuration(mBaseline.getHeaps()), mBaseline).isEmpty());
+    }
+}
@@ -3,6 +3,8 @@ package com.android.tools.perflib.heap.memoryanalyzer;
 import com.android.tools.perflib.heap.Heap;
 import com.android.tools.perflib.heap.Snapshot;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -22,6 +24,8 @@ public class HeapReportsTest {
     private Snapshot mSnapshotMock;
     @Mock
     private Report mReportMock;
+    @Mock
+    private Report mOtherReportMock;
 
     @Before
     public void setUpMocks() {
@@ -39,4 +43,20 @@ public class HeapReportsTest {
         // assert
         Mockito.verify(mReportMock).generate(ArgumentMatchers.any());
     }
+
+    @Test
+    public void analyzeGeneratesDataForEachReport() {
+        // arrange
+        Map<MemoryAnalyzerTask, Report> reports = new HashMap<>();
+        reports.put(new BasicAnalyzerTask(), mReportMock);
+        reports.put(new BasicAnalyzerTask(), mOtherReportMock);
+
+        // act
+        HeapReports.generateReports(reports, mSnapshotMock, 2);
+
+        // assert
+        Mockito.verify(mReportMock).generate(ArgumentMatchers.argThat(list -> list.size() == 1));
+        Mockito.verify(mOtherReportMock)
+                .generate(ArgumentMatchers.argThat(list -> list.size() == 1));
+    }
 }
@@ -1,6 +1,7 @@
 package com.android.tools.perflib.heap.memoryanalyzer;
 
 import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.analyzer.CaptureGroup;
 import com.android.tools.perflib.heap.Snapshot;
 import org.junit.Before;
 import org.junit.Test;
@@ -14,6 +15,8 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 
@@ -61,4 +64,39 @@ public class TaskRunnerTest {
         assertEquals(2, content.size());
         assertEquals(BasicAnalyzerTask.TASK_WARNING, content.get(0).getWarningMessage());
     }
+
+    @Test
+    public void runTasksShouldRunTasksConcurrently() throws InterruptedException {
+        // arrange
+        CountDownLatch started = new CountDownLatch(2);
+        Set<MemoryAnalyzerTask> tasks = new HashSet<>();
+        for (int i = 0; i < 2; i++) {
+            tasks.add(new BasicAnalyzerTask() {
+                @Override
+                protected List<AnalysisResultEntry<?>> analyze(Configuration configuration,
+                        Snapshot snapshot) {
+                    // Only returns a result if the other task is running at the same time.
+                    started.countDown();
+                    try {
+                        if (!started.await(10, TimeUnit.SECONDS)) {
+                            return Collections.emptyList();
+                        }
+                    } catch (InterruptedException e) {
+                        return Collections.emptyList();
+                    }
+                    return super.analyze(configuration, snapshot);
+                }
+            });
+        }
+
+        CaptureGroup captureGroup = new CaptureGroup();
+        captureGroup.addCapture(mSnapshotMock);
+
+        // act
+        List<AnalysisResultEntry<?>> content =
+                TaskRunner.runTasks(tasks, Collections.emptySet(), captureGroup, 2);
+
+        // assert
+        assertEquals(2, content.size());
+    }
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class CallIndexTest extends TestCase {
+    private Call reconstructSampleCallStack() {
+        CallStackReconstructor reconstructor = new CallStackReconstructor(0xff);
+
+        reconstructor.addTraceAction(0x1, TraceAction.METHOD_ENTER, 10, 10);
+        reconstructor.addTraceAction(0x2, TraceAction.METHOD_ENTER, 11, 11);
+        reconstructor.addTraceAction(0x3, TraceAction.METHOD_ENTER, 12, 12);
+        reconstructor.addTraceAction(0x3, TraceAction.METHOD_EXIT, 13, 13);
+        reconstructor.addTraceAction(0x3, TraceAction.METHOD_ENTER, 14, 14);
+        reconstructor.addTraceAction(0x3, TraceAction.METHOD_EXIT, 15, 15);
+        reconstructor.addTraceAction(0x2, TraceAction.METHOD_EXIT, 16, 16);
+        reconstructor.addTraceAction(0x5, TraceAction.METHOD_ENTER, 17, 17);
+        reconstructor.addTraceAction(0x5, TraceAction.METHOD_EXIT, 18, 18);
+        reconstructor.addTraceAction(0x1, TraceAction.METHOD_EXIT, 20, 20);
+        reconstructor.addTraceAction(0x6, TraceAction.METHOD_ENTER, 21, 21);
+        reconstructor.addTraceAction(0x6, TraceAction.METHOD_EXIT, 22, 22);
+
+        return reconstructor.getTopLevel();
+    }
+
+    public void testCallsInWindow() {
+        CallIndex index = new CallIndex(reconstructSampleCallStack());
+        assertEquals(4, index.getDepthCount());
+
+        assertEquals(Arrays.asList(0x1L, 0x2L, 0x3L),
+                getMethodIds(index.getCalls(12, 13, 1, 3, 0, ClockType.GLOBAL,
+                        TimeUnit.MICROSECONDS)));
+        assertEquals(Arrays.asList(0x1L, 0x6L, 0x5L),
+                getMethodIds(index.getCalls(18, 21, 1, 2, 0, ClockType.THREAD,
+                        TimeUnit.MICROSECONDS)));
+
+        // Calls shorter than the minimum duration are left out.
+        assertEquals(Arrays.asList(0x1L, 0x2L),
+                getMethodIds(index.getCalls(0, 100, 1, 3, 2, ClockType.GLOBAL,
+                        TimeUnit.MICROSECONDS)));
+        assertTrue(index.getCalls(23, 100, 1, 3, 0, ClockType.GLOBAL, TimeUnit.MICROSECONDS)
+                .isEmpty());
+    }
+
+    public void testCallAt() {
+        CallIndex index = new CallIndex(reconstructSampleCallStack());
+        assertEquals(0x3, index.getCallAt(14, 3, ClockType.GLOBAL, TimeUnit.MICROSECONDS)
+                .getMethodId());
+        assertEquals(0x5, index.getCallAt(17500, 2, ClockType.GLOBAL, TimeUnit.NANOSECONDS)
+                .getMethodId());
+        assertNull(index.getCallAt(19, 2, ClockType.GLOBAL, TimeUnit.MICROSECONDS));
+        assertNull(index.getCallAt(14, 4, ClockType.GLOBAL, TimeUnit.MICROSECONDS));
+    }
+
+    public void testTopMethods() {
+        CallIndex index = new CallIndex(reconstructSampleCallStack());
+        Map<Long, Long> top = index.getTopMethods(12, 18, ClockType.GLOBAL,
+                TimeUnit.MICROSECONDS, 3);
+        assertEquals(3, top.size());
+        assertEquals(Long.valueOf(6), top.get(0xffL));
+        assertEquals(Long.valueOf(6), top.get(0x1L));
+        assertEquals(Long.valueOf(4), top.get(0x2L));
+        assertEquals(Long.valueOf(4), new ArrayList<>(top.values()).get(2));
+    }
+
+    public void testMatchesCallHierarchy() {
+        Call topLevel = reconstructSampleCallStack();
+        CallIndex index = new CallIndex(topLevel);
+        for (long start = 8; start < 24; start++) {
+            for (long end = start; end < 24; end++) {
+                List<Call> expected = new ArrayList<>();
+                Iterator<Call> it = topLevel.getCallHierarchyIterator();
+                while (it.hasNext()) {
+                    Call c = it.next();
+                    if (c.getEntryTime(ClockType.GLOBAL, TimeUnit.MICROSECONDS) <= end
+                            && c.getExitTime(ClockType.GLOBAL, TimeUnit.MICROSECONDS) >= start) {
+                        expected.add(c);
+                    }
+                }
+                List<Call> actual = index.getCalls(start, end, 0, Integer.MAX_VALUE, 0,
+                        ClockType.GLOBAL, TimeUnit.MICROSECONDS);
+                assertEquals(new HashSet<>(expected), new HashSet<>(actual));
+                assertEquals(expected.size(), actual.size());
+            }
+        }
+    }
+
+    private static List<Long> getMethodIds(List<Call> calls) {
+        List<Long> ids = new ArrayList<>(calls.size());
+        for (Call c : calls) {
+            ids.add(c.getMethodId());
+        }
+        return ids;
+    }
+}
@@ -17,6 +17,7 @@
 package com.android.tools.perflib.vmtrace;
 
 import com.android.testutils.TestResources;
+import com.google.common.collect.Iterators;
 import com.google.common.primitives.Ints;
 import junit.framework.TestCase;
 
@@ -390,6 +391,99 @@ public class VmTraceParserTest extends TestCase {
         doTestMethodProfilingData(traceData, okHttp);
     }
 
+    public void testStreamingMode() throws IOException {
+        String[] traces = {"/basic.trace", "/exception.trace", "/mismatched.trace",
+                "/streaming.trace"};
+        for (String trace : traces) {
+            VmTraceData expected = getVmTraceData(trace);
+            VmTraceData.Builder dataBuilder = new VmTraceData.Builder()
+                    .setStreaming(true)
+                    .setCallSpillDirectory(null)
+                    .setTimeBucketWidth(1, TimeUnit.MILLISECONDS);
+            new VmTraceParser(getFile(trace), dataBuilder).parse();
+            VmTraceData actual = dataBuilder.build();
+            try {
+                for (ThreadInfo expectedThread : expected.getThreads()) {
+                    ThreadInfo thread = actual.getThread(expectedThread.getName());
+                    assertNotNull(thread);
+                    verifyStreamingThread(expected, expectedThread, actual, thread);
+                }
+            } finally {
+                actual.dispose();
+            }
+        }
+    }
+
+    private void verifyStreamingThread(VmTraceData expected, ThreadInfo expectedThread,
+            VmTraceData actual, ThreadInfo thread) throws IOException {
+        Call expectedTopLevel = expectedThread.getTopLevelCall();
+        if (expectedTopLevel == null) {
+            assertNull(thread.getTopLevelCall());
+            return;
+        }
+
+        // The statistics of every method match those computed from the full call tree.
+        for (MethodInfo method : expected.getMethods().values()) {
+            MethodProfileData expectedData = method.getProfileData();
+            MethodProfileData data = actual.getMethod(method.id).getProfileData();
+            if (expectedData == null) {
+                assertTrue(data == null || data.getInvocationCount(thread) == 0);
+                continue;
+            }
+            assertNotNull(method.getFullName(), data);
+            assertEquals(expectedData.getInvocationCount(expectedThread),
+                    data.getInvocationCount(thread));
+            assertEquals(expectedData.getCallers(expectedThread), data.getCallers(thread));
+            assertEquals(expectedData.getCallees(expectedThread), data.getCallees(thread));
+            for (ClockType type : ClockType.values()) {
+                assertEquals(
+                        expectedData.getInclusiveTime(expectedThread, type, TimeUnit.NANOSECONDS),
+                        data.getInclusiveTime(thread, type, TimeUnit.NANOSECONDS));
+                assertEquals(
+                        expectedData.getExclusiveTime(expectedThread, type, TimeUnit.NANOSECONDS),
+                        data.getExclusiveTime(thread, type, TimeUnit.NANOSECONDS));
+                for (Long caller : expectedData.getCallers(expectedThread)) {
+                    assertEquals(
+                            expectedData.getInclusiveTimeByCaller(expectedThread, caller, type,
+                                    TimeUnit.NANOSECONDS),
+                            data.getInclusiveTimeByCaller(thread, caller, type,
+                                    TimeUnit.NANOSECONDS));
+                    assertEquals(
+                            expectedData.getExclusiveTimeByCaller(expectedThread, caller, type,
+                                    TimeUnit.NANOSECONDS),
+                            data.getExclusiveTimeByCaller(thread, caller, type,
+                                    TimeUnit.NANOSECONDS));
+                }
+                for (Long callee : expectedData.getCallees(expectedThread)) {
+                    assertEquals(
+                            expectedData.getInclusiveTimeByCallee(expectedThread, callee, type,
+                                    TimeUnit.NANOSECONDS),
+                            data.getInclusiveTimeByCallee(thread, callee, type,
+                                    TimeUnit.NANOSECONDS));
+                }
+            }
+        }
+
+        // Paging in the whole thread gives back the full call tree.
+        Call calls = thread.getPagedCalls().getCalls(0, Long.MAX_VALUE, 0, ClockType.GLOBAL,
+                TimeUnit.MICROSECONDS);
+        CallFormatter formatter = new CallFormatter(expected.getMethods());
+        assertEquals(expectedTopLevel.format(formatter), calls.format(formatter));
+        assertEquals(expectedTopLevel.getExitTime(ClockType.GLOBAL, TimeUnit.MICROSECONDS),
+                calls.getExitTime(ClockType.GLOBAL, TimeUnit.MICROSECONDS));
+
+        // Every call entered while tracing is counted once in the time buckets.
+        TimeBucketSummary buckets = thread.getTimeBuckets();
+        int callCount = 0;
+        for (int i = 0; i < buckets.getBucketCount(); i++) {
+            callCount += buckets.getCallCount(i);
+        }
+        Iterator<Call> it = expectedTopLevel.getCallHierarchyIterator();
+        it.next();
+        int expectedCallCount = Iterators.size(it);
+        assertTrue(callCount > 0 && callCount <= expectedCallCount);
+    }
+
     private VmTraceData getVmTraceData(String traceFilePath) throws IOException {
         VmTraceData.Builder dataBuilder = new VmTraceData.Builder();
         VmTraceParser parser = new VmTraceParser(getFile(traceFilePath), dataBuilder);
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace.viz;
+
+import com.android.tools.perflib.vmtrace.Call;
+import com.android.tools.perflib.vmtrace.ClockType;
+import com.android.tools.perflib.vmtrace.ThreadInfo;
+import com.android.tools.perflib.vmtrace.VmTraceData;
+import com.android.tools.perflib.vmtrace.VmTraceParser;
+import com.android.testutils.TestResources;
+import junit.framework.TestCase;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class CallHierarchyRendererTest extends TestCase {
+    private static final TimeUnit UNITS = TimeUnit.MICROSECONDS;
+
+    private VmTraceData mTraceData;
+    private VmTraceData mStreamingTraceData;
+
+    @Override
+    protected void setUp() throws Exception {
+        mTraceData = parse(new VmTraceData.Builder());
+        mStreamingTraceData = parse(new VmTraceData.Builder()
+                .setStreaming(true)
+                .setCallSpillDirectory(null));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStreamingTraceData.dispose();
+    }
+
+    public void testStreamingModeRendersPagedCalls() {
+        for (ThreadInfo thread : mTraceData.getThreads()) {
+            Call topLevel = thread.getTopLevelCall();
+            if (topLevel == null) {
+                continue;
+            }
+            ThreadInfo streamingThread = mStreamingTraceData.getThread(thread.getName());
+            assertNotNull(streamingThread.getPagedCalls());
+
+            for (ClockType clock : ClockType.values()) {
+                CallHierarchyRenderer renderer = new CallHierarchyRenderer(mTraceData, thread, 0,
+                        UNITS, new RenderContext(mTraceData, clock));
+                CallHierarchyRenderer streamingRenderer = new CallHierarchyRenderer(
+                        mStreamingTraceData, streamingThread, 0, UNITS,
+                        new RenderContext(mStreamingTraceData, clock));
+
+                // The whole thread, then a zoomed in window.
+                int duration = (int) topLevel.getInclusiveTime(clock, UNITS);
+                Rectangle clip = new Rectangle(0, 0, duration + 10, 1000);
+                AffineTransform transform = new AffineTransform();
+                List<String> calls = format(renderer.getVisibleCalls(clip, transform));
+                assertFalse(calls.isEmpty());
+                assertEquals(calls, format(streamingRenderer.getVisibleCalls(clip, transform)));
+
+                transform.scale(4, 1);
+                transform.translate(-duration / 3, 0);
+                clip = new Rectangle(0, 0, duration / 2, 1000);
+                assertEquals(format(renderer.getVisibleCalls(clip, transform)),
+                        format(streamingRenderer.getVisibleCalls(clip, transform)));
+
+                for (int x = 0; x < duration; x += Math.max(duration / 50, 1)) {
+                    for (int y = 5; y < 100; y += 10) {
+                        assertEquals(renderer.getToolTipFor(x, y),
+                                streamingRenderer.getToolTipFor(x, y));
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<String> format(List<Call> calls) {
+        List<String> formatted = new ArrayList<>();
+        for (Call c : calls) {
+            formatted.add(String.format("%d@%d: %d-%d %d-%d", c.getMethodId(), c.getDepth(),
+                    c.getEntryTime(ClockType.GLOBAL, UNITS),
+                    c.getExitTime(ClockType.GLOBAL, UNITS),
+                    c.getEntryTime(ClockType.THREAD, UNITS),
+                    c.getExitTime(ClockType.THREAD, UNITS)));
+        }
+        Collections.sort(formatted);
+        return formatted;
+    }
+
+    private VmTraceData parse(VmTraceData.Builder dataBuilder) throws IOException {
+        new VmTraceParser(TestResources.getFile(getClass(), "/basic.trace"), dataBuilder).parse();
+        return dataBuilder.build();
+    }
+}
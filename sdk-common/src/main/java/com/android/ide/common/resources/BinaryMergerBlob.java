@@ -0,0 +1,622 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.common.resources;
+
+import static com.android.SdkConstants.XMLNS;
+import static com.android.SdkConstants.XMLNS_URI;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.utils.XmlUtils;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import org.w3c.dom.Attr;
+import org.w3c.dom.DOMException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.ProcessingInstruction;
+
+/**
+ * A binary encoding of the blob written by {@link DataMerger}, used instead of {@code merger.xml}
+ * when enabled.
+ *
+ * <p>The blob is stored in the {@link #FN_MERGER_BLOB_FOLDER} folder of the blob root folder, as
+ * an index file and one section file per child element of the blob's root element (i.e. one per
+ * {@link DataSet}, plus the merger's additional data). Each section holds a string table followed
+ * by the element tree, and is named after the hash of its content: sections of the data sets which
+ * didn't change are not written again, and a section can only be read if it is complete. The
+ * index, which is replaced atomically, lists the live sections.
+ *
+ * <p>Sections are memory-mapped when read, and their strings are only decoded when used. Sections
+ * can be skipped entirely, e.g. the additional data when not loading into an incremental state.
+ *
+ * <p>Writing still goes through the whole DOM tree of the blob, and encodes and hashes every
+ * section, including those of the data sets which didn't change. Reading decodes every section
+ * which isn't skipped, i.e. all the data sets.
+ *
+ * <p>The element trees are decoded as if the XML blob had been parsed with a namespace aware
+ * parser, so that {@link DataMerger} can read both formats the same way.
+ */
+final class BinaryMergerBlob {
+
+    /** The folder, in the blob root folder, containing the binary blob. */
+    static final String FN_MERGER_BLOB_FOLDER = "merger-blob";
+
+    private static final String FN_INDEX = "index";
+
+    private static final String SECTION_EXTENSION = ".bin";
+
+    private static final int MAGIC = 0x4d424c42; // MBLB
+
+    private static final int FORMAT_VERSION = 2;
+
+    private static final String XML_URI = "http://www.w3.org/XML/1998/namespace";
+
+    // The kinds of nodes in a section, the children of an element end with END.
+    private static final int END = 0;
+    private static final int ELEMENT = 1;
+    private static final int TEXT = 2;
+    private static final int CDATA = 3;
+    private static final int COMMENT = 4;
+    private static final int PROCESSING_INSTRUCTION = 5;
+
+    private BinaryMergerBlob() {}
+
+    /** Returns whether the given blob root folder contains a binary blob. */
+    static boolean exists(@NonNull File blobRootFolder) {
+        return getIndexFile(blobRootFolder).isFile();
+    }
+
+    /**
+     * Writes the given blob root element (the root of the XML blob) as a binary blob.
+     *
+     * @param blobRootFolder the root folder where blobs are stored
+     * @param rootNode the root element of the blob
+     * @return false if the blob holds nodes which can't be encoded, e.g. entity references, in
+     *     which case nothing is written
+     */
+    static boolean write(@NonNull File blobRootFolder, @NonNull Element rootNode)
+            throws IOException {
+        List<Element> sections = getChildElements(rootNode);
+        List<byte[]> contents = new ArrayList<>(sections.size());
+        for (Element section : sections) {
+            byte[] content = new SectionWriter().write(section);
+            if (content == null) {
+                return false;
+            }
+            contents.add(content);
+        }
+
+        File folder = new File(blobRootFolder, FN_MERGER_BLOB_FOLDER);
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Failed to create directory: " + folder);
+        }
+
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        DataOutputStream indexOutput = new DataOutputStream(index);
+        indexOutput.writeInt(MAGIC);
+        indexOutput.writeInt(FORMAT_VERSION);
+        // The attributes of the root element: the version, and the namespace prefixes declared
+        // for the values of the items.
+        NamedNodeMap rootAttributes = rootNode.getAttributes();
+        indexOutput.writeInt(rootAttributes.getLength());
+        for (int i = 0, n = rootAttributes.getLength(); i < n; i++) {
+            Attr attribute = (Attr) rootAttributes.item(i);
+            indexOutput.writeUTF(attribute.getName());
+            indexOutput.writeUTF(attribute.getValue());
+        }
+
+        indexOutput.writeInt(sections.size());
+        Set<String> sectionFileNames = new HashSet<>();
+        for (int i = 0; i < sections.size(); i++) {
+            Element section = sections.get(i);
+            byte[] content = contents.get(i);
+            String fileName = Hashing.sha256().hashBytes(content).toString() + SECTION_EXTENSION;
+            File sectionFile = new File(folder, fileName);
+            if (sectionFileNames.add(fileName) && sectionFile.length() != content.length) {
+                writeAtomically(sectionFile, content);
+            }
+            indexOutput.writeUTF(section.getTagName());
+            indexOutput.writeUTF(fileName);
+            indexOutput.writeInt(content.length);
+        }
+        indexOutput.flush();
+        writeAtomically(getIndexFile(blobRootFolder), index.toByteArray());
+
+        // Delete the sections of the data sets which changed since the previous blob.
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!sectionFileNames.contains(file.getName())
+                        && !file.getName().equals(FN_INDEX)) {
+                    // May fail on Windows while an old section is still mapped, it will be
+                    // deleted the next time.
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a binary blob back as the root element of the corresponding XML blob.
+     *
+     * @param blobRootFolder the root folder where blobs are stored
+     * @param sectionFilter the names of the child elements of the root to read, the others
+     *     are skipped
+     * @return the root element, or null if the blob isn't valid
+     */
+    @Nullable
+    static Element read(@NonNull File blobRootFolder, @NonNull Predicate<String> sectionFilter)
+            throws IOException {
+        File folder = new File(blobRootFolder, FN_MERGER_BLOB_FOLDER);
+        Document document = XmlUtils.createDocument(true);
+        Element rootNode = document.createElementNS(null, DataMerger.NODE_MERGER);
+        document.appendChild(rootNode);
+
+        try (DataInputStream index =
+                new DataInputStream(
+                        new BufferedInputStream(
+                                Files.newInputStream(getIndexFile(blobRootFolder).toPath())))) {
+            if (index.readInt() != MAGIC || index.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            String[] rootAttributes = new String[index.readInt() * 2];
+            for (int i = 0; i < rootAttributes.length; i++) {
+                rootAttributes[i] = index.readUTF();
+            }
+            NamespaceScope rootScope = NamespaceScope.declare(new NamespaceScope(), rootAttributes);
+            setAttributes(rootNode, rootAttributes, rootScope);
+
+            int sectionCount = index.readInt();
+            for (int i = 0; i < sectionCount; i++) {
+                String name = index.readUTF();
+                File sectionFile = new File(folder, index.readUTF());
+                int length = index.readInt();
+                if (!sectionFilter.test(name)) {
+                    continue;
+                }
+                ByteBuffer content = map(sectionFile);
+                if (content == null || content.remaining() != length) {
+                    return null;
+                }
+                Node section = SectionReader.read(content, document, rootScope);
+                if (section == null) {
+                    return null;
+                }
+                rootNode.appendChild(section);
+            }
+        } catch (NoSuchFileException | EOFException | UTFDataFormatException e) {
+            return null;
+        }
+        return rootNode;
+    }
+
+    /** Deletes the binary blob, if any. */
+    static void delete(@NonNull File blobRootFolder) {
+        // Deleting the index is enough to invalidate the blob.
+        //noinspection ResultOfMethodCallIgnored
+        getIndexFile(blobRootFolder).delete();
+        File[] files = new File(blobRootFolder, FN_MERGER_BLOB_FOLDER).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    private static void setAttributes(
+            @NonNull Element element,
+            @NonNull String[] attributes,
+            @NonNull NamespaceScope scope) {
+        for (int i = 0; i < attributes.length; i += 2) {
+            String name = attributes[i];
+            try {
+                element.setAttributeNS(scope.resolve(name, false), name, attributes[i + 1]);
+            } catch (DOMException e) {
+                // Unbound prefix.
+                element.setAttribute(name, attributes[i + 1]);
+            }
+        }
+    }
+
+    @NonNull
+    private static File getIndexFile(@NonNull File blobRootFolder) {
+        return new File(new File(blobRootFolder, FN_MERGER_BLOB_FOLDER), FN_INDEX);
+    }
+
+    @NonNull
+    private static List<Element> getChildElements(@NonNull Node node) {
+        List<Element> elements = new ArrayList<>();
+        NodeList children = node.getChildNodes();
+        for (int i = 0, n = children.getLength(); i < n; i++) {
+            Node child = children.item(i);
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                elements.add((Element) child);
+            }
+        }
+        return elements;
+    }
+
+    private static void writeAtomically(@NonNull File file, @NonNull byte[] content)
+            throws IOException {
+        Path tempFile = file.toPath().resolveSibling(file.getName() + ".tmp");
+        Files.write(tempFile, content);
+        Files.move(
+                tempFile,
+                file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Returns the content of the given file, or null if it doesn't exist. */
+    @Nullable
+    private static ByteBuffer map(@NonNull File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // Mapped files can't be deleted on Windows until the mapping is garbage collected,
+            // which would break cleaning the incremental folder.
+            if (SdkConstants.currentPlatform() != SdkConstants.PLATFORM_WINDOWS) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {}
+            buffer.flip();
+            return buffer;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /** Encodes an element tree as a section: a string table followed by the nodes. */
+    private static final class SectionWriter {
+
+        private final Map<String, Integer> strings = Maps.newLinkedHashMap();
+
+        private final VarIntOutputStream nodes = new VarIntOutputStream();
+
+        /** Returns the encoded section, or null if the tree holds nodes which can't be encoded. */
+        @Nullable
+        byte[] write(@NonNull Element element) throws IOException {
+            if (!writeElement(element)) {
+                return null;
+            }
+
+            VarIntOutputStream section = new VarIntOutputStream();
+            section.writeVarInt(strings.size());
+            List<byte[]> encodedStrings = new ArrayList<>(strings.size());
+            for (String string : strings.keySet()) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                encodedStrings.add(bytes);
+                section.writeVarInt(bytes.length);
+            }
+            for (byte[] bytes : encodedStrings) {
+                section.write(bytes, 0, bytes.length);
+            }
+            nodes.writeTo(section);
+            return section.toByteArray();
+        }
+
+        private boolean writeElement(@NonNull Element element) {
+            nodes.write(ELEMENT);
+            nodes.writeVarInt(getStringIndex(element.getTagName()));
+            NamedNodeMap attributes = element.getAttributes();
+            nodes.writeVarInt(attributes.getLength());
+            for (int i = 0, n = attributes.getLength(); i < n; i++) {
+                Attr attribute = (Attr) attributes.item(i);
+                nodes.writeVarInt(getStringIndex(attribute.getName()));
+                nodes.writeVarInt(getStringIndex(attribute.getValue()));
+            }
+
+            // Adjacent text nodes are merged, as they would be by writing and parsing XML.
+            StringBuilder text = new StringBuilder();
+            NodeList children = element.getChildNodes();
+            for (int i = 0, n = children.getLength(); i < n; i++) {
+                Node child = children.item(i);
+                if (child.getNodeType() == Node.TEXT_NODE) {
+                    text.append(child.getNodeValue());
+                    continue;
+                }
+                writeText(text);
+                switch (child.getNodeType()) {
+                    case Node.ELEMENT_NODE:
+                        if (!writeElement((Element) child)) {
+                            return false;
+                        }
+                        break;
+                    case Node.CDATA_SECTION_NODE:
+                        nodes.write(CDATA);
+                        nodes.writeVarInt(getStringIndex(child.getNodeValue()));
+                        break;
+                    case Node.COMMENT_NODE:
+                        nodes.write(COMMENT);
+                        nodes.writeVarInt(getStringIndex(child.getNodeValue()));
+                        break;
+                    case Node.PROCESSING_INSTRUCTION_NODE:
+                        ProcessingInstruction instruction = (ProcessingInstruction) child;
+                        nodes.write(PROCESSING_INSTRUCTION);
+                        nodes.writeVarInt(getStringIndex(instruction.getTarget()));
+                        nodes.writeVarInt(getStringIndex(instruction.getData()));
+                        break;
+                    default:
+                        return false;
+                }
+            }
+            writeText(text);
+            nodes.write(END);
+            return true;
+        }
+
+        private void writeText(@NonNull StringBuilder text) {
+            if (text.length() > 0) {
+                nodes.write(TEXT);
+                nodes.writeVarInt(getStringIndex(text.toString()));
+                text.setLength(0);
+            }
+        }
+
+        private int getStringIndex(@NonNull String string) {
+            return strings.computeIfAbsent(string, s -> strings.size());
+        }
+    }
+
+    /** Decodes a section written by {@link SectionWriter} into a DOM tree. */
+    private static final class SectionReader {
+
+        @NonNull private final ByteBuffer buffer;
+
+        @NonNull private final Document document;
+
+        /** The offsets of the encoded strings in the buffer, plus the end of the last one. */
+        @NonNull private final int[] stringOffsets;
+
+        /** The strings decoded so far. */
+        @NonNull private final String[] strings;
+
+        private SectionReader(@NonNull ByteBuffer buffer, @NonNull Document document) {
+            this.buffer = buffer;
+            this.document = document;
+            int stringCount = readVarInt();
+            stringOffsets = new int[stringCount + 1];
+            for (int i = 0; i < stringCount; i++) {
+                stringOffsets[i + 1] = stringOffsets[i] + readVarInt();
+            }
+            int stringsStart = buffer.position();
+            for (int i = 0; i <= stringCount; i++) {
+                stringOffsets[i] += stringsStart;
+            }
+            strings = new String[stringCount];
+            buffer.position(stringOffsets[stringCount]);
+        }
+
+        /** Returns the root element of a section, or null if the section isn't valid. */
+        @Nullable
+        static Node read(
+                @NonNull ByteBuffer buffer,
+                @NonNull Document document,
+                @NonNull NamespaceScope rootScope) {
+            try {
+                SectionReader reader = new SectionReader(buffer, document);
+                if (buffer.get() != ELEMENT) {
+                    return null;
+                }
+                Node element = reader.readElement(rootScope);
+                return buffer.hasRemaining() ? null : element;
+            } catch (RuntimeException e) {
+                // The section is truncated or corrupted.
+                return null;
+            }
+        }
+
+        @NonNull
+        private Node readElement(@NonNull NamespaceScope parentScope) {
+            String tagName = readString();
+            int attributeCount = readVarInt();
+            String[] attributes = new String[attributeCount * 2];
+            for (int i = 0; i < attributes.length; i++) {
+                attributes[i] = readString();
+            }
+            NamespaceScope scope = NamespaceScope.declare(parentScope, attributes);
+
+            Element element;
+            String namespaceUri = scope.resolve(tagName, true);
+            try {
+                element = document.createElementNS(namespaceUri, tagName);
+            } catch (DOMException e) {
+                // Unbound prefix.
+                element = document.createElement(tagName);
+            }
+            setAttributes(element, attributes, scope);
+
+            for (int kind = buffer.get(); kind != END; kind = buffer.get()) {
+                switch (kind) {
+                    case ELEMENT:
+                        element.appendChild(readElement(scope));
+                        break;
+                    case TEXT:
+                        element.appendChild(document.createTextNode(readString()));
+                        break;
+                    case CDATA:
+                        element.appendChild(document.createCDATASection(readString()));
+                        break;
+                    case COMMENT:
+                        element.appendChild(document.createComment(readString()));
+                        break;
+                    case PROCESSING_INSTRUCTION:
+                        String target = readString();
+                        element.appendChild(
+                                document.createProcessingInstruction(target, readString()));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown node kind " + kind);
+                }
+            }
+            return element;
+        }
+
+        @NonNull
+        private String readString() {
+            int index = readVarInt();
+            String string = strings[index];
+            if (string == null) {
+                byte[] bytes = new byte[stringOffsets[index + 1] - stringOffsets[index]];
+                ByteBuffer source = buffer.duplicate();
+                source.position(stringOffsets[index]);
+                source.get(bytes);
+                string = new String(bytes, StandardCharsets.UTF_8);
+                strings[index] = string;
+            }
+            return string;
+        }
+
+        private int readVarInt() {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte b = buffer.get();
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+    }
+
+    /** The namespace prefixes declared on an element and its ancestors. */
+    private static final class NamespaceScope {
+
+        @Nullable private final NamespaceScope parent;
+
+        @NonNull private final Map<String, String> prefixes = Maps.newHashMap();
+
+        NamespaceScope() {
+            this(null);
+        }
+
+        private NamespaceScope(@Nullable NamespaceScope parent) {
+            this.parent = parent;
+        }
+
+        /**
+         * Returns the scope of an element with the given attributes (name/value pairs), which is
+         * the parent scope unless the attributes declare namespace prefixes.
+         */
+        @NonNull
+        static NamespaceScope declare(
+                @NonNull NamespaceScope parent, @NonNull String[] attributes) {
+            NamespaceScope scope = parent;
+            for (int i = 0; i < attributes.length; i += 2) {
+                String prefix;
+                if (attributes[i].equals(XMLNS)) {
+                    prefix = "";
+                } else if (attributes[i].startsWith(SdkConstants.XMLNS_PREFIX)) {
+                    prefix = attributes[i].substring(SdkConstants.XMLNS_PREFIX.length());
+                } else {
+                    continue;
+                }
+                if (scope == parent) {
+                    scope = new NamespaceScope(parent);
+                }
+                scope.prefixes.put(prefix, attributes[i + 1]);
+            }
+            return scope;
+        }
+
+        /**
+         * Returns the namespace of the given element or attribute name, as a namespace aware
+         * parser would, or null if it has none.
+         */
+        @Nullable
+        String resolve(@NonNull String name, boolean isElement) {
+            int colon = name.indexOf(':');
+            if (colon < 0) {
+                if (name.equals(XMLNS)) {
+                    return XMLNS_URI;
+                }
+                // The default namespace doesn't apply to attributes.
+                return isElement ? emptyToNull(lookup("")) : null;
+            }
+            String prefix = name.substring(0, colon);
+            if (prefix.equals(XMLNS)) {
+                return XMLNS_URI;
+            }
+            if (prefix.equals("xml")) {
+                return XML_URI;
+            }
+            return lookup(prefix);
+        }
+
+        @Nullable
+        private String lookup(@NonNull String prefix) {
+            for (NamespaceScope scope = this; scope != null; scope = scope.parent) {
+                String uri = scope.prefixes.get(prefix);
+                if (uri != null) {
+                    return uri;
+                }
+            }
+            return null;
+        }
+
+        @Nullable
+        private static String emptyToNull(@Nullable String uri) {
+            return uri == null || uri.isEmpty() ? null : uri;
+        }
+    }
+
+    /** A byte array output stream which can write variable length integers. */
+    private static final class VarIntOutputStream extends ByteArrayOutputStream {
+
+        VarIntOutputStream() {
+            super(8192);
+        }
+
+        void writeVarInt(int value) {
+            while ((value & ~0x7f) != 0) {
+                write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+    }
+}
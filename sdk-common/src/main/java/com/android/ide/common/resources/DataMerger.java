@@ -38,6 +38,7 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
@@ -45,7 +46,9 @@ import org.xml.sax.SAXException;
 /**
  * Merges {@link DataSet}s and writes a resulting data folder.
  *
- * This is able to save its post work state and reload this for incremental update.
+ * This is able to save its post work state and reload this for incremental update. The state is
+ * saved as {@code merger.xml}, or as a {@link BinaryMergerBlob} if {@link #setBinaryBlobEnabled}
+ * was called. Either format can be loaded back.
  */
 abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extends DataSet<I, F>>
         implements DataMap<I> {
@@ -64,6 +67,8 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
     /** All the DataSets. */
     private final List<S> mDataSets = new ArrayList<>();
 
+    private boolean mBinaryBlobEnabled = false;
+
     public DataMerger() {
         mFactory = DocumentBuilderFactory.newInstance();
         mFactory.setNamespaceAware(true);
@@ -86,6 +91,16 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
             @NonNull List<I> items,
             @NonNull MergeConsumer<I> consumer) throws MergingException;
 
+    /**
+     * Sets whether the merger state is written as a {@link BinaryMergerBlob} instead of
+     * {@code merger.xml}.
+     *
+     * @see #writeBlobTo(File, MergeConsumer, boolean)
+     */
+    public void setBinaryBlobEnabled(boolean binaryBlobEnabled) {
+        mBinaryBlobEnabled = binaryBlobEnabled;
+    }
+
     /**
      * Adds a new {@link DataSet} and overlays it on top of the existing DataSet.
      *
@@ -336,19 +351,44 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
             // write merged items
             writeAdditionalData(document, rootNode);
 
-            String content = XmlUtils.toXml(document);
-
             try {
                 createDir(blobRootFolder);
             } catch (IOException ioe) {
                 throw MergingException.wrapException(ioe).withFile(blobRootFolder).build();
             }
+
+            // Only keep one format, so that a stale blob is never loaded. Fall back to the XML
+            // blob if the items hold nodes the binary blob can't encode.
+            if (mBinaryBlobEnabled) {
+                boolean written;
+                try {
+                    written = BinaryMergerBlob.write(blobRootFolder, (Element) rootNode);
+                } catch (IOException ioe) {
+                    throw MergingException.wrapException(ioe)
+                            .withFile(
+                                    new File(
+                                            blobRootFolder,
+                                            BinaryMergerBlob.FN_MERGER_BLOB_FOLDER))
+                            .build();
+                }
+                if (written) {
+                    File xmlFile = new File(blobRootFolder, FN_MERGER_XML);
+                    if (xmlFile.isFile()) {
+                        xmlFile.delete();
+                    }
+                    return;
+                }
+            }
+
+            String content = XmlUtils.toXml(document);
+
             File file = new File(blobRootFolder, FN_MERGER_XML);
             try {
                 Files.write(content, file, StandardCharsets.UTF_8);
             } catch (IOException ioe) {
                 throw MergingException.wrapException(ioe).withFile(file).build();
             }
+            BinaryMergerBlob.delete(blobRootFolder);
         } catch (ParserConfigurationException e) {
             throw MergingException.wrapException(e).build();
         }
@@ -391,6 +431,25 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
      */
     public boolean loadFromBlob(@NonNull File blobRootFolder, boolean incrementalState)
             throws MergingException {
+        if (BinaryMergerBlob.exists(blobRootFolder)) {
+            try {
+                // Only read the additional data if it is going to be used.
+                Node rootNode =
+                        BinaryMergerBlob.read(
+                                blobRootFolder,
+                                name ->
+                                        NODE_DATA_SET.equals(name)
+                                                || (incrementalState
+                                                        && getAdditionalDataTagName()
+                                                                .equals(name)));
+                return rootNode != null && loadFromBlob(rootNode, incrementalState);
+            } catch (IOException e) {
+                throw MergingException.wrapException(e)
+                        .withFile(new File(blobRootFolder, BinaryMergerBlob.FN_MERGER_BLOB_FOLDER))
+                        .build();
+            }
+        }
+
         File file = new File(blobRootFolder, FN_MERGER_XML);
         if (!file.isFile()) {
             return false;
@@ -405,46 +464,52 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
                 return false;
             }
 
-            // get the version code.
-            String version = null;
-            Attr versionAttr = (Attr) rootNode.getAttributes().getNamedItem(ATTR_VERSION);
-            if (versionAttr != null) {
-                version = versionAttr.getValue();
-            }
-            if (!MERGE_BLOB_VERSION.equals(version)) {
-                return false;
-            }
+            return loadFromBlob(rootNode, incrementalState);
+        } catch (IOException | SAXException e) {
+            throw MergingException.wrapException(e).withFile(file).build();
+        }
+    }
 
-            NodeList nodes = rootNode.getChildNodes();
+    /** Loads the merger state from the root node of a blob. */
+    private boolean loadFromBlob(@NonNull Node rootNode, boolean incrementalState)
+            throws MergingException {
+        // get the version code.
+        String version = null;
+        Attr versionAttr = (Attr) rootNode.getAttributes().getNamedItem(ATTR_VERSION);
+        if (versionAttr != null) {
+            version = versionAttr.getValue();
+        }
+        if (!MERGE_BLOB_VERSION.equals(version)) {
+            return false;
+        }
 
-            for (int i = 0, n = nodes.getLength(); i < n; i++) {
-                Node node = nodes.item(i);
+        NodeList nodes = rootNode.getChildNodes();
 
-                if (node.getNodeType() != Node.ELEMENT_NODE) {
-                    continue;
-                }
+        for (int i = 0, n = nodes.getLength(); i < n; i++) {
+            Node node = nodes.item(i);
 
-                if (NODE_DATA_SET.equals(node.getLocalName())) {
-                    S dataSet = createFromXml(node);
-                    if (dataSet != null) {
-                        addDataSet(dataSet);
-                    }
-                } else if (incrementalState
-                        && getAdditionalDataTagName().equals(node.getLocalName())) {
-                    loadAdditionalData(node, incrementalState);
-                }
+            if (node.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
             }
 
-            if (incrementalState) {
-                setPostBlobLoadStateToWritten();
-            } else {
-                setPostBlobLoadStateToTouched();
+            if (NODE_DATA_SET.equals(node.getLocalName())) {
+                S dataSet = createFromXml(node);
+                if (dataSet != null) {
+                    addDataSet(dataSet);
+                }
+            } else if (incrementalState
+                    && getAdditionalDataTagName().equals(node.getLocalName())) {
+                loadAdditionalData(node, incrementalState);
             }
+        }
 
-            return true;
-        } catch (IOException | SAXException e) {
-            throw MergingException.wrapException(e).withFile(file).build();
+        if (incrementalState) {
+            setPostBlobLoadStateToWritten();
+        } else {
+            setPostBlobLoadStateToTouched();
         }
+
+        return true;
     }
 
     @NonNull
@@ -468,6 +533,7 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
         if (file.isFile()) {
             file.delete();
         }
+        BinaryMergerBlob.delete(blobRootFolder);
     }
 
     /**
@@ -48,6 +48,7 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 import java.io.File;
 import java.io.IOException;
@@ -57,6 +58,8 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import javax.xml.parsers.DocumentBuilderFactory;
 import org.junit.Before;
 import org.junit.Rule;
@@ -66,8 +69,10 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.w3c.dom.ProcessingInstruction;
 
 public class ResourceMergerTest extends BaseTestCase {
 
@@ -483,6 +488,92 @@ public class ResourceMergerTest extends BaseTestCase {
                      fromLoadedString.getValueText());
     }
 
+    @Test
+    public void testMergeBinaryBlob() throws Exception {
+        ResourceMerger merger = getResourceMerger();
+        merger.setBinaryBlobEnabled(true);
+
+        File folder = TestUtils.createTempDirDeletedOnExit();
+        merger.writeBlobTo(folder, getConsumer(), false);
+        assertFalse(new File(folder, DataMerger.FN_MERGER_XML).exists());
+        assertTrue(BinaryMergerBlob.exists(folder));
+
+        ResourceMerger loadedMerger = new ResourceMerger(0);
+        assertTrue(loadedMerger.loadFromBlob(folder, true /*incrementalState*/));
+
+        compareResourceMaps(merger, loadedMerger, true /*full compare*/);
+
+        // The xliff namespace, declared on the root of the blob, must be restored.
+        List<ResourceMergerItem> fromLoadedValues =
+                loadedMerger.getDataMap().get("string/xliff_with_carriage_return");
+        assertEquals(1, fromLoadedValues.size());
+        assertEquals(
+                "This is should be followed by whitespace:\n        %1$s",
+                fromLoadedValues.get(0).getValueText());
+
+        // Writing the same state again doesn't rewrite the sections of the data sets. The sections
+        // are backdated first, so that a rewrite shows even within the timestamp resolution.
+        File blobFolder = new File(folder, BinaryMergerBlob.FN_MERGER_BLOB_FOLDER);
+        long oldTimestamp = TimeUnit.DAYS.toMillis(365);
+        Set<String> sections = Sets.newHashSet();
+        for (File section : blobFolder.listFiles()) {
+            if (!section.getName().equals("index")) {
+                assertTrue(section.setLastModified(oldTimestamp));
+                sections.add(section.getName());
+            }
+        }
+        loadedMerger.setBinaryBlobEnabled(true);
+        loadedMerger.writeBlobTo(folder, getConsumer(), false);
+        for (File section : blobFolder.listFiles()) {
+            if (!section.getName().equals("index")) {
+                assertTrue(sections.remove(section.getName()));
+                assertEquals(oldTimestamp, section.lastModified());
+            }
+        }
+        assertTrue(sections.isEmpty());
+
+        // Going back to the XML blob removes the binary one.
+        loadedMerger.setBinaryBlobEnabled(false);
+        loadedMerger.writeBlobTo(folder, getConsumer(), false);
+        assertTrue(new File(folder, DataMerger.FN_MERGER_XML).exists());
+        assertFalse(BinaryMergerBlob.exists(folder));
+    }
+
+    @Test
+    public void testBinaryBlobNodeTypes() throws Exception {
+        Document document =
+                DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        Element root = document.createElement(DataMerger.NODE_MERGER);
+        document.appendChild(root);
+        Element dataSet = document.createElement(DataMerger.NODE_DATA_SET);
+        root.appendChild(dataSet);
+        dataSet.appendChild(document.createTextNode("text"));
+        dataSet.appendChild(document.createCDATASection("<cdata>"));
+        dataSet.appendChild(document.createComment("comment"));
+        dataSet.appendChild(document.createProcessingInstruction("target", "data"));
+
+        File folder = TestUtils.createTempDirDeletedOnExit();
+        assertTrue(BinaryMergerBlob.write(folder, root));
+        Element loaded = BinaryMergerBlob.read(folder, name -> true);
+        assertNotNull(loaded);
+        NodeList children = loaded.getFirstChild().getChildNodes();
+        assertEquals(4, children.getLength());
+        assertEquals("text", children.item(0).getNodeValue());
+        assertEquals(Node.CDATA_SECTION_NODE, children.item(1).getNodeType());
+        assertEquals("<cdata>", children.item(1).getNodeValue());
+        assertEquals(Node.COMMENT_NODE, children.item(2).getNodeType());
+        assertEquals("comment", children.item(2).getNodeValue());
+        ProcessingInstruction instruction = (ProcessingInstruction) children.item(3);
+        assertEquals("target", instruction.getTarget());
+        assertEquals("data", instruction.getData());
+
+        // Nodes which can't be encoded are left to the XML blob.
+        BinaryMergerBlob.delete(folder);
+        dataSet.appendChild(document.createEntityReference("entity"));
+        assertFalse(BinaryMergerBlob.write(folder, root));
+        assertFalse(BinaryMergerBlob.exists(folder));
+    }
+
     @Test
     public void testNamespaceRestored() throws Exception {
         File root =